@@ -0,0 +1,14 @@
+#ifdef GL_ES
+precision mediump float;
+precision mediump int;
+#endif
+
+#define PROCESSING_COLOR_SHADER
+
+uniform vec4 fillColor;
+
+varying vec4 vertColor;
+
+void main() {
+  gl_FragColor = vertColor * fillColor;
+}
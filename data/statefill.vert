@@ -0,0 +1,14 @@
+// state fill meshes are tessellated once in white; the fill colour of a
+// draw comes from the fillColor uniform of the fragment shader
+
+uniform mat4 transformMatrix;
+
+attribute vec4 position;
+attribute vec4 color;
+
+varying vec4 vertColor;
+
+void main() {
+  gl_Position = transformMatrix * position;
+  vertColor = color;
+}
@@ -0,0 +1,282 @@
+// micro benchmarks of the load, lookup, render and hover paths on synthetic
+// data of several sizes, started from main() with
+//
+//   --benchmark[=<filter>]    run the benchmarks whose name contains filter
+//   --bench-states=<n,...>    numbers of states to generate (27,270)
+//   --bench-years=<n,...>     numbers of years to generate (11,44)
+//   --bench-time=<ms>         measuring time per benchmark (2000), after
+//                             as long a warm-up
+//   --bench-out=<file>        also write the results as CSV
+//
+// Synthetic states reuse the geometry and positions of the real states in
+// turn, so views and details cost what they would with real data. Every
+// benchmark is warmed up, then measured in five iterations whose mean,
+// minimum and standard deviation are reported per operation.
+
+abstract class Bench {
+  String name;
+
+  Bench(String name) {
+    this.name = name;
+  }
+
+  // run one operation and return its result, which is consumed so the JIT
+  // cannot drop the work
+  abstract Object run(int op);
+}
+
+//////////////////////////////////
+
+// runs benchmarks and collects their results
+
+class BenchRunner {
+  String filter;
+  long timeNanos; // measuring time per benchmark
+  int sink; // consumes results of the operations
+  ArrayList<String> results = new ArrayList<String>(); // CSV rows
+
+  BenchRunner(String filter, long timeMillis) {
+    this.filter = filter;
+    timeNanos = timeMillis * 1000000L;
+  }
+
+  /*----------------------------*/
+
+  void measure(String params, Bench bench) {
+    if (!bench.name.contains(filter))
+      return;
+
+    int op = 0;
+    long end = System.nanoTime() + timeNanos;
+    while (System.nanoTime() < end)
+      sink += bench.run(op++).hashCode();
+
+    int iterations = 5;
+    double[] nanosPerOp = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      long stop = start + timeNanos / iterations;
+      int ops = 0;
+      long now;
+      do {
+        sink += bench.run(op++).hashCode();
+        ops++;
+        now = System.nanoTime();
+      } while (now < stop);
+      nanosPerOp[i] = (now - start) / (double) ops;
+    }
+
+    double mean = 0, min = Double.MAX_VALUE, variance = 0;
+    for (double n : nanosPerOp) {
+      mean += n / iterations;
+      min = Math.min(min, n);
+    }
+    for (double n : nanosPerOp)
+      variance += (n - mean) * (n - mean) / (iterations - 1);
+
+    println(String.format("%-34s %-18s %14.1f %14.1f %12.1f", bench.name, params, mean, min, Math.sqrt(variance)));
+    results.add(bench.name + "," + params.replace(' ', ',') + "," + mean + "," + min + "," + Math.sqrt(variance));
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// run all benchmarks for every dataset size, run headless from main()
+
+boolean benchmark() {
+  int[] numStatesList = int(split(stringArg("--bench-states", "27,270"), ','));
+  int[] numYearsList = int(split(stringArg("--bench-years", "11,44"), ','));
+  BenchRunner runner = new BenchRunner(stringArg("--benchmark", ""), intArg("--bench-time", 2000));
+
+  // a Java2D renderer stands in for the window, so that shapes, colours
+  // and text can be created and drawn without a display
+  width = 1920;
+  height = 1080;
+  setLayout(width, height);
+  viewport = new Viewport(0);
+  PGraphics pg = new PGraphicsJava2D();
+  pg.setParent(this);
+  pg.setPrimary(false);
+  pg.setSize(width, height);
+  g = pg;
+  font = createFont("SEGOEUI.TTF", 34);
+  pg.beginDraw();
+  pg.textFont(font);
+  pg.endDraw();
+
+  XML svgXML = loadXML("brazilLow.svg");
+  XML[] svgPaths = svgXML.getChild("g").getChildren("path");
+  String[] realCodes = new String[svgPaths.length];
+  for (int i = 0; i < realCodes.length; i++)
+    realCodes[i] = svgPaths[i].getString("id");
+  PShape svg = new PShapeSVG(svgXML);
+  HashMap<String, int[]> positions = loadCoordinatesFromCSV("positions.csv");
+
+  println(String.format("%-34s %-18s %14s %14s %12s", "benchmark", "states years", "mean ns/op", "min ns/op", "stddev"));
+  try {
+    for (int numStates : numStatesList) {
+      for (int numYears : numYearsList) {
+        File dir = createBenchData(numStates, numYears, realCodes, positions);
+        runBenchmarks(runner, numStates + " " + numYears, dir, svg, realCodes, positions, pg);
+      }
+    }
+  } catch (IOException e) {
+    println("cannot write benchmark data: " + e);
+    return false;
+  }
+
+  String out = stringArg("--bench-out", null);
+  if (out != null) {
+    PrintWriter writer = createWriter(out);
+    writer.println("Benchmark,States,Years,Mean ns/op,Min ns/op,Stddev");
+    for (String row : runner.results)
+      writer.println(row);
+    writer.close();
+  }
+  return true;
+}
+
+/*----------------------------------------------------------------------*/
+
+void runBenchmarks(BenchRunner runner, String params, final File dir, PShape svg, String[] realCodes,
+  HashMap<String, int[]> positions, final PGraphics pg) {
+  final String firesFile = new File(dir, "fires_data.csv").getPath();
+  final String plantFile = new File(dir, "planted_forests_data.csv").getPath();
+
+  runner.measure(params, new Bench("loadFiresDataFromCSV") {
+    Object run(int op) {
+      return loadFiresDataFromCSV(firesFile);
+    }
+  });
+
+  // set up the sketch on the synthetic data as loadData() would
+  store = loadFiresDataFromCSV(firesFile);
+  loadPlantData(plantFile);
+  store.computeStats();
+  timeCube = new TimeCube(store);
+  createScales();
+  coordinatesMap = new HashMap<String, int[]>();
+  statePaths = new Path2D[store.numStates];
+  for (int stateId = 0; stateId < store.numStates; stateId++) {
+    String realCode = store.stateCodes.get(stateId).substring(0, 5);
+    statePaths[stateId] = statePath(svg.getChild(realCode));
+    if (positions.containsKey(realCode))
+      coordinatesMap.put(store.stateCodes.get(stateId), positions.get(realCode));
+  }
+  stateIndex = new StateIndex(statePaths);
+  stateMeshes = new StateMeshes(statePaths);
+  correlations = new Correlations(store, 3);
+  rankings = new Rankings(store, timeCube);
+  int[] my = getMonthYear(store.nextView(-1, 1));
+  thisStateEntries = getStateEntries(my[0], my[1]);
+  selectView(my[0], my[1]);
+
+  runner.measure(params, new Bench("loadPlantData") {
+    Object run(int op) {
+      loadPlantData(plantFile);
+      return store.plantedArea;
+    }
+  });
+
+  runner.measure(params, new Bench("getStateEntries(month, year)") {
+    Object run(int op) {
+      int[] my = getMonthYear(op % store.numViews);
+      return getStateEntries(my[0], my[1]);
+    }
+  });
+
+  runner.measure(params, new Bench("getStateEntries(state, year)") {
+    Object run(int op) {
+      return getStateEntries(store.stateCodes.get(op % store.numStates), store.startYear + op % store.numYears);
+    }
+  });
+
+  final ViewRenderer renderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, 1);
+  runner.measure(params, new Bench("render view") {
+    Object run(int op) {
+      return renderer.render(op % store.numViews);
+    }
+  });
+  renderer.shutdown();
+
+  final PaletteRenderer palette = new PaletteRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor);
+  runner.measure(params, new Bench("palette view") {
+    Object run(int op) {
+      palette.render(op % store.numViews, op % store.numViews, 0);
+      return palette.pixels;
+    }
+  });
+  runner.measure(params, new Bench("palette blend") {
+    Object run(int op) {
+      int viewIdx = op % store.numViews;
+      palette.render(viewIdx, store.nextView(viewIdx, 1), 0.5f);
+      return palette.pixels;
+    }
+  });
+
+  // a thumbnail of the grid of every month, from the pyramid of the raster
+  final ThumbnailPyramid pyramid = new ThumbnailPyramid(palette, statePaths);
+  final int thumbnailLevel = pyramid.level(graphicsWidth / 12f, graphicsHeight / 12f);
+  runner.measure(params, new Bench("grid thumbnail") {
+    Object run(int op) {
+      return pyramid.compose(op % store.numViews, thumbnailLevel);
+    }
+  });
+
+  // what a live update of one month costs the rankings
+  runner.measure(params, new Bench("rank month") {
+    Object run(int op) {
+      rankings.update(op % store.numViews);
+      return rankings.months[op % store.numViews].order;
+    }
+  });
+
+  // the hover path of every frame: find the state under the mouse and
+  // draw its details, at points spread over the map
+  final int[] mouse = new int[2 * 997];
+  Random random = new Random(1);
+  for (int i = 0; i < mouse.length; i += 2) {
+    mouse[i] = graphicsX + random.nextInt(graphicsWidth);
+    mouse[i+1] = graphicsY + random.nextInt(graphicsHeight);
+  }
+  runner.measure(params, new Bench("stateAt + showDetails") {
+    Object run(int op) {
+      int i = 2 * (op % (mouse.length / 2));
+      int stateId = stateIndex.stateAt((mouse[i] - graphicsX) / scaleFactor, (mouse[i+1] - graphicsY) / scaleFactor);
+      pg.beginDraw();
+      pg.clear();
+      showDetails(pg, stateId);
+      pg.endDraw();
+      return stateId;
+    }
+  });
+}
+
+/*----------------------------------------------------------------------*/
+// write fire and planted forests files for the given number of states and
+// years; states beyond the real ones repeat them with suffixed codes
+
+File createBenchData(int numStates, int numYears, String[] realCodes, HashMap<String, int[]> positions)
+  throws IOException {
+  File dir = new File(System.getProperty("java.io.tmpdir"), "brazilian_fires-bench-" + numStates + "x" + numYears);
+  if (!dir.isDirectory() && !dir.mkdirs())
+    throw new IOException("cannot create " + dir);
+
+  Random random = new Random(numStates * 31 + numYears);
+  PrintWriter fires = createWriter(new File(dir, "fires_data.csv").getPath());
+  PrintWriter planted = createWriter(new File(dir, "planted_forests_data.csv").getPath());
+  fires.println("State code,State name,Month,Year,Number of fires");
+  planted.println("State code,State name,Year,Planted area (ha)");
+  for (int i = 0; i < numStates; i++) {
+    String realCode = realCodes[i % realCodes.length];
+    String code = i < realCodes.length ? realCode : realCode + "-" + (i / realCodes.length);
+    for (int year = 2000; year < 2000 + numYears; year++) {
+      for (int month = 1; month <= 12; month++)
+        fires.println(code + ",State " + i + "," + month + "," + year + "," + (int) (Math.exp(random.nextFloat() * 10) - 1));
+      if (positions.containsKey(realCode))
+        planted.println(code + ",State " + i + "," + year + "," + (10000 + random.nextInt(1500000)));
+    }
+  }
+  fires.close();
+  planted.close();
+  return dir;
+}
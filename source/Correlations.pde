@@ -0,0 +1,248 @@
+import java.util.concurrent.*;
+
+// correlation of yearly fire totals with planted forests area, per state
+// and for the whole country: Pearson and Spearman coefficients for the
+// same year and for planting in year N against fires in year N-k. Results
+// are cached per state and computed again only for states whose data
+// changed. Exported headlessly from main() with
+//
+//   --correlations=<file>   write the correlations of all states as CSV
+//   --max-lag=<years>       largest lag k (3)
+
+class Correlations {
+  FactStore store;
+  int maxLag;
+  Correlation[] results; // indexed by state id, the country last; null if not computed
+
+  /*----------------------------*/
+
+  Correlations(FactStore store, int maxLag) {
+    this.store = store;
+    this.maxLag = maxLag;
+    results = new Correlation[store.numStates + 1];
+  }
+
+  int countryId() {
+    return store.numStates;
+  }
+
+  /*----------------------------*/
+  // return correlations of a state (or the country), computing them if the
+  // data changed since they were last computed
+
+  Correlation get(int stateId) {
+    if (results[stateId] == null)
+      results[stateId] = compute(stateId);
+    return results[stateId];
+  }
+
+  // drop the results of a state whose data changed, and of the country
+  void invalidate(int stateId) {
+    results[stateId] = null;
+    results[countryId()] = null;
+  }
+
+  /*----------------------------*/
+  // compute all missing results in parallel, one task per state
+
+  void computeAll() {
+    ArrayList<Callable<Correlation>> tasks = new ArrayList<Callable<Correlation>>();
+    final ArrayList<Integer> ids = new ArrayList<Integer>();
+    for (int id = 0; id < results.length; id++) {
+      if (results[id] != null)
+        continue;
+      final int stateId = id;
+      ids.add(stateId);
+      tasks.add(new Callable<Correlation>() {
+        public Correlation call() {
+          return compute(stateId);
+        }
+      });
+    }
+    try {
+      List<Future<Correlation>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+      for (int i = 0; i < futures.size(); i++)
+        results[ids.get(i)] = futures.get(i).get();
+    } catch (Exception e) {
+      throw new RuntimeException("computing correlations failed", e);
+    }
+  }
+
+  /*----------------------------*/
+
+  Correlation compute(int stateId) {
+    double[] fires = new double[store.numYears];
+    double[] planted = new double[store.numYears];
+    boolean[] hasFires = new boolean[store.numYears];
+    boolean[] hasPlanted = new boolean[store.numYears];
+
+    // yearly totals of the state, or of all states for the country
+    int first = stateId == countryId() ? 0 : stateId;
+    int last = stateId == countryId() ? store.numStates - 1 : stateId;
+    for (int s = first; s <= last; s++) {
+      for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+        for (int viewIdx = yearIdx*12; viewIdx < yearIdx*12 + 12; viewIdx++) {
+          if (store.hasData(s, viewIdx)) {
+            fires[yearIdx] += store.fires[s][viewIdx];
+            hasFires[yearIdx] = true;
+          }
+        }
+        if (store.plantedArea[s][yearIdx] != 0) {
+          planted[yearIdx] += store.plantedArea[s][yearIdx];
+          hasPlanted[yearIdx] = true;
+        }
+      }
+    }
+
+    Correlation c = new Correlation(maxLag);
+    for (int lag = 0; lag <= maxLag; lag++) {
+      // pair planting in year N with fires in year N-lag
+      double[] x = new double[store.numYears];
+      double[] y = new double[store.numYears];
+      int n = 0;
+      for (int yearIdx = lag; yearIdx < store.numYears; yearIdx++) {
+        if (hasPlanted[yearIdx] && hasFires[yearIdx - lag]) {
+          x[n] = fires[yearIdx - lag];
+          y[n] = planted[yearIdx];
+          n++;
+        }
+      }
+      c.n[lag] = n;
+      c.pearson[lag] = pearson(x, y, n);
+      c.spearman[lag] = pearson(ranks(x, n), ranks(y, n), n);
+    }
+    return c;
+  }
+}
+
+//////////////////////////////////
+
+// correlations of one state, indexed by lag in years
+
+class Correlation {
+  int[] n; // number of paired years
+  float[] pearson; // NaN when there are too few years or no variation
+  float[] spearman;
+
+  Correlation(int maxLag) {
+    n = new int[maxLag + 1];
+    pearson = new float[maxLag + 1];
+    spearman = new float[maxLag + 1];
+  }
+
+  // return the lag with the strongest Pearson correlation, or -1 if none
+  int strongestLag() {
+    int best = -1;
+    for (int lag = 0; lag < pearson.length; lag++) {
+      if (!Float.isNaN(pearson[lag]) && (best < 0 || Math.abs(pearson[lag]) > Math.abs(pearson[best])))
+        best = lag;
+    }
+    return best;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// Pearson correlation of the first n values, NaN if it is undefined
+
+float pearson(double[] x, double[] y, int n) {
+  if (n < 3)
+    return Float.NaN;
+  double meanX = 0, meanY = 0;
+  for (int i = 0; i < n; i++) {
+    meanX += x[i];
+    meanY += y[i];
+  }
+  meanX /= n;
+  meanY /= n;
+
+  double cov = 0, varX = 0, varY = 0;
+  for (int i = 0; i < n; i++) {
+    cov += (x[i] - meanX) * (y[i] - meanY);
+    varX += (x[i] - meanX) * (x[i] - meanX);
+    varY += (y[i] - meanY) * (y[i] - meanY);
+  }
+  if (varX == 0 || varY == 0)
+    return Float.NaN;
+  return (float) (cov / Math.sqrt(varX * varY));
+}
+
+/*----------------------------------------------------------------------*/
+// ranks of the first n values, tied values get the mean of their ranks
+
+double[] ranks(double[] values, int n) {
+  Integer[] order = new Integer[n];
+  for (int i = 0; i < n; i++)
+    order[i] = i;
+  final double[] v = values;
+  Arrays.sort(order, new Comparator<Integer>() {
+    public int compare(Integer a, Integer b) {
+      return Double.compare(v[a], v[b]);
+    }
+  });
+
+  double[] ranks = new double[n];
+  for (int i = 0; i < n; ) {
+    int j = i;
+    while (j + 1 < n && values[order[j + 1]] == values[order[i]])
+      j++;
+    for (int k = i; k <= j; k++)
+      ranks[order[k]] = (i + j) / 2.0 + 1;
+    i = j + 1;
+  }
+  return ranks;
+}
+
+/*----------------------------------------------------------------------*/
+// largest lag given by --max-lag, a negative one would leave no lags at all
+
+int maxLagArg() {
+  int maxLag = intArg("--max-lag", 3);
+  if (maxLag < 0)
+    throw new IllegalArgumentException("--max-lag must be 0 or more, got " + maxLag);
+  return maxLag;
+}
+
+/*----------------------------------------------------------------------*/
+// format a coefficient for display
+
+String formatCorrelation(float r) {
+  return Float.isNaN(r) ? "n/a" : nf(r, 0, 2);
+}
+
+/*----------------------------------------------------------------------*/
+// write correlations of every state and the country as CSV, run headless
+// from main()
+
+boolean exportCorrelations() {
+  File file = new File(stringArg("--correlations", "correlations.csv"));
+  int maxLag = maxLagArg();
+  loadDataTables();
+
+  long start = System.nanoTime();
+  correlations = new Correlations(store, maxLag);
+  correlations.computeAll();
+  float millis = (System.nanoTime() - start) / 1e6f;
+
+  PrintWriter writer = createWriter(file.getPath());
+  writer.println("State code,State name,Lag,Years,Pearson,Spearman");
+  for (int id = 0; id <= store.numStates; id++) {
+    Correlation c = correlations.get(id);
+    String state = id == correlations.countryId() ? "BR,Brazil" :
+      csvField(store.stateCodes.get(id)) + "," + csvField(store.stateNames.get(id));
+    for (int lag = 0; lag <= correlations.maxLag; lag++)
+      writer.println(state + "," + lag + "," + c.n[lag] + "," +
+        (Float.isNaN(c.pearson[lag]) ? "" : c.pearson[lag]) + "," +
+        (Float.isNaN(c.spearman[lag]) ? "" : c.spearman[lag]));
+  }
+  writer.close();
+  if (writer.checkError()) {
+    println("cannot write " + file);
+    return false;
+  }
+
+  Correlation country = correlations.get(correlations.countryId());
+  println("correlations of " + store.numStates + " states written to " + file + " in " + nf(millis, 0, 1) +
+    " ms; Brazil: Pearson " + formatCorrelation(country.pearson[0]) + ", Spearman " +
+    formatCorrelation(country.spearman[0]));
+  return true;
+}
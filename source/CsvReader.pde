@@ -0,0 +1,552 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+// streaming reader of CSV files (RFC 4180) for the data loaders: rows are
+// read byte by byte into a reused buffer, numbers are parsed straight from
+// it and repeated strings like state codes are interned, so reading a row
+// allocates nothing. Quoted fields may hold commas, quotes ("") and line
+// breaks. Fields that are missing or not numbers are reported with their
+// file, row and column and the row is skipped, instead of aborting the
+// load. Files larger than CSV_PARALLEL_BYTES are split into chunks of
+// whole rows which are parsed in parallel (see readCsv()).
+
+static final int CSV_BUFFER_BYTES = 1 << 16; // bytes read from the stream at once
+static final int CSV_CHUNK_BYTES = 1 << 22; // bytes of rows parsed by one task
+static final int CSV_BATCH_ROWS = 1 << 14; // rows parsed and merged at once while streaming
+static final long CSV_PARALLEL_BYTES = 1L << 24; // larger files are parsed in parallel
+static final int CSV_REPORTED_ERRORS = 10; // errors printed per file, the rest are counted
+static final int CSV_INTERNED_STRINGS = 1 << 16; // distinct strings kept per reader
+
+class CsvReader {
+  String name; // file name, for errors
+  InputStream input; // null for a chunk in memory
+  byte[] buffer;
+  int position;
+  int limit;
+
+  byte[] row = new byte[256]; // unquoted bytes of the fields of the current row
+  int[] fieldEnds = new int[16]; // end of every field in row, each starts at the end of the one before
+  int numFields;
+  int rowNumber; // of the current row in the file, from 1 for the header
+  int rowsLeft = -1; // rows next() reads before it returns false, -1 for all
+  boolean rowFailed; // a field of the current row could not be read
+
+  String[] header; // column names, null before readHeader()
+  CsvErrors errors;
+  StringTable strings = new StringTable();
+
+  /*----------------------------*/
+  // read a whole stream
+
+  CsvReader(String name, InputStream input) {
+    this.name = name;
+    this.input = input;
+    buffer = new byte[CSV_BUFFER_BYTES];
+    errors = new CsvErrors(name);
+  }
+
+  // read the rows in bytes[from, to), the first of which is the given row
+  // of the file with the given header
+  CsvReader(String name, byte[] bytes, int from, int to, int firstRow, String[] header) {
+    this.name = name;
+    buffer = bytes;
+    position = from;
+    limit = to;
+    rowNumber = firstRow - 1;
+    this.header = header;
+    errors = new CsvErrors(name);
+  }
+
+  void close() throws IOException {
+    if (input != null)
+      input.close();
+  }
+
+  /*----------------------------*/
+
+  int read() throws IOException {
+    if (position == limit) {
+      if (input == null)
+        return -1;
+      limit = Math.max(0, input.read(buffer, 0, buffer.length));
+      position = 0;
+      if (limit == 0)
+        return -1;
+    }
+    return buffer[position++] & 0xff;
+  }
+
+  /*----------------------------*/
+  // read the next row that is not blank; false at the end of the input or
+  // once rowsLeft rows were read, which leaves rowsLeft at 0
+
+  boolean next() throws IOException {
+    if (rowsLeft == 0)
+      return false;
+    do {
+      if (!readRow())
+        return false;
+    } while (numFields == 1 && fieldEnds[0] == 0);
+    if (rowsLeft > 0)
+      rowsLeft--;
+    return true;
+  }
+
+  boolean readRow() throws IOException {
+    numFields = 0;
+    rowFailed = false;
+    int length = 0;
+    int c = read();
+    if (c < 0)
+      return false;
+    if (rowNumber++ == 0 && c == 0xef) { // UTF-8 byte order mark
+      read();
+      read();
+      c = read();
+    }
+
+    boolean quoted = false;
+    boolean fieldStart = true;
+    while (true) {
+      if (c < 0 || (!quoted && (c == ',' || c == '\n'))) {
+        if (numFields == fieldEnds.length)
+          fieldEnds = Arrays.copyOf(fieldEnds, 2 * numFields);
+        fieldEnds[numFields++] = length;
+        if (c != ',') {
+          if (quoted)
+            fail(numFields - 1, "has no closing quote");
+          return true;
+        }
+        fieldStart = true;
+        c = read();
+        continue;
+      }
+
+      if (quoted && c == '"') {
+        c = read();
+        if (c != '"') {
+          quoted = false; // closing quote, c is what follows it
+          continue;
+        }
+      } else if (!quoted && c == '"' && fieldStart) {
+        quoted = true;
+        fieldStart = false;
+        c = read();
+        continue;
+      } else if (!quoted && c == '\r') {
+        c = read(); // line ends may be CRLF
+        continue;
+      }
+
+      if (length == row.length)
+        row = Arrays.copyOf(row, 2 * length);
+      row[length++] = (byte) c;
+      fieldStart = false;
+      c = read();
+    }
+  }
+
+  /*----------------------------*/
+  // read the first row as column names
+
+  boolean readHeader() throws IOException {
+    if (!next())
+      return false;
+    header = new String[numFields];
+    for (int col = 0; col < numFields; col++)
+      header[col] = string(col).trim();
+    return true;
+  }
+
+  // index of the column with the name (ignoring case), or the given index
+  // if there is no header or no such column
+  int column(String columnName, int fallback) {
+    if (header != null) {
+      for (int col = 0; col < header.length; col++) {
+        if (header[col].equalsIgnoreCase(columnName))
+          return col;
+      }
+    }
+    return fallback;
+  }
+
+  String columnName(int col) {
+    return header != null && col < header.length ? header[col] : "column " + (col + 1);
+  }
+
+  /*----------------------------*/
+  // fields of the current row
+
+  int fieldCount() {
+    return numFields;
+  }
+
+  int fieldStart(int col) {
+    return col == 0 ? 0 : fieldEnds[col - 1];
+  }
+
+  boolean hasField(int col) {
+    if (col < numFields)
+      return true;
+    fail(col, "is missing");
+    return false;
+  }
+
+  // the field as a string, the same instance for equal fields
+  String string(int col) {
+    if (!hasField(col))
+      return "";
+    return strings.get(row, fieldStart(col), fieldEnds[col]);
+  }
+
+  // the field as a whole number, 0 and the row failed if it is not one
+  int intField(int col) {
+    if (!hasField(col))
+      return 0;
+    int i = fieldStart(col);
+    int end = fieldEnds[col];
+    while (i < end && row[i] == ' ')
+      i++;
+    while (end > i && row[end-1] == ' ')
+      end--;
+    boolean negative = i < end && row[i] == '-';
+    if (i < end && (row[i] == '-' || row[i] == '+'))
+      i++;
+    if (i == end || end - i > 10) {
+      fail(col, "is not a whole number");
+      return 0;
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      int digit = row[i] - '0';
+      if (digit < 0 || digit > 9) {
+        fail(col, "is not a whole number");
+        return 0;
+      }
+      value = value * 10 + digit;
+    }
+    value = negative ? -value : value;
+    if (value != (int) value) {
+      fail(col, "is out of range");
+      return 0;
+    }
+    return (int) value;
+  }
+
+  // the field as a decimal number with an optional exponent, 0 and the row
+  // failed if it is not one
+  float floatField(int col) {
+    if (!hasField(col))
+      return 0;
+    int i = fieldStart(col);
+    int end = fieldEnds[col];
+    while (i < end && row[i] == ' ')
+      i++;
+    while (end > i && row[end-1] == ' ')
+      end--;
+    boolean negative = i < end && row[i] == '-';
+    if (i < end && (row[i] == '-' || row[i] == '+'))
+      i++;
+
+    long mantissa = 0;
+    int exponent = 0;
+    int digits = 0;
+    boolean point = false;
+    for (; i < end && row[i] != 'e' && row[i] != 'E'; i++) {
+      if (row[i] == '.' && !point) {
+        point = true;
+      } else if (row[i] >= '0' && row[i] <= '9') {
+        if (mantissa < Long.MAX_VALUE / 10 - 9) {
+          mantissa = mantissa * 10 + (row[i] - '0');
+          exponent -= point ? 1 : 0;
+        } else if (!point) {
+          exponent++; // digits beyond the precision of a long
+        }
+        digits++;
+      } else {
+        digits = 0;
+        break;
+      }
+    }
+    if (i < end && digits > 0) {
+      int exponentStart = ++i;
+      boolean negativeExponent = i < end && row[i] == '-';
+      if (i < end && (row[i] == '-' || row[i] == '+'))
+        i++;
+      int e = 0;
+      for (; i < end && row[i] >= '0' && row[i] <= '9' && e < 10000; i++)
+        e = e * 10 + (row[i] - '0');
+      if (i != end || i == exponentStart)
+        digits = 0;
+      exponent += negativeExponent ? -e : e;
+    }
+    if (digits == 0) {
+      fail(col, "is not a number");
+      return 0;
+    }
+    double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+    return (float) (negative ? -value : value);
+  }
+
+  /*----------------------------*/
+  // report a field that cannot be read and mark the row failed
+
+  void fail(int col, String message) {
+    rowFailed = true;
+    String field = col < numFields ?
+      " \"" + new String(row, fieldStart(col), fieldEnds[col] - fieldStart(col), StandardCharsets.UTF_8) + "\"" : "";
+    errors.add("row " + rowNumber + ", " + columnName(col) + field + " " + message);
+  }
+
+  boolean failed() {
+    return rowFailed;
+  }
+}
+
+//////////////////////////////////
+
+// errors found in a file, the first few of them with their messages
+
+class CsvErrors {
+  String name;
+  int count;
+  ArrayList<String> messages = new ArrayList<String>();
+
+  CsvErrors(String name) {
+    this.name = name;
+  }
+
+  void add(String message) {
+    if (messages.size() < CSV_REPORTED_ERRORS)
+      messages.add(message);
+    count++;
+  }
+
+  void addAll(CsvErrors errors) {
+    for (String message : errors.messages)
+      add(message);
+    count += errors.count - errors.messages.size();
+  }
+
+  // print the errors, if there are any
+  void report() {
+    if (count == 0)
+      return;
+    for (String message : messages)
+      println(name + ": " + message);
+    if (count > messages.size())
+      println(name + ": " + (count - messages.size()) + " more errors");
+    println(name + ": skipped rows with " + count + " errors");
+  }
+}
+
+//////////////////////////////////
+
+// strings by their UTF-8 bytes, so that repeated fields are decoded once;
+// open addressing with linear probing
+
+class StringTable {
+  byte[][] keys = new byte[64][];
+  String[] values = new String[64];
+  int size;
+
+  String get(byte[] bytes, int from, int to) {
+    int hash = 0;
+    for (int i = from; i < to; i++)
+      hash = 31 * hash + bytes[i];
+    int mask = keys.length - 1;
+    for (int slot = (hash ^ hash >>> 16) & mask; ; slot = (slot + 1) & mask) {
+      byte[] key = keys[slot];
+      if (key == null) {
+        key = Arrays.copyOfRange(bytes, from, to);
+        String value = new String(key, StandardCharsets.UTF_8);
+        if (size < CSV_INTERNED_STRINGS) { // a column of unique values is not worth keeping
+          keys[slot] = key;
+          values[slot] = value;
+          if (++size * 2 > keys.length)
+            grow();
+        }
+        return value;
+      }
+      if (equal(key, bytes, from, to))
+        return values[slot];
+    }
+  }
+
+  boolean equal(byte[] key, byte[] bytes, int from, int to) {
+    if (key.length != to - from)
+      return false;
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] != bytes[from + i])
+        return false;
+    }
+    return true;
+  }
+
+  void grow() {
+    byte[][] oldKeys = keys;
+    String[] oldValues = values;
+    keys = new byte[2 * oldKeys.length][];
+    values = new String[2 * oldKeys.length];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null)
+        get(oldKeys[i], 0, oldKeys[i].length);
+    }
+  }
+}
+
+//////////////////////////////////
+
+// how a loader reads a CSV file with a header: rows are parsed into a
+// result, on any thread, and results are merged in the order of the file
+// on the calling thread
+
+abstract class CsvChunks<T> {
+  abstract T parse(CsvReader rows) throws IOException;
+  abstract void merge(T parsed);
+}
+
+/*----------------------------------------------------------------------*/
+// read a CSV file with a header through the chunks of a loader and return
+// the errors found in it. Small files are streamed, and parsed and merged
+// in batches of CSV_BATCH_ROWS rows so only one batch is held at a time;
+// larger ones are split into chunks of whole rows, which tasks of the
+// common fork/join pool parse while the next chunk is read.
+
+<T> CsvErrors readCsv(String fileName, CsvChunks<T> chunks) throws IOException {
+  CsvReader rows = openCsv(fileName);
+  try {
+    if (dataFile(fileName).length() < CSV_PARALLEL_BYTES || Runtime.getRuntime().availableProcessors() == 1) {
+      rows.readHeader();
+      do {
+        rows.rowsLeft = CSV_BATCH_ROWS;
+        chunks.merge(chunks.parse(rows));
+      } while (rows.rowsLeft == 0);
+      return rows.errors;
+    }
+    return readCsvParallel(rows.name, rows.input, chunks);
+  } finally {
+    rows.close();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// a field quoted for CsvReader if it holds a comma, a quote or a line break
+
+String csvField(String value) {
+  if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+    return value;
+  return "\"" + value.replace("\"", "\"\"") + "\"";
+}
+
+/*----------------------------------------------------------------------*/
+// open a CSV file of the data folder (or any path or URL loadStrings()
+// takes) for streaming
+
+CsvReader openCsv(String fileName) throws IOException {
+  InputStream input = createInput(fileName);
+  if (input == null)
+    throw new FileNotFoundException(fileName);
+  return new CsvReader(new File(fileName).getName(), input);
+}
+
+<T> CsvErrors readCsvParallel(final String name, InputStream input, final CsvChunks<T> chunks) throws IOException {
+  CsvErrors errors = new CsvErrors(name);
+  ArrayDeque<ForkJoinTask<T>> inFlight = new ArrayDeque<ForkJoinTask<T>>();
+  ArrayDeque<CsvReader> readers = new ArrayDeque<CsvReader>(); // of the tasks in flight, for their errors
+  int parallelism = ForkJoinPool.commonPool().getParallelism();
+
+  byte[] bytes = new byte[CSV_CHUNK_BYTES];
+  int length = 0; // bytes read, from the start of a row
+  int rowNumber = 1; // of the first row in bytes
+  String[] header = null;
+  boolean end = false;
+  while (!end) {
+    int read = input.read(bytes, length, bytes.length - length);
+    end = read < 0;
+    length += Math.max(0, read);
+    if (length < bytes.length && !end)
+      continue;
+
+    int from = 0;
+    if (header == null) {
+      CsvReader headerRow = new CsvReader(name, bytes, 0, length, 1, null);
+      headerRow.readHeader();
+      header = headerRow.header;
+      from = headerRow.position;
+      rowNumber = headerRow.rowNumber + 1;
+    }
+
+    // the end of the last whole row, by the quoting rules of CsvReader; at
+    // the end of the file a last row without a line break is whole too
+    int rowsEnd = from;
+    int numRows = 0;
+    boolean quoted = false;
+    boolean fieldStart = true;
+    for (int i = from; i < length; i++) {
+      byte c = bytes[i];
+      if (c == '\r' && !quoted)
+        continue;
+      if (quoted) {
+        if (c == '"') {
+          if (i + 1 == length)
+            break; // the next byte decides, leave the row for the next chunk
+          if (bytes[i + 1] == '"')
+            i++;
+          else
+            quoted = false;
+        }
+      } else if (c == '"' && fieldStart) {
+        quoted = true;
+      } else if (c == '\n') {
+        rowsEnd = i + 1;
+        numRows++;
+      }
+      fieldStart = !quoted && (c == ',' || c == '\n');
+    }
+    if (end && rowsEnd < length) {
+      rowsEnd = length;
+      numRows++;
+    }
+
+    if (rowsEnd > from) {
+      final CsvReader rows = new CsvReader(name, bytes, from, rowsEnd, rowNumber, header);
+      readers.add(rows);
+      inFlight.add(ForkJoinPool.commonPool().submit(new Callable<T>() {
+        public T call() throws IOException {
+          return chunks.parse(rows);
+        }
+      }));
+      if (inFlight.size() > 2 * parallelism) {
+        chunks.merge(joinChunk(inFlight.poll()));
+        errors.addAll(readers.poll().errors);
+      }
+    }
+
+    // keep the incomplete last row for the next chunk, in a larger buffer
+    // if it is longer than a chunk
+    byte[] next = new byte[Math.max(CSV_CHUNK_BYTES, 2 * (length - rowsEnd))];
+    System.arraycopy(bytes, rowsEnd, next, 0, length - rowsEnd);
+    length -= rowsEnd;
+    bytes = next;
+    rowNumber += numRows;
+  }
+  while (!inFlight.isEmpty()) {
+    chunks.merge(joinChunk(inFlight.poll()));
+    errors.addAll(readers.poll().errors);
+  }
+  return errors;
+}
+
+// result of a parsing task, with the I/O errors of the loader thrown as
+// they were
+<T> T joinChunk(ForkJoinTask<T> task) throws IOException {
+  try {
+    return task.join();
+  } catch (RuntimeException e) {
+    if (e.getCause() instanceof IOException)
+      throw (IOException) e.getCause();
+    throw e;
+  }
+}
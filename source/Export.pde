@@ -0,0 +1,177 @@
+import java.util.concurrent.atomic.*;
+import javax.imageio.ImageIO;
+import processing.awt.PGraphicsJava2D;
+
+// headless batch export of every view to PNG files, started from main():
+//
+//   --export=<directory>   output directory
+//   --size=<w>x<h>         screen size the layout is computed for (1920x1080)
+//   --title, --legend      export whole frames with the title and/or legends,
+//                          otherwise only the map is exported
+//   --frames               name files frame-00001.png, ... instead of
+//                          fires-<year>-<month>.png (fires-<year>.png in
+//                          the yearly and trend modes)
+//   --render-threads=<n>   number of workers (number of cores)
+//   --map-mode=<mode>      monthly, yearly or trend (monthly)
+//
+// Months without data are gaps and get no frame. The yearly and trend
+// maps show whole years, so they get one frame per year.
+//
+// Every worker renders, encodes and writes one frame at a time, so frames
+// are streamed to disk instead of being kept in memory.
+
+boolean export() {
+  File dir = new File(stringArg("--export", "export"));
+  String[] size = split(stringArg("--size", "1920x1080"), 'x');
+  int frameWidth = Integer.parseInt(size[0]);
+  int frameHeight = Integer.parseInt(size[1]);
+  int threads = intArg("--render-threads", Runtime.getRuntime().availableProcessors());
+  mapMode = mapMode(stringArg("--map-mode", "monthly"));
+
+  width = frameWidth; // title and legends are laid out by the screen size
+  height = frameHeight;
+  setLayout(width, height);
+  loadDataTables();
+  loadStatePaths();
+  if (!dir.isDirectory() && !dir.mkdirs()) {
+    println("cannot create export directory " + dir);
+    return false;
+  }
+
+  viewRenderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, threads);
+
+  FrameExport frameExport = new FrameExport(dir, frameWidth, frameHeight);
+  long start = System.nanoTime();
+  for (int i = 0; i < threads; i++)
+    viewRenderer.workers.execute(frameExport);
+  viewRenderer.workers.shutdown();
+  try {
+    viewRenderer.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  } catch (InterruptedException e) {
+    println("export interrupted");
+    return false;
+  }
+  double seconds = (System.nanoTime() - start) / 1e9d;
+
+  int frames = frameExport.exported.get();
+  println("exported " + frames + " frames to " + dir + " in " + nf((float)seconds, 0, 2) + " s: " +
+    nf((float)(frames / seconds), 0, 1) + " frames/s on " + threads + " threads, " +
+    nf(frameExport.renderNanos.get() / 1e6f / max(1, frames), 0, 1) + " ms render and " +
+    nf(frameExport.encodeNanos.get() / 1e6f / max(1, frames), 0, 1) + " ms encode per frame, " +
+    nf(frameExport.bytesWritten.get() / 1048576f, 0, 1) + " MB written");
+  if (frameExport.failed.get() > 0)
+    println(frameExport.failed.get() + " frames failed");
+  return frameExport.failed.get() == 0;
+}
+
+//////////////////////////////////
+
+// run by every export worker: takes the next frame until none are left
+
+class FrameExport implements Runnable {
+  File dir;
+  int frameWidth;
+  int frameHeight;
+  boolean withTitle;
+  boolean withLegend;
+  boolean numbered;
+  boolean byYear; // one frame per year rather than per month
+  IntList views = new IntList(); // view shown in each frame
+
+  AtomicInteger nextFrame = new AtomicInteger();
+  AtomicInteger exported = new AtomicInteger();
+  AtomicInteger failed = new AtomicInteger();
+  AtomicLong renderNanos = new AtomicLong();
+  AtomicLong encodeNanos = new AtomicLong();
+  AtomicLong bytesWritten = new AtomicLong();
+
+  /*----------------------------*/
+
+  FrameExport(File dir, int frameWidth, int frameHeight) {
+    this.dir = dir;
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    withTitle = hasArg("--title");
+    withLegend = hasArg("--legend");
+    numbered = hasArg("--frames");
+
+    byYear = mapMode != MONTHLY_MAP;
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx += byYear ? 12 : 1) {
+      if (byYear ? store.hasYearData(viewIdx / 12) : store.hasData(viewIdx))
+        views.append(viewIdx);
+    }
+  }
+
+  /*----------------------------*/
+
+  public void run() {
+    // every worker composes whole frames in its own graphics and font
+    PGraphics frame = null;
+    if (withTitle || withLegend) {
+      frame = new PGraphicsJava2D();
+      frame.setParent(brazilian_fires.this);
+      frame.setPrimary(false);
+      frame.setSize(frameWidth, frameHeight);
+      frame.beginDraw();
+      frame.textFont(loadNativeFont("SEGOEUI.TTF", 34));
+      frame.endDraw();
+    }
+
+    int frameIdx;
+    while ((frameIdx = nextFrame.getAndIncrement()) < views.size()) {
+      int viewIdx = views.get(frameIdx);
+      int[] my = getMonthYear(viewIdx);
+      String fileName = numbered ? "frame-" + nf(frameIdx + 1, 5) + ".png" :
+        "fires-" + my[1] + (byYear ? "" : "-" + nf(my[0], 2)) + ".png";
+      try {
+        long start = System.nanoTime();
+        BufferedImage image = viewRenderer.render(viewIdx);
+        if (frame != null)
+          image = composeFrame(frame, image, my[0], my[1]);
+        long rendered = System.nanoTime();
+
+        File file = new File(dir, fileName);
+        ImageIO.write(image, "png", file);
+        renderNanos.addAndGet(rendered - start);
+        encodeNanos.addAndGet(System.nanoTime() - rendered);
+        bytesWritten.addAndGet(file.length());
+        exported.incrementAndGet();
+      } catch (Exception e) {
+        println("exporting " + fileName + " failed: " + e);
+        failed.incrementAndGet();
+      }
+    }
+  }
+
+  /*----------------------------*/
+  // draw map, title and legends as they are laid out on screen
+
+  BufferedImage composeFrame(PGraphics frame, BufferedImage map, int month, int year) {
+    frame.beginDraw();
+    frame.background(255);
+    ((Graphics2D) frame.getNative()).drawImage(map, graphicsX, graphicsY, null);
+    if (withTitle)
+      displayTitle(frame, month, year);
+    if (withLegend)
+      displayLegends(frame, frameWidth-200, frameHeight/21);
+    frame.endDraw();
+    return (BufferedImage) frame.getImage();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// load a TrueType font from the data folder without a running sketch
+// (createFont() needs the sketch renderer)
+
+PFont loadNativeFont(String fileName, float size) {
+  try {
+    InputStream input = createInput(fileName);
+    try {
+      return new PFont(java.awt.Font.createFont(java.awt.Font.TRUETYPE_FONT, input).deriveFont(size), true);
+    } finally {
+      input.close();
+    }
+  } catch (Exception e) {
+    throw new RuntimeException("cannot load font " + fileName, e);
+  }
+}
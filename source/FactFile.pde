@@ -0,0 +1,175 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// compiled binary form of the fire and planted forests tables, so that
+// startup maps one file instead of parsing text. Started from main() with
+//
+//   --compile-data[=<file>]   compile the CSV files of the data folder
+//                             (into data/fires_data.bin)
+//
+// and preferred by loadDataTables() while it is not older than the CSVs;
+// --data-file=<file> loads a fact file compiled to another path.
+// Layout, all values big-endian 32-bit ints:
+//
+//   magic, version, header size in bytes
+//   start year, number of years, number of states
+//   per state: code and name as UTF-8 byte length + bytes, padded to 4 bytes
+//   fires column: [stateId][viewIdx], MISSING for months without data
+//   planted forests column: [stateId][yearIdx]
+
+static final int FACT_FILE_MAGIC = 0x42524646; // "BRFF"
+static final int FACT_FILE_VERSION = 1;
+static final String FACT_FILE_NAME = "fires_data.bin";
+
+/*----------------------------------------------------------------------*/
+// write the store into a fact file
+
+void writeFactFile(FactStore store, File file) throws IOException {
+  ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+  for (int stateId = 0; stateId < store.numStates; stateId++) {
+    writeFactString(dictionary, store.stateCodes.get(stateId));
+    writeFactString(dictionary, store.stateNames.get(stateId));
+  }
+  int headerSize = 6*4 + dictionary.size();
+
+  DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+  try {
+    output.writeInt(FACT_FILE_MAGIC);
+    output.writeInt(FACT_FILE_VERSION);
+    output.writeInt(headerSize);
+    output.writeInt(store.startYear);
+    output.writeInt(store.numYears);
+    output.writeInt(store.numStates);
+    dictionary.writeTo(output);
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++)
+        output.writeInt(store.fires[stateId][viewIdx]);
+    }
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++)
+        output.writeInt(store.plantedArea[stateId][yearIdx]);
+    }
+  } finally {
+    output.close();
+  }
+}
+
+// length-prefixed UTF-8 string, padded so that the columns stay int aligned
+void writeFactString(ByteArrayOutputStream output, String s) {
+  byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+  int length = bytes.length;
+  output.write(length >>> 24);
+  output.write(length >>> 16);
+  output.write(length >>> 8);
+  output.write(length);
+  output.write(bytes, 0, length);
+  for (int i = length; i % 4 != 0; i++)
+    output.write(0);
+}
+
+/*----------------------------------------------------------------------*/
+// load a fact file by mapping it into memory; the columns are bulk-copied
+// out of the mapping, so nothing is parsed or allocated per value. Sizes
+// are checked against the file before anything is allocated for them, and
+// a file damaged in a way the checks miss fails with an IOException too,
+// so that callers fall back to the CSV files.
+
+FactStore readFactFile(File file) throws IOException {
+  ByteBuffer buffer = mapFile(file);
+  try {
+    return readFactFile(file, buffer);
+  } catch (RuntimeException e) {
+    throw new IOException(file + " is truncated or corrupt", e);
+  }
+}
+
+FactStore readFactFile(File file, ByteBuffer buffer) throws IOException {
+  if (buffer.remaining() < 6*4 || buffer.getInt() != FACT_FILE_MAGIC)
+    throw new IOException(file + " is not a fact file");
+  int version = buffer.getInt();
+  if (version != FACT_FILE_VERSION)
+    throw new IOException(file + " has version " + version + ", expected " + FACT_FILE_VERSION);
+  int headerSize = buffer.getInt();
+  int fileStartYear = buffer.getInt();
+  int fileNumYears = buffer.getInt();
+  int numStates = buffer.getInt();
+
+  long expectedSize = headerSize + 4L * numStates * (fileNumYears * 13L);
+  if (headerSize < 6*4 || fileNumYears < 0 || numStates < 0 || buffer.capacity() != expectedSize)
+    throw new IOException(file + " is truncated or corrupt");
+
+  FactStore store = new FactStore(fileStartYear, fileNumYears);
+  for (int i = 0; i < numStates; i++) {
+    String stateCode = readFactString(buffer);
+    String stateName = readFactString(buffer);
+    store.internState(stateCode, stateName);
+  }
+  if (buffer.position() != headerSize || store.numStates != numStates)
+    throw new IOException(file + " is truncated or corrupt");
+
+  IntBuffer columns = buffer.asIntBuffer();
+  for (int stateId = 0; stateId < numStates; stateId++)
+    columns.get(store.fires[stateId]);
+  for (int stateId = 0; stateId < numStates; stateId++)
+    columns.get(store.plantedArea[stateId]);
+  return store;
+}
+
+String readFactString(ByteBuffer buffer) throws IOException {
+  int length = buffer.remaining() < 4 ? -1 : buffer.getInt();
+  if (length < 0 || length > buffer.remaining())
+    throw new IOException("string length " + length + " runs past the end of the file");
+  byte[] bytes = new byte[length];
+  buffer.get(bytes);
+  buffer.position(Math.min(buffer.limit(), (buffer.position() + 3) & ~3));
+  return new String(bytes, StandardCharsets.UTF_8);
+}
+
+/*----------------------------------------------------------------------*/
+// return the compiled fact file if it is present and up to date, else null
+
+File currentFactFile() {
+  File file = factFile(stringArg("--data-file", ""));
+  if (!file.isFile())
+    return null;
+  for (String source : new String[] { "fires_data.csv", "planted_forests_data.csv" }) {
+    File csv = dataFile(source);
+    if (csv.isFile() && csv.lastModified() > file.lastModified()) {
+      println(file.getName() + " is older than " + source + ", loading CSV files");
+      return null;
+    }
+  }
+  return file;
+}
+
+// the fact file at a path given by an option, by default the one in the
+// data folder
+File factFile(String fileName) {
+  return fileName.isEmpty() ? dataFile(FACT_FILE_NAME) : new File(fileName);
+}
+
+/*----------------------------------------------------------------------*/
+// compile the CSV files into a fact file, run headless from main()
+
+boolean compileData() {
+  File file = factFile(stringArg("--compile-data", ""));
+
+  long start = System.nanoTime();
+  store = loadFiresDataFromCSV("fires_data.csv");
+  loadPlantData("planted_forests_data.csv");
+  long parsed = System.nanoTime();
+  try {
+    writeFactFile(store, file);
+    long written = System.nanoTime();
+    readFactFile(file); // verify it reads back
+    println("compiled " + store.numStates + " states, " + store.numViews + " months into " + file +
+      " (" + file.length() + " bytes): parsed in " + nf((parsed - start) / 1e6f, 0, 1) +
+      " ms, mapped back in " + nf((System.nanoTime() - written) / 1e6f, 0, 1) + " ms");
+    return true;
+  } catch (IOException e) {
+    println("cannot compile data into " + file + ": " + e);
+    return false;
+  }
+}
@@ -0,0 +1,227 @@
+// columnar store of all loaded data: state codes are interned to small ids
+// and monthly metrics are kept in dense int arrays indexed by
+// [stateId][viewIdx], annual metrics by [stateId][yearIdx]. The time range
+// is not fixed, it grows to cover every year that is added; months without
+// data inside it are gaps. Columns have room for more years than the range
+// covers so that it grows by doubling them, their slack is always empty.
+
+class FactStore {
+  static final int MISSING = -1; // marks a month with no data for a state
+
+  HashMap<String, Integer> stateIds; // state code -> state id
+  ArrayList<String> stateCodes; // state id -> state code
+  ArrayList<String> stateNames; // state id -> state name
+  int numStates;
+
+  int startYear; // first year covered by the store
+  int numYears; // number of years covered by the store
+  int numViews; // number of months covered by the store
+  int yearCapacity; // number of years the columns have room for
+
+  int[][] fires; // number of fires per [stateId][viewIdx]
+  int[][] plantedArea; // planted forests area per [stateId][yearIdx]
+
+  MetricStats firesStats = new MetricStats(); // set by computeStats()
+  MetricStats plantedStats = new MetricStats();
+
+  /*----------------------------*/
+  // an empty store, its time range is set by the data added to it
+
+  FactStore() {
+    this(0, 0);
+  }
+
+  FactStore(int startYear, int numYears) {
+    this.startYear = startYear;
+    this.numYears = numYears;
+    numViews = numYears * 12;
+    yearCapacity = numYears;
+
+    stateIds = new HashMap<String, Integer>();
+    stateCodes = new ArrayList<String>();
+    stateNames = new ArrayList<String>();
+    numStates = 0;
+
+    fires = new int[0][];
+    plantedArea = new int[0][];
+  }
+
+  /*----------------------------*/
+  // return id of the state, adding the state to the store if it is new
+
+  int internState(String stateCode, String stateName) {
+    Integer id = stateIds.get(stateCode);
+    if (id != null)
+      return id;
+
+    int stateId = numStates++;
+    stateIds.put(stateCode, stateId);
+    stateCodes.add(stateCode);
+    stateNames.add(stateName);
+
+    if (stateId == fires.length) {
+      int capacity = Math.max(8, fires.length * 2);
+      fires = Arrays.copyOf(fires, capacity);
+      plantedArea = Arrays.copyOf(plantedArea, capacity);
+    }
+    fires[stateId] = new int[yearCapacity * 12];
+    plantedArea[stateId] = new int[yearCapacity];
+    Arrays.fill(fires[stateId], MISSING);
+
+    return stateId;
+  }
+
+  /*----------------------------*/
+  // return id of the state or -1 if the state is unknown
+
+  int stateId(String stateCode) {
+    Integer id = stateIds.get(stateCode);
+    return id == null ? -1 : id;
+  }
+
+  /*----------------------------*/
+  // return view index for month and year or -1 if outside the store
+
+  int viewIdx(int month, int year) {
+    int viewIdx = (year-startYear) * 12 + month - 1;
+    if (month < 1 || month > 12 || viewIdx < 0 || viewIdx >= numViews)
+      return -1;
+    return viewIdx;
+  }
+
+  /*----------------------------*/
+  // return view index for month and year, growing the time range of the
+  // store if the year is outside it; -1 if the month is invalid
+
+  int addView(int month, int year) {
+    if (month < 1 || month > 12)
+      return -1;
+    addYears(year, year);
+    return viewIdx(month, year);
+  }
+
+  // grow the time range to cover the years from first to last year; adding
+  // the range of many rows at once moves the data at most once for them
+  void addYears(int firstYear, int lastYear) {
+    if (numYears > 0) {
+      firstYear = Math.min(startYear, firstYear);
+      lastYear = Math.max(endYear(), lastYear);
+    }
+    if (firstYear != startYear || lastYear - firstYear + 1 != numYears)
+      setYears(firstYear, lastYear - firstYear + 1);
+  }
+
+  /*----------------------------*/
+  // move the time range, keeping the data of the years in both ranges; a
+  // range that only grows at the end fits in the slack of the columns
+
+  void setYears(int newStartYear, int newNumYears) {
+    int shift = startYear - newStartYear; // years the old data moves by
+    if (shift != 0 || newNumYears > yearCapacity) {
+      int capacity = newNumYears > yearCapacity ? Math.max(newNumYears, yearCapacity * 2) : yearCapacity;
+      for (int stateId = 0; stateId < numStates; stateId++) {
+        fires[stateId] = moveYears(fires[stateId], numViews, shift*12, capacity*12, MISSING);
+        plantedArea[stateId] = moveYears(plantedArea[stateId], numYears, shift, capacity, 0);
+      }
+      yearCapacity = capacity;
+    } else if (newNumYears < numYears) {
+      for (int stateId = 0; stateId < numStates; stateId++) {
+        Arrays.fill(fires[stateId], newNumYears*12, numViews, MISSING);
+        Arrays.fill(plantedArea[stateId], newNumYears, numYears, 0);
+      }
+    }
+    startYear = newStartYear;
+    numYears = newNumYears;
+    numViews = numYears * 12;
+  }
+
+  // copy the first count values shifted into a new array of the length,
+  // filling the rest
+  int[] moveYears(int[] values, int count, int shift, int length, int fill) {
+    int[] moved = new int[length];
+    Arrays.fill(moved, fill);
+    int from = Math.max(0, -shift);
+    int to = Math.min(count, length - shift);
+    if (to > from)
+      System.arraycopy(values, from, moved, from + shift, to - from);
+    return moved;
+  }
+
+  /*----------------------------*/
+  // return year index for year or -1 if outside the store
+
+  int yearIdx(int year) {
+    int yearIdx = year - startYear;
+    if (yearIdx < 0 || yearIdx >= numYears)
+      return -1;
+    return yearIdx;
+  }
+
+  /*----------------------------*/
+
+  void setFires(int stateId, int viewIdx, int numOfFires) {
+    fires[stateId][viewIdx] = numOfFires;
+  }
+
+  boolean hasData(int stateId, int viewIdx) {
+    return fires[stateId][viewIdx] != MISSING;
+  }
+
+  // whether any state has data for the month, months without are gaps
+  boolean hasData(int viewIdx) {
+    for (int stateId = 0; stateId < numStates; stateId++) {
+      if (fires[stateId][viewIdx] != MISSING)
+        return true;
+    }
+    return false;
+  }
+
+  boolean hasYearData(int yearIdx) {
+    for (int viewIdx = yearIdx*12; viewIdx < yearIdx*12 + 12; viewIdx++) {
+      if (hasData(viewIdx))
+        return true;
+    }
+    return false;
+  }
+
+  /*----------------------------*/
+  // return the next month with data in the given direction (+1 or -1),
+  // wrapping around, or the given month if no other month has data
+
+  int nextView(int viewIdx, int direction) {
+    for (int i = 1; i <= numViews; i++) {
+      int next = Math.floorMod(viewIdx + i*direction, numViews);
+      if (hasData(next))
+        return next;
+    }
+    return viewIdx;
+  }
+
+  int endYear() {
+    return startYear + numYears - 1;
+  }
+
+  /*----------------------------*/
+  // collect statistics of every metric in one pass over its column;
+  // states without planted forests have no area rather than zero
+
+  void computeStats() {
+    firesStats = new MetricStats();
+    plantedStats = new MetricStats();
+    for (int stateId = 0; stateId < numStates; stateId++) {
+      for (int viewIdx = 0; viewIdx < numViews; viewIdx++) {
+        if (fires[stateId][viewIdx] != MISSING)
+          firesStats.add(fires[stateId][viewIdx]);
+      }
+      for (int yearIdx = 0; yearIdx < numYears; yearIdx++) {
+        if (plantedArea[stateId][yearIdx] != 0)
+          plantedStats.add(plantedArea[stateId][yearIdx]);
+      }
+    }
+  }
+
+  // planted area is stored once per year and joined to every month of it
+  int plantedArea(int stateId, int viewIdx) {
+    return plantedArea[stateId][viewIdx / 12];
+  }
+}
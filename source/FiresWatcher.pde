@@ -0,0 +1,397 @@
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// live ingestion of fires_data.csv: a background thread polls the file and
+// reads only the rows appended since the last poll, or the whole file when
+// it was rewritten. A file replaced by another one (a new file key, such
+// as the inode), a shorter file or changed bytes in the last
+// WATCH_WINDOW bytes read so far tell a rewrite from an append, so a poll
+// costs the appended bytes, not the size of the file. Rows are streamed
+// from the file and handed to the animation thread in batches of
+// CSV_BATCH_ROWS, which are applied to the store there, so only the views
+// whose values changed are rendered again.
+//
+//   --watch-interval=<ms>   poll interval (1000), 0 turns watching off
+
+static final int WATCH_WINDOW = 1 << 16; // bytes before the offset compared on every change
+
+class FiresWatcher implements Runnable {
+  File file;
+  int interval; // poll interval in ms
+  ConcurrentLinkedQueue<FireBatch> batches; // read batches waiting to be applied
+  Thread thread;
+
+  long offset; // bytes of the file read so far, always at a row boundary
+  long lastModified;
+  Object fileKey; // identity of the file read, null where the file system has none
+  long checksum; // CRC-32 of the WATCH_WINDOW bytes before offset, to detect rewrites
+  String[] header; // column names of the file, for appended rows
+  HashSet<Long> seen; // rows of the rewritten file being applied, on the animation thread
+
+  /*----------------------------*/
+  // take the current state of the file as already loaded
+
+  FiresWatcher(File file, int interval) {
+    this.file = file;
+    this.interval = interval;
+    batches = new ConcurrentLinkedQueue<FireBatch>();
+    offset = file.length();
+    lastModified = file.lastModified();
+    try {
+      fileKey = fileKey();
+      checksum = windowChecksum(offset);
+      CsvReader rows = new CsvReader(file.getName(), new FileInputStream(file));
+      try {
+        rows.readHeader();
+      } finally {
+        rows.close();
+      }
+      header = rows.header;
+    } catch (IOException e) {
+      offset = 0;
+    }
+  }
+
+  void start() {
+    thread = new Thread(this, "fires-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    if (thread != null)
+      thread.interrupt();
+  }
+
+  FireBatch poll() {
+    return batches.poll();
+  }
+
+  /*----------------------------*/
+
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(interval);
+        check();
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        println("watching " + file + " failed: " + e); // file is being replaced, retry
+      }
+    }
+  }
+
+  /*----------------------------*/
+  // read what changed since the last check
+
+  void check() throws IOException {
+    long length = file.length();
+    long modified = file.lastModified();
+    if (length == offset && modified == lastModified)
+      return;
+
+    // the file was appended to if it is the same file, not shorter and the
+    // end of what was read is unchanged
+    Object key = fileKey();
+    boolean appended = offset > 0 && length >= offset && (key == null ? fileKey == null : key.equals(fileKey)) &&
+      windowChecksum(offset) == checksum;
+    long from = appended ? offset : 0;
+
+    // leave an incomplete last row for the next check
+    long end = rowsEnd(from, length);
+    if (end == from && appended) {
+      lastModified = modified;
+      return;
+    }
+
+    // appended rows are numbered from the first of them
+    CsvReader rows = new CsvReader(appended ? file.getName() + ", appended" : file.getName(),
+      new FileRange(file, from, end));
+    try {
+      if (appended) {
+        rows.header = header;
+      } else { // a whole file starts with the header
+        rows.readHeader();
+        header = rows.header;
+      }
+      FireBatch batch = null;
+      do {
+        rows.rowsLeft = CSV_BATCH_ROWS;
+        boolean first = batch == null;
+        batch = readFireBatch(rows, !appended);
+        batch.first = first;
+        batch.last = rows.rowsLeft != 0;
+        // an emptied file is most likely being rewritten
+        if (batch.size() > 0 || !(batch.first && batch.last))
+          batches.add(batch);
+      } while (!batch.last);
+    } finally {
+      rows.close();
+    }
+    rows.errors.report();
+
+    offset = end;
+    lastModified = modified;
+    fileKey = key;
+    checksum = windowChecksum(end);
+  }
+
+  /*----------------------------*/
+  // end of the last whole row in the file between the offsets, from if
+  // there is none
+
+  long rowsEnd(long from, long to) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] block = new byte[1 << 16];
+      for (long end = to; end > from; end -= block.length) {
+        int n = (int) Math.min(block.length, end - from);
+        input.seek(end - n);
+        input.readFully(block, 0, n);
+        for (int i = n - 1; i >= 0; i--) {
+          if (block[i] == '\n')
+            return end - n + i + 1;
+        }
+      }
+      return from;
+    } finally {
+      input.close();
+    }
+  }
+
+  /*----------------------------*/
+
+  // CRC-32 of the WATCH_WINDOW bytes of the file before the offset, or
+  // of all of them in a shorter file
+  long windowChecksum(long to) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] window = new byte[(int) Math.min(WATCH_WINDOW, to)];
+      input.seek(to - window.length);
+      input.readFully(window);
+      CRC32 crc = new CRC32();
+      crc.update(window);
+      return crc.getValue();
+    } finally {
+      input.close();
+    }
+  }
+
+  Object fileKey() throws IOException {
+    return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+  }
+}
+
+//////////////////////////////////
+
+// a part of a file as a stream
+
+class FileRange extends InputStream {
+  RandomAccessFile file;
+  long left; // bytes still to read
+
+  FileRange(File file, long from, long to) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    try {
+      this.file.seek(from);
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+    left = to - from;
+  }
+
+  public int read() throws IOException {
+    if (left <= 0)
+      return -1;
+    left--;
+    return file.read();
+  }
+
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    if (left <= 0)
+      return -1;
+    int n = file.read(bytes, off, (int) Math.min(len, left));
+    if (n > 0)
+      left -= n;
+    return n;
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+}
+
+//////////////////////////////////
+
+// rows read by the watcher in a batch of a check, kept as columns
+
+class FireBatch {
+  boolean complete; // of the whole file, rows missing from it are removed after its last batch
+  boolean first; // the first and the last batch of a check
+  boolean last;
+  ArrayList<String> stateCodes = new ArrayList<String>();
+  ArrayList<String> stateNames = new ArrayList<String>();
+  IntList months = new IntList();
+  IntList years = new IntList();
+  IntList fires = new IntList();
+  int firstYear = Integer.MAX_VALUE; // years of the rows with a valid month
+  int lastYear = Integer.MIN_VALUE;
+
+  FireBatch(boolean complete) {
+    this.complete = complete;
+  }
+
+  void add(String stateCode, String stateName, int month, int year, int numOfFires) {
+    stateCodes.add(stateCode);
+    stateNames.add(stateName);
+    months.append(month);
+    years.append(year);
+    fires.append(numOfFires);
+    if (month >= 1 && month <= 12) {
+      firstYear = Math.min(firstYear, year);
+      lastYear = Math.max(lastYear, year);
+    }
+  }
+
+  int size() {
+    return fires.size();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// apply batches read by the watcher to the store and invalidate the views,
+// details and geometry they touch; called on the animation thread, with
+// the render workers held off while the data changes (see renderLock)
+
+void applyFireUpdates() {
+  if (firesWatcher == null)
+    return;
+
+  FireBatch batch;
+  while ((batch = firesWatcher.poll()) != null) {
+    // render workers finish what they are drawing first and wait meanwhile
+    renderLock.writeLock().lock();
+    try {
+      applyFireBatch(batch);
+    } finally {
+      renderLock.writeLock().unlock();
+    }
+  }
+}
+
+void applyFireBatch(FireBatch batch) {
+  if (startupCache != null)
+    startupCache.dataChanged(); // it holds the data as it was at launch
+  int numStates = store.numStates;
+  int startYear = store.startYear;
+  int numViews = store.numViews;
+  if (batch.complete && batch.first)
+    firesWatcher.seen = new HashSet<Long>(); // state id << 32 | year*12 + month
+  HashSet<Long> seen = batch.complete ? firesWatcher.seen : null;
+  BitSet changedViews = new BitSet();
+  BitSet changedStates = new BitSet();
+
+  if (batch.firstYear <= batch.lastYear)
+    store.addYears(batch.firstYear, batch.lastYear);
+  for (int i = 0; i < batch.size(); i++) {
+    int viewIdx = store.addView(batch.months.get(i), batch.years.get(i));
+    if (viewIdx < 0)
+      continue;
+    int stateId = store.internState(batch.stateCodes.get(i), batch.stateNames.get(i));
+    if (seen != null)
+      seen.add((long)stateId << 32 | (store.startYear*12 + viewIdx));
+
+    int numOfFires = batch.fires.get(i);
+    if (store.fires[stateId][viewIdx] != numOfFires) {
+      store.setFires(stateId, viewIdx, numOfFires);
+      changedViews.set(viewIdx);
+      changedStates.set(stateId);
+    }
+  }
+
+  // a rewritten file may have dropped rows
+  if (seen != null && batch.last) {
+    firesWatcher.seen = null;
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+        if (store.hasData(stateId, viewIdx) && !seen.contains((long)stateId << 32 | (store.startYear*12 + viewIdx))) {
+          store.setFires(stateId, viewIdx, FactStore.MISSING);
+          changedViews.set(viewIdx);
+          changedStates.set(stateId);
+        }
+      }
+    }
+  }
+
+  if (store.numStates != numStates || store.startYear != startYear || store.numViews != numViews) {
+    // new states need geometry, hit-testing and entries, a new time range
+    // moves the view indexes and timelines; rebuild them all, with scales
+    // for the new data as every view is rendered again anyway
+    println("live update extended the data to " + store.numStates + " states, " +
+      store.startYear + "-" + store.endYear());
+    store.computeStats();
+    timeCube = new TimeCube(store);
+    createScales();
+    correlations = new Correlations(store, correlations.maxLag);
+    rankings = new Rankings(store, timeCube);
+    loadStatePaths();
+    stateIndex = new StateIndex(statePaths);
+    stateMeshes = new StateMeshes(statePaths);
+    thisStateEntries = getStateEntries(thisMonth, thisYear);
+    selectView(thisMonth, thisYear);
+    createLayout();
+    createViews();
+    return;
+  }
+
+  if (changedViews.isEmpty())
+    return; // the states changed with the views
+
+  for (int stateId = changedStates.nextSetBit(0); stateId >= 0; stateId = changedStates.nextSetBit(stateId+1)) {
+    timeCube.update(stateId);
+    correlations.invalidate(stateId);
+  }
+  for (int viewIdx = changedViews.nextSetBit(0); viewIdx >= 0; viewIdx = changedViews.nextSetBit(viewIdx+1)) {
+    rankings.update(viewIdx);
+    if (viewCache != null)
+      viewCache.invalidate(viewIdx);
+  }
+  if (paletteRenderer != null)
+    paletteRenderer.invalidate();
+  tileCache.invalidate();
+  if (thumbnails != null)
+    thumbnails.invalidate();
+  detailsLayer.invalidate(); // yearly totals and trends depend on every month
+  sidebarLayer.invalidate();
+  gridLayer.invalidate();
+  println("live update changed " + changedViews.cardinality() + " months");
+}
+
+/*----------------------------------------------------------------------*/
+// read rows of fires_data.csv into a batch, skipping rows that cannot be
+// read; daily counts (from --hotspots --daily) are refused rather than
+// read as months
+
+FireBatch readFireBatch(CsvReader rows, boolean complete) throws IOException {
+  if (rows.column("Date", -1) >= 0)
+    throw new IOException(rows.name + " holds daily counts, aggregate the hotspots without --daily");
+  int codeCol = rows.column("State code", 0);
+  int nameCol = rows.column("State name", 1);
+  int monthCol = rows.column("Month", 2);
+  int yearCol = rows.column("Year", 3);
+  int firesCol = rows.column("Number of fires", 4);
+
+  FireBatch batch = new FireBatch(complete);
+  while (rows.next()) {
+    String stateCode = rows.string(codeCol);
+    String stateName = rows.string(nameCol);
+    int month = rows.intField(monthCol);
+    int year = rows.intField(yearCol);
+    int numOfFires = Math.round(rows.floatField(firesCol));
+    if (!rows.failed())
+      batch.add(stateCode, stateName, month, year, numOfFires);
+  }
+  return batch;
+}
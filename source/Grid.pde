@@ -0,0 +1,439 @@
+// small multiples of the map: the months of the shown year, the shown month
+// of every year or every month at once, side by side in a grid of
+// thumbnails. Key g switches from the single map to each grid in turn and
+// back, --grid=<layout> starts with one (off, year, month or all).
+//
+// Thumbnails are recoloured as the palette renderer recolours views, from
+// a pyramid of its state raster halved at every level, whose pixels keep
+// the share of every state they cover so state edges stay smooth at any
+// size. A cell uses the smallest level at least its size, so a thumbnail
+// costs a lookup per pixel of the cell, not of the map; thumbnails are
+// kept until the data or the map mode changes, and missing ones are
+// composed within a time budget per frame. The state under the mouse is
+// highlighted in every cell and clicking a cell shows its month on the map.
+
+static final int GRID_OFF = 0;
+static final int GRID_YEAR = 1; // the months of the shown year
+static final int GRID_MONTH = 2; // the shown month of every year
+static final int GRID_ALL = 3; // every month, a row per year
+String[] gridNames = new String[] {"off", "year", "month", "all"};
+
+static final int GRID_LABEL_HEIGHT = 18; // pixels above every thumbnail
+static final int GRID_GAP = 8; // pixels between the cells
+static final int GRID_MIN_LEVEL_SIZE = 16; // smallest thumbnail level, pixels
+static final long GRID_COMPOSE_NS = 4000000; // time for composing thumbnails per frame
+
+int gridLayout(String name) {
+  for (int layout = 0; layout < gridNames.length; layout++) {
+    if (gridNames[layout].equals(name))
+      return layout;
+  }
+  throw new IllegalArgumentException("unknown grid " + name + ", expected off, year, month or all");
+}
+
+//////////////////////////////////
+
+// the state raster of a palette renderer at halving sizes, with the
+// thumbnails composed from it
+
+class ThumbnailPyramid {
+  PaletteRenderer base; // level 0, the raster of the full view
+  int[] widths; // size of every level
+  int[] heights;
+  int[][] offsets; // start of the states of every pixel, per level from 1, one more ending the last
+  int[][] ids; // state id plus one of the states in the pixels
+  float[][] weights; // share of the pixel the state covers
+  byte[][] outlines; // coverage of one pixel wide state outlines at every level
+  int[] palette;
+  HashMap<Integer, PImage> thumbnails = new HashMap<Integer, PImage>(); // by view key, all of one level
+  int thumbnailLevel = -1;
+
+  /*----------------------------*/
+
+  ThumbnailPyramid(PaletteRenderer base, Path2D[] statePaths) {
+    this.base = base;
+    palette = new int[base.palette.length];
+
+    int numLevels = 1;
+    for (int w = base.viewWidth, h = base.viewHeight; (w+1)/2 >= GRID_MIN_LEVEL_SIZE && (h+1)/2 >= GRID_MIN_LEVEL_SIZE;
+      w = (w+1)/2, h = (h+1)/2)
+      numLevels++;
+    widths = new int[numLevels];
+    heights = new int[numLevels];
+    offsets = new int[numLevels][];
+    ids = new int[numLevels][];
+    weights = new float[numLevels][];
+    outlines = new byte[numLevels][];
+
+    widths[0] = base.viewWidth;
+    heights[0] = base.viewHeight;
+    outlines[0] = base.outlines;
+    for (int level = 1; level < numLevels; level++) {
+      widths[level] = (widths[level-1] + 1) / 2;
+      heights[level] = (heights[level-1] + 1) / 2;
+      downsample(level);
+      // outlines drawn at the size of the level rather than downsampled,
+      // which would fade them out
+      float scale = levelScale(level);
+      outlines[level] = rasteriseOutlines(statePaths, widths[level], heights[level], scale, 1 / scale);
+    }
+  }
+
+  /*----------------------------*/
+  // box filter the level above into the level: every pixel gets the states
+  // of the (up to) four pixels it covers, with their shares summed
+
+  void downsample(int level) {
+    int pw = widths[level-1];
+    int ph = heights[level-1];
+    int w = widths[level];
+    int h = heights[level];
+    int[] off = new int[w*h + 1];
+    int[] levelIds = new int[w*h + w*h/4];
+    float[] levelWeights = new float[levelIds.length];
+    int[] pixelIds = new int[palette.length]; // states of the pixel being filtered
+    float[] pixelWeights = new float[palette.length];
+
+    int n = 0;
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        int numIds = 0;
+        int lastX = min(2*x + 1, pw - 1);
+        int lastY = min(2*y + 1, ph - 1);
+        float share = 1f / ((lastX - 2*x + 1) * (lastY - 2*y + 1));
+        for (int py = 2*y; py <= lastY; py++) {
+          for (int px = 2*x; px <= lastX; px++) {
+            int p = py*pw + px;
+            int from = level == 1 ? p : offsets[level-1][p];
+            int to = level == 1 ? p + 1 : offsets[level-1][p+1];
+            for (int j = from; j < to; j++) {
+              int id = level == 1 ? base.stateIds[j] & 0xffffff : ids[level-1][j];
+              float weight = level == 1 ? share : weights[level-1][j] * share;
+              int k = 0;
+              while (k < numIds && pixelIds[k] != id)
+                k++;
+              if (k == numIds) {
+                pixelIds[numIds] = id;
+                pixelWeights[numIds++] = 0;
+              }
+              pixelWeights[k] += weight;
+            }
+          }
+        }
+
+        if (n + numIds > levelIds.length) {
+          levelIds = Arrays.copyOf(levelIds, levelIds.length * 3/2 + numIds);
+          levelWeights = Arrays.copyOf(levelWeights, levelIds.length);
+        }
+        System.arraycopy(pixelIds, 0, levelIds, n, numIds);
+        System.arraycopy(pixelWeights, 0, levelWeights, n, numIds);
+        n += numIds;
+        off[y*w + x + 1] = n;
+      }
+    }
+    offsets[level] = off;
+    ids[level] = Arrays.copyOf(levelIds, n);
+    weights[level] = Arrays.copyOf(levelWeights, n);
+  }
+
+  // pixels per map unit at the level
+  float levelScale(int level) {
+    return base.viewScale * widths[level] / base.viewWidth;
+  }
+
+  /*----------------------------*/
+  // smallest level at least the size, level 0 if none is
+
+  int level(float w, float h) {
+    int level = widths.length - 1;
+    while (level > 0 && (widths[level] < w || heights[level] < h))
+      level--;
+    return level;
+  }
+
+  /*----------------------------*/
+  // return the thumbnail of the month at the level, composed if it is
+  // missing and compose is true, otherwise null
+
+  PImage get(int viewIdx, int level, boolean compose) {
+    if (level != thumbnailLevel) {
+      thumbnails.clear();
+      thumbnailLevel = level;
+    }
+    PImage thumbnail = thumbnails.get(viewKey(viewIdx));
+    if (thumbnail == null && compose) {
+      thumbnail = compose(viewIdx, level);
+      thumbnails.put(viewKey(viewIdx), thumbnail);
+    }
+    return thumbnail;
+  }
+
+  // compose the thumbnails again on their next request, after the data or
+  // the map mode changed
+  void invalidate() {
+    thumbnails.clear();
+  }
+
+  /*----------------------------*/
+  // a lookup per pixel of the level, mixing the colours of the states the
+  // pixel covers by their shares, whitened by the outlines
+
+  PImage compose(int viewIdx, int level) {
+    int w = widths[level];
+    int h = heights[level];
+    BufferedImage frame = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+    base.fillPalette(palette, viewIdx, viewIdx, 0);
+
+    int[] levelIds = ids[level];
+    float[] levelWeights = weights[level];
+    byte[] coverage = outlines[level];
+    for (int p = 0; p < pixels.length; p++) {
+      int c;
+      if (level == 0) {
+        c = palette[base.stateIds[p] & 0xffffff];
+      } else if (offsets[level][p+1] - offsets[level][p] == 1) {
+        c = palette[levelIds[offsets[level][p]]];
+      } else {
+        float r = 0.5f, g = 0.5f, b = 0.5f;
+        for (int j = offsets[level][p]; j < offsets[level][p+1]; j++) {
+          int stateClr = palette[levelIds[j]];
+          r += ((stateClr >> 16) & 0xff) * levelWeights[j];
+          g += ((stateClr >> 8) & 0xff) * levelWeights[j];
+          b += (stateClr & 0xff) * levelWeights[j];
+        }
+        c = 0xff000000 | min(255, (int) r) << 16 | min(255, (int) g) << 8 | min(255, (int) b);
+      }
+      int cover = coverage[p] & 0xff;
+      pixels[p] = cover == 0 ? c : mixColor(c, 0xffffffff, cover + (cover >> 7));
+    }
+    base.drawPlantedCircles(frame, levelScale(level), viewIdx, viewIdx, 0);
+
+    PImage thumbnail = createImage(w, h, ARGB);
+    thumbnail.loadPixels();
+    System.arraycopy(pixels, 0, thumbnail.pixels, 0, pixels.length);
+    thumbnail.updatePixels();
+    return thumbnail;
+  }
+}
+
+//////////////////////////////////
+
+// the cells of the grid laid out in an area of the screen, each the
+// thumbnail of a month under its label
+
+class Grid {
+  int layout = GRID_OFF;
+  int[] views = new int[0]; // view index of every cell
+  int cols;
+  int rows;
+  float x; // top left corner of the first cell
+  float y;
+  float cellWidth; // thumbnail, label and gap
+  float cellHeight;
+  float thumbWidth;
+  float thumbHeight;
+  float laidOutWidth; // what the cells were laid out for
+  float laidOutHeight;
+  int laidOutLayout = -1;
+  int laidOutView = -1;
+
+  /*----------------------------*/
+  // lay the cells out again if the layout, the area or the shown month
+  // changed which cells there are; returns whether it did
+
+  boolean update(float areaX, float areaY, float areaWidth, float areaHeight) {
+    int shownView = layout == GRID_YEAR ? thisViewIdx / 12 : layout == GRID_MONTH ? thisViewIdx % 12 : 0;
+    if (layout == laidOutLayout && shownView == laidOutView && areaWidth == laidOutWidth && areaHeight == laidOutHeight &&
+      views.length == cellCount())
+      return false;
+    laidOutLayout = layout;
+    laidOutView = shownView;
+    laidOutWidth = areaWidth;
+    laidOutHeight = areaHeight;
+
+    views = new int[cellCount()];
+    for (int i = 0; i < views.length; i++) {
+      if (layout == GRID_YEAR)
+        views[i] = thisViewIdx / 12 * 12 + i;
+      else if (layout == GRID_MONTH)
+        views[i] = i * 12 + thisViewIdx % 12;
+      else
+        views[i] = i;
+    }
+    if (views.length == 0)
+      return true;
+
+    // the number of columns giving the largest thumbnails, a year per row
+    // when showing every month
+    float best = 0;
+    for (int c = 1; c <= views.length; c++) {
+      if (layout == GRID_ALL && c != 12)
+        continue;
+      int r = (views.length + c - 1) / c;
+      float s = min((areaWidth / c - GRID_GAP) / graphicsWidth, (areaHeight / r - GRID_LABEL_HEIGHT - GRID_GAP) / graphicsHeight);
+      if (s > best) {
+        best = s;
+        cols = c;
+        rows = r;
+      }
+    }
+    thumbWidth = graphicsWidth * best;
+    thumbHeight = graphicsHeight * best;
+    cellWidth = thumbWidth + GRID_GAP;
+    cellHeight = thumbHeight + GRID_LABEL_HEIGHT + GRID_GAP;
+    x = areaX + (areaWidth - cols * cellWidth) / 2;
+    y = areaY + (areaHeight - rows * cellHeight) / 2;
+    return true;
+  }
+
+  int cellCount() {
+    if (layout == GRID_YEAR)
+      return 12;
+    if (layout == GRID_MONTH)
+      return store.numYears;
+    return layout == GRID_ALL ? store.numViews : 0;
+  }
+
+  /*----------------------------*/
+
+  float thumbX(int cell) {
+    return x + (cell % cols) * cellWidth + GRID_GAP/2f;
+  }
+
+  float thumbY(int cell) {
+    return y + (cell / cols) * cellHeight + GRID_LABEL_HEIGHT + GRID_GAP/2f;
+  }
+
+  // the month above the cell, or the year in the grid of a month; in the
+  // grid of every month only the first row is labelled, the rows by year
+  String label(int cell) {
+    int[] my = getMonthYear(views[cell]);
+    if (layout == GRID_MONTH)
+      return String.valueOf(my[1]);
+    return layout == GRID_YEAR || cell < 12 ? nameOfMonths[my[0]-1].substring(0, 3) : null;
+  }
+
+  /*----------------------------*/
+  // the cell whose thumbnail is at the screen point, -1 if none is
+
+  int cellAt(float screenX, float screenY) {
+    if (views.length == 0 || screenX < x || screenY < y)
+      return -1;
+    int cell = int((screenY - y) / cellHeight) * cols + int((screenX - x) / cellWidth);
+    if ((screenX - x) / cellWidth >= cols || cell >= views.length)
+      return -1;
+    float tx = screenX - thumbX(cell);
+    float ty = screenY - thumbY(cell);
+    return tx >= 0 && tx < thumbWidth && ty >= 0 && ty < thumbHeight ? cell : -1;
+  }
+
+  // id of the state at the screen point in the thumbnail of the cell, -1 if
+  // there is none
+  int stateAt(int cell, float screenX, float screenY) {
+    float scale = thumbWidth / graphicsWidth * scaleFactor; // screen pixels per map unit
+    return stateIndex.stateAt((screenX - thumbX(cell)) / scale, (screenY - thumbY(cell)) / scale);
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// the thumbnail pyramid, built on first use from the palette renderer's
+// raster, or a raster of its own when views are rendered and cached
+
+ThumbnailPyramid thumbnails() {
+  if (thumbnails == null) {
+    Stage stage = stageTimes.start("thumbnail pyramid");
+    PaletteRenderer base = paletteRenderer != null ? paletteRenderer :
+      new PaletteRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor);
+    thumbnails = new ThumbnailPyramid(base, statePaths);
+    stage.stop();
+  }
+  return thumbnails;
+}
+
+/*----------------------------------------------------------------------*/
+// show the grid in the layout, or the single map for GRID_OFF
+
+void setGridLayout(int layout) {
+  grid.layout = layout;
+  panning = false;
+  gridLayer.invalidate();
+  detailsLayer.invalidate();
+  sidebarLayer.invalidate();
+}
+
+/*----------------------------------------------------------------------*/
+// draw the thumbnails of the cells, composing the missing ones until the
+// time for this frame is used up, and outline the state under the mouse in
+// every cell that has a value for it
+
+void drawGrid(int hoveredState) {
+  ThumbnailPyramid pyramid = thumbnails();
+  int level = pyramid.level(grid.thumbWidth, grid.thumbHeight);
+  long deadline = System.nanoTime() + GRID_COMPOSE_NS;
+  for (int cell = 0; cell < grid.views.length; cell++) {
+    float x = grid.thumbX(cell);
+    float y = grid.thumbY(cell);
+    PImage thumbnail = pyramid.get(grid.views[cell], level, System.nanoTime() < deadline);
+    if (thumbnail != null) {
+      image(thumbnail, x, y, grid.thumbWidth, grid.thumbHeight);
+    } else {
+      noStroke();
+      fill(245);
+      rect(x, y, grid.thumbWidth, grid.thumbHeight);
+    }
+    if (grid.views[cell] == thisViewIdx) {
+      noFill();
+      stroke(darkGray);
+      strokeWeight(1);
+      rect(x - 2, y - 2, grid.thumbWidth + 4, grid.thumbHeight + 4);
+    }
+  }
+
+  if (hoveredState < 0)
+    return;
+  for (int cell = 0; cell < grid.views.length; cell++) {
+    if (!stateHasData(hoveredState, grid.views[cell]))
+      continue;
+    push();
+    translate(grid.thumbX(cell), grid.thumbY(cell));
+    scale(grid.thumbWidth / graphicsWidth * scaleFactor);
+    stateMeshes.draw(g, hoveredState, stateColor(hoveredState, grid.views[cell]), 0, 0);
+    pop();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// labels of the cells, and the fires of the state under the mouse in the
+// month of the cell it is in
+
+void displayGridLabels(PGraphics pg, int hoveredCell, int hoveredState) {
+  pg.textSize(13);
+  for (int cell = 0; cell < grid.views.length; cell++) {
+    pg.fill(grid.views[cell] == thisViewIdx || cell == hoveredCell ? color(0) : darkGray);
+    String label = grid.label(cell);
+    if (label != null) {
+      pg.textAlign(LEFT);
+      pg.text(label, grid.thumbX(cell), grid.thumbY(cell) - 5);
+    }
+    if (grid.layout == GRID_ALL && cell % 12 == 0) {
+      pg.textAlign(RIGHT);
+      pg.text(getMonthYear(grid.views[cell])[1], grid.thumbX(cell) - 8, grid.thumbY(cell) + grid.thumbHeight/2 + 5);
+    }
+  }
+
+  if (hoveredCell < 0 || hoveredState < 0)
+    return;
+  int viewIdx = grid.views[hoveredCell];
+  int[] my = getMonthYear(viewIdx);
+  String text = store.stateNames.get(hoveredState) + ", " + (mapMode == MONTHLY_MAP ? nameOfMonths[my[0]-1] + " " : "") + my[1];
+  Ranking ranking = rankings.fires(viewIdx);
+  if (ranking.rank(hoveredState) >= 0)
+    text += ": " + ranking.value(hoveredState) + " fires (rank " + (ranking.rank(hoveredState) + 1) + " of " + ranking.count + ")";
+  else
+    text += ": no data";
+  pg.textSize(14);
+  pg.textAlign(CENTER);
+  pg.fill(darkGray);
+  pg.text(text, gridLayer.x + gridLayer.pg.width/2, gridLayer.y + gridLayer.pg.height - 8);
+}
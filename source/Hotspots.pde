@@ -0,0 +1,344 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+// aggregation of raw satellite hotspots into the per state counts the
+// visualisation shows, started from main() with
+//
+//   --hotspots=<file>   CSV with a header naming latitude, longitude and
+//                       date columns (latitude/lat, longitude/lon/lng,
+//                       acq_date/date/timestamp/datetime)
+//   --out=<file>        output CSV in the format of fires_data.csv
+//                       (fires_data.csv)
+//   --daily             count per day instead of per month, with a Date
+//                       column in place of Month and Year, which the
+//                       visualisation does not load (fires_daily.csv)
+//   --threads=<n>       number of fork/join workers (number of cores)
+//
+// Points are projected into the coordinates of brazilLow.svg with the
+// Mercator bounds the map declares, and binned into states with the
+// hit-testing grid. The file is read in chunks of rows which fork/join
+// tasks parse and count in parallel while the next chunk is read.
+
+static final int HOTSPOT_CHUNK_ROWS = 1 << 16; // rows read and handed to the pool at once
+static final int HOTSPOT_TASK_ROWS = 4096; // rows a task counts without splitting
+
+/*----------------------------------------------------------------------*/
+// aggregate the hotspots file into the output file, run headless from main()
+
+boolean ingestHotspots() {
+  File input = new File(stringArg("--hotspots", ""));
+  boolean daily = hasArg("--daily");
+  File output = new File(stringArg("--out", daily ? "fires_daily.csv" : "fires_data.csv"));
+  ForkJoinPool pool = new ForkJoinPool(intArg("--threads", Runtime.getRuntime().availableProcessors()));
+
+  XML svg = loadXML("brazilLow.svg");
+  ArrayList<String> codes = new ArrayList<String>();
+  ArrayList<String> names = new ArrayList<String>();
+  for (XML path : svg.getChild("g").getChildren("path")) {
+    codes.add(path.getString("id"));
+    names.add(path.getString("title"));
+  }
+  PShape shapes = new PShapeSVG(svg);
+  Path2D[] paths = new Path2D[codes.size()];
+  for (int stateId = 0; stateId < paths.length; stateId++)
+    paths[stateId] = statePath(shapes.getChild(codes.get(stateId)));
+  StateIndex index = new StateIndex(paths);
+  MapProjection projection = new MapProjection(svg, paths);
+
+  long start = System.nanoTime();
+  HotspotCounts total = new HotspotCounts(paths.length);
+  try {
+    BufferedReader reader = createReader(input.getPath());
+    try {
+      int[] columns = hotspotColumns(reader.readLine());
+      if (columns == null) {
+        println(input + " needs latitude, longitude and date columns");
+        return false;
+      }
+
+      // count chunks on the pool while the next ones are read, keeping
+      // only a few in flight so memory stays bounded for huge files
+      ArrayDeque<ForkJoinTask<HotspotCounts>> inFlight = new ArrayDeque<ForkJoinTask<HotspotCounts>>();
+      String[] rows = new String[HOTSPOT_CHUNK_ROWS];
+      int numRows = 0;
+      String row;
+      while (true) {
+        row = reader.readLine();
+        if (row != null)
+          rows[numRows++] = row;
+        if (numRows == rows.length || (row == null && numRows > 0)) {
+          inFlight.add(pool.submit(new HotspotTask(rows, 0, numRows, columns, projection, index, daily)));
+          rows = new String[HOTSPOT_CHUNK_ROWS];
+          numRows = 0;
+          if (inFlight.size() > 2 * pool.getParallelism())
+            total.add(inFlight.poll().join());
+        }
+        if (row == null)
+          break;
+      }
+      while (!inFlight.isEmpty())
+        total.add(inFlight.poll().join());
+    } finally {
+      reader.close();
+    }
+    writeHotspotCounts(total, codes, names, output, daily);
+  } catch (Exception e) {
+    println("cannot aggregate hotspots from " + input + ": " + e);
+    return false;
+  } finally {
+    pool.shutdown();
+  }
+
+  double seconds = (System.nanoTime() - start) / 1e9d;
+  println("aggregated " + total.points + " hotspots into " + output + " in " + nf((float)seconds, 0, 2) +
+    " s (" + nf((float)(total.points / seconds / 1e6), 0, 2) + " M rows/s on " + pool.getParallelism() +
+    " threads): " + total.outside + " outside the states, " + total.invalid + " invalid rows");
+  return true;
+}
+
+/*----------------------------------------------------------------------*/
+// return indexes of the latitude, longitude and date columns named in the
+// header, or null if one is missing
+
+int[] hotspotColumns(String header) {
+  if (header == null)
+    return null;
+  int[] columns = { -1, -1, -1 };
+  String[][] names = {
+    { "latitude", "lat" },
+    { "longitude", "lon", "lng" },
+    { "acq_date", "date", "timestamp", "datetime", "time" } };
+  String[] cols = header.split(",");
+  for (int c = 0; c < columns.length; c++) {
+    for (int i = 0; i < cols.length && columns[c] < 0; i++) {
+      String col = cols[i].trim().replace("\"", "").toLowerCase();
+      for (String name : names[c]) {
+        if (col.equals(name)) {
+          columns[c] = i;
+          break;
+        }
+      }
+    }
+    if (columns[c] < 0)
+      return null;
+  }
+  return columns;
+}
+
+/*----------------------------------------------------------------------*/
+// write counts of every state for every month (or day, as yyyy-mm-dd)
+// between the first and last hotspot, months without hotspots as zero
+
+void writeHotspotCounts(HotspotCounts counts, ArrayList<String> codes, ArrayList<String> names,
+  File file, boolean daily) throws IOException {
+  PrintWriter writer = createWriter(file.getPath());
+  try {
+    writer.println(daily ? "State code,State name,Date,Number of fires" :
+      "State code,State name,Month,Year,Number of fires");
+    if (counts.buckets.isEmpty())
+      return;
+    int first = Collections.min(counts.buckets.keySet());
+    int last = Collections.max(counts.buckets.keySet());
+    for (int bucket = first; bucket <= last; bucket++) {
+      int[] bucketCounts = counts.buckets.get(bucket);
+      String date;
+      if (daily) {
+        date = java.time.LocalDate.ofEpochDay(bucket).toString();
+      } else {
+        date = (bucket % 12 + 1) + "," + (bucket / 12);
+      }
+      for (int stateId = 0; stateId < codes.size(); stateId++)
+        writer.println(csvField(codes.get(stateId)) + "," + csvField(names.get(stateId)) + "," + date + "," +
+          (bucketCounts == null ? 0 : bucketCounts[stateId]));
+    }
+  } finally {
+    writer.close();
+  }
+}
+
+//////////////////////////////////
+
+// Mercator projection of longitude and latitude into map coordinates, set
+// up from the bounds an amcharts SVG map declares
+
+class MapProjection {
+  float left; // longitude of the left edge of the map
+  float right;
+  double top; // Mercator y of the top edge
+  double bottom;
+  float mapWidth; // size of the map in its own coordinates
+  float mapHeight;
+
+  /*----------------------------*/
+
+  MapProjection(XML svg, Path2D[] statePaths) {
+    XML bounds = svg.getChild("defs").getChild("amcharts:ammap");
+    if (bounds == null || !"mercator".equals(bounds.getString("projection")))
+      throw new RuntimeException("map does not declare its Mercator bounds");
+    left = bounds.getFloat("leftLongitude");
+    right = bounds.getFloat("rightLongitude");
+    top = mercatorY(bounds.getFloat("topLatitude"));
+    bottom = mercatorY(bounds.getFloat("bottomLatitude"));
+
+    // the declared bounds are the bounds of all paths, which start at 0,0
+    Rectangle2D all = new Rectangle2D.Float();
+    for (Path2D state : statePaths) {
+      if (state != null)
+        all.add(state.getBounds2D());
+    }
+    mapWidth = (float) all.getMaxX();
+    mapHeight = (float) all.getMaxY();
+  }
+
+  /*----------------------------*/
+
+  float x(float longitude) {
+    return (longitude - left) / (right - left) * mapWidth;
+  }
+
+  float y(float latitude) {
+    return (float) ((top - mercatorY(latitude)) / (top - bottom) * mapHeight);
+  }
+
+  double mercatorY(float latitude) {
+    return Math.log(Math.tan(Math.PI/4 + Math.toRadians(latitude)/2));
+  }
+}
+
+//////////////////////////////////
+
+// hotspot counts per state and month (or day), kept sparse by time bucket
+
+class HotspotCounts {
+  int numStates;
+  HashMap<Integer, int[]> buckets = new HashMap<Integer, int[]>(); // year*12 + month-1 or epoch day -> counts by state id
+  long points; // rows counted into a state
+  long outside; // rows outside every state
+  long invalid; // rows that could not be parsed
+
+  HotspotCounts(int numStates) {
+    this.numStates = numStates;
+  }
+
+  void count(int bucket, int stateId) {
+    int[] counts = buckets.get(bucket);
+    if (counts == null) {
+      counts = new int[numStates];
+      buckets.put(bucket, counts);
+    }
+    counts[stateId]++;
+    points++;
+  }
+
+  void add(HotspotCounts other) {
+    for (Map.Entry<Integer, int[]> entry : other.buckets.entrySet()) {
+      int[] counts = buckets.get(entry.getKey());
+      if (counts == null) {
+        buckets.put(entry.getKey(), entry.getValue());
+      } else {
+        for (int stateId = 0; stateId < numStates; stateId++)
+          counts[stateId] += entry.getValue()[stateId];
+      }
+    }
+    points += other.points;
+    outside += other.outside;
+    invalid += other.invalid;
+  }
+}
+
+//////////////////////////////////
+
+// counts a range of rows, splitting it between workers while it is large
+
+class HotspotTask extends RecursiveTask<HotspotCounts> {
+  private static final long serialVersionUID = 1L; // fork/join tasks are serializable, never serialized here
+  String[] rows;
+  int from;
+  int to;
+  int[] columns; // latitude, longitude and date column
+  MapProjection projection;
+  StateIndex index;
+  boolean daily;
+
+  /*----------------------------*/
+
+  HotspotTask(String[] rows, int from, int to, int[] columns, MapProjection projection,
+    StateIndex index, boolean daily) {
+    this.rows = rows;
+    this.from = from;
+    this.to = to;
+    this.columns = columns;
+    this.projection = projection;
+    this.index = index;
+    this.daily = daily;
+  }
+
+  /*----------------------------*/
+
+  protected HotspotCounts compute() {
+    if (to - from > HOTSPOT_TASK_ROWS) {
+      int mid = (from + to) >>> 1;
+      HotspotTask second = new HotspotTask(rows, mid, to, columns, projection, index, daily);
+      second.fork();
+      HotspotCounts counts = new HotspotTask(rows, from, mid, columns, projection, index, daily).compute();
+      counts.add(second.join());
+      return counts;
+    }
+
+    HotspotCounts counts = new HotspotCounts(index.statePaths.length);
+    String[] fields = new String[3];
+    for (int i = from; i < to; i++) {
+      try {
+        if (!hotspotFields(rows[i], columns, fields)) {
+          counts.invalid++;
+          continue;
+        }
+        float x = projection.x(Float.parseFloat(fields[1]));
+        float y = projection.y(Float.parseFloat(fields[0]));
+        int stateId = index.stateAt(x, y);
+        if (stateId < 0) {
+          counts.outside++;
+          continue;
+        }
+
+        // dates start with yyyy-mm-dd (or yyyy/mm/dd)
+        String date = fields[2];
+        int year = Integer.parseInt(date.substring(0, 4));
+        int month = Integer.parseInt(date.substring(5, 7));
+        int day = Integer.parseInt(date.substring(8, 10));
+        int bucket = daily ? (int) java.time.LocalDate.of(year, month, day).toEpochDay() : year*12 + month-1;
+        counts.count(bucket, stateId);
+      } catch (RuntimeException e) {
+        counts.invalid++; // unparsable number or date
+      }
+    }
+    return counts;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// cut the latitude, longitude and date fields out of a row without
+// splitting all of it; false if the row has too few fields
+
+boolean hotspotFields(String row, int[] columns, String[] fields) {
+  int col = 0;
+  int start = 0;
+  int found = 0;
+  while (found < fields.length) {
+    int end = row.indexOf(',', start);
+    if (end < 0)
+      end = row.length();
+    for (int c = 0; c < columns.length; c++) {
+      if (columns[c] == col) {
+        fields[c] = row.substring(start, end).trim();
+        found++;
+      }
+    }
+    if (end == row.length())
+      break;
+    start = end + 1;
+    col++;
+  }
+  return found == fields.length;
+}
@@ -0,0 +1,54 @@
+// cached off-screen part of the screen: it is redrawn only after it was
+// invalidated and otherwise just drawn as an image
+
+class Layer {
+  PGraphics pg;
+  int x; // position of the layer on screen
+  int y;
+  boolean opaque; // opaque layers are cleared to the white background
+  boolean dirty;
+
+  /*----------------------------*/
+
+  Layer(int x, int y, int w, int h, boolean opaque) {
+    this.x = x;
+    this.y = y;
+    this.opaque = opaque;
+    pg = createGraphics(max(1, w), max(1, h), P2D);
+    pg.smooth(8);
+    dirty = true;
+  }
+
+  /*----------------------------*/
+  // start redrawing the layer in screen coordinates if it was invalidated;
+  // return false if it is up to date
+
+  boolean begin() {
+    if (!dirty)
+      return false;
+
+    pg.beginDraw();
+    if (opaque)
+      pg.background(255);
+    else
+      pg.clear();
+    pg.textFont(font);
+    pg.translate(-x, -y);
+    return true;
+  }
+
+  void end() {
+    pg.endDraw();
+    dirty = false;
+  }
+
+  /*----------------------------*/
+
+  void invalidate() {
+    dirty = true;
+  }
+
+  void display() {
+    image(pg, x, y);
+  }
+}
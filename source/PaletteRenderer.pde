@@ -0,0 +1,186 @@
+import java.awt.image.DataBufferByte;
+
+// recolours views from a raster of state ids instead of drawing the state
+// shapes of every view: the map is rasterised once (or read from the
+// startup cache) into the state at every pixel and the coverage of the state outlines, and a view is then a
+// palette lookup per pixel with the planted forests circles drawn on top.
+// Any month, and any blend of two months for smooth playback, costs the
+// same and no rendered views are kept. --renderer=cached renders and caches
+// whole views instead (see ViewCache).
+
+class PaletteRenderer {
+  int viewWidth;
+  int viewHeight;
+  float viewScale;
+  int[] stateIds; // state id plus one at every pixel, 0 outside the states
+  byte[] outlines; // coverage of the state outlines at every pixel
+  int[] palette; // colour of every state id plus one
+  BufferedImage frame; // view composed on the CPU
+  int[] pixels; // pixels of the frame
+  PImage image; // the frame uploaded for display
+
+  int version; // bumped when the data changes
+  int drawnVersion = -1; // what the image shows
+  int drawnFrom;
+  int drawnTo;
+  float drawnAmount;
+
+  /*----------------------------*/
+
+  PaletteRenderer(Path2D[] statePaths, int viewWidth, int viewHeight, float viewScale) {
+    this.viewWidth = viewWidth;
+    this.viewHeight = viewHeight;
+    this.viewScale = viewScale;
+
+    if (startupCache == null || !startupCache.readRasters(this, statePaths.length)) {
+      rasterise(statePaths);
+      if (startupCache != null)
+        startupCache.writeRasters(this, statePaths.length);
+    }
+
+    palette = new int[statePaths.length + 1];
+    frame = new BufferedImage(viewWidth, viewHeight, BufferedImage.TYPE_INT_ARGB);
+    pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+    image = createImage(viewWidth, viewHeight, ARGB);
+  }
+
+  /*----------------------------*/
+  // draw the states into the id raster and the outline coverage
+
+  void rasterise(Path2D[] statePaths) {
+    // state ids as colours, without antialiasing so no pixel mixes two ids
+    BufferedImage ids = new BufferedImage(viewWidth, viewHeight, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = ids.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+    g.scale(viewScale, viewScale);
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] == null)
+        continue;
+      g.setColor(new Color(stateId + 1));
+      g.fill(statePaths[stateId]);
+    }
+    g.dispose();
+    stateIds = ((DataBufferInt) ids.getRaster().getDataBuffer()).getData();
+
+    // antialiased outlines, which also smooth the edges of the states
+    outlines = rasteriseOutlines(statePaths, viewWidth, viewHeight, viewScale, 1);
+  }
+
+  /*----------------------------*/
+  // return the view blended from one month towards another by the amount
+  // (0..1), composed again only if it changed since the last call
+
+  PImage get(int fromView, int toView, float amount) {
+    if (amount == 0)
+      toView = fromView;
+    if (drawnVersion != version || fromView != drawnFrom || toView != drawnTo || amount != drawnAmount) {
+      render(fromView, toView, amount);
+      image.loadPixels();
+      System.arraycopy(pixels, 0, image.pixels, 0, pixels.length);
+      image.updatePixels();
+      drawnVersion = version;
+      drawnFrom = fromView;
+      drawnTo = toView;
+      drawnAmount = amount;
+    }
+    return image;
+  }
+
+  // draw the views again on their next request, after the data changed
+  void invalidate() {
+    version++;
+  }
+
+  /*----------------------------*/
+  // compose the view into the frame pixels; does not touch the sketch
+  // renderer, so it is safe to call from any thread
+
+  void render(int fromView, int toView, float amount) {
+    int blend = int(amount * 256);
+    fillPalette(palette, fromView, toView, blend);
+
+    // a lookup per pixel, whitened by the outline coverage
+    for (int i = 0; i < pixels.length; i++) {
+      int c = palette[stateIds[i] & 0xffffff];
+      int coverage = outlines[i] & 0xff;
+      pixels[i] = coverage == 0 ? c : mixColor(c, 0xffffffff, coverage + (coverage >> 7));
+    }
+
+    drawPlantedCircles(frame, viewScale, fromView, toView, blend);
+  }
+
+  /*----------------------------*/
+  // colour of every state id plus one, blended from one view towards
+  // another by the amount (0..256)
+
+  void fillPalette(int[] palette, int fromView, int toView, int blend) {
+    palette[0] = 0xffffffff;
+    for (int stateId = 0; stateId < palette.length - 1; stateId++) {
+      int from = viewColor(stateId, fromView);
+      palette[stateId + 1] = blend == 0 ? from : mixColor(from, viewColor(stateId, toView), blend);
+    }
+  }
+
+  // circles for planted forests on an image of the map drawn at the scale,
+  // growing and shrinking between the views
+  void drawPlantedCircles(BufferedImage image, float scale, int fromView, int toView, int blend) {
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.scale(scale, scale);
+    g.setColor(new Color(green));
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      float size = lerp(plantedCircle(stateId, fromView), plantedCircle(stateId, toView), blend / 256f);
+      int[] xy = coordinatesMap.get(store.stateCodes.get(stateId));
+      if (size > 0 && xy != null) {
+        float xx = (xy[0]-graphicsX/scaleFactor);
+        float yy = (xy[1]-graphicsY/scaleFactor);
+        g.fill(new Ellipse2D.Float(xx - size/2, yy - size/2, size, size));
+      }
+    }
+    g.dispose();
+  }
+
+  /*----------------------------*/
+
+  int viewColor(int stateId, int viewIdx) {
+    return stateHasData(stateId, viewIdx) ? stateColor(stateId, viewIdx) : 0xffffffff;
+  }
+
+  // diameter of the planted forests circle of a state, 0 if it has none
+  float plantedCircle(int stateId, int viewIdx) {
+    int plantedArea = store.plantedArea(stateId, viewIdx);
+    return stateHasData(stateId, viewIdx) && plantedArea != 0 ? plantedSize(plantedArea) : 0;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// coverage of the state outlines, of the width in map units, of the map
+// drawn at the scale into a raster of the size
+
+byte[] rasteriseOutlines(Path2D[] statePaths, int w, int h, float scale, float strokeWidth) {
+  BufferedImage edges = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+  Graphics2D g = edges.createGraphics();
+  g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+  g.scale(scale, scale);
+  g.setColor(Color.WHITE);
+  g.setStroke(new BasicStroke(strokeWidth));
+  for (Path2D path : statePaths) {
+    if (path != null)
+      g.draw(path);
+  }
+  g.dispose();
+  return ((DataBufferByte) edges.getRaster().getDataBuffer()).getData();
+}
+
+/*----------------------------------------------------------------------*/
+// mix two opaque colours, amount from 0 (the first) to 256 (the second)
+
+int mixColor(int from, int to, int amount) {
+  int r = (from >> 16) & 0xff;
+  int g = (from >> 8) & 0xff;
+  int b = from & 0xff;
+  r += (((to >> 16) & 0xff) - r) * amount >> 8;
+  g += (((to >> 8) & 0xff) - g) * amount >> 8;
+  b += ((to & 0xff) - b) * amount >> 8;
+  return 0xff000000 | r << 16 | g << 8 | b;
+}
@@ -0,0 +1,94 @@
+// playback of the months on the wall clock rather than the frame count, so
+// that it keeps its pace however fast frames are drawn
+//
+//   --months-per-second=<n>   playback speed (1.7), from 0.1 to 60
+//   --catch-up                after a hitch show every missed month, one
+//                             per frame, instead of skipping to the month
+//                             that is due
+//
+// While playing, key r reverses the direction and keys + and - change the
+// speed.
+
+class Playback {
+  boolean playing;
+  float monthsPerSecond;
+  int direction = 1; // +1 forwards, -1 backwards
+  boolean catchUp; // show missed months rather than skipping them
+  long shownSince; // System.nanoTime() when the shown month was due
+
+  Playback(float monthsPerSecond, boolean catchUp) {
+    this.monthsPerSecond = constrain(monthsPerSecond, 0.1, 60); // as keys + and - allow
+    this.catchUp = catchUp;
+  }
+
+  /*----------------------------*/
+
+  void play() {
+    if (playing)
+      return;
+    playing = true;
+    shownSince = System.nanoTime();
+  }
+
+  void pause() {
+    playing = false;
+  }
+
+  long period() {
+    return (long) (1e9 / monthsPerSecond);
+  }
+
+  /*----------------------------*/
+  // advance to the month due at this frame, skipping months without data
+
+  void update() {
+    if (!playing)
+      return;
+    long period = period();
+    long due = (System.nanoTime() - shownSince) / period;
+    if (due == 0)
+      return;
+
+    int steps = catchUp ? 1 : (int) Math.min(due, store.numViews);
+    shownSince += (catchUp ? 1 : due) * period;
+    int viewIdx = thisViewIdx;
+    for (int i = 0; i < steps; i++)
+      viewIdx = store.nextView(viewIdx, direction);
+    int[] my = getMonthYear(viewIdx);
+    selectView(my[0], my[1]);
+  }
+
+  /*----------------------------*/
+  // month shown next, and the fraction of the time until it is shown
+
+  int nextView() {
+    return store.nextView(thisViewIdx, direction);
+  }
+
+  float progress() {
+    if (!playing)
+      return 0;
+    return constrain((System.nanoTime() - shownSince) / (float) period(), 0, 1);
+  }
+
+  /*----------------------------*/
+  // change the speed or direction, keeping the progress towards the next
+  // month so the view does not jump
+
+  void setSpeed(float monthsPerSecond) {
+    float progress = progress();
+    this.monthsPerSecond = constrain(monthsPerSecond, 0.1, 60);
+    shownSince = System.nanoTime() - (long) (progress * period());
+  }
+
+  void reverse() {
+    if (playing) {
+      // blending from A to B at p is blending from B to A at 1-p
+      float progress = progress();
+      int[] my = getMonthYear(nextView());
+      selectView(my[0], my[1]);
+      shownSince = System.nanoTime() - (long) ((1 - progress) * period());
+    }
+    direction = -direction;
+  }
+}
@@ -0,0 +1,169 @@
+// states ranked by fires in every month and year and by planted forests
+// area in every year, kept sorted so that the top states, the rank of a
+// state and its percentile are lookups. A month whose fires change is
+// sorted again on its own. Drives the ranked sidebar, which key s shows
+// and hides, and --top=<k> sets the length of (10).
+
+class Rankings {
+  FactStore store;
+  TimeCube timeCube;
+  Ranking[] months; // fires of the month, by view index
+  Ranking[] years; // fires of the whole year, by year index
+  Ranking[] planted; // planted forests area, by year index
+
+  /*----------------------------*/
+
+  Rankings(FactStore store, TimeCube timeCube) {
+    this.store = store;
+    this.timeCube = timeCube;
+    months = new Ranking[store.numViews];
+    years = new Ranking[store.numYears];
+    planted = new Ranking[store.numYears];
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++)
+      months[viewIdx] = new Ranking(store.numStates);
+    for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+      years[yearIdx] = new Ranking(store.numStates);
+      planted[yearIdx] = new Ranking(store.numStates);
+    }
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++)
+      sortMonth(viewIdx);
+    for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+      sortYear(yearIdx);
+      sortPlanted(yearIdx);
+    }
+  }
+
+  /*----------------------------*/
+  // sort a month and its year again after its fires changed; the time cube
+  // must be updated first
+
+  void update(int viewIdx) {
+    sortMonth(viewIdx);
+    sortYear(viewIdx / 12);
+  }
+
+  void sortMonth(int viewIdx) {
+    long[] keys = months[viewIdx].keys;
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      keys[stateId] = store.hasData(stateId, viewIdx) ? store.fires[stateId][viewIdx] : -1;
+    months[viewIdx].sort();
+  }
+
+  void sortYear(int yearIdx) {
+    long[] keys = years[yearIdx].keys;
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      keys[stateId] = timeCube.hasYear(stateId, yearIdx) ? timeCube.yearTotal(stateId, yearIdx) : -1;
+    years[yearIdx].sort();
+  }
+
+  void sortPlanted(int yearIdx) {
+    long[] keys = planted[yearIdx].keys;
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      keys[stateId] = store.plantedArea[stateId][yearIdx] != 0 ? store.plantedArea[stateId][yearIdx] : -1;
+    planted[yearIdx].sort();
+  }
+
+  /*----------------------------*/
+  // ranking of the fires shown in a month in the current map mode
+
+  Ranking fires(int viewIdx) {
+    return mapMode == MONTHLY_MAP ? months[viewIdx] : years[viewIdx / 12];
+  }
+}
+
+//////////////////////////////////
+
+// states ordered by a value, largest first; states without a value (-1)
+// are left out
+
+class Ranking {
+  long[] keys; // value of every state, -1 if it has none
+  int[] order; // state ids, largest value first
+  int[] ranks; // rank of every state from 0, -1 if it has no value
+  int count; // states with a value
+  long[] sorted; // scratch space of the sort
+
+  Ranking(int numStates) {
+    keys = new long[numStates];
+    order = new int[numStates];
+    ranks = new int[numStates];
+    sorted = new long[numStates];
+  }
+
+  /*----------------------------*/
+  // sort the states by their keys, equal values by state id
+
+  void sort() {
+    // the value in the high bits and the inverted state id in the low
+    // ones, so one sort of primitives orders both
+    for (int stateId = 0; stateId < keys.length; stateId++)
+      sorted[stateId] = (keys[stateId] + 1) << 24 | (0xffffff - stateId);
+    Arrays.sort(sorted);
+
+    count = 0;
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      int stateId = 0xffffff - (int) (sorted[i] & 0xffffff);
+      if (keys[stateId] < 0) {
+        ranks[stateId] = -1;
+        continue;
+      }
+      order[count] = stateId;
+      ranks[stateId] = count++;
+    }
+  }
+
+  /*----------------------------*/
+  // the k states with the largest values, fewer if fewer have one
+
+  int[] top(int k) {
+    return Arrays.copyOf(order, Math.min(k, count));
+  }
+
+  // rank of a state from 0 for the largest value, -1 if it has no value
+  int rank(int stateId) {
+    return ranks[stateId];
+  }
+
+  // share of the other states with a value that the state is above, -1 if
+  // it has no value
+  float percentile(int stateId) {
+    if (ranks[stateId] < 0)
+      return -1;
+    return count == 1 ? 1 : (count - 1 - ranks[stateId]) / (float) (count - 1);
+  }
+
+  long value(int stateId) {
+    return keys[stateId];
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// draw the states with the most fires in the shown month (or year), with
+// bars in their colour on the map, the state under the mouse emphasized
+
+void displaySidebar(PGraphics pg, int x, int y, int hoveredId) {
+  Ranking ranking = rankings.fires(thisViewIdx);
+  int[] top = ranking.top(sidebarTop);
+
+  pg.textSize(14);
+  pg.textAlign(LEFT);
+  pg.fill(darkGray);
+  pg.text(mapMode == MONTHLY_MAP ? "Most fires in " + nameOfMonths[thisMonth-1] + ":" :
+    "Most fires in " + thisYear + ":", x, y);
+
+  long most = top.length == 0 ? 0 : ranking.value(top[0]);
+  int barWidth = 90;
+  for (int i = 0; i < top.length; i++) {
+    int stateId = top[i];
+    int rowY = y + 26 + i*22;
+    pg.noStroke();
+    pg.fill(stateColor(stateId, thisViewIdx));
+    pg.rect(x + 240, rowY - 11, most == 0 ? 0 : barWidth * ranking.value(stateId) / (float) most, 12);
+
+    pg.fill(stateId == hoveredId ? color(0) : darkGray);
+    pg.textAlign(LEFT);
+    pg.text((i + 1) + ". " + store.stateNames.get(stateId), x, rowY);
+    pg.textAlign(RIGHT);
+    pg.text(String.valueOf(ranking.value(stateId)), x + 230, rowY);
+  }
+}
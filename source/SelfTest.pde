@@ -0,0 +1,271 @@
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// checks of cases the data files of the repository do not reach, started
+// from main() with
+//
+//   --self-test    run every check, exiting with 1 if any fails
+//
+// Every check prints its name and whether it passed.
+
+boolean selfTest() {
+  boolean passed = true;
+  try {
+    passed &= reportCheck("parallel CSV ending without a line break", checkCsvLastRow(false));
+    passed &= reportCheck("parallel CSV ending with a line break", checkCsvLastRow(true));
+    passed &= reportCheck("quoted CSV fields read back", checkCsvQuoting());
+    passed &= reportCheck("fact store grows to the years added, with gaps", checkFactStoreGrowth());
+    passed &= reportCheck("fact file read back, damaged ones refused", checkFactFile());
+    passed &= reportCheck("watcher tells appends from rewrites", checkWatcher());
+    passed &= reportCheck("If-None-Match lists, weak tags and *", checkEtagMatches());
+    passed &= reportCheck("rankings order by value, ties by state", checkRanking());
+    passed &= reportCheck("time cube sums of years and changes", checkTimeCube());
+    passed &= reportCheck("quantiles and scales of metric statistics", checkScales());
+  } catch (Exception e) { // a check that throws has failed, whatever it threw
+    println("self test failed: " + e);
+    return false;
+  }
+  return passed;
+}
+
+boolean reportCheck(String name, boolean passed) {
+  println((passed ? "passed  " : "FAILED  ") + name);
+  return passed;
+}
+
+/*----------------------------------------------------------------------*/
+// a file of more than a chunk parsed in parallel reads every row, the last
+// one too whether a line break follows it or not
+
+boolean checkCsvLastRow(boolean finalBreak) throws IOException {
+  StringBuilder csv = new StringBuilder("id,value\n");
+  int numRows = 0;
+  while (csv.length() < CSV_CHUNK_BYTES * 3/2) {
+    csv.append(numRows).append(',').append(2 * numRows).append('\n');
+    numRows++;
+  }
+  if (!finalBreak)
+    csv.setLength(csv.length() - 1);
+
+  final long[] read = new long[2]; // rows and the sum of their values
+  CsvErrors errors = readCsvParallel("self-test.csv", new ByteArrayInputStream(csv.toString().getBytes("UTF-8")),
+    new CsvChunks<long[]>() {
+    long[] parse(CsvReader rows) throws IOException {
+      long[] chunk = new long[2];
+      int value = rows.column("value", 1);
+      while (rows.next()) {
+        chunk[0]++;
+        chunk[1] += rows.intField(value);
+      }
+      return chunk;
+    }
+
+    void merge(long[] chunk) {
+      read[0] += chunk[0];
+      read[1] += chunk[1];
+    }
+  });
+  errors.report();
+  return errors.count == 0 && read[0] == numRows && read[1] == (long) numRows * (numRows - 1);
+}
+
+/*----------------------------------------------------------------------*/
+// fields written by csvField() are read back unchanged
+
+boolean checkCsvQuoting() throws IOException {
+  String[] values = { "Acre", "Rio de Janeiro, RJ", "a \"quoted\" name", "two\nlines", "" };
+  StringBuilder csv = new StringBuilder();
+  for (int i = 0; i < values.length; i++)
+    csv.append(i == 0 ? "" : ",").append(csvField(values[i]));
+  CsvReader rows = new CsvReader("self-test.csv", new ByteArrayInputStream(csv.append('\n').toString().getBytes("UTF-8")));
+  if (!rows.next() || rows.fieldCount() != values.length)
+    return false;
+  for (int i = 0; i < values.length; i++) {
+    if (!rows.string(i).equals(values[i]))
+      return false;
+  }
+  return !rows.next();
+}
+
+/*----------------------------------------------------------------------*/
+// years added before, after and far after the range keep the values added
+// so far, and the months in between are gaps
+
+boolean checkFactStoreGrowth() {
+  FactStore store = new FactStore();
+  int acre = store.internState("BR-AC", "Acre");
+  store.setFires(acre, store.addView(3, 2010), 30);
+  store.setFires(acre, store.addView(5, 2008), 50);
+  int para = store.internState("BR-PA", "Par\u00e1");
+  store.setFires(para, store.addView(12, 2040), 120);
+  if (store.addView(13, 2010) >= 0 || store.startYear != 2008 || store.endYear() != 2040 ||
+    store.yearCapacity < store.numYears)
+    return false;
+  store.computeStats();
+  return store.fires[acre][store.viewIdx(3, 2010)] == 30 && store.fires[acre][store.viewIdx(5, 2008)] == 50 &&
+    store.fires[para][store.viewIdx(12, 2040)] == 120 && !store.hasData(acre, store.viewIdx(4, 2010)) &&
+    !store.hasData(para, store.viewIdx(3, 2010)) && !store.hasData(store.viewIdx(1, 2020)) &&
+    store.firesStats.count == 3;
+}
+
+/*----------------------------------------------------------------------*/
+// a store written to a fact file reads back the same, and every truncation
+// of the file fails with an IOException, which loading falls back on
+
+boolean checkFactFile() throws IOException {
+  FactStore store = new FactStore();
+  int acre = store.internState("BR-AC", "Acre");
+  int para = store.internState("BR-PA", "Par\u00e1");
+  store.setFires(acre, store.addView(1, 2010), 7);
+  store.setFires(para, store.addView(6, 2011), 9);
+  store.plantedArea[para][1] = 1500;
+
+  File file = File.createTempFile("self-test", ".bin");
+  try {
+    writeFactFile(store, file);
+    FactStore read = readFactFile(file);
+    if (read.numStates != 2 || read.startYear != 2010 || read.numYears != 2 ||
+      !read.stateNames.get(para).equals("Par\u00e1") || read.fires[acre][0] != 7 ||
+      read.fires[para][17] != 9 || read.plantedArea[para][1] != 1500 || read.hasData(acre, 1))
+      return false;
+
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    for (int length = 0; length < bytes.length; length++) {
+      Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+      try {
+        readFactFile(file);
+        return false;
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    return true;
+  } finally {
+    file.delete();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// rows appended to the watched file are read alone, while a file edited
+// in place, replaced or shortened is read whole
+
+boolean checkWatcher() throws IOException {
+  String header = "State code,State name,Month,Year,Number of fires\n";
+  File file = File.createTempFile("self-test", ".csv");
+  File replacement = new File(file.getPath() + ".new");
+  try {
+    Files.write(file.toPath(), (header + "BR-AC,Acre,1,2010,10\nBR-AC,Acre,2,2010,20\n").getBytes("UTF-8"));
+    FiresWatcher watcher = new FiresWatcher(file, 0);
+
+    Files.write(file.toPath(), "BR-AC,Acre,3,2010,30\n".getBytes("UTF-8"), StandardOpenOption.APPEND);
+    FireBatch appended = checkWatcher(watcher, file);
+
+    RandomAccessFile edit = new RandomAccessFile(file, "rw");
+    try {
+      edit.seek(header.length() + "BR-AC,Acre,1,2010,".length());
+      edit.write('9'); // 10 becomes 90, the length stays
+    } finally {
+      edit.close();
+    }
+    FireBatch edited = checkWatcher(watcher, file);
+
+    Files.write(replacement.toPath(), (header + "BR-AC,Acre,1,2010,90\nBR-AC,Acre,2,2010,20\nBR-AC,Acre,3,2010,30\n" +
+      "BR-AC,Acre,4,2010,40\n").getBytes("UTF-8"));
+    Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    FireBatch replaced = checkWatcher(watcher, file);
+
+    Files.write(file.toPath(), (header + "BR-AC,Acre,1,2010,90\n").getBytes("UTF-8"));
+    FireBatch shortened = checkWatcher(watcher, file);
+
+    return appended != null && !appended.complete && appended.size() == 1 && appended.fires.get(0) == 30 &&
+      edited != null && edited.complete && edited.size() == 3 && edited.fires.get(0) == 90 &&
+      replaced != null && replaced.complete && replaced.size() == 4 &&
+      shortened != null && shortened.complete && shortened.size() == 1;
+  } finally {
+    file.delete();
+    replacement.delete();
+  }
+}
+
+// check the file as changed now, later than before, and return the one
+// batch read or null if there was not exactly one
+FireBatch checkWatcher(FiresWatcher watcher, File file) throws IOException {
+  file.setLastModified(watcher.lastModified + 2000);
+  watcher.check();
+  FireBatch batch = watcher.poll();
+  return watcher.poll() == null ? batch : null;
+}
+
+/*----------------------------------------------------------------------*/
+
+boolean checkEtagMatches() {
+  String etag = "\"1a2b-10\"";
+  return etagMatches(Arrays.asList(etag), etag) && etagMatches(Arrays.asList("W/" + etag), etag) &&
+    etagMatches(Arrays.asList("\"x\", " + etag), etag) && etagMatches(Arrays.asList("\"a,b\" ,W/" + etag), etag) &&
+    etagMatches(Arrays.asList("\"x\"", etag), etag) && etagMatches(Arrays.asList("*"), etag) &&
+    !etagMatches(Arrays.asList("\"x\", W/\"1a2b-11\""), etag) && !etagMatches(null, etag) &&
+    !etagMatches(Arrays.asList("\"" + etag + ",\""), etag);
+}
+
+/*----------------------------------------------------------------------*/
+
+boolean checkRanking() {
+  Ranking ranking = new Ranking(5);
+  long[] values = { 5, -1, 5, 9, 0 };
+  System.arraycopy(values, 0, ranking.keys, 0, values.length);
+  ranking.sort();
+  return Arrays.equals(ranking.top(10), new int[] { 3, 0, 2, 4 }) && Arrays.equals(ranking.top(2), new int[] { 3, 0 }) &&
+    ranking.count == 4 && ranking.rank(1) == -1 && ranking.rank(2) == 2 && ranking.percentile(3) == 1 &&
+    ranking.percentile(4) == 0 && ranking.percentile(1) == -1;
+}
+
+/*----------------------------------------------------------------------*/
+// yearly totals, changes and months with data, for states and the country,
+// also after a month changed
+
+boolean checkTimeCube() {
+  FactStore store = new FactStore();
+  int acre = store.internState("BR-AC", "Acre");
+  int para = store.internState("BR-PA", "Par\u00e1");
+  store.setFires(acre, store.addView(1, 2010), 10);
+  store.setFires(acre, store.addView(12, 2010), 20);
+  store.setFires(acre, store.addView(6, 2011), 45);
+  store.setFires(para, store.addView(7, 2011), 5);
+  TimeCube cube = new TimeCube(store);
+  if (cube.yearTotal(acre, 0) != 30 || cube.yearTotal(acre, 1) != 45 || cube.yearDelta(acre, 1) != 15 ||
+    !cube.hasTrend(acre, 1) || cube.hasTrend(para, 1) || cube.hasYear(para, 0) || cube.months(acre, 0, 24) != 3 ||
+    cube.yearTotal(cube.countryId(), 1) != 50 || cube.mean(acre, 0, 12) != 15)
+    return false;
+
+  store.setFires(para, store.viewIdx(3, 2010), 8);
+  cube.update(para);
+  return cube.hasTrend(para, 1) && cube.yearDelta(para, 1) == -3 && cube.yearTotal(cube.countryId(), 0) == 38;
+}
+
+/*----------------------------------------------------------------------*/
+// quantiles within the accuracy of the sketch, and scales that map the
+// range of the values to 0..1 and back
+
+boolean checkScales() {
+  MetricStats stats = new MetricStats();
+  for (int value = 0; value <= 1000; value++)
+    stats.add(value);
+  if (stats.count != 1001 || stats.min != 0 || stats.max != 1000 || Math.abs(stats.mean() - 500) > 1e-3 ||
+    Math.abs(stats.quantile(0.5) - 500) > 500 * 2 * MetricStats.ACCURACY ||
+    Math.abs(stats.quantile(0.9) - 900) > 900 * 2 * MetricStats.ACCURACY || Math.abs(stats.rank(500) - 0.5) > 0.02)
+    return false;
+
+  Scale linear = new Scale("linear", stats);
+  Scale log = new Scale("log", stats);
+  Scale quantile = new Scale("quantile", stats);
+  if (linear.norm(0) != 0 || linear.norm(1000) != 1 || linear.norm(2000) != 1 || linear.value(0.25) != 250 ||
+    Math.abs(log.value(log.norm(100)) - 100) > 0.01 || log.norm(10) <= linear.norm(10) ||
+    Math.abs(quantile.norm(500) - 0.5) > 0.02)
+    return false;
+  try {
+    new Scale("cubic", stats);
+    return false;
+  } catch (IllegalArgumentException e) {
+    return true;
+  }
+}
@@ -0,0 +1,300 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// local HTTP server for dashboards, started from main() with
+//
+//   --serve[=<port>]         port to listen on (8080)
+//   --bind=<address>         address to listen on (127.0.0.1)
+//   --size=<w>x<h>           screen size the map is laid out for (1920x1080)
+//   --map-mode=<mode>        monthly, yearly or trend (monthly)
+//   --threads=<n>            request threads where virtual threads are not
+//                            available (4 per core)
+//
+// and answering
+//
+//   GET /frame?month=&year=   PNG of the map of the month, rendered as the
+//                             views of the visualisation are
+//   GET /states?month=&year=  JSON of the fires and planted forests area of
+//                             every state in the month
+//   GET /state?code=&year=    JSON of the fires of a state in every month of
+//                             the year and its planted forests area
+//
+// Every response carries an ETag computed from its content, and requests
+// whose If-None-Match lists it (weak or not) or is * get 304 without a body. Frames are encoded
+// once and kept, and requests are handled concurrently on virtual threads
+// on Java 21 and later, otherwise on a pool of threads.
+
+boolean serve() {
+  String port = stringArg("--serve", "8080");
+  String[] size = split(stringArg("--size", "1920x1080"), 'x');
+  mapMode = mapMode(stringArg("--map-mode", "monthly"));
+
+  width = Integer.parseInt(size[0]); // the map is laid out by the screen size
+  height = Integer.parseInt(size[1]);
+  setLayout(width, height);
+  loadDataTables();
+  loadStatePaths();
+  viewRenderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, 1);
+
+  HttpServer server;
+  try {
+    server = HttpServer.create(new InetSocketAddress(stringArg("--bind", "127.0.0.1"),
+      Integer.parseInt(port.isEmpty() ? "8080" : port)), 256);
+  } catch (IOException e) {
+    println("cannot listen on port " + port + ": " + e);
+    return false;
+  }
+
+  final FrameCache frames = new FrameCache();
+  server.createContext("/frame", new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, frames, "frame");
+    }
+  });
+  server.createContext("/states", new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, frames, "states");
+    }
+  });
+  server.createContext("/state", new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, frames, "state");
+    }
+  });
+  server.setExecutor(requestExecutor());
+  server.start();
+  println("serving " + store.numViews + " months of " + store.numStates + " states on http://" +
+    server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+  return true;
+}
+
+/*----------------------------------------------------------------------*/
+// run requests on virtual threads where the runtime has them (Java 21),
+// found through reflection as the sketch is built for Java 8
+
+ExecutorService requestExecutor() {
+  try {
+    ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    println("handling requests on virtual threads");
+    return executor;
+  } catch (Exception e) {
+    int threads = intArg("--threads", 4 * Runtime.getRuntime().availableProcessors());
+    println("handling requests on " + threads + " threads");
+    return Executors.newFixedThreadPool(threads);
+  }
+}
+
+//////////////////////////////////
+
+// a response body with its content type and entity tag
+
+class Response {
+  int status;
+  String contentType;
+  byte[] body;
+  String etag;
+
+  Response(int status, String contentType, byte[] body) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = body;
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    etag = "\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"";
+  }
+}
+
+//////////////////////////////////
+
+// PNG encoded frames by view, each encoded once by the first request for
+// it while concurrent requests for the same frame wait for that encoding;
+// a failed encoding is tried again by the next request
+
+class FrameCache {
+  ConcurrentHashMap<Integer, FutureTask<Response>> frames = new ConcurrentHashMap<Integer, FutureTask<Response>>();
+
+  Response get(final int viewIdx) throws Exception {
+    FutureTask<Response> task = frames.get(viewKey(viewIdx));
+    if (task == null) {
+      FutureTask<Response> created = new FutureTask<Response>(new Callable<Response>() {
+        public Response call() throws IOException {
+          ByteArrayOutputStream png = new ByteArrayOutputStream();
+          ImageIO.write(viewRenderer.render(viewIdx), "png", png);
+          return new Response(200, "image/png", png.toByteArray());
+        }
+      });
+      task = frames.putIfAbsent(viewKey(viewIdx), created);
+      if (task == null) {
+        task = created;
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      frames.remove(viewKey(viewIdx), task);
+      throw e;
+    }
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// answer a request to one of the endpoints
+
+void respond(HttpExchange exchange, FrameCache frames, String endpoint) throws IOException {
+  try {
+    Response response;
+    if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+      response = textResponse(405, "only GET is supported");
+    } else {
+      HashMap<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+      if (endpoint.equals("state"))
+        response = stateResponse(query.get("code"), intParam(query, "year"));
+      else
+        response = monthResponse(endpoint, frames, intParam(query, "month"), intParam(query, "year"));
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", response.contentType);
+    exchange.getResponseHeaders().set("ETag", response.etag);
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    if (response.status == 200 && etagMatches(exchange.getRequestHeaders().get("If-None-Match"), response.etag)) {
+      exchange.sendResponseHeaders(304, -1);
+    } else if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(response.status, -1);
+    } else {
+      exchange.sendResponseHeaders(response.status, response.body.length);
+      exchange.getResponseBody().write(response.body);
+    }
+  } catch (Exception e) {
+    println("answering " + exchange.getRequestURI() + " failed: " + e);
+    if (exchange.getResponseCode() < 0)
+      exchange.sendResponseHeaders(500, -1);
+    // otherwise the body was cut short, closing tells the client so
+  } finally {
+    exchange.close();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// whether If-None-Match headers hold * or the entity tag; every header is
+// a comma separated list of tags, compared weakly as the header requires
+
+boolean etagMatches(List<String> headers, String etag) {
+  if (headers == null)
+    return false;
+  for (String header : headers) {
+    int start = 0;
+    boolean quoted = false;
+    for (int i = 0; i <= header.length(); i++) {
+      if (i < header.length() && header.charAt(i) == '"')
+        quoted = !quoted;
+      if (i < header.length() && (quoted || header.charAt(i) != ','))
+        continue;
+      String tag = header.substring(start, i).trim();
+      if (tag.startsWith("W/"))
+        tag = tag.substring(2);
+      if (tag.equals("*") || tag.equals(etag))
+        return true;
+      start = i + 1;
+    }
+  }
+  return false;
+}
+
+/*----------------------------------------------------------------------*/
+// frame or state values of a month
+
+Response monthResponse(String endpoint, FrameCache frames, int month, int year) throws Exception {
+  if (month < 1 || month > 12 || year < 0)
+    return textResponse(400, "month and year are required");
+  int viewIdx = getViewIdx(month, year);
+  if (viewIdx < 0 || !store.hasData(viewIdx))
+    return textResponse(404, "no data for " + month + "/" + year);
+  if (endpoint.equals("frame"))
+    return frames.get(viewIdx);
+
+  StringBuilder json = new StringBuilder();
+  json.append("{\"month\":").append(month).append(",\"year\":").append(year).append(",\"states\":[");
+  StateEntry[] entries = getStateEntries(month, year);
+  for (int i = 0; i < entries.length; i++) {
+    StateEntry se = entries[i];
+    json.append(i == 0 ? "" : ",").append("{\"code\":").append(jsonString(se.stateCode()))
+      .append(",\"name\":").append(jsonString(se.stateName()))
+      .append(",\"fires\":").append(se.hasData() ? String.valueOf(se.numOfFires()) : "null")
+      .append(",\"yearFires\":").append(timeCube.hasYear(se.stateId, viewIdx / 12) ?
+        String.valueOf(timeCube.yearTotal(se.stateId, viewIdx / 12)) : "null")
+      .append(",\"plantedArea\":").append(se.plantedArea() != 0 ? String.valueOf(se.plantedArea()) : "null")
+      .append("}");
+  }
+  json.append("]}");
+  return new Response(200, "application/json", json.toString().getBytes("UTF-8"));
+}
+
+/*----------------------------------------------------------------------*/
+// fires of a state in every month of a year
+
+Response stateResponse(String code, int year) throws Exception {
+  if (code == null || year < 0)
+    return textResponse(400, "code and year are required");
+  StateEntry[] entries = getStateEntries(code, year);
+  if (entries.length == 0)
+    return textResponse(404, "no data for " + code + " in " + year);
+
+  StateEntry first = entries[0];
+  StringBuilder json = new StringBuilder();
+  json.append("{\"code\":").append(jsonString(first.stateCode()))
+    .append(",\"name\":").append(jsonString(first.stateName()))
+    .append(",\"year\":").append(year)
+    .append(",\"plantedArea\":").append(first.plantedArea() != 0 ? String.valueOf(first.plantedArea()) : "null")
+    .append(",\"months\":[");
+  for (int i = 0; i < entries.length; i++)
+    json.append(i == 0 ? "" : ",").append(entries[i].hasData() ? String.valueOf(entries[i].numOfFires()) : "null");
+  json.append("]}");
+  return new Response(200, "application/json", json.toString().getBytes("UTF-8"));
+}
+
+/*----------------------------------------------------------------------*/
+
+Response textResponse(int status, String message) throws IOException {
+  return new Response(status, "text/plain; charset=utf-8", (message + "\n").getBytes("UTF-8"));
+}
+
+HashMap<String, String> queryParams(String query) throws IOException {
+  HashMap<String, String> params = new HashMap<String, String>();
+  if (query == null)
+    return params;
+  for (String param : query.split("&")) {
+    int eq = param.indexOf('=');
+    if (eq > 0)
+      params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+  }
+  return params;
+}
+
+// integer parameter, -1 if it is missing or not a number
+int intParam(HashMap<String, String> params, String name) {
+  try {
+    return Integer.parseInt(params.get(name));
+  } catch (NumberFormatException e) {
+    return -1;
+  }
+}
+
+String jsonString(String value) {
+  StringBuilder json = new StringBuilder("\"");
+  for (char c : value.toCharArray()) {
+    if (c == '"' || c == '\\')
+      json.append('\\').append(c);
+    else if (c < ' ')
+      json.append(String.format("\\u%04x", (int) c));
+    else
+      json.append(c);
+  }
+  return json.append('"').toString();
+}
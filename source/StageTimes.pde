@@ -0,0 +1,219 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+// times of the stages of loading, drawing and rendering, kept as
+// histograms for their median and 99th percentile
+//
+//   --hud                  show the stage times and the view cache counters
+//                          over the visualisation, key h toggles them
+//   --stage-times=<file>   write the stage times as CSV on exit
+//
+// While a flight recording runs (java -XX:StartFlightRecording ...), every
+// stage is also committed as a "brazilian_fires.Stage" JFR event. Custom
+// events are created through reflection, as the sketch is built for
+// Java 8, and are skipped on runtimes before Java 12.
+
+class StageTimes {
+  LinkedHashMap<String, MetricStats> stages = new LinkedHashMap<String, MetricStats>(); // microseconds, in order of first use
+  StageEvents events; // null if JFR events are unavailable
+  long gcMillis; // collection time of all collectors at the last frame
+  long lastFrame; // start of the last frame, 0 before the first
+
+  StageTimes() {
+    events = createStageEvents();
+  }
+
+  /*----------------------------*/
+  // start timing a stage, from any thread
+
+  Stage start(String name) {
+    return new Stage(this, name);
+  }
+
+  synchronized void record(String name, long nanos) {
+    MetricStats stats = stages.get(name);
+    if (stats == null) {
+      stats = new MetricStats();
+      stages.put(name, stats);
+    }
+    stats.add(nanos / 1000f);
+  }
+
+  /*----------------------------*/
+  // record the time between frames and the garbage collection time since
+  // the last frame, at the start of every frame
+
+  void frame() {
+    long now = System.nanoTime();
+    if (lastFrame != 0)
+      record("frame interval", now - lastFrame);
+    lastFrame = now;
+
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      millis += Math.max(0, gc.getCollectionTime());
+    if (gcMillis != 0 || millis != 0)
+      record("gc", (millis - gcMillis) * 1000000L);
+    gcMillis = millis;
+  }
+
+  /*----------------------------*/
+  // return rows of stage name, count, mean, p50, p99 and max in ms
+
+  synchronized String[][] summary() {
+    String[][] rows = new String[stages.size()][];
+    int i = 0;
+    for (Map.Entry<String, MetricStats> entry : stages.entrySet()) {
+      MetricStats stats = entry.getValue();
+      rows[i++] = new String[] { entry.getKey(), String.valueOf(stats.count), nf(stats.mean() / 1000, 0, 3),
+        nf(stats.quantile(0.5f) / 1000, 0, 3), nf(stats.quantile(0.99f) / 1000, 0, 3),
+        nf(stats.max / 1000, 0, 3) };
+    }
+    return rows;
+  }
+}
+
+//////////////////////////////////
+
+// a stage being timed
+
+class Stage {
+  StageTimes times;
+  String name;
+  long start;
+  Object event; // JFR event, null if none is recorded
+
+  Stage(StageTimes times, String name) {
+    this.times = times;
+    this.name = name;
+    event = times.events == null ? null : times.events.begin();
+    start = System.nanoTime();
+  }
+
+  void stop() {
+    times.record(name, System.nanoTime() - start);
+    if (event != null)
+      times.events.commit(event, name);
+  }
+}
+
+//////////////////////////////////
+
+// the "brazilian_fires.Stage" JFR event type, with the stage name as its
+// only field besides the duration
+
+class StageEvents {
+  Object factory;
+  Method newEvent;
+  Method isEnabled;
+  Method begin;
+  Method end;
+  Method set;
+  Method commit;
+
+  /*----------------------------*/
+
+  StageEvents() throws Exception {
+    Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+    Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+    Class<?> eventClass = Class.forName("jdk.jfr.Event");
+    Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+
+    List<Object> annotations = new ArrayList<Object>();
+    annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName("jdk.jfr.Name"), "brazilian_fires.Stage"));
+    annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName("jdk.jfr.Label"), "Stage"));
+    annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Brazilian Fires" }));
+    List<Object> fields = new ArrayList<Object>();
+    fields.add(valueDescriptor.getConstructor(Class.class, String.class).newInstance(String.class, "stage"));
+
+    factory = create.invoke(null, annotations, fields);
+    newEvent = factory.getClass().getMethod("newEvent");
+    isEnabled = eventClass.getMethod("isEnabled");
+    begin = eventClass.getMethod("begin");
+    end = eventClass.getMethod("end");
+    set = eventClass.getMethod("set", int.class, Object.class);
+    commit = eventClass.getMethod("commit");
+  }
+
+  /*----------------------------*/
+  // return a started event, or null while no recording enables it
+
+  Object begin() {
+    try {
+      Object event = newEvent.invoke(factory);
+      if (!(Boolean) isEnabled.invoke(event))
+        return null;
+      begin.invoke(event);
+      return event;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  void commit(Object event, String stage) {
+    try {
+      end.invoke(event);
+      set.invoke(event, 0, stage);
+      commit.invoke(event);
+    } catch (Exception e) {
+      // a failed event only loses the event
+    }
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// return the JFR event type, or null if the runtime cannot create it
+
+StageEvents createStageEvents() {
+  try {
+    return new StageEvents();
+  } catch (Exception e) {
+    return null;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// draw the stage times in the top left corner of the screen
+
+void displayStageTimes() {
+  String[][] rows = stageTimes.summary();
+  String[] header = { "stage", "count", "mean", "p50", "p99", "max ms" };
+  int[] columns = { 0, 150, 220, 290, 360, 430 };
+  int lineHeight = 18;
+  int lines = rows.length + 1 + (viewCache != null ? 1 : 0);
+
+  pushStyle();
+  noStroke();
+  fill(0, 170);
+  rect(10, 10, 510, lines * lineHeight + 12);
+  textSize(14);
+  fill(255);
+  for (int row = -1; row < rows.length; row++) {
+    String[] cells = row < 0 ? header : rows[row];
+    for (int col = 0; col < columns.length; col++) {
+      textAlign(col == 0 ? LEFT : RIGHT, TOP);
+      text(cells[col], 20 + columns[col] + (col == 0 ? 0 : 60), 16 + (row + 1) * lineHeight);
+    }
+  }
+  if (viewCache != null) {
+    textAlign(LEFT, TOP);
+    text(viewCache.stats(), 20, 16 + (rows.length + 1) * lineHeight);
+  }
+  popStyle();
+}
+
+/*----------------------------------------------------------------------*/
+// write the stage times as CSV, on exit when --stage-times= is given
+
+void writeStageTimes(String fileName) {
+  PrintWriter writer = createWriter(fileName);
+  writer.println("Stage,Count,Mean ms,p50 ms,p99 ms,Max ms");
+  for (String[] row : stageTimes.summary())
+    writer.println(join(row, ","));
+  writer.close();
+  println("stage times written to " + fileName);
+}
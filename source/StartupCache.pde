@@ -0,0 +1,441 @@
+import java.awt.geom.PathIterator;
+import java.nio.file.Files;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// warm-start cache of what every launch otherwise computes again from the
+// same files: the fire and planted forests tables, the state geometry
+// parsed from the SVG map, the glyphs of the font, the state id raster of
+// the palette renderer and the views rendered by the cached renderer.
+//
+//   --startup-cache=<dir>   directory of the cache (data/cache), off turns
+//                           it off
+//
+// The cache is a folder named by a hash of the contents of the data files,
+// the map, the font and the screen size, so any change to them starts a new
+// one and the old folders are deleted. Files are written once, when their
+// content is first computed, and mapped into memory when they are read;
+// rasters and views are stored deflated and views are only read when they
+// are first shown. A live update of the fire data leaves the cache behind
+// for the rest of the run.
+
+static final int STARTUP_CACHE_VERSION = 2; // part of the key, bump when a cached format changes
+// characters drawn beyond the standard set, which the font atlas needs as
+// well: the rho of the correlations in the hover details
+static final String STARTUP_CACHE_GLYPHS = "\u03C1";
+static final String[] STARTUP_CACHE_INPUTS = {
+  "fires_data.csv", "planted_forests_data.csv", "positions.csv", "brazilLow.svg", "SEGOEUI.TTF"
+};
+
+class StartupCache {
+  File dir;
+  volatile boolean stale; // the data changed since the cache was keyed
+
+  StartupCache(File dir) {
+    this.dir = dir;
+  }
+
+  /*----------------------------*/
+  // stop reading and writing the cache, after the fire data changed
+
+  void dataChanged() {
+    stale = true;
+  }
+
+  File file(String name) {
+    return stale ? null : new File(dir, name);
+  }
+
+  /*----------------------------*/
+  // fire and planted forests tables, as a fact file
+
+  FactStore readFacts() {
+    File file = file("facts.bin");
+    if (file == null || !file.isFile())
+      return null;
+    try {
+      return readFactFile(file);
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return null;
+  }
+
+  void writeFacts(final FactStore store) {
+    write("facts.bin", new CacheWriter() {
+      void write(File file) throws IOException {
+        writeFactFile(store, file);
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // state geometry by state code, null unless every state is cached
+
+  Path2D[] readStatePaths(ArrayList<String> stateCodes) {
+    File file = file("geometry.bin");
+    if (file == null || !file.isFile())
+      return null;
+    try {
+      ByteBuffer buffer = mapFile(file);
+      HashMap<String, Path2D> paths = new HashMap<String, Path2D>();
+      int numStates = buffer.getInt();
+      for (int i = 0; i < numStates; i++) {
+        String stateCode = readFactString(buffer);
+        int numSegments = buffer.getInt();
+        if (numSegments < 0) {
+          paths.put(stateCode, null); // not on the map
+          continue;
+        }
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+        for (int j = 0; j < numSegments; j++) {
+          int type = buffer.getInt();
+          if (type == PathIterator.SEG_MOVETO)
+            path.moveTo(buffer.getFloat(), buffer.getFloat());
+          else if (type == PathIterator.SEG_LINETO)
+            path.lineTo(buffer.getFloat(), buffer.getFloat());
+          else if (type == PathIterator.SEG_QUADTO)
+            path.quadTo(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+          else if (type == PathIterator.SEG_CUBICTO)
+            path.curveTo(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+          else
+            path.closePath();
+        }
+        paths.put(stateCode, path);
+      }
+
+      Path2D[] statePaths = new Path2D[stateCodes.size()];
+      for (int stateId = 0; stateId < statePaths.length; stateId++) {
+        if (!paths.containsKey(stateCodes.get(stateId)))
+          return null;
+        statePaths[stateId] = paths.get(stateCodes.get(stateId));
+      }
+      return statePaths;
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return null;
+  }
+
+  void writeStatePaths(ArrayList<String> stateCodes, Path2D[] statePaths) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream output = new DataOutputStream(bytes); // unbuffered, so it interleaves with writeFactString
+      output.writeInt(statePaths.length);
+      float[] coords = new float[6];
+      for (int stateId = 0; stateId < statePaths.length; stateId++) {
+        writeFactString(bytes, stateCodes.get(stateId));
+        if (statePaths[stateId] == null) {
+          output.writeInt(-1);
+          continue;
+        }
+        ByteArrayOutputStream segments = new ByteArrayOutputStream();
+        DataOutputStream segmentOutput = new DataOutputStream(segments);
+        int numSegments = 0;
+        for (PathIterator it = statePaths[stateId].getPathIterator(null); !it.isDone(); it.next()) {
+          int type = it.currentSegment(coords);
+          segmentOutput.writeInt(type);
+          int numCoords = type == PathIterator.SEG_CUBICTO ? 6 : type == PathIterator.SEG_QUADTO ? 4 :
+            type == PathIterator.SEG_CLOSE ? 0 : 2;
+          for (int i = 0; i < numCoords; i++)
+            segmentOutput.writeFloat(coords[i]);
+          numSegments++;
+        }
+        output.writeInt(numSegments);
+        segments.writeTo(output);
+      }
+    } catch (IOException e) {
+      return; // not thrown by byte arrays
+    }
+    write("geometry.bin", new CacheWriter() {
+      void write(File file) throws IOException {
+        Files.write(file.toPath(), bytes.toByteArray());
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // glyphs of the font at the size it is drawn at, as a .vlw atlas; the
+  // atlas holds the standard character set and STARTUP_CACHE_GLYPHS, which
+  // together cover every text of the visualisation, while fonts created
+  // from the TTF add glyphs lazily
+
+  PFont font(String name, int size) {
+    File file = file("font-" + size + ".vlw");
+    if (file != null && file.isFile()) {
+      try {
+        return new PFont(new ByteArrayInputStream(toBytes(mapFile(file))));
+      } catch (IOException e) {
+        discard(file, e);
+      } catch (RuntimeException e) {
+        discard(file, e);
+      }
+    }
+
+    char[] charset = Arrays.copyOf(PFont.CHARSET, PFont.CHARSET.length + STARTUP_CACHE_GLYPHS.length());
+    STARTUP_CACHE_GLYPHS.getChars(0, STARTUP_CACHE_GLYPHS.length(), charset, PFont.CHARSET.length);
+    final PFont font = createFont(name, size, true, charset);
+    write("font-" + size + ".vlw", new CacheWriter() {
+      void write(File file) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+          font.save(output);
+        } finally {
+          output.close();
+        }
+      }
+    });
+    return font;
+  }
+
+  /*----------------------------*/
+  // state id raster and outline coverage of a palette renderer, false if
+  // they are not cached for its size
+
+  boolean readRasters(PaletteRenderer renderer, int numStates) {
+    File file = file("rasters-" + renderer.viewWidth + "x" + renderer.viewHeight + ".bin");
+    if (file == null || !file.isFile())
+      return false;
+    try {
+      ByteBuffer buffer = mapFile(file);
+      if (buffer.getInt() != numStates)
+        return false;
+      int numPixels = renderer.viewWidth * renderer.viewHeight;
+      ByteBuffer pixels = ByteBuffer.wrap(inflate(buffer, 5 * numPixels));
+      int[] stateIds = new int[numPixels];
+      byte[] outlines = new byte[numPixels];
+      pixels.asIntBuffer().get(stateIds);
+      pixels.position(4 * numPixels);
+      pixels.get(outlines);
+      renderer.stateIds = stateIds;
+      renderer.outlines = outlines;
+      return true;
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return false;
+  }
+
+  void writeRasters(PaletteRenderer renderer, int numStates) {
+    int numPixels = renderer.viewWidth * renderer.viewHeight;
+    ByteBuffer pixels = ByteBuffer.allocate(5 * numPixels);
+    pixels.asIntBuffer().put(renderer.stateIds);
+    pixels.position(4 * numPixels);
+    pixels.put(renderer.outlines);
+    final byte[] compressed = deflate(pixels.array());
+    final int states = numStates;
+    write("rasters-" + renderer.viewWidth + "x" + renderer.viewHeight + ".bin", new CacheWriter() {
+      void write(File file) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+          output.writeInt(states);
+          output.write(compressed);
+        } finally {
+          output.close();
+        }
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // pixels of a view rendered by the cached renderer in a map mode, null
+  // if it is not cached; called on the render workers. The name holds all
+  // that changes the pixels beyond the keyed files: the size, the mode and
+  // the scales of the fires and the planted forests
+
+  String viewName(int viewIdx, int mode, int viewWidth, int viewHeight) {
+    return "view-" + viewWidth + "x" + viewHeight + "-" + mode + "-" + firesScale.type + "-" + plantedScale.type + "-" +
+      viewIdx + ".bin";
+  }
+
+  int[] readView(int viewIdx, int mode, int viewWidth, int viewHeight) {
+    File file = file(viewName(viewIdx, mode, viewWidth, viewHeight));
+    if (file == null || !file.isFile())
+      return null;
+    try {
+      int[] pixels = new int[viewWidth * viewHeight];
+      ByteBuffer.wrap(inflate(mapFile(file), 4 * pixels.length)).asIntBuffer().get(pixels);
+      return pixels;
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return null;
+  }
+
+  void writeView(int viewIdx, int mode, int viewWidth, int viewHeight, int[] pixels) {
+    ByteBuffer bytes = ByteBuffer.allocate(4 * pixels.length);
+    bytes.asIntBuffer().put(pixels);
+    final byte[] compressed = deflate(bytes.array());
+    write(viewName(viewIdx, mode, viewWidth, viewHeight), new CacheWriter() {
+      void write(File file) throws IOException {
+        Files.write(file.toPath(), compressed);
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // delete a cache file that cannot be read, a truncated or corrupt one
+  // would otherwise fail every following launch; it is written again
+
+  void discard(File file, Exception e) {
+    println("cannot read " + file + ", deleting it: " + e);
+    file.delete();
+  }
+
+  /*----------------------------*/
+  // write a cache file under a temporary name and rename it into place, so
+  // that a file of the cache is always complete; failures only cost the
+  // next launch its warm start
+
+  void write(String name, CacheWriter writer) {
+    File file = file(name);
+    if (file == null)
+      return;
+    File temp = new File(dir, name + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      writer.write(temp);
+      if (!temp.renameTo(file))
+        throw new IOException("cannot rename " + temp);
+    } catch (IOException e) {
+      println("cannot write " + file + ": " + e.getMessage());
+      temp.delete();
+    }
+  }
+}
+
+//////////////////////////////////
+
+abstract class CacheWriter {
+  abstract void write(File file) throws IOException;
+}
+
+/*----------------------------------------------------------------------*/
+// open the startup cache for the data files and the screen size, deleting
+// the caches of other inputs; null if it is turned off or cannot be created
+
+StartupCache openStartupCache(int screenWidth, int screenHeight) {
+  String dirName = stringArg("--startup-cache", dataPath("cache"));
+  if (dirName.equals("off"))
+    return null;
+
+  // two checksums, fast to compute on a cold JVM unlike cryptographic
+  // digests, together make a 64-bit key
+  CRC32 crc = new CRC32();
+  Adler32 adler = new Adler32();
+  try {
+    byte[] header = (STARTUP_CACHE_VERSION + " " + screenWidth + "x" + screenHeight).getBytes("UTF-8");
+    crc.update(header);
+    adler.update(header);
+    for (String input : STARTUP_CACHE_INPUTS) {
+      File file = dataFile(input);
+      if (file.isFile()) {
+        ByteBuffer content = mapFile(file);
+        crc.update(content.duplicate());
+        adler.update(content);
+      }
+      crc.update(0); // separates the files
+      adler.update(0);
+    }
+  } catch (IOException e) {
+    println("cannot hash the data files, starting without cache: " + e);
+    return null;
+  }
+  String key = String.format("%08x%08x", crc.getValue(), adler.getValue());
+
+  File root = new File(dirName);
+  File dir = new File(root, key);
+  if (!dir.isDirectory()) {
+    File[] others = root.listFiles();
+    if (others != null) {
+      for (File other : others) {
+        if (other.isDirectory() && other.getName().matches("[0-9a-f]{16}"))
+          deleteCache(other);
+      }
+    }
+    if (!dir.mkdirs()) {
+      println("cannot create " + dir + ", starting without cache");
+      return null;
+    }
+    println("startup cache " + dir + " is empty, filling it");
+  }
+  return new StartupCache(dir);
+}
+
+void deleteCache(File dir) {
+  File[] files = dir.listFiles();
+  if (files != null) {
+    for (File file : files)
+      file.delete();
+  }
+  dir.delete();
+}
+
+/*----------------------------------------------------------------------*/
+// map a whole file into memory, read only
+
+ByteBuffer mapFile(File file) throws IOException {
+  FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+  try {
+    if (channel.size() > Integer.MAX_VALUE)
+      throw new IOException(file + " is larger than 2 GB, which cannot be mapped at once");
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+  } finally {
+    channel.close(); // the mapping stays valid
+  }
+}
+
+// the remaining bytes of a buffer
+byte[] toBytes(ByteBuffer buffer) {
+  byte[] bytes = new byte[buffer.remaining()];
+  buffer.get(bytes);
+  return bytes;
+}
+
+/*----------------------------------------------------------------------*/
+// compression of rasters and views, tuned for speed as their flat colours
+// compress well anyway
+
+byte[] deflate(byte[] data) {
+  Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  deflater.setInput(data);
+  deflater.finish();
+  ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 8);
+  byte[] chunk = new byte[1 << 16];
+  while (!deflater.finished())
+    output.write(chunk, 0, deflater.deflate(chunk));
+  deflater.end();
+  return output.toByteArray();
+}
+
+// inflate the rest of a buffer into the given number of bytes
+byte[] inflate(ByteBuffer buffer, int size) throws IOException {
+  Inflater inflater = new Inflater();
+  inflater.setInput(toBytes(buffer));
+  byte[] data = new byte[size];
+  try {
+    int length = 0;
+    while (length < size && !inflater.finished()) {
+      int inflated = inflater.inflate(data, length, size - length);
+      if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+        break; // truncated
+      length += inflated;
+    }
+    if (length != size)
+      throw new IOException("inflated " + length + " of " + size + " bytes");
+    return data;
+  } catch (DataFormatException e) {
+    throw new IOException(e.getMessage());
+  } finally {
+    inflater.end();
+  }
+}
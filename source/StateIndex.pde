@@ -0,0 +1,97 @@
+import java.awt.geom.Rectangle2D;
+
+// uniform grid over the state polygons for hit-testing: every cell lists
+// the states whose bounds overlap it and candidates are refined with an
+// exact point-in-polygon test, so a query touches only a few polygons no
+// matter how many regions the map has
+
+class StateIndex {
+  Path2D[] statePaths; // indexed by state id
+  Rectangle2D[] bounds; // bounds of every state, indexed by state id
+  float minX;
+  float minY;
+  float cellSize;
+  int cols;
+  int rows;
+  int[][] cells; // state ids overlapping each cell, row by row
+
+  /*----------------------------*/
+
+  StateIndex(Path2D[] statePaths) {
+    this.statePaths = statePaths;
+    bounds = new Rectangle2D[statePaths.length];
+
+    // bounds of the whole map
+    Rectangle2D all = null;
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] == null)
+        continue;
+      bounds[stateId] = statePaths[stateId].getBounds2D();
+      if (all == null)
+        all = (Rectangle2D) bounds[stateId].clone();
+      else
+        all.add(bounds[stateId]);
+    }
+    if (all == null)
+      all = new Rectangle2D.Float();
+
+    // about four cells per state, square cells
+    minX = (float) all.getMinX();
+    minY = (float) all.getMinY();
+    float area = (float) Math.max(1, all.getWidth() * all.getHeight());
+    cellSize = max(1, sqrt(area / (4 * max(1, statePaths.length))));
+    cols = max(1, ceil((float) all.getWidth() / cellSize));
+    rows = max(1, ceil((float) all.getHeight() / cellSize));
+
+    // put every state into the cells its bounds overlap
+    int[] counts = new int[cols * rows];
+    for (int pass = 0; pass < 2; pass++) {
+      if (pass == 1) {
+        cells = new int[cols * rows][];
+        for (int i = 0; i < cells.length; i++)
+          cells[i] = new int[counts[i]];
+        Arrays.fill(counts, 0);
+      }
+      for (int stateId = 0; stateId < statePaths.length; stateId++) {
+        if (bounds[stateId] == null)
+          continue;
+        int col0 = col(bounds[stateId].getMinX());
+        int col1 = col(bounds[stateId].getMaxX());
+        int row0 = row(bounds[stateId].getMinY());
+        int row1 = row(bounds[stateId].getMaxY());
+        for (int row = row0; row <= row1; row++) {
+          for (int col = col0; col <= col1; col++) {
+            int cell = row * cols + col;
+            if (pass == 1)
+              cells[cell][counts[cell]] = stateId;
+            counts[cell]++;
+          }
+        }
+      }
+    }
+  }
+
+  /*----------------------------*/
+  // return id of the state at a point in map coordinates or -1 if none
+
+  int stateAt(float x, float y) {
+    if (x < minX || y < minY || x >= minX + cols*cellSize || y >= minY + rows*cellSize)
+      return -1;
+
+    for (int stateId : cells[row(y) * cols + col(x)]) {
+      if (bounds[stateId].contains(x, y) && statePaths[stateId].contains(x, y))
+        return stateId;
+    }
+    return -1;
+  }
+
+  /*----------------------------*/
+
+  int col(double x) {
+    return constrain((int) ((x - minX) / cellSize), 0, cols - 1);
+  }
+
+  int row(double y) {
+    return constrain((int) ((y - minY) / cellSize), 0, rows - 1);
+  }
+}
@@ -0,0 +1,86 @@
+import java.awt.geom.PathIterator;
+
+// retained GPU geometry of the states: every state is tessellated once into
+// a white fill mesh and a dark outline mesh, and the fill colour of a draw is
+// passed to the fill shader as a uniform, so restyling a state never
+// re-tessellates it or re-uploads its vertex buffers
+
+class StateMeshes {
+  PShape[] fills; // indexed by state id
+  PShape[] outlines; // indexed by state id
+  PShader fillShader;
+
+  /*----------------------------*/
+
+  StateMeshes(Path2D[] statePaths) {
+    fillShader = loadShader("statefill.frag", "statefill.vert");
+    fills = new PShape[statePaths.length];
+    outlines = new PShape[statePaths.length];
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] == null)
+        continue;
+      fills[stateId] = createMesh(statePaths[stateId], true);
+      outlines[stateId] = createMesh(statePaths[stateId], false);
+    }
+  }
+
+  /*----------------------------*/
+  // draw state filled with a colour and outlined at given position
+
+  void draw(PGraphics pg, int stateId, color fillClr, float x, float y) {
+    if (fills[stateId] == null)
+      return;
+
+    // renderers without shaders, like the one of the benchmarks, restyle
+    // the mesh itself
+    if (fillShader == null) {
+      fills[stateId].setFill(fillClr);
+      pg.shape(fills[stateId], x, y);
+      pg.shape(outlines[stateId], x, y);
+      return;
+    }
+
+    fillShader.set("fillColor", red(fillClr)/255f, green(fillClr)/255f, blue(fillClr)/255f, alpha(fillClr)/255f);
+    pg.shader(fillShader);
+    pg.shape(fills[stateId], x, y);
+    pg.resetShader();
+    pg.shape(outlines[stateId], x, y);
+  }
+
+  /*----------------------------*/
+  // create a polygon with a contour for every subpath of the path
+
+  PShape createMesh(Path2D path, boolean filled) {
+    PShape mesh = createShape();
+    mesh.beginShape();
+    if (filled) {
+      mesh.fill(255);
+      mesh.noStroke();
+    } else {
+      mesh.noFill();
+      mesh.stroke(darkGray);
+      mesh.strokeWeight(1);
+    }
+
+    float[] coords = new float[6];
+    boolean firstContour = true;
+    boolean inContour = false;
+    for (PathIterator it = path.getPathIterator(null, 0.25f); !it.isDone(); it.next()) {
+      int segment = it.currentSegment(coords);
+      if (segment == PathIterator.SEG_MOVETO) {
+        if (inContour)
+          mesh.endContour();
+        inContour = !firstContour;
+        if (inContour)
+          mesh.beginContour();
+        firstContour = false;
+      }
+      if (segment != PathIterator.SEG_CLOSE)
+        mesh.vertex(coords[0], coords[1]);
+    }
+    if (inContour)
+      mesh.endContour();
+    mesh.endShape(CLOSE);
+    return mesh;
+  }
+}
@@ -0,0 +1,184 @@
+// statistics of the loaded metrics and the scales derived from them, which
+// map values to colours and circle sizes in the views and legends alike
+
+//////////////////////////////////
+
+// count, range and a streaming quantile sketch of one metric, collected in
+// a single pass. The sketch keeps counts in logarithmic buckets, so every
+// quantile is within 1% of the true value however many values are added.
+
+class MetricStats {
+  static final float ACCURACY = 0.01; // relative error of quantiles
+  static final int MAX_BUCKETS = 1200; // buckets for values up to about 2^31
+
+  long count;
+  long zeros; // values below 1 are counted apart from the buckets
+  double sum;
+  float min = Float.POSITIVE_INFINITY;
+  float max = Float.NEGATIVE_INFINITY;
+  long[] buckets = new long[MAX_BUCKETS]; // bucket i holds values in (gamma^(i-1), gamma^i]
+  double logGamma = Math.log((1 + ACCURACY) / (1 - ACCURACY));
+
+  /*----------------------------*/
+
+  void add(float value) {
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    if (value < 1)
+      zeros++;
+    else
+      buckets[bucket(value)]++;
+  }
+
+  int bucket(float value) {
+    return Math.min(MAX_BUCKETS - 1, (int) Math.ceil(Math.log(value) / logGamma));
+  }
+
+  float mean() {
+    return count == 0 ? 0 : (float) (sum / count);
+  }
+
+  /*----------------------------*/
+  // return fraction of values below the value, counting equal values half
+
+  float rank(float value) {
+    if (count == 0)
+      return 0;
+    if (value < 1)
+      return value < 0 ? 0 : zeros * 0.5f / count;
+
+    long below = zeros;
+    int valueBucket = bucket(value);
+    for (int i = 0; i < valueBucket; i++)
+      below += buckets[i];
+    return (below + buckets[valueBucket] * 0.5f) / count;
+  }
+
+  /*----------------------------*/
+  // return the value at the given fraction of the sorted values
+
+  float quantile(float fraction) {
+    if (count == 0)
+      return 0;
+    double target = fraction * count;
+    double seen = zeros;
+    if (target <= seen)
+      return Math.max(0, min);
+    for (int i = 0; i < MAX_BUCKETS; i++) {
+      seen += buckets[i];
+      if (target <= seen) {
+        // middle of the bucket, which is within the accuracy of every value in it
+        float value = (float) (2 * Math.exp(i * logGamma) / (Math.exp(logGamma) + 1));
+        return constrain(value, min, max);
+      }
+    }
+    return max;
+  }
+
+  /*----------------------------*/
+
+  String toString() {
+    return "n=" + count + " min=" + min + " median=" + quantile(0.5f) + " p99=" + quantile(0.99f) +
+      " max=" + max;
+  }
+}
+
+//////////////////////////////////
+
+// maps values of a metric to 0..1: linearly or logarithmically between its
+// minimum and maximum, or by their quantile so that colours are spread
+// evenly over the data
+
+class Scale {
+  String type; // "linear", "log" or "quantile"
+  MetricStats stats;
+  float low; // scale position of the minimum
+  float high; // scale position of the maximum
+
+  /*----------------------------*/
+
+  Scale(String type, MetricStats stats) {
+    if (!type.equals("linear") && !type.equals("log") && !type.equals("quantile"))
+      throw new IllegalArgumentException("unknown scale " + type + ", expected linear, log or quantile");
+    this.type = type;
+    this.stats = stats;
+    low = position(stats.count == 0 ? 0 : stats.min);
+    high = position(stats.count == 0 ? 1 : stats.max);
+  }
+
+  float position(float value) {
+    if (type.equals("log"))
+      return (float) Math.log1p(Math.max(0, value));
+    if (type.equals("quantile"))
+      return stats.rank(value);
+    return value;
+  }
+
+  /*----------------------------*/
+  // return the value's position on the scale, from 0 at the minimum to 1
+  // at the maximum
+
+  float norm(float value) {
+    if (high <= low)
+      return value > low ? 1 : 0;
+    return constrain((position(value) - low) / (high - low), 0, 1);
+  }
+
+  float map(float value, float start, float stop) {
+    return start + norm(value) * (stop - start);
+  }
+
+  /*----------------------------*/
+  // return the value at a position of the scale, for legends
+
+  float value(float norm) {
+    float position = low + norm * (high - low);
+    if (type.equals("log"))
+      return (float) Math.expm1(position);
+    if (type.equals("quantile"))
+      return stats.quantile(position);
+    return position;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// create the scales of the metrics from the statistics of the store and
+// the time cube; --fires-scale= and --planted-scale= pick linear, log or
+// quantile, the yearly totals and changes follow the fires
+
+void createScales() {
+  firesScale = new Scale(stringArg("--fires-scale", "linear"), store.firesStats);
+  plantedScale = new Scale(stringArg("--planted-scale", "linear"), store.plantedStats);
+  yearlyScale = new Scale(firesScale.type, timeCube.yearStats());
+  MetricStats deltaStats = timeCube.deltaStats();
+  deltaStats.min = 0; // changes are shown from no change up
+  trendScale = new Scale(firesScale.type, deltaStats);
+  println("fires " + store.firesStats + ", " + firesScale.type + " scale");
+  println("planted forests " + store.plantedStats + ", " + plantedScale.type + " scale");
+}
+
+/*----------------------------------------------------------------------*/
+// transparency of a state for its number of fires
+
+int firesTransparency(int numOfFires) {
+  return int(firesScale.map(numOfFires, 10, 255));
+}
+
+/*----------------------------------------------------------------------*/
+// diameter of the circle for a planted forests area
+
+int plantedSize(int plantedArea) {
+  return int(plantedScale.map(plantedArea, 10, 70));
+}
+
+/*----------------------------------------------------------------------*/
+// round a value to two significant digits for legends
+
+int roundLegend(float value) {
+  if (value < 10)
+    return round(value);
+  double unit = Math.pow(10, Math.floor(Math.log10(value)) - 1);
+  return (int) (Math.round(value / unit) * unit);
+}
@@ -0,0 +1,233 @@
+// cumulative sums of fires over the month axis of every state (and of the
+// country), so the total, mean or change over any range of months is two
+// lookups instead of a scan. Drives the yearly total and trend map modes.
+
+class TimeCube {
+  FactStore store;
+  long[][] sums; // fires before each month, [stateId][viewIdx+1], country last
+  int[][] months; // months with data before each month, same layout
+
+  /*----------------------------*/
+
+  TimeCube(FactStore store) {
+    this.store = store;
+    sums = new long[store.numStates + 1][];
+    months = new int[store.numStates + 1][];
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      build(stateId);
+    buildCountry();
+  }
+
+  int countryId() {
+    return store.numStates;
+  }
+
+  /*----------------------------*/
+  // rebuild the sums of a state whose data changed
+
+  void update(int stateId) {
+    build(stateId);
+    buildCountry();
+  }
+
+  void build(int stateId) {
+    long[] stateSums = new long[store.numViews + 1];
+    int[] stateMonths = new int[store.numViews + 1];
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+      boolean hasData = store.hasData(stateId, viewIdx);
+      stateSums[viewIdx+1] = stateSums[viewIdx] + (hasData ? store.fires[stateId][viewIdx] : 0);
+      stateMonths[viewIdx+1] = stateMonths[viewIdx] + (hasData ? 1 : 0);
+    }
+    // replaced whole, so render workers see either the old or the new sums
+    sums[stateId] = stateSums;
+    months[stateId] = stateMonths;
+  }
+
+  // the country has data in a month if any state has
+  void buildCountry() {
+    long[] countrySums = new long[store.numViews + 1];
+    int[] countryMonths = new int[store.numViews + 1];
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+      long total = 0;
+      for (int stateId = 0; stateId < store.numStates; stateId++)
+        total += sums[stateId][viewIdx+1] - sums[stateId][viewIdx];
+      countrySums[viewIdx+1] = countrySums[viewIdx] + total;
+      countryMonths[viewIdx+1] = countryMonths[viewIdx] + (store.hasData(viewIdx) ? 1 : 0);
+    }
+    sums[countryId()] = countrySums;
+    months[countryId()] = countryMonths;
+  }
+
+  /*----------------------------*/
+  // fires of a state in the months [fromView, toView)
+
+  long sum(int stateId, int fromView, int toView) {
+    return sums[stateId][toView] - sums[stateId][fromView];
+  }
+
+  int months(int stateId, int fromView, int toView) {
+    return months[stateId][toView] - months[stateId][fromView];
+  }
+
+  // mean of the months with data, 0 if there are none
+  float mean(int stateId, int fromView, int toView) {
+    int n = months(stateId, fromView, toView);
+    return n == 0 ? 0 : sum(stateId, fromView, toView) / (float) n;
+  }
+
+  /*----------------------------*/
+
+  long yearTotal(int stateId, int yearIdx) {
+    return sum(stateId, yearIdx*12, yearIdx*12 + 12);
+  }
+
+  boolean hasYear(int stateId, int yearIdx) {
+    return yearIdx >= 0 && yearIdx < store.numYears && months(stateId, yearIdx*12, yearIdx*12 + 12) > 0;
+  }
+
+  // whether the year and the year before it both have data
+  boolean hasTrend(int stateId, int yearIdx) {
+    return hasYear(stateId, yearIdx) && hasYear(stateId, yearIdx - 1);
+  }
+
+  // change of the yearly total from the year before
+  long yearDelta(int stateId, int yearIdx) {
+    return yearTotal(stateId, yearIdx) - yearTotal(stateId, yearIdx - 1);
+  }
+
+  /*----------------------------*/
+  // statistics of the yearly totals and of the size of yearly changes of
+  // all states, for the scales of the map modes
+
+  MetricStats yearStats() {
+    MetricStats stats = new MetricStats();
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+        if (hasYear(stateId, yearIdx))
+          stats.add(yearTotal(stateId, yearIdx));
+      }
+    }
+    return stats;
+  }
+
+  MetricStats deltaStats() {
+    MetricStats stats = new MetricStats();
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int yearIdx = 1; yearIdx < store.numYears; yearIdx++) {
+        if (hasTrend(stateId, yearIdx))
+          stats.add(Math.abs(yearDelta(stateId, yearIdx)));
+      }
+    }
+    return stats;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// map modes: fires of the month, fires of the whole year, or the change of
+// the yearly total from the year before. Keys 1, 2 and 3 switch between
+// them, --map-mode=monthly|yearly|trend sets the first one.
+
+static final int MONTHLY_MAP = 0;
+static final int YEARLY_MAP = 1;
+static final int TREND_MAP = 2;
+String[] mapModeNames = new String[] {"monthly", "yearly", "trend"};
+
+int mapMode(String name) {
+  for (int mode = 0; mode < mapModeNames.length; mode++) {
+    if (mapModeNames[mode].equals(name))
+      return mode;
+  }
+  throw new IllegalArgumentException("unknown map mode " + name + ", expected monthly, yearly or trend");
+}
+
+/*----------------------------------------------------------------------*/
+// whether the state has a value to show in the month in the current mode
+
+boolean stateHasData(int stateId, int viewIdx) {
+  if (mapMode == YEARLY_MAP)
+    return timeCube.hasYear(stateId, viewIdx / 12);
+  if (mapMode == TREND_MAP)
+    return timeCube.hasTrend(stateId, viewIdx / 12);
+  return store.hasData(stateId, viewIdx);
+}
+
+/*----------------------------------------------------------------------*/
+// colour of the state in the month in the current mode: red by number of
+// fires, or red for more and blue for fewer fires than the year before.
+// Called by render workers, so the colour is packed here rather than with
+// color(), which goes through the sketch renderer.
+
+color stateColor(int stateId, int viewIdx) {
+  if (mapMode == TREND_MAP) {
+    long delta = timeCube.yearDelta(stateId, viewIdx / 12);
+    int alpha = int(trendScale.map(Math.abs(delta), 0, 255));
+    return delta >= 0 ? rgb(255, 255 - alpha, 255 - alpha) : rgb(255 - alpha, 255 - alpha, 255);
+  }
+  int alpha = mapMode == YEARLY_MAP ?
+    int(yearlyScale.map(timeCube.yearTotal(stateId, viewIdx / 12), 10, 255)) :
+    firesTransparency(store.fires[stateId][viewIdx]);
+  return rgb(255, 255 - alpha, 255 - alpha);
+}
+
+color rgb(int r, int g, int b) {
+  return 0xff000000 | r << 16 | g << 8 | b;
+}
+
+/*----------------------------------------------------------------------*/
+// colour and value at a position from 0 at the top to 1 at the bottom of
+// the fires legend in the current mode, the same as in the views
+
+color legendColor(float position) {
+  if (mapMode == TREND_MAP) {
+    int alpha = int(Math.abs(2*position - 1) * 255);
+    return position >= 0.5 ? rgb(255, 255 - alpha, 255 - alpha) : rgb(255 - alpha, 255 - alpha, 255);
+  }
+  int alpha = int(10 + position*245);
+  return rgb(255, 255 - alpha, 255 - alpha);
+}
+
+float legendValue(float position) {
+  if (mapMode == TREND_MAP) {
+    float change = 2*position - 1;
+    return Math.signum(change) * trendScale.value(Math.abs(change));
+  }
+  return (mapMode == YEARLY_MAP ? yearlyScale : firesScale).value(position);
+}
+
+/*----------------------------------------------------------------------*/
+// format a change like "+120 (+15%)"
+
+String formatChange(long delta, long before) {
+  String sign = delta >= 0 ? "+" : "";
+  String text = sign + delta;
+  if (before != 0)
+    text += " (" + sign + Math.round(100.0 * delta / before) + "%)";
+  return text;
+}
+
+/*----------------------------------------------------------------------*/
+// switch the map mode, rendering the views again
+
+void setMapMode(int mode) {
+  if (mode == mapMode)
+    return;
+  renderLock.writeLock().lock(); // views being rendered finish in the old mode
+  try {
+    mapMode = mode;
+  } finally {
+    renderLock.writeLock().unlock();
+  }
+  if (paletteRenderer != null) {
+    paletteRenderer.invalidate(); // recoloured, the raster stays
+    tileCache.invalidate();
+  } else {
+    createViews();
+  }
+  if (thumbnails != null)
+    thumbnails.invalidate();
+  titleLayer.invalidate();
+  legendLayer.invalidate();
+  detailsLayer.invalidate();
+  sidebarLayer.invalidate();
+  gridLayer.invalidate();
+}
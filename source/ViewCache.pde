@@ -0,0 +1,137 @@
+// bounded cache of rendered views: a view is rendered on its first request,
+// the least recently used views are evicted once the memory budget is used
+// up, and the next few months in the playback direction are prefetched.
+// Views are rendered by the workers of a ViewRenderer and uploaded here on
+// the animation thread as they arrive.
+
+class ViewCache {
+  ViewRenderer renderer;
+  LinkedHashMap<Integer, PImage> views; // uploaded views in access order
+  HashSet<Integer> pending; // views being rendered by the workers
+  int[] versions; // bumped when a view is invalidated, indexed by view index
+  int capacity; // number of views that fit into the memory budget
+  int prefetchCount; // number of months to prefetch ahead
+  int maxUploads = 4; // views uploaded per frame at most
+
+  int hits;
+  int misses;
+  int evictions;
+
+  /*----------------------------*/
+
+  ViewCache(ViewRenderer renderer, long budgetBytes, int prefetchCount) {
+    this.renderer = renderer;
+    long viewBytes = 4L * renderer.viewWidth * renderer.viewHeight;
+    capacity = (int)Math.max(1, Math.min(store.numViews, budgetBytes / viewBytes));
+    this.prefetchCount = prefetchCount;
+    views = new LinkedHashMap<Integer, PImage>(16, 0.75f, true);
+    pending = new HashSet<Integer>();
+    versions = new int[store.numViews];
+    println("view cache holds " + capacity + " of " + store.numViews + " views");
+  }
+
+  /*----------------------------*/
+  // return rendered view or null if it is not rendered yet, in which case
+  // it is requested from the workers
+
+  PImage get(int viewIdx) {
+    viewIdx = key(viewIdx);
+    PImage view = views.get(viewIdx);
+    if (view != null) {
+      hits++;
+      return view;
+    }
+    misses++;
+    request(viewIdx);
+    return null;
+  }
+
+  /*----------------------------*/
+  // request the next few views in the given direction (+1 or -1)
+
+  void prefetch(int viewIdx, int direction) {
+    for (int i = 1; i <= Math.min(prefetchCount, capacity - 1); i++)
+      request(Math.floorMod(viewIdx + i*direction, store.numViews));
+  }
+
+  /*----------------------------*/
+  // request as many views as fit into the cache, starting with the given one
+
+  void warm(int viewIdx) {
+    for (int i = 0; i < capacity; i++)
+      request(Math.floorMod(viewIdx + i, store.numViews));
+  }
+
+  void request(int viewIdx) {
+    viewIdx = key(viewIdx);
+    if (!views.containsKey(viewIdx) && pending.add(viewIdx))
+      renderer.submit(viewIdx, versions[viewIdx]);
+  }
+
+  /*----------------------------*/
+  // drop a view so that it is rendered again on its next request; a render
+  // already under way is discarded when it arrives
+
+  void invalidate(int viewIdx) {
+    viewIdx = key(viewIdx);
+    views.remove(viewIdx);
+    pending.remove(viewIdx);
+    versions[viewIdx]++;
+
+    // the trend of the next year is a change from this one
+    if (mapMode == TREND_MAP && viewIdx + 12 < store.numViews)
+      invalidate(viewIdx + 12);
+  }
+
+  /*----------------------------*/
+  // return the view index a month is cached under
+
+  int key(int viewIdx) {
+    return viewKey(viewIdx);
+  }
+
+  /*----------------------------*/
+  // copy views finished by the workers into images, reusing the image of the
+  // least recently used view when the cache is full
+
+  void upload() {
+    for (int i = 0; i < maxUploads; i++) {
+      RenderedView rendered = renderer.poll();
+      if (rendered == null)
+        return;
+      if (rendered.version != versions[rendered.viewIdx])
+        continue; // rendered from data changed since
+      pending.remove(rendered.viewIdx);
+
+      PImage view;
+      if (views.size() >= capacity) {
+        Iterator<Map.Entry<Integer, PImage>> eldest = views.entrySet().iterator();
+        view = eldest.next().getValue();
+        eldest.remove();
+        evictions++;
+      } else {
+        view = createImage(renderer.viewWidth, renderer.viewHeight, ARGB);
+      }
+
+      view.loadPixels();
+      System.arraycopy(rendered.pixels, 0, view.pixels, 0, rendered.pixels.length);
+      view.updatePixels();
+      views.put(rendered.viewIdx, view);
+    }
+  }
+
+  /*----------------------------*/
+
+  String stats() {
+    return "views: " + views.size() + "/" + capacity + ", hits: " + hits +
+      ", misses: " + misses + ", evictions: " + evictions;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// return the view a month is shown with: all months of a year show the
+// same view in the yearly modes
+
+int viewKey(int viewIdx) {
+  return mapMode == MONTHLY_MAP ? viewIdx : viewIdx - viewIdx % 12;
+}
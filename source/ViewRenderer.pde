@@ -0,0 +1,226 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// renders views with Java2D into CPU rasters on a pool of worker threads;
+// workers only read the store, the scales and the immutable state paths, so
+// they never touch the PShapes used on the animation thread
+
+// guards what rendering reads: the store, the time cube, the scales, the
+// map mode and the planted forests positions. Views are rendered under the
+// read lock and the animation thread changes the data under the write
+// lock, so no view is drawn from half updated data.
+ReentrantReadWriteLock renderLock = new ReentrantReadWriteLock();
+
+class ViewRenderer {
+  ExecutorService workers;
+  ConcurrentLinkedQueue<RenderedView> finished; // rendered views waiting for upload
+  Path2D[] statePaths; // state geometry shared by all workers, indexed by state id
+  Rectangle2D[] stateBounds; // bounds of the state paths, to skip states outside a tile
+  int viewWidth;
+  int viewHeight;
+  float viewScale;
+
+  /*----------------------------*/
+
+  ViewRenderer(Path2D[] statePaths, int viewWidth, int viewHeight, float viewScale, int numWorkers) {
+    this.statePaths = statePaths;
+    this.viewWidth = viewWidth;
+    this.viewHeight = viewHeight;
+    this.viewScale = viewScale;
+    stateBounds = new Rectangle2D[statePaths.length];
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] != null)
+        stateBounds[stateId] = statePaths[stateId].getBounds2D();
+    }
+
+    finished = new ConcurrentLinkedQueue<RenderedView>();
+    workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+      int count = 0;
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "view-renderer-" + count++);
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // render view on a worker, or read it from the startup cache; the result
+  // is picked up with poll()
+
+  void submit(final int viewIdx, final int version) {
+    final int mode = mapMode;
+    workers.execute(new Runnable() {
+      public void run() {
+        try {
+          int[] pixels = startupCache != null ? startupCache.readView(viewIdx, mode, viewWidth, viewHeight) : null;
+          if (pixels == null) {
+            BufferedImage image;
+            renderLock.readLock().lock();
+            try {
+              if (mapMode != mode)
+                return; // switched since, the view is no longer wanted
+              Stage stage = stageTimes.start("render view");
+              image = render(viewIdx);
+              stage.stop();
+            } finally {
+              renderLock.readLock().unlock();
+            }
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            if (startupCache != null)
+              startupCache.writeView(viewIdx, mode, viewWidth, viewHeight, pixels);
+          }
+          finished.add(new RenderedView(viewIdx, version, pixels));
+        } catch (RuntimeException e) {
+          println("rendering view " + viewIdx + " failed: " + e);
+        }
+      }
+    });
+  }
+
+  RenderedView poll() {
+    return finished.poll();
+  }
+
+  /*----------------------------*/
+  // draw states coloured by number of fires (or their yearly total or
+  // change in the other map modes) and circles for planted forests; safe to
+  // call from any thread
+
+  BufferedImage render(int viewIdx) {
+    return render(viewIdx, viewScale, 0, 0, viewWidth, viewHeight);
+  }
+
+  /*----------------------------*/
+  // draw the part of a view drawn at a larger scale whose top left corner is
+  // at x, y pixels, for tiles of the zoomed map; outlines keep their width
+
+  BufferedImage render(int viewIdx, float scale, int x, int y, int w, int h) {
+    renderLock.readLock().lock();
+    try {
+      return renderLocked(viewIdx, scale, x, y, w, h);
+    } finally {
+      renderLock.readLock().unlock();
+    }
+  }
+
+  BufferedImage renderLocked(int viewIdx, float scale, int x, int y, int w, int h) {
+    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, w, h);
+    g.translate(-x, -y);
+    g.scale(scale, scale);
+    g.setStroke(new BasicStroke(viewScale / scale));
+    Rectangle2D area = new Rectangle2D.Float(x / scale, y / scale, w / scale, h / scale);
+
+    // draw state shapes
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      if (stateId >= statePaths.length || statePaths[stateId] == null || !stateHasData(stateId, viewIdx))
+        continue;
+      if (!stateBounds[stateId].intersects(area))
+        continue;
+
+      g.setColor(new Color(stateColor(stateId, viewIdx)));
+      g.fill(statePaths[stateId]);
+      g.setColor(Color.WHITE);
+      g.draw(statePaths[stateId]);
+    }
+
+    // draw circles for planted forests
+    g.setColor(new Color(green));
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      int plantedArea = store.plantedArea(stateId, viewIdx);
+      if (stateHasData(stateId, viewIdx) && plantedArea != 0) {
+        int[] xy = coordinatesMap.get(store.stateCodes.get(stateId));
+        float size = plantedSize(plantedArea);
+        float xx = (xy[0]-graphicsX/scaleFactor);
+        float yy = (xy[1]-graphicsY/scaleFactor);
+        g.fill(new Ellipse2D.Float(xx - size/2, yy - size/2, size, size));
+      }
+    }
+    g.dispose();
+    return image;
+  }
+
+  /*----------------------------*/
+
+  void shutdown() {
+    workers.shutdownNow();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// convert a shape loaded from SVG (and its children) into a Java2D path
+
+Path2D statePath(PShape shape) {
+  if (shape == null)
+    return null;
+
+  Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+  for (int i = 0; i < shape.getChildCount(); i++) {
+    Path2D child = statePath(shape.getChild(i));
+    if (child != null)
+      path.append(child, false);
+  }
+
+  int vertexIdx = 0;
+  boolean newContour = true;
+  int numCodes = shape.getVertexCodeCount();
+  if (numCodes == 0)
+    numCodes = shape.getVertexCount(); // plain vertices only
+
+  for (int i = 0; i < numCodes; i++) {
+    int code = shape.getVertexCodeCount() == 0 ? PShape.VERTEX : shape.getVertexCode(i);
+    if (code == PShape.BREAK) {
+      if (!newContour)
+        path.closePath();
+      newContour = true;
+    } else if (code == PShape.BEZIER_VERTEX) {
+      PVector c1 = shape.getVertex(vertexIdx++);
+      PVector c2 = shape.getVertex(vertexIdx++);
+      PVector v = shape.getVertex(vertexIdx++);
+      path.curveTo(c1.x, c1.y, c2.x, c2.y, v.x, v.y);
+    } else if (code == PShape.QUADRATIC_VERTEX) {
+      PVector c = shape.getVertex(vertexIdx++);
+      PVector v = shape.getVertex(vertexIdx++);
+      path.quadTo(c.x, c.y, v.x, v.y);
+    } else {
+      PVector v = shape.getVertex(vertexIdx++);
+      if (newContour)
+        path.moveTo(v.x, v.y);
+      else
+        path.lineTo(v.x, v.y);
+      newContour = false;
+    }
+  }
+  if (!newContour)
+    path.closePath();
+  return path;
+}
+
+//////////////////////////////////
+
+class RenderedView {
+  int viewIdx;
+  int version; // version of the view in the cache when it was requested
+  int[] pixels; // ARGB, as in PImage
+
+  RenderedView(int viewIdx, int version, int[] pixels) {
+    this.viewIdx = viewIdx;
+    this.version = version;
+    this.pixels = pixels;
+  }
+}
@@ -0,0 +1,254 @@
+// zoom and pan over the map: the mouse wheel zooms around the pointer,
+// dragging the map pans it and key 0 shows the whole map again
+//
+//   --max-zoom=<levels>     deepest zoom level, each doubling the scale (5)
+//   --tile-cache-mb=<mb>    memory budget for rendered tiles (128)
+//
+// At zoom level L the map is drawn 2^L times larger than the view and cut
+// into square tiles, which are rendered from the state geometry on demand
+// for the shown month, kept within the memory budget and prefetched around
+// the shown part of the map. Until a tile arrives the shown part of the
+// view, scaled up, stands in for it. Only the tiles on screen are ever rendered, so
+// deep zooms on large screens never need a full frame at their scale.
+
+static final int TILE_SIZE = 256; // pixels
+
+//////////////////////////////////
+
+// the part of the map shown in the map area of the screen
+
+class Viewport {
+  int level; // 0 shows the whole map, every level doubles the scale
+  int maxLevel;
+  float centerX; // map point at the centre of the map area
+  float centerY;
+
+  Viewport(int maxLevel) {
+    this.maxLevel = maxLevel;
+    reset();
+  }
+
+  void reset() {
+    level = 0;
+    centerX = graphicsWidth / scaleFactor / 2;
+    centerY = graphicsHeight / scaleFactor / 2;
+  }
+
+  /*----------------------------*/
+  // screen pixels per map unit
+
+  float scale() {
+    return scaleFactor * (1 << level);
+  }
+
+  float mapX(float screenX) {
+    return centerX + (screenX - graphicsX - graphicsWidth/2f) / scale();
+  }
+
+  float mapY(float screenY) {
+    return centerY + (screenY - graphicsY - graphicsHeight/2f) / scale();
+  }
+
+  float screenX(float mapX) {
+    return graphicsX + graphicsWidth/2f + (mapX - centerX) * scale();
+  }
+
+  float screenY(float mapY) {
+    return graphicsY + graphicsHeight/2f + (mapY - centerY) * scale();
+  }
+
+  /*----------------------------*/
+  // zoom in (positive levels) or out, keeping the map point under the
+  // screen point where it is
+
+  void zoom(int levels, float screenX, float screenY) {
+    float x = mapX(screenX);
+    float y = mapY(screenY);
+    level = constrain(level + levels, 0, maxLevel);
+    if (level == 0) {
+      reset();
+      return;
+    }
+    centerX = x - (screenX - graphicsX - graphicsWidth/2f) / scale();
+    centerY = y - (screenY - graphicsY - graphicsHeight/2f) / scale();
+    keepOnMap();
+  }
+
+  // move the map by screen pixels
+  void pan(float dx, float dy) {
+    if (level == 0)
+      return;
+    centerX -= dx / scale();
+    centerY -= dy / scale();
+    keepOnMap();
+  }
+
+  void keepOnMap() {
+    centerX = constrain(centerX, 0, graphicsWidth / scaleFactor);
+    centerY = constrain(centerY, 0, graphicsHeight / scaleFactor);
+  }
+}
+
+//////////////////////////////////
+
+// rendered tiles of the zoomed map in access order, rendered by the workers
+// of a ViewRenderer and uploaded on the animation thread as they arrive
+
+class TileCache {
+  ViewRenderer renderer;
+  LinkedHashMap<Long, PImage> tiles; // uploaded tiles in access order
+  HashSet<Long> pending; // tiles being rendered by the workers
+  ConcurrentLinkedQueue<RenderedTile> finished; // rendered tiles waiting for upload
+  int version; // bumped when all tiles are invalidated
+  int capacity; // number of tiles that fit into the memory budget
+  int maxUploads = 8; // tiles uploaded per frame at most
+
+  /*----------------------------*/
+
+  TileCache(ViewRenderer renderer, long budgetBytes) {
+    this.renderer = renderer;
+    capacity = (int) Math.max(16, budgetBytes / (4L * TILE_SIZE * TILE_SIZE));
+    tiles = new LinkedHashMap<Long, PImage>(16, 0.75f, true);
+    pending = new HashSet<Long>();
+    finished = new ConcurrentLinkedQueue<RenderedTile>();
+  }
+
+  long key(int level, int viewIdx, int tileX, int tileY) {
+    return (long) level << 56 | (long) viewKey(viewIdx) << 40 | (long) tileX << 20 | tileY;
+  }
+
+  /*----------------------------*/
+  // return the tile or null if it is not rendered yet, in which case it is
+  // requested from the workers
+
+  PImage get(int level, int viewIdx, int tileX, int tileY) {
+    PImage tile = tiles.get(key(level, viewIdx, tileX, tileY));
+    if (tile == null)
+      request(level, viewIdx, tileX, tileY);
+    return tile;
+  }
+
+  void request(final int level, final int viewIdx, final int tileX, final int tileY) {
+    final long key = key(level, viewIdx, tileX, tileY);
+    if (tiles.containsKey(key) || !pending.add(key))
+      return;
+    final int requested = version;
+    renderer.workers.execute(new Runnable() {
+      public void run() {
+        try {
+          BufferedImage image = renderer.render(viewIdx, renderer.viewScale * (1 << level),
+            tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+          int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+          finished.add(new RenderedTile(key, requested, pixels));
+        } catch (RuntimeException e) {
+          println("rendering tile " + tileX + "," + tileY + " of view " + viewIdx + " failed: " + e);
+        }
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // drop all tiles, after the data or the map mode changed; renders under
+  // way are discarded when they arrive
+
+  void invalidate() {
+    tiles.clear();
+    pending.clear();
+    version++;
+  }
+
+  /*----------------------------*/
+  // copy tiles finished by the workers into images, reusing the image of
+  // the least recently used tile when the cache is full
+
+  void upload() {
+    for (int i = 0; i < maxUploads; i++) {
+      RenderedTile rendered = finished.poll();
+      if (rendered == null)
+        return;
+      if (rendered.version != version)
+        continue;
+      pending.remove(rendered.key);
+
+      PImage tile;
+      if (tiles.size() >= capacity) {
+        Iterator<Map.Entry<Long, PImage>> eldest = tiles.entrySet().iterator();
+        tile = eldest.next().getValue();
+        eldest.remove();
+      } else {
+        tile = createImage(TILE_SIZE, TILE_SIZE, ARGB);
+      }
+
+      tile.loadPixels();
+      System.arraycopy(rendered.pixels, 0, tile.pixels, 0, rendered.pixels.length);
+      tile.updatePixels();
+      tiles.put(rendered.key, tile);
+    }
+  }
+}
+
+//////////////////////////////////
+
+class RenderedTile {
+  long key;
+  int version; // version of the cache when the tile was requested
+  int[] pixels; // ARGB, as in PImage
+
+  RenderedTile(long key, int version, int[] pixels) {
+    this.key = key;
+    this.version = version;
+    this.pixels = pixels;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// draw the shown part of the zoomed map from its tiles, and request the
+// tiles around it and, while playing, of the next month
+
+void drawZoomedMap() {
+  int level = viewport.level;
+  int mapWidth = graphicsWidth << level; // size of the whole map at this level
+  int mapHeight = graphicsHeight << level;
+  int left = round(viewport.centerX * viewport.scale() - graphicsWidth/2f); // shown part, in map pixels
+  int top = round(viewport.centerY * viewport.scale() - graphicsHeight/2f);
+
+  int firstX = max(0, floor(left / (float) TILE_SIZE));
+  int lastX = min((mapWidth - 1) / TILE_SIZE, (left + graphicsWidth - 1) / TILE_SIZE);
+  int firstY = max(0, floor(top / (float) TILE_SIZE));
+  int lastY = min((mapHeight - 1) / TILE_SIZE, (top + graphicsHeight - 1) / TILE_SIZE);
+
+  clip(graphicsX, graphicsY, graphicsWidth, graphicsHeight);
+  if (shownView != null) {
+    // only the view pixels under the map area, whole ones
+    int u1 = max(0, floor(left / (float) (1 << level)));
+    int v1 = max(0, floor(top / (float) (1 << level)));
+    int u2 = min(shownView.width, ceil((left + graphicsWidth) / (float) (1 << level)));
+    int v2 = min(shownView.height, ceil((top + graphicsHeight) / (float) (1 << level)));
+    if (u2 > u1 && v2 > v1)
+      image(shownView, graphicsX + (u1 << level) - left, graphicsY + (v1 << level) - top,
+        (u2 - u1) << level, (v2 - v1) << level, u1, v1, u2, v2);
+  }
+  for (int tileY = firstY; tileY <= lastY; tileY++) {
+    for (int tileX = firstX; tileX <= lastX; tileX++) {
+      PImage tile = tileCache.get(level, thisViewIdx, tileX, tileY);
+      if (tile != null)
+        image(tile, graphicsX + tileX*TILE_SIZE - left, graphicsY + tileY*TILE_SIZE - top);
+    }
+  }
+  noClip();
+
+  // a ring of tiles around the shown ones, for panning
+  for (int tileY = firstY - 1; tileY <= lastY + 1; tileY++) {
+    for (int tileX = firstX - 1; tileX <= lastX + 1; tileX++) {
+      boolean shown = tileX >= firstX && tileX <= lastX && tileY >= firstY && tileY <= lastY;
+      if (!shown && tileX >= 0 && tileY >= 0 && tileX*TILE_SIZE < mapWidth && tileY*TILE_SIZE < mapHeight)
+        tileCache.request(level, thisViewIdx, tileX, tileY);
+    }
+  }
+  if (playback.playing) {
+    for (int tileY = firstY; tileY <= lastY; tileY++) {
+      for (int tileX = firstX; tileX <= lastX; tileX++)
+        tileCache.request(level, playback.nextView(), tileX, tileY);
+    }
+  }
+}
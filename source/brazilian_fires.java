@@ -4,6 +4,49 @@ import processing.event.*;
 import processing.opengl.*; 
 
 import java.util.*; 
+import java.util.concurrent.*; 
+import java.nio.charset.StandardCharsets; 
+import java.util.concurrent.Callable; 
+import java.util.concurrent.atomic.*; 
+import javax.imageio.ImageIO; 
+import processing.awt.PGraphicsJava2D; 
+import java.io.*; 
+import java.nio.*; 
+import java.nio.channels.FileChannel; 
+import java.nio.file.attribute.BasicFileAttributes; 
+import java.util.concurrent.ConcurrentLinkedQueue; 
+import java.util.concurrent.ForkJoinPool; 
+import java.util.concurrent.ForkJoinTask; 
+import java.util.concurrent.RecursiveTask; 
+import java.awt.image.DataBufferByte; 
+import java.nio.file.StandardCopyOption; 
+import java.nio.file.StandardOpenOption; 
+import com.sun.net.httpserver.HttpExchange; 
+import com.sun.net.httpserver.HttpHandler; 
+import com.sun.net.httpserver.HttpServer; 
+import java.io.ByteArrayOutputStream; 
+import java.net.InetSocketAddress; 
+import java.net.URLDecoder; 
+import java.util.zip.CRC32; 
+import java.lang.management.GarbageCollectorMXBean; 
+import java.lang.management.ManagementFactory; 
+import java.lang.reflect.Method; 
+import java.awt.geom.PathIterator; 
+import java.nio.file.Files; 
+import java.util.zip.Adler32; 
+import java.util.zip.DataFormatException; 
+import java.util.zip.Deflater; 
+import java.util.zip.Inflater; 
+import java.awt.geom.Rectangle2D; 
+import java.awt.BasicStroke; 
+import java.awt.Color; 
+import java.awt.Graphics2D; 
+import java.awt.RenderingHints; 
+import java.awt.geom.Ellipse2D; 
+import java.awt.geom.Path2D; 
+import java.awt.image.BufferedImage; 
+import java.awt.image.DataBufferInt; 
+import java.util.concurrent.locks.ReentrantReadWriteLock; 
 
 import java.util.HashMap; 
 import java.util.ArrayList; 
@@ -18,24 +61,46 @@ public class brazilian_fires extends PApplet {
 
 
 
-HashMap<String, PShape> shapeStatesMap; // states as PShapes
-HashMap<String, ArrayList<StateEntry>> dataEntriesMap; // my data structure
-HashMap<String, Integer> statesColoursMap; // states colours for id
+FactStore store; // my data structure
+Path2D[] statePaths; // states geometry in map coordinates, indexed by state id
+StateMeshes stateMeshes; // states tessellated for highlighting on the GPU
+StateIndex stateIndex; // finds the state under the mouse
 HashMap<String, int[]> coordinatesMap; // states coordinates
-PShape psBrazil; // map of Brazil (http://www.amcharts.com/svg-maps/)
-PGraphics idView; // a hidden view that enables state identification
-PGraphics[] Views; // other visualisation views
-
-int startMonth = 1; // start month from data
-int startYear = 2006; // start year from data
-int endYear = 2016; // end year from data
-int midYear = startYear + (endYear-startYear) / 2; // calculated mid year
-int numYears = endYear - startYear + 1; // number of years
-
-int thisMonth = 1; // month to display
-int thisYear = 2006; // year to display
+Scale firesScale; // maps number of fires to transparency
+Scale plantedScale; // maps planted forests area to circle size
+Scale yearlyScale; // maps yearly number of fires to transparency
+Scale trendScale; // maps change of the yearly number of fires to colour
+TimeCube timeCube; // sums of fires over any range of months
+int mapMode = MONTHLY_MAP; // what the map shows (--map-mode=)
+Correlations correlations; // fires vs planted forests, per state
+Rankings rankings; // states ranked by fires and planted forests area
+int sidebarTop = 10; // states in the ranked sidebar (--top=)
+boolean showSidebar = true; // draw the ranked sidebar, key s toggles it
+ViewRenderer viewRenderer; // renders views on worker threads
+ViewCache viewCache; // other visualisation views, rendered on demand
+PaletteRenderer paletteRenderer; // recolours views from a raster of state ids instead
+boolean paletteRendering = true; // recolour views rather than cache rendered ones (--renderer=)
+PImage shownView; // last displayed view, kept until the next one is rendered
+int renderThreads; // number of view rendering workers (--render-threads=)
+int viewCacheMB = 256; // memory budget for rendered views (--view-cache-mb=)
+int prefetchMonths = 3; // months rendered ahead during playback
+Playback playback; // advances the months while playing
+Viewport viewport; // zoomed and panned part of the map
+TileCache tileCache; // tiles of the zoomed map, rendered on demand
+int maxZoom = 5; // deepest zoom level (--max-zoom=)
+int tileCacheMB = 128; // memory budget for rendered tiles (--tile-cache-mb=)
+boolean panning; // the map is being dragged
+Grid grid = new Grid(); // months side by side instead of the map (--grid=), key g switches
+ThumbnailPyramid thumbnails; // thumbnails of the grid, built on first use
+FiresWatcher firesWatcher; // picks up changes of the fire data while running
+StageTimes stageTimes = new StageTimes(); // time spent in each stage of loading and drawing
+boolean showStageTimes; // draw the stage times over the visualisation (--hud)
+StartupCache startupCache; // data, geometry, glyphs and views of the last launch (--startup-cache=)
+
+int thisMonth; // month to display, the first month with data at start
+int thisYear; // year to display
 int thisViewIdx; // view index to display
-ArrayList<StateEntry> thisStateEntries; // state entries to display
+StateEntry[] thisStateEntries; // state entries to display, one per state
 
 String[] nameOfMonths = new String[] {"January", "February", "March", "April", "May", "June", 
   "July", "August", "September", "October", "November", "December"};
@@ -50,218 +115,444 @@ float scaleFactor;
 int darkGray = color(127);
 int green = color(182, 239, 148);
 int lightPink = color(255, 205, 205);
-int lowestAlphaRed = color(255, 245, 245);
-int highestAlphaRed = color(255, 0, 0);
 
 PFont font;
 Timeline tlMonths;
 Timeline tlYears;
 Button btn;
 
+// cached layers of the screen, redrawn only when their content changes
+Layer titleLayer;
+Layer legendLayer;
+Layer controlsLayer;
+Layer detailsLayer;
+Layer sidebarLayer;
+Layer gridLayer;
+int layoutWidth; // screen size the layout was created for
+int layoutHeight;
+int drawnViewIdx = -1; // view index the layers were drawn for
+int drawnStateId = -1; // highlighted state the details layer was drawn for
+int drawnCell = -1; // grid cell and state under the mouse the grid layer was drawn for
+int drawnCellState = -1;
+
 /*----------------------------------------------------------------------*/
 
 public void setup() {
+  Stage stage = stageTimes.start("setup");
   background(255);
   
   
 
-  // set graphics position constants
-  graphicsWidth = width/3;
-  graphicsHeight = height*3/5;
-  graphicsX = width/3;
-  graphicsY = height/7-15;
-  scaleFactor = (float)graphicsHeight/(float)svgMapHeight;
+  viewCacheMB = intArg("--view-cache-mb", viewCacheMB);
+  renderThreads = intArg("--render-threads", Runtime.getRuntime().availableProcessors());
+  mapMode = mapMode(stringArg("--map-mode", "monthly"));
+  showStageTimes = hasArg("--hud");
+  String renderer = stringArg("--renderer", "palette");
+  if (!renderer.equals("palette") && !renderer.equals("cached"))
+    throw new IllegalArgumentException("unknown renderer " + renderer + ", expected palette or cached");
+  paletteRendering = renderer.equals("palette");
+  sidebarTop = intArg("--top", sidebarTop);
+  maxZoom = intArg("--max-zoom", maxZoom);
+  tileCacheMB = intArg("--tile-cache-mb", tileCacheMB);
+  grid.layout = gridLayout(stringArg("--grid", "off"));
+  playback = new Playback(PApplet.parseFloat(stringArg("--months-per-second", "1.7")), hasArg("--catch-up"));
+
+  Stage cacheStage = stageTimes.start("startup cache");
+  startupCache = openStartupCache(width, height);
+  cacheStage.stop();
 
   // load and set font
-  font = createFont("SEGOEUI.TTF", 34);
+  font = startupCache != null ? startupCache.font("SEGOEUI.TTF", 34) : createFont("SEGOEUI.TTF", 34);
   textFont(font);
 
-  // create GUI elements
-  btn = new Button(width/2, height-140);
-  tlMonths = new Timeline(width/2+28, height-102, 'm');
-  tlYears = new Timeline(width/2, height-50, 'y');
+  // watch the fire data from the state it is loaded in
+  int watchInterval = intArg("--watch-interval", 1000);
+  if (watchInterval > 0)
+    firesWatcher = new FiresWatcher(dataFile("fires_data.csv"), watchInterval);
 
   loadData();
+  if (firesWatcher != null)
+    firesWatcher.start();
 
-  // create views
-  createIdView();
+  // create GUI elements, layers and views
+  createLayout();
   createViews();
+  stage.stop();
 }
 
 /*----------------------------------------------------------------------*/
 
 public void draw() {
-  background(255);
+  stageTimes.frame();
+  Stage frame = stageTimes.start("draw");
+  if (width != layoutWidth || height != layoutHeight) {
+    createLayout();
+    createViews();
+  }
+  Stage stage = stageTimes.start("fire updates");
+  applyFireUpdates();
+  stage.stop();
 
-  btn.rollover(mouseX, mouseY);
+  boolean rolledOver = btn.rollover(mouseX, mouseY);
+  rolledOver |= tlMonths.rollover(mouseX, mouseY);
+  rolledOver |= tlYears.rollover(mouseX, mouseY);
   btn.applyButton();
-  tlMonths.rollover(mouseX, mouseY);
-  tlYears.rollover(mouseX, mouseY);
-
-  image(Views[thisViewIdx], graphicsX, graphicsY);
+  playback.update();
+
+  // invalidate layers whose content changed in this frame
+  int stateId = stateUnderMouse();
+  int cell = grid.layout != GRID_OFF ? grid.cellAt(mouseX, mouseY) : -1;
+  int cellState = cell >= 0 ? grid.stateAt(cell, mouseX, mouseY) : -1;
+  if (thisViewIdx != drawnViewIdx) {
+    titleLayer.invalidate();
+    sidebarLayer.invalidate();
+    controlsLayer.invalidate();
+    detailsLayer.invalidate();
+    gridLayer.invalidate();
+    drawnViewIdx = thisViewIdx;
+  }
+  if (grid.layout != GRID_OFF && grid.update(gridLayer.x + 20, gridLayer.y, gridLayer.pg.width - 40, gridLayer.pg.height - 24))
+    gridLayer.invalidate();
+  if (cell != drawnCell || cellState != drawnCellState) {
+    gridLayer.invalidate();
+    drawnCell = cell;
+    drawnCellState = cellState;
+  }
+  if (stateId != drawnStateId) {
+    detailsLayer.invalidate();
+    sidebarLayer.invalidate();
+    drawnStateId = stateId;
+  }
+  if (rolledOver)
+    controlsLayer.invalidate();
+
+  // redraw invalidated layers
+  if (titleLayer.begin()) {
+    stage = stageTimes.start("title");
+    displayTitle(titleLayer.pg, thisMonth, thisYear);
+    titleLayer.end();
+    stage.stop();
+  }
+  if (legendLayer.begin()) {
+    stage = stageTimes.start("legends");
+    displayLegends(legendLayer.pg, width-200, height/21);
+    legendLayer.end();
+    stage.stop();
+  }
+  if (controlsLayer.begin()) {
+    stage = stageTimes.start("controls");
+    btn.display(controlsLayer.pg);
+    tlMonths.display(controlsLayer.pg);
+    tlYears.display(controlsLayer.pg);
+    controlsLayer.end();
+    stage.stop();
+  }
+  if (grid.layout == GRID_OFF && detailsLayer.begin()) {
+    stage = stageTimes.start("details");
+    showDetails(detailsLayer.pg, stateId);
+    detailsLayer.end();
+    stage.stop();
+  }
+  if (grid.layout == GRID_OFF && showSidebar && sidebarLayer.begin()) {
+    stage = stageTimes.start("sidebar");
+    displaySidebar(sidebarLayer.pg, 40, height/21, stateId);
+    sidebarLayer.end();
+    stage.stop();
+  }
+  if (grid.layout != GRID_OFF && gridLayer.begin()) {
+    stage = stageTimes.start("grid labels");
+    displayGridLabels(gridLayer.pg, cell, cellState);
+    gridLayer.end();
+    stage.stop();
+  }
 
-  displayTitle();
-  displayLegends(width-200, height/21);
-  btn.display();
-  tlMonths.display();
-  tlYears.display();
+  // compose the frame
+  stage = stageTimes.start("view upload");
+  background(255);
+  if (grid.layout != GRID_OFF) {
+    // the grid takes the place of the map, which is not composed meanwhile
+  } else if (paletteRenderer != null) {
+    // while playing, blend towards the next month
+    shownView = paletteRenderer.get(thisViewIdx, playback.nextView(), playback.progress());
+  } else {
+    viewCache.upload();
+    PImage view = viewCache.get(thisViewIdx);
+    if (view != null)
+      shownView = view;
+  }
+  tileCache.upload();
+  stage.stop();
+  stage = stageTimes.start("compose");
+  if (grid.layout != GRID_OFF)
+    drawGrid(cellState);
+  else if (viewport.level > 0)
+    drawZoomedMap();
+  else if (shownView != null)
+    image(shownView, graphicsX, graphicsY);
+  if (playback.playing && viewCache != null)
+    viewCache.prefetch(thisViewIdx, playback.direction);
+
+  titleLayer.display();
+  legendLayer.display();
+  controlsLayer.display();
+  if (grid.layout != GRID_OFF) {
+    gridLayer.display();
+  } else {
+    detailsLayer.display();
+    if (showSidebar)
+      sidebarLayer.display();
+  }
+  stage.stop();
+  frame.stop();
 
-  showDetails();
+  if (showStageTimes)
+    displayStageTimes();
 }
 
 public void mousePressed() {
+  panning = overMap();
+  // clicking a month in the grid shows it on the map
+  int cell = grid.layout != GRID_OFF ? grid.cellAt(mouseX, mouseY) : -1;
+  if (cell >= 0 && store.hasData(grid.views[cell])) {
+    int[] my = getMonthYear(grid.views[cell]);
+    playback.pause();
+    selectView(my[0], my[1]);
+    setGridLayout(GRID_OFF);
+  }
   btn.press(mouseX, mouseY);
   tlMonths.press(mouseX, mouseY);
   tlYears.press(mouseX, mouseY);
+  controlsLayer.invalidate();
 }
 
 public void mouseReleased() {
+  panning = false;
   btn.noPress();
   tlMonths.noPress();
   tlYears.noPress();
+  controlsLayer.invalidate();
 }
 
-/*----------------------------------------------------------------------*/
-// load all data
-
-public void loadData() {
-  dataEntriesMap = loadFiresDataFromCSV("fires_data.csv");
-  loadPlantData("planted_forests_data.csv");
-  coordinatesMap = loadCoordinatesFromCSV("positions.csv");
+public void mouseDragged() {
+  if (panning) {
+    viewport.pan(mouseX - pmouseX, mouseY - pmouseY);
+    detailsLayer.invalidate();
+  }
+}
 
-  // load map data and save states separately
-  psBrazil = loadShape("brazilLow.svg");
-  shapeStatesMap = new HashMap<String, PShape>(); 
-  statesColoursMap = new HashMap<String, Integer>();
-  int blue = 255;
-  for (String stateCode : dataEntriesMap.keySet()) {
-    PShape child = psBrazil.getChild(stateCode);
-    shapeStatesMap.put(stateCode, child);
-    statesColoursMap.put(stateCode, color(0, 0, blue));
-    blue--;
+// the wheel zooms the map around the mouse
+public void mouseWheel(MouseEvent event) {
+  if (overMap()) {
+    viewport.zoom(-event.getCount(), mouseX, mouseY);
+    detailsLayer.invalidate();
   }
+}
 
-  // set initial view index
-  thisViewIdx = getViewIdx(thisMonth, thisYear);
+// keys 1, 2 and 3 show monthly fires, yearly totals or the trend, key h
+// shows the stage times, key s the ranked sidebar, keys r, + and - reverse
+// and change playback, key 0 shows the whole map and key g the grids
+public void keyPressed() {
+  if (key >= '1' && key < '1' + mapModeNames.length)
+    setMapMode(key - '1');
+  if (key == 'h')
+    showStageTimes = !showStageTimes;
+  if (key == 's')
+    showSidebar = !showSidebar;
+  if (key == 'g')
+    setGridLayout((grid.layout + 1) % gridNames.length);
+  if (key == 'r')
+    playback.reverse();
+  if (key == '+' || key == '=')
+    playback.setSpeed(playback.monthsPerSecond * 1.5f);
+  if (key == '-')
+    playback.setSpeed(playback.monthsPerSecond / 1.5f);
+  if (key == '0') {
+    viewport.reset();
+    detailsLayer.invalidate();
+  }
+}
 
-  // set initial state entries to display
-  thisStateEntries = getStateEntries(thisMonth, thisYear);
+// write the stage times before leaving when --stage-times= is given, and
+// report how well the view cache did
+public void exit() {
+  if (viewCache != null)
+    println(viewCache.stats());
+  String fileName = stringArg("--stage-times", null);
+  if (fileName != null)
+    writeStageTimes(fileName);
+  super.exit();
 }
 
 /*----------------------------------------------------------------------*/
-// create view that enables state identification on mouse hover
+// create GUI elements and screen layers for the current screen size
 
-public void createIdView() {
-  idView = createGraphics(graphicsWidth, graphicsHeight);
-  idView.beginDraw();
-  idView.noStroke();
-  idView.background(255);
-  idView.push();
-  idView.scale(scaleFactor);
-  for (HashMap.Entry<String, Integer> entry : statesColoursMap.entrySet()) {
-    String stateCode = entry.getKey();
-    int clr = entry.getValue();
+public void createLayout() {
+  setLayout(width, height);
+  viewport = new Viewport(maxZoom);
+  layoutWidth = width;
+  layoutHeight = height;
 
-    PShape shapeState = shapeStatesMap.get(stateCode);
-    shapeState.setFill(clr);
-
-    idView.shape(shapeState);
-  }
-  idView.pop();
-  idView.endDraw();
+  btn = new Button(width/2, height-140);
+  tlMonths = new Timeline(width/2+28, height-102, 'm', width/2);
+  tlYears = new Timeline(width/2, height-50, 'y', width/2);
+
+  // the map and the details drawn over it are the only overlapping layers
+  titleLayer = new Layer(0, 0, width, height/11+15, true);
+  legendLayer = new Layer(width-240, 0, 240, height/21+440, true);
+  controlsLayer = new Layer(0, height-165, width, 165, true);
+  sidebarLayer = new Layer(20, height/21 - 20, 360, 40 + sidebarTop*22, true);
+  int detailsBottom = height*5/7 + PApplet.parseInt(125*scaleFactor);
+  detailsLayer = new Layer(graphicsX-40, graphicsY, graphicsWidth+80, detailsBottom-graphicsY, false);
+  gridLayer = new Layer(0, height/11+15, width-240, height-165 - (height/11+15), false);
+  drawnViewIdx = -1;
 }
 
 /*----------------------------------------------------------------------*/
-// create visualisation views for each month and year
+// set graphics position constants for a screen of given size
 
-public void createViews() {
-  // create PGraphics for each view (each month in period 2006-2016)
-  Views = new PGraphics[12*11];
+public void setLayout(int screenWidth, int screenHeight) {
+  graphicsWidth = screenWidth/3;
+  graphicsHeight = screenHeight*3/5;
+  graphicsX = screenWidth/3;
+  graphicsY = screenHeight/7-15;
+  scaleFactor = (float)graphicsHeight/(float)svgMapHeight;
+}
 
-  for (int i = 0; i < Views.length; i++) {
-    Views[i] = createGraphics(graphicsWidth, graphicsHeight);
-  }
+/*----------------------------------------------------------------------*/
+// load all data
 
-  // prepare PGraphics for each view
-  int viewIdx = 0;
-  for (int year = startYear; year <= endYear; year++) {
-    for (int month = 1; month <= 12; month++) {
-      Views[viewIdx].beginDraw();
-      Views[viewIdx].push();
-      Views[viewIdx].scale(scaleFactor);
-      Views[viewIdx].noStroke();
-      Views[viewIdx].background(255);  
+public void loadData() {
+  Stage stage = stageTimes.start("load data");
+  loadDataTables();
 
-      ArrayList<StateEntry> stateEntries = getStateEntries(month, year);
+  // load map data and save states separately
+  loadStatePaths();
+  stateIndex = new StateIndex(statePaths);
+  stateMeshes = new StateMeshes(statePaths);
+
+  correlations = new Correlations(store, maxLagArg());
+  correlations.computeAll();
+  rankings = new Rankings(store, timeCube);
+
+  // set initial view index and state entries to display
+  int[] my = getMonthYear(store.nextView(-1, 1));
+  thisStateEntries = getStateEntries(my[0], my[1]);
+  selectView(my[0], my[1]);
+  stage.stop();
+}
 
-      // draw state shapes
-      for (StateEntry se : stateEntries) {
-        PShape shapeState = shapeStatesMap.get(se.stateCode);
-        int clr = color(255, (255 - se.transparency), (255 - se.transparency));
+/*----------------------------------------------------------------------*/
+// load fires, planted forests and coordinates data (no graphics needed)
+
+public void loadDataTables() {
+  File factFile = currentFactFile();
+  if (factFile != null) {
+    try {
+      store = readFactFile(factFile);
+    } catch (IOException e) {
+      println("cannot read " + factFile + ", loading CSV files: " + e.getMessage());
+      factFile = null;
+    }
+  }
+  FactStore cached = factFile == null && startupCache != null ? startupCache.readFacts() : null;
+  if (cached != null) {
+    store = cached;
+  } else if (factFile == null) {
+    store = loadFiresDataFromCSV("fires_data.csv");
+    loadPlantData("planted_forests_data.csv");
+    if (startupCache != null)
+      startupCache.writeFacts(store);
+  }
+  if (store.numViews == 0)
+    throw new RuntimeException("no fire data in fires_data.csv");
+  println("loaded " + store.numStates + " states, " + store.startYear + "-" + store.endYear());
+  store.computeStats();
+  timeCube = new TimeCube(store);
+  createScales();
+  coordinatesMap = loadCoordinatesFromCSV("positions.csv");
+}
 
-        shapeState.setFill(clr);
-        shapeState.setStroke(true);
-        shapeState.setStroke(color(255));
-        shapeState.setStrokeWeight(1);
+/*----------------------------------------------------------------------*/
+// load states geometry from the map of Brazil
+// (http://www.amcharts.com/svg-maps/) as immutable Java2D paths, which can
+// be shared by worker threads, the hit-testing index and the GPU meshes
+
+public void loadStatePaths() {
+  statePaths = startupCache != null ? startupCache.readStatePaths(store.stateCodes) : null;
+  if (statePaths != null)
+    return;
+
+  PShape svg = new PShapeSVG(loadXML("brazilLow.svg"));
+  statePaths = new Path2D[store.numStates];
+  for (int stateId = 0; stateId < store.numStates; stateId++)
+    statePaths[stateId] = statePath(svg.getChild(store.stateCodes.get(stateId)));
+  if (startupCache != null)
+    startupCache.writeStatePaths(store.stateCodes, statePaths);
+}
 
-        Views[viewIdx].shape(shapeState);
-      }
+/*----------------------------------------------------------------------*/
+// create cache of visualisation views for each month and year; views are
+// rendered in parallel on worker threads and shown as they arrive
 
-      Views[viewIdx].noStroke();
-      // draw circles for planted forests
-      for (StateEntry se : stateEntries) {
-        if (se.plantedArea != 0) {
-          int[] xy = coordinatesMap.get(se.stateCode);
-          int size = PApplet.parseInt(map(se.plantedArea, 13901, 1536310, 10, 70));
-          Views[viewIdx].fill(green);
-          float xx = (xy[0]-graphicsX/scaleFactor);
-          float yy = (xy[1]-graphicsY/scaleFactor);
-          Views[viewIdx].ellipse(xx, yy, size, size);
-          if (year == startYear && month == startMonth)
-            println("drawing " + se.stateCode + " ellipse at: " + xx + " " + yy);
-        }
-      }
-      Views[viewIdx].pop();
-      Views[viewIdx].endDraw();
-      viewIdx++;
-    }
+public void createViews() {
+  Stage stage = stageTimes.start("create views");
+  if (viewRenderer != null)
+    viewRenderer.shutdown();
+  if (tileCache != null)
+    tileCache.renderer.shutdown();
+  shownView = null;
+  thumbnails = null;
+  tileCache = new TileCache(new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, renderThreads),
+    tileCacheMB * 1024L * 1024L);
+  if (paletteRendering) {
+    viewRenderer = null;
+    viewCache = null;
+    paletteRenderer = new PaletteRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor);
+  } else {
+    paletteRenderer = null;
+    viewRenderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, renderThreads);
+    viewCache = new ViewCache(viewRenderer, viewCacheMB * 1024L * 1024L, prefetchMonths);
+    viewCache.warm(thisViewIdx);
   }
+  stage.stop();
 }
 
 /*----------------------------------------------------------------------*/
-// return state entries for corresponding month and year
+// display view for corresponding month and year: only re-points the
+// existing state entries, so it is cheap enough for every timeline click
+// and playback tick
+
+public void selectView(int month, int year) {
+  thisMonth = month;
+  thisYear = year;
+  thisViewIdx = getViewIdx(month, year);
+  for (StateEntry se : thisStateEntries)
+    se.viewIdx = thisViewIdx;
+}
 
-public ArrayList<StateEntry> getStateEntries(int month, int year) {
-  ArrayList<StateEntry> stateEntries = new ArrayList<StateEntry>();
+/*----------------------------------------------------------------------*/
+// return state entries for corresponding month and year (one per state)
 
-  // iterate through states 
-  for (ArrayList<StateEntry> dataEntries : dataEntriesMap.values()) {
-    // iterate through state entries
-    for (StateEntry dataEntry : dataEntries) {
-      if ((dataEntry.month == month) && (dataEntry.year == year)) {
-        stateEntries.add(dataEntry);
-        break;
-      }
-    }
-  }
+public StateEntry[] getStateEntries(int month, int year) {
+  int viewIdx = store.viewIdx(month, year);
+  StateEntry[] stateEntries = new StateEntry[store.numStates];
+  for (int stateId = 0; stateId < store.numStates; stateId++)
+    stateEntries[stateId] = new StateEntry(store, stateId, viewIdx);
   return stateEntries;
 }
 
 /*----------------------------------------------------------------------*/
-// return state entries for corresponding state and year
+// return state entries for corresponding state and year (one per month)
 
-public ArrayList<StateEntry> getStateEntries(String stateCode, int year) {
-  ArrayList<StateEntry> stateEntries = new ArrayList<StateEntry>();
+public StateEntry[] getStateEntries(String stateCode, int year) {
+  int stateId = store.stateId(stateCode);
+  int viewIdx = store.viewIdx(1, year);
+  if (stateId < 0 || viewIdx < 0)
+    return new StateEntry[0];
 
-  // iterate through states 
-  for (ArrayList<StateEntry> dataEntries : dataEntriesMap.values()) {
-    // iterate through state entries
-    for (StateEntry dataEntry : dataEntries) {
-      if ((dataEntry.stateCode.equals(stateCode)) && (dataEntry.year == year)) {
-        stateEntries.add(dataEntry);
-      }
-    }
-  }
+  StateEntry[] stateEntries = new StateEntry[12];
+  for (int month = 0; month < 12; month++)
+    stateEntries[month] = new StateEntry(store, stateId, viewIdx + month);
   return stateEntries;
 }
 
@@ -269,7 +560,7 @@ public ArrayList<StateEntry> getStateEntries(String stateCode, int year) {
 // get view index for corresponding month and year
 
 public int getViewIdx(int month, int year) {
-  return (year-startYear) * 12 + month - 1;
+  return store.viewIdx(month, year);
 }
 
 /*----------------------------------------------------------------------*/
@@ -280,7 +571,7 @@ public int[] getMonthYear(int viewIdx) {
 
   int[] my = new int[2];
   my[0] = viewIdx - yearIdx*12 + 1; // month
-  my[1] = yearIdx + startYear; // year
+  my[1] = yearIdx + store.startYear; // year
 
   return my;
 }
@@ -289,220 +580,343 @@ public int[] getMonthYear(int viewIdx) {
 // print my data structure
 
 public void printDataEntriesMap() {
-  for (Map.Entry<String, ArrayList<StateEntry>> entry : dataEntriesMap.entrySet()) {
-    println(entry.getKey());
-    for (StateEntry se : entry.getValue()) {
-      println(se.stateCode + " " + se.month + " " + se.year + " " + se.plantedArea);
+  for (int stateId = 0; stateId < store.numStates; stateId++) {
+    String stateCode = store.stateCodes.get(stateId);
+    println(stateCode);
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+      if (store.hasData(stateId, viewIdx)) {
+        int[] my = getMonthYear(viewIdx);
+        println(stateCode + " " + my[0] + " " + my[1] + " " + store.plantedArea(stateId, viewIdx));
+      }
     }
   }
 }
 
 /*----------------------------------------------------------------------*/
-// highlight selected state by drawing stroke and data details
+// return value of a "--name=value" command line argument or the default
 
-public void showDetails() {
-  int mouseClr = idView.get(mouseX-graphicsX, mouseY-graphicsY);
+public String stringArg(String name, String defaultValue) {
+  if (args != null) {
+    for (String arg : args) {
+      if (arg.startsWith(name + "="))
+        return arg.substring(name.length() + 1);
+    }
+  }
+  return defaultValue;
+}
 
-  push();
-  scale(scaleFactor);
+public int intArg(String name, int defaultValue) {
+  String value = stringArg(name, null);
+  return value == null ? defaultValue : Integer.parseInt(value);
+}
 
-  for (StateEntry se : thisStateEntries) {
-    PShape shapeState = shapeStatesMap.get(se.stateCode);
-    int shapeClr = statesColoursMap.get(se.stateCode);
+// return whether a "--name" flag was given on the command line
+public boolean hasArg(String name) {
+  if (args != null) {
+    for (String arg : args) {
+      if (arg.equals(name))
+        return true;
+    }
+  }
+  return false;
+}
 
-    // compare colour values: if same, the mouse is over current state
-    if (mouseClr == shapeClr) {
-      // select and draw current
-      int stateClr = color(255, (255 - se.transparency), (255 - se.transparency));
-      shapeState.setFill(stateClr);
-      shapeState.setStroke(true);
-      shapeState.setStroke(darkGray);
-      shapeState.setStrokeWeight(1);
+/*----------------------------------------------------------------------*/
+// return id of the state under the mouse or -1 if the mouse is not over one
 
-      shape(shapeState, graphicsX / scaleFactor, graphicsY / scaleFactor);
+public int stateUnderMouse() {
+  if (!overMap())
+    return -1;
+  return stateIndex.stateAt(viewport.mapX(mouseX), viewport.mapY(mouseY));
+}
 
-      noStroke();
-      if (se.plantedArea != 0) {
-        int[] xy = coordinatesMap.get(se.stateCode);
-        int size = PApplet.parseInt(map(se.plantedArea, 13901, 1536310, 10, 70));
-        fill(green);
-        ellipse(xy[0], xy[1], size, size);
-      }
+public boolean overMap() {
+  return grid.layout == GRID_OFF && mouseX >= graphicsX && mouseX < graphicsX+graphicsWidth &&
+    mouseY >= graphicsY && mouseY < graphicsY+graphicsHeight;
+}
 
-      fill(darkGray);
-      textAlign(CENTER);
-      textSize(18);
-      text(se.stateName, width/2/scaleFactor, height*5/7/scaleFactor+50);
-      textSize(14);
-      text("Number of fires: " + se.numOfFires, width/2/scaleFactor, height*5/7/scaleFactor+70);
+/*----------------------------------------------------------------------*/
+// highlight selected state by drawing stroke and data details
 
-      if (se.plantedArea != 0)
-        text("Planted forests area: " + se.plantedArea + " ha", width/2/scaleFactor, height*5/7/scaleFactor+90);
-    }
+public void showDetails(PGraphics pg, int stateId) {
+  if (stateId < 0 || !stateHasData(stateId, thisViewIdx))
+    return;
+
+  StateEntry se = thisStateEntries[stateId];
+
+  // select and draw current where the zoomed map shows it, cut at the map
+  // area like the zoomed map (clip() takes pixels of pg, not its transform)
+  if (viewport.level > 0)
+    pg.clip(pg.screenX(graphicsX, graphicsY), pg.screenY(graphicsX, graphicsY), graphicsWidth, graphicsHeight);
+  pg.push();
+  pg.translate(viewport.screenX(0), viewport.screenY(0));
+  pg.scale(viewport.scale());
+  int stateClr = stateColor(stateId, thisViewIdx);
+  stateMeshes.draw(pg, stateId, stateClr, 0, 0);
+
+  pg.noStroke();
+  if (se.plantedArea() != 0) {
+    int[] xy = coordinatesMap.get(se.stateCode());
+    int size = plantedSize(se.plantedArea());
+    pg.fill(green);
+    pg.ellipse(xy[0] - graphicsX/scaleFactor, xy[1] - graphicsY/scaleFactor, size, size);
+  }
+  pg.pop();
+  pg.noClip();
+
+  pg.push();
+  pg.scale(scaleFactor);
+
+  pg.fill(darkGray);
+  pg.textAlign(CENTER);
+  pg.textSize(18);
+  pg.text(se.stateName(), width/2/scaleFactor, height*5/7/scaleFactor+50);
+  pg.textSize(14);
+  int yearIdx = thisViewIdx / 12;
+  String fires = "Number of fires: " + se.numOfFires();
+  if (mapMode == YEARLY_MAP)
+    fires = "Number of fires in " + thisYear + ": " + timeCube.yearTotal(stateId, yearIdx);
+  else if (mapMode == TREND_MAP)
+    fires = "Number of fires in " + thisYear + ": " + timeCube.yearTotal(stateId, yearIdx) + ", " +
+      formatChange(timeCube.yearDelta(stateId, yearIdx), timeCube.yearTotal(stateId, yearIdx - 1)) +
+      " from " + (thisYear - 1);
+  Ranking ranking = rankings.fires(thisViewIdx);
+  fires += " (rank " + (ranking.rank(stateId) + 1) + " of " + ranking.count + ")";
+  pg.text(fires, width/2/scaleFactor, height*5/7/scaleFactor+70);
+
+  if (se.plantedArea() != 0) {
+    ranking = rankings.planted[yearIdx];
+    pg.text("Planted forests area: " + se.plantedArea() + " ha (rank " + (ranking.rank(stateId) + 1) + " of " +
+      ranking.count + ")", width/2/scaleFactor, height*5/7/scaleFactor+90);
+  }
+
+  // correlation of yearly fires with planted forests over all years
+  Correlation c = correlations.get(stateId);
+  if (!Float.isNaN(c.pearson[0])) {
+    String text = "Fires vs planted forests: r = " + formatCorrelation(c.pearson[0]) +
+      ", \u03C1 = " + formatCorrelation(c.spearman[0]) + " (" + c.n[0] + " years)";
+    int lag = c.strongestLag();
+    if (lag > 0)
+      text += ", strongest " + lag + (lag == 1 ? " year" : " years") + " later: r = " + formatCorrelation(c.pearson[lag]);
+    pg.text(text, width/2/scaleFactor, height*5/7/scaleFactor+110);
   }
 
-  pop();
+  pg.pop();
 }
 
 /*----------------------------------------------------------------------*/
 // display title of the visualisation at top centre
 
-public void displayTitle() {
-  fill(darkGray);
-  textSize(25);
-  textAlign(CENTER);
-  text("Fires vs planted forests in Brazil", width/2, height/18);
-  textSize(20);
-  text(nameOfMonths[thisMonth-1] + " " + thisYear, width/2, height/11);
+public void displayTitle(PGraphics pg, int month, int year) {
+  pg.fill(darkGray);
+  pg.textSize(25);
+  pg.textAlign(CENTER);
+  pg.text("Fires vs planted forests in Brazil", width/2, height/18);
+  pg.textSize(20);
+  if (mapMode == YEARLY_MAP)
+    pg.text("All of " + year, width/2, height/11);
+  else if (mapMode == TREND_MAP)
+    pg.text(year + " compared with " + (year - 1), width/2, height/11);
+  else
+    pg.text(nameOfMonths[month-1] + " " + year, width/2, height/11);
 }
 
 /*----------------------------------------------------------------------*/
 // display legends for number of fires and planted forests area 
 
-public void displayLegends(int x, int y) {
+public void displayLegends(PGraphics pg, int x, int y) {
   // number of fires legend
-  textSize(14);
-  textAlign(LEFT);
-  fill(darkGray);
-  text("Number of fires:", x, y);
+  pg.textSize(14);
+  pg.textAlign(LEFT);
+  pg.fill(darkGray);
+  pg.text(mapMode == TREND_MAP ? "Change from year before:" :
+    mapMode == YEARLY_MAP ? "Number of fires in year:" : "Number of fires:", x, y);
 
   int h = 150;
   int w = 20;
-  noFill();
+  pg.noFill();
   // draw top to bottom gradient
   for (int i = y+20; i <= y+20+h; i++) {
     float inter = map(i, y, y+20+h, 0, 1);
-    int c = lerpColor(lowestAlphaRed, highestAlphaRed, inter);
-    stroke(c);
-    line(x, i, x+w, i);
+    pg.stroke(legendColor(inter));
+    pg.line(x, i, x+w, i);
   }
 
-  // draw numbers
-  fill(darkGray);
-  int step = 6500;
-  for (int i = 0, j = 1; i <= 26000; i = i+step, j++) {
-    text(i, x+30, y-10+h*j/4);
+  // draw numbers at their place on the scale of the views
+  pg.fill(darkGray);
+  for (int j = 0; j <= 4; j++) {
+    float value = legendValue(j/4.0f);
+    String sign = mapMode == TREND_MAP && value > 0 ? "+" : (value < 0 ? "-" : "");
+    pg.text(sign + roundLegend(Math.abs(value)), x+30, y-10+h*(j+1)/4);
   }
 
   // planted forests area legend
-  noStroke();
-  text("Planted forests area [ha]:", x, y+h+100);
-
-  int[] sizes = new int[] {15000, 150000, 1500000};
-  int[] ys = new int[] {y+270, y+300, y+350};
-
-  // draw circles
-  for (int i = 0; i < sizes.length; i++) {
-    int size = sizes[i];
-    int cs = PApplet.parseInt(map(size, 13901, 1536310, 10, 60));
-    fill(green);
-    ellipse(x+8, ys[i], cs, cs);
+  pg.noStroke();
+  pg.text("Planted forests area [ha]:", x, y+h+100);
+
+  // draw circles for a small, middle and largest area, sized as in the views
+  // where the map is scaled by scaleFactor
+  float[] positions = new float[] {0.1f, 0.5f, 1};
+  float cy = y+h+110;
+  for (int i = 0; i < positions.length; i++) {
+    int size = roundLegend(plantedScale.value(positions[i]));
+    float cs = plantedSize(size) * scaleFactor;
+    cy += cs/2 + 8;
+    pg.fill(green);
+    pg.ellipse(x+8, cy, cs, cs);
 
     // draw numbers
-    fill(darkGray);
-    text(sizes[i], x+45, ys[i]+5);
+    pg.fill(darkGray);
+    pg.text(size, Math.max(x+45, x+8 + cs/2 + 10), cy+5);
+    cy += cs/2;
   }
 }
 
 /*----------------------------------------------------------------------*/
-// create and return hashmap containing fire data
-
-public HashMap<String, ArrayList<StateEntry>> loadFiresDataFromCSV(String fileName) {
-  dataEntriesMap = new HashMap<String, ArrayList<StateEntry>>();
-  thisStateEntries = new ArrayList<StateEntry>();
-
-  String[] rows = loadStrings(fileName);
-  // skip header
-  boolean firstRow = true;
-  for (String row : rows) {
-    String[] cols = row.split(",");
-    if (firstRow) {
-      firstRow = false;
-      continue;
-    }
-
-    if (cols.length >= 5) {    
-      StateEntry dataEntry = new StateEntry();
-      dataEntry.stateCode = cols[0];
-      dataEntry.stateName = cols[1];
-      dataEntry.month = Integer.parseInt(cols[2]);
-      dataEntry.year = Integer.parseInt(cols[3]);
-      dataEntry.numOfFires = Math.round(Float.parseFloat(cols[4]));
-      dataEntry.transparency = PApplet.parseInt(map(dataEntry.numOfFires, 0, 25963, 10, 255));
+// create and return store containing fire data
+
+public FactStore loadFiresDataFromCSV(String fileName) {
+  store = new FactStore(); // time range follows the data
+  try {
+    readCsv(fileName, new CsvChunks<FireBatch>() {
+      public FireBatch parse(CsvReader rows) throws IOException {
+        return readFireBatch(rows, true);
+      }
 
-      if (dataEntriesMap.containsKey(dataEntry.stateCode)) {
-        dataEntriesMap.get(dataEntry.stateCode).add(dataEntry);
-      } else {
-        dataEntriesMap.put(dataEntry.stateCode, new ArrayList<StateEntry>());
-        dataEntriesMap.get(dataEntry.stateCode).add(dataEntry);
+      public void merge(FireBatch batch) {
+        if (batch.firstYear <= batch.lastYear)
+          store.addYears(batch.firstYear, batch.lastYear);
+        for (int i = 0; i < batch.size(); i++) {
+          int viewIdx = store.addView(batch.months.get(i), batch.years.get(i));
+          if (viewIdx < 0) {
+            println("skipping " + batch.stateCodes.get(i) + " " + batch.months.get(i) + "/" +
+              batch.years.get(i) + ": invalid month");
+            continue;
+          }
+          int stateId = store.internState(batch.stateCodes.get(i), batch.stateNames.get(i));
+          store.setFires(stateId, viewIdx, batch.fires.get(i));
+        }
       }
-    }
+    }).report();
+  } catch (IOException e) {
+    println("cannot read " + fileName + ": " + e);
   }
-  return dataEntriesMap;
+  return store;
 }
 
 /*----------------------------------------------------------------------*/
-// load planted forests area data
+// load planted forests area data into the annual table of the store,
+// joined to fire data by state id and year
 
 public void loadPlantData(String fileName) {
-  String[] rows = loadStrings(fileName);
-  // skip header
-  boolean firstRow = true;
-  for (String row : rows) {
-    String[] cols = row.split(",");
-    if (firstRow) {
-      firstRow = false;
-      continue;
-    }
-
-    if (cols.length >= 4) {
-      String stateCode = cols[0];
-      int year = Integer.parseInt(cols[2]);
-      int plantedArea = Integer.parseInt(cols[3]);
-
-      // add planted area to all corresponding records
-      ArrayList<StateEntry> stateEntries = getStateEntries(stateCode, year);
-      for (StateEntry se : stateEntries) {
-        se.plantedArea = plantedArea;
+  int unmatched = 0;
+  try {
+    CsvReader rows = openCsv(fileName);
+    try {
+      rows.readHeader();
+      int codeCol = rows.column("State code", 0);
+      int yearCol = rows.column("Year", 2);
+      int areaCol = rows.column("Planted area (ha)", 3);
+      while (rows.next()) {
+        String stateCode = rows.string(codeCol);
+        int year = rows.intField(yearCol);
+        int plantedArea = rows.intField(areaCol);
+        if (rows.failed())
+          continue;
+
+        int stateId = store.stateId(stateCode);
+        int yearIdx = store.yearIdx(year);
+        if (stateId < 0 || yearIdx < 0) {
+          println("no fire data for planted area of " + stateCode + " in " + year);
+          unmatched++;
+          continue;
+        }
+        store.plantedArea[stateId][yearIdx] = plantedArea;
       }
+    } finally {
+      rows.close();
     }
+    rows.errors.report();
+  } catch (IOException e) {
+    println("cannot read " + fileName + ": " + e);
   }
+  if (unmatched > 0)
+    println(unmatched + " planted area rows without matching fire data");
 }
 
 /*----------------------------------------------------------------------*/
-// create and return hashmap containing states coordinates
+// create and return hashmap containing states coordinates (the file has
+// no header)
 
 public HashMap<String, int[]> loadCoordinatesFromCSV(String fileName) {
   coordinatesMap = new HashMap<String, int[]>();
-
-  String[] rows = loadStrings(fileName);
-  for (String row : rows) {
-    String[] cols = row.split(",");
-
-    if (cols.length >= 4) {
-      String stateCode = cols[0];
-
-      int xy[] = new int[2];
-      xy[0] = Integer.parseInt(cols[2]);
-      xy[1] = Integer.parseInt(cols[3]);
-
-      if (!coordinatesMap.containsKey(stateCode)) {
-        coordinatesMap.put(stateCode, xy);
+  try {
+    CsvReader rows = openCsv(fileName);
+    try {
+      while (rows.next()) {
+        String stateCode = rows.string(0);
+        int xy[] = new int[2];
+        xy[0] = rows.intField(2);
+        xy[1] = rows.intField(3);
+
+        if (!rows.failed() && !coordinatesMap.containsKey(stateCode)) {
+          coordinatesMap.put(stateCode, xy);
+        }
       }
+    } finally {
+      rows.close();
     }
+    rows.errors.report();
+  } catch (IOException e) {
+    println("cannot read " + fileName + ": " + e);
   }
   return coordinatesMap;
 }
 
+/*----------------------------------------------------------------------*/
+// run the visualisation, or export its views to image files without a
+// display when started with --export=<directory>
+
+static public void main(String[] passedArgs) {
+  if (passedArgs != null) {
+    for (String arg : passedArgs) {
+      boolean export = arg.startsWith("--export=");
+      boolean compileData = arg.equals("--compile-data") || arg.startsWith("--compile-data=");
+      boolean hotspots = arg.startsWith("--hotspots=");
+      boolean correlations = arg.startsWith("--correlations=");
+      boolean benchmark = arg.equals("--benchmark") || arg.startsWith("--benchmark=");
+      boolean serve = arg.equals("--serve") || arg.startsWith("--serve=");
+      boolean selfTest = arg.equals("--self-test");
+      if (export || compileData || hotspots || correlations || benchmark || serve || selfTest) {
+        System.setProperty("java.awt.headless", "true");
+        brazilian_fires sketch = new brazilian_fires();
+        sketch.args = passedArgs;
+        sketch.sketchPath(); // resolves data folder without running the sketch
+        boolean done = export ? sketch.export() : compileData ? sketch.compileData() :
+          hotspots ? sketch.ingestHotspots() : correlations ? sketch.exportCorrelations() : benchmark ? sketch.benchmark() :
+          selfTest ? sketch.selfTest() : sketch.serve();
+        if (!done)
+          System.exit(1);
+        return;
+      }
+    }
+  }
+
+  String[] appletArgs = new String[] { "--present", "--window-color=#666666", "--stop-color=#cccccc", "brazilian_fires" };
+  if (passedArgs != null) {
+    PApplet.main(concat(appletArgs, passedArgs));
+  } else {
+    PApplet.main(appletArgs);
+  }
+}
+
 //////////////////////////////////
 
 class Button {
-  boolean pause, play, stop;
   PVector[] pos;
   int d; // diameter of a button
   boolean[] pressed;
   boolean[] mouseOver;
-  int counter;
 
   /*----------------------------*/
 
@@ -519,22 +933,19 @@ class Button {
       pressed[i] = false;
       mouseOver[i] = false;
     }
-    counter = 0;
   }
 
   /*----------------------------*/
 
   public void applyButton() {
     if (pressed[0]) // pause
-      play = false;
+      playback.pause();
     if (pressed[1]) // play
-      play = true;
+      playback.play();
     if (pressed[2]) { // stop
-      play = false;  
-      thisYear = startYear;
-      thisMonth = 1;
-      thisViewIdx = getViewIdx(thisMonth, thisYear);
-      thisStateEntries = getStateEntries(thisMonth, thisYear);
+      playback.pause();
+      int[] my = getMonthYear(store.nextView(-1, 1));
+      selectView(my[0], my[1]);
     }
   }
 
@@ -558,70 +969,59 @@ class Button {
   }
 
   /*----------------------------*/
-  // if mouse is over any button, make mouseover true, else false
+  // if mouse is over any button, make mouseover true, else false;
+  // return whether any of them changed
 
-  public void rollover(float mx, float my) {
+  public boolean rollover(float mx, float my) {
+    boolean changed = false;
     for (int i = 0; i < pos.length; i++) {
-      if (dist(mx, my, pos[i].x, pos[i].y) < d/2)
-        mouseOver[i] = true;
-      else
-        mouseOver[i] = false;
+      boolean over = dist(mx, my, pos[i].x, pos[i].y) < d/2;
+      changed |= mouseOver[i] != over;
+      mouseOver[i] = over;
     }
+    return changed;
   }
 
   /*----------------------------*/
 
-  public void display() {
-    if (play && (counter % 35 == 0)) {
-      if (thisViewIdx < Views.length - 1) {
-        thisViewIdx++;
-      } else {
-        thisViewIdx = 0;
-      }
-      int[] my = getMonthYear(thisViewIdx);
-      thisMonth = my[0];
-      thisYear = my[1];
-      thisStateEntries = getStateEntries(thisMonth, thisYear);
-    }
-    counter++;
-
-    noStroke();
+  public void display(PGraphics pg) {
+    pg.noStroke();
     // draw button icons according to their status
     for (int i = 0; i < pos.length; i++) {
       if (pressed[i])
-        fill(lightPink);
+        pg.fill(lightPink);
       else if (mouseOver[i])
-        fill(lightPink);
+        pg.fill(lightPink);
       else
-        fill(darkGray);
-      ellipse(pos[i].x, pos[i].y, d, d);
+        pg.fill(darkGray);
+      pg.ellipse(pos[i].x, pos[i].y, d, d);
     }
 
-    fill(255);
-    displayPause(pos[0].x, pos[0].y);
-    displayPlay(pos[1].x, pos[1].y);
-    displayStop(pos[2].x, pos[2].y);
+    pg.fill(255);
+    displayPause(pg, pos[0].x, pos[0].y);
+    displayPlay(pg, pos[1].x, pos[1].y);
+    displayStop(pg, pos[2].x, pos[2].y);
   }
 
   /*----------------------------*/
   // BUTTON ICONS
 
   // pause: two vertical lines
-  public void displayPause(float x, float y) {
-    rectMode(CENTER);
-    rect(x-3, y, 4, 9);
-    rect(x+3, y, 4, 9);
+  public void displayPause(PGraphics pg, float x, float y) {
+    pg.rectMode(CENTER);
+    pg.rect(x-3, y, 4, 9);
+    pg.rect(x+3, y, 4, 9);
   }
 
   // play: a triangle
-  public void displayPlay(float x, float y) {   
-    triangle(x-3, y-5, x-3, y+5, x+5, y);
+  public void displayPlay(PGraphics pg, float x, float y) {   
+    pg.triangle(x-3, y-5, x-3, y+5, x+5, y);
   }
 
   // stop: a sqaure
-  public void displayStop(float x, float y) {
-    rectMode(CENTER);
-    rect(x, y, 9, 9);
+  public void displayStop(PGraphics pg, float x, float y) {
+    pg.rectMode(CENTER);
+    pg.rect(x, y, 9, 9);
   }
 }
 
@@ -629,36 +1029,44 @@ class Button {
 
 class Timeline {
   PVector p0;  // centre of the timeline
-  PVector[] pos;  // array of circle positions
+  PVector[] pos;  // array of circle positions, one per visible element
 
   char option; // option to display (years or months)
-  int numElements; // number of elements to display
-  int midIdx;  // middle element index
+  int numElements; // number of elements in the timeline
+  int numVisible; // number of elements that fit into the timeline's width
+  int first; // index of the first visible element
+  int followedIdx = -1; // element the window was last moved to show
+  int midIdx;  // middle visible element index
   int r;  // circle radius
   int d;  // distance between circles
 
   Boolean[] mouseOver;
   Boolean[] pressed;  
+  boolean overPrevious; // mouse is over the arrow scrolling back
+  boolean overNext; // mouse is over the arrow scrolling forward
 
   /*----------------------------*/
+  // elements that do not fit into maxWidth are scrolled into view, so only
+  // a window of them is laid out and drawn however long the data is
 
-  public Timeline(int x, int y, char option) {
+  public Timeline(int x, int y, char option, int maxWidth) {
     this.option = option;
     if (option == 'm')
       numElements = 12;
     else if (option == 'y')
-      numElements = numYears;
+      numElements = store.numYears;
 
-    midIdx = numElements/2;
     r = 6;
     d = 2*r + 40;
+    numVisible = constrain(maxWidth/d + 1, 1, numElements);
+    midIdx = numVisible/2;
 
     p0 = new PVector(x, y);
     pos = setPosition();
 
-    mouseOver = new Boolean[numElements];
-    pressed = new Boolean[numElements];
-    for (int i = 0; i < numElements; i++) {
+    mouseOver = new Boolean[numVisible];
+    pressed = new Boolean[numVisible];
+    for (int i = 0; i < numVisible; i++) {
       mouseOver[i] = false;    
       pressed[i] = false;
     }
@@ -668,120 +1076,6021 @@ class Timeline {
   // set position of each circle
 
   public PVector[] setPosition() {
-    PVector[] p = new PVector[numElements];
+    PVector[] p = new PVector[numVisible];
 
     for (int i = midIdx; i >= 0; i--)
       p[i] = new PVector(p0.x - (midIdx - i)*d, p0.y);    
 
-    for (int i = midIdx + 1; i < numElements; i++)  
+    for (int i = midIdx + 1; i < numVisible; i++)  
       p[i] = new PVector(p0.x + (i - midIdx)*d, p0.y);
 
     return p;
   }
 
   /*----------------------------*/
-  // if mouse is over any button, make mouseover true or false
+  // index of the element shown in the current view
 
-  public void rollover(float mx, float my) {
-    for (int i = 0; i < numElements; i++) {
-      if (dist(mx, my, pos[i].x, pos[i].y) < r)
-        mouseOver[i] = true;
-      else
-        mouseOver[i] = false;
+  public int selectedIdx() {
+    return option == 'm' ? thisMonth - 1 : thisYear - store.startYear;
+  }
+
+  // whether the element has data in any state, elements without are gaps
+  public boolean hasData(int elementIdx) {
+    if (option == 'y')
+      return store.hasYearData(elementIdx);
+    int viewIdx = store.viewIdx(elementIdx + 1, thisYear);
+    return viewIdx >= 0 && store.hasData(viewIdx);
+  }
+
+  public boolean canScroll(int direction) {
+    return direction < 0 ? first > 0 : first + numVisible < numElements;
+  }
+
+  public void scroll(int steps) {
+    first = constrain(first + steps, 0, numElements - numVisible);
+  }
+
+  /*----------------------------*/
+  // if mouse is over any button, make mouseover true or false;
+  // return whether any of them changed
+
+  public boolean rollover(float mx, float my) {
+    boolean changed = false;
+    for (int i = 0; i < numVisible; i++) {
+      boolean over = dist(mx, my, pos[i].x, pos[i].y) < r;
+      changed |= mouseOver[i] != over;
+      mouseOver[i] = over;
     }
+
+    boolean previous = canScroll(-1) && dist(mx, my, pos[0].x - d/2, pos[0].y) < r;
+    boolean next = canScroll(1) && dist(mx, my, pos[numVisible-1].x + d/2, pos[0].y) < r;
+    changed |= previous != overPrevious || next != overNext;
+    overPrevious = previous;
+    overNext = next;
+    return changed;
   }
 
   /*----------------------------*/
-  // if any button is pressed, make pressed true and update view variables
+  // if any button is pressed, make pressed true and update view variables;
+  // the arrows scroll by a window
 
   public void press(float mx, float my) {
-    for (int i = 0; i < numElements; i++)
+    for (int i = 0; i < numVisible; i++)
       if (dist(mx, my, pos[i].x, pos[i].y) < r) {
         pressed[i] = true;
         if (option == 'y')
-          thisYear = startYear + i;
+          selectView(thisMonth, store.startYear + first + i);
         else if (option == 'm')
-          thisMonth = startMonth + i;
-        thisViewIdx = getViewIdx(thisMonth, thisYear);
-        thisStateEntries = getStateEntries(thisMonth, thisYear);
+          selectView(first + i + 1, thisYear);
       }
+
+    if (overPrevious)
+      scroll(-(numVisible - 1));
+    if (overNext)
+      scroll(numVisible - 1);
   }
 
   /*----------------------------*/
   // make pressed false for each button (used with mouseReleased event)
 
   public void noPress() {
-    for (int i = 0; i < numElements; i++)
+    for (int i = 0; i < numVisible; i++)
       pressed[i] = false;
   }
 
   /*----------------------------*/
 
-  public void display() {        
-    int thisElementIdx = thisYear - startYear;
-
-    if (option == 'm') {
-      thisElementIdx = thisMonth - 1;
+  public void display(PGraphics pg) {        
+    // keep a newly selected element in the window
+    int thisElementIdx = selectedIdx();
+    if (thisElementIdx != followedIdx) {
+      if (thisElementIdx < first || thisElementIdx >= first + numVisible)
+        scroll(thisElementIdx - midIdx - first);
+      followedIdx = thisElementIdx;
     }
 
     // draw line
-    strokeWeight(2);
-    stroke(darkGray);
-    line(pos[0].x, pos[0].y, pos[numElements-1].x, pos[numElements-1].y); 
-
-    // draw circles
-    strokeWeight(4);
-    for (int i = 0; i < numElements; i++) {
-      if (thisElementIdx == i) {
-        stroke(darkGray);    
-        fill(lightPink);
+    pg.strokeWeight(2);
+    pg.stroke(darkGray);
+    pg.line(pos[0].x, pos[0].y, pos[numVisible-1].x, pos[numVisible-1].y); 
+
+    // draw arrows to the elements out of the window
+    pg.noStroke();
+    if (canScroll(-1)) {
+      pg.fill(overPrevious ? lightPink : darkGray);
+      float x = pos[0].x - d/2;
+      pg.triangle(x - r, pos[0].y, x + r, pos[0].y - r, x + r, pos[0].y + r);
+    }
+    if (canScroll(1)) {
+      pg.fill(overNext ? lightPink : darkGray);
+      float x = pos[numVisible-1].x + d/2;
+      pg.triangle(x + r, pos[0].y, x - r, pos[0].y - r, x - r, pos[0].y + r);
+    }
+
+    // draw circles, gaps in the data lighter
+    pg.strokeWeight(4);
+    for (int i = 0; i < numVisible; i++) {
+      int elementIdx = first + i;
+      if (thisElementIdx == elementIdx) {
+        pg.stroke(darkGray);    
+        pg.fill(lightPink);
       } else if (mouseOver[i]) {   
-        stroke(lightPink);    
-        fill(255);
+        pg.stroke(lightPink);    
+        pg.fill(255);
+      } else if (!hasData(elementIdx)) {
+        pg.stroke(lightPink);
+        pg.fill(255);
       } else {   
-        stroke(darkGray);    
-        fill(255);
+        pg.stroke(darkGray);    
+        pg.fill(255);
       }
-      ellipse(pos[i].x, pos[i].y, 2*r, 2*r);
+      pg.ellipse(pos[i].x, pos[i].y, 2*r, 2*r);
     } 
 
-    textAlign(CENTER);
-    textSize(14);
-    fill(darkGray);
+    pg.textAlign(CENTER);
+    pg.textSize(14);
+    pg.fill(darkGray);
     // draw text (years)
     if (option == 'y') {
-      for (int i = 0; i < numElements; i++)    
+      for (int i = 0; i < numVisible; i++)    
         if (mouseOver[i])
-          text(2006+i, pos[i].x, pos[i].y - 2*r);  
-
-      text(startYear, pos[0].x, pos[0].y + 3*r); 
-      text(midYear, pos[midIdx].x, pos[midIdx].y + 3*r);  
-      text(endYear, pos[numElements-1].x, pos[numElements-1].y + 3*r);
+          pg.text(store.startYear + first + i, pos[i].x, pos[i].y - 2*r);  
+
+      int last = numVisible - 1;
+      pg.text(store.startYear + first, pos[0].x, pos[0].y + 3*r); 
+      if (midIdx != 0 && midIdx != last)
+        pg.text(store.startYear + first + midIdx, pos[midIdx].x, pos[midIdx].y + 3*r);  
+      if (last != 0)
+        pg.text(store.startYear + first + last, pos[last].x, pos[last].y + 3*r);
     } else if (option == 'm') {
-      for (int i = 0; i < numElements; i++)    
-        text(nameOfMonths[i].substring(0, 3), pos[i].x, pos[i].y + 3*r);
+      for (int i = 0; i < numVisible; i++)    
+        pg.text(nameOfMonths[first + i].substring(0, 3), pos[i].x, pos[i].y + 3*r);
     }
   }
 }
 
 //////////////////////////////////
 
+// a thin view of one state and one month in the store
+
 class StateEntry {
-  String stateCode;
-  String stateName;
-  int month;
-  int year;
-  int numOfFires;
-  int transparency;
-  int plantedArea;
+  FactStore store;
+  int stateId;
+  int viewIdx;
+
+  StateEntry(FactStore store, int stateId, int viewIdx) {
+    this.store = store;
+    this.stateId = stateId;
+    this.viewIdx = viewIdx;
+  }
+
+  public String stateCode() {
+    return store.stateCodes.get(stateId);
+  }
+
+  public String stateName() {
+    return store.stateNames.get(stateId);
+  }
+
+  public int month() {
+    return viewIdx % 12 + 1;
+  }
+
+  public int year() {
+    return store.startYear + viewIdx / 12;
+  }
+
+  public boolean hasData() {
+    return store.hasData(stateId, viewIdx);
+  }
+
+  public int numOfFires() {
+    return store.fires[stateId][viewIdx];
+  }
+
+  public int transparency() {
+    return firesTransparency(numOfFires());
+  }
+
+  public int plantedArea() {
+    return store.plantedArea(stateId, viewIdx);
+  }
 }
-  public void settings() {  fullScreen(P2D);  smooth(8); }
-  static public void main(String[] passedArgs) {
-    String[] appletArgs = new String[] { "--present", "--window-color=#666666", "--stop-color=#cccccc", "brazilian_fires" };
-    if (passedArgs != null) {
-      PApplet.main(concat(appletArgs, passedArgs));
-    } else {
-      PApplet.main(appletArgs);
+
+// micro benchmarks of the load, lookup, render and hover paths on synthetic
+// data of several sizes, started from main() with
+//
+//   --benchmark[=<filter>]    run the benchmarks whose name contains filter
+//   --bench-states=<n,...>    numbers of states to generate (27,270)
+//   --bench-years=<n,...>     numbers of years to generate (11,44)
+//   --bench-time=<ms>         measuring time per benchmark (2000), after
+//                             as long a warm-up
+//   --bench-out=<file>        also write the results as CSV
+//
+// Synthetic states reuse the geometry and positions of the real states in
+// turn, so views and details cost what they would with real data. Every
+// benchmark is warmed up, then measured in five iterations whose mean,
+// minimum and standard deviation are reported per operation.
+
+abstract class Bench {
+  String name;
+
+  Bench(String name) {
+    this.name = name;
+  }
+
+  // run one operation and return its result, which is consumed so the JIT
+  // cannot drop the work
+  abstract Object run(int op);
+}
+
+//////////////////////////////////
+
+// runs benchmarks and collects their results
+
+class BenchRunner {
+  String filter;
+  long timeNanos; // measuring time per benchmark
+  int sink; // consumes results of the operations
+  ArrayList<String> results = new ArrayList<String>(); // CSV rows
+
+  BenchRunner(String filter, long timeMillis) {
+    this.filter = filter;
+    timeNanos = timeMillis * 1000000L;
+  }
+
+  /*----------------------------*/
+
+  public void measure(String params, Bench bench) {
+    if (!bench.name.contains(filter))
+      return;
+
+    int op = 0;
+    long end = System.nanoTime() + timeNanos;
+    while (System.nanoTime() < end)
+      sink += bench.run(op++).hashCode();
+
+    int iterations = 5;
+    double[] nanosPerOp = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      long stop = start + timeNanos / iterations;
+      int ops = 0;
+      long now;
+      do {
+        sink += bench.run(op++).hashCode();
+        ops++;
+        now = System.nanoTime();
+      } while (now < stop);
+      nanosPerOp[i] = (now - start) / (double) ops;
+    }
+
+    double mean = 0, min = Double.MAX_VALUE, variance = 0;
+    for (double n : nanosPerOp) {
+      mean += n / iterations;
+      min = Math.min(min, n);
+    }
+    for (double n : nanosPerOp)
+      variance += (n - mean) * (n - mean) / (iterations - 1);
+
+    println(String.format("%-34s %-18s %14.1f %14.1f %12.1f", bench.name, params, mean, min, Math.sqrt(variance)));
+    results.add(bench.name + "," + params.replace(' ', ',') + "," + mean + "," + min + "," + Math.sqrt(variance));
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// run all benchmarks for every dataset size, run headless from main()
+
+public boolean benchmark() {
+  int[] numStatesList = PApplet.parseInt(split(stringArg("--bench-states", "27,270"), ','));
+  int[] numYearsList = PApplet.parseInt(split(stringArg("--bench-years", "11,44"), ','));
+  BenchRunner runner = new BenchRunner(stringArg("--benchmark", ""), intArg("--bench-time", 2000));
+
+  // a Java2D renderer stands in for the window, so that shapes, colours
+  // and text can be created and drawn without a display
+  width = 1920;
+  height = 1080;
+  setLayout(width, height);
+  viewport = new Viewport(0);
+  PGraphics pg = new PGraphicsJava2D();
+  pg.setParent(this);
+  pg.setPrimary(false);
+  pg.setSize(width, height);
+  g = pg;
+  font = createFont("SEGOEUI.TTF", 34);
+  pg.beginDraw();
+  pg.textFont(font);
+  pg.endDraw();
+
+  XML svgXML = loadXML("brazilLow.svg");
+  XML[] svgPaths = svgXML.getChild("g").getChildren("path");
+  String[] realCodes = new String[svgPaths.length];
+  for (int i = 0; i < realCodes.length; i++)
+    realCodes[i] = svgPaths[i].getString("id");
+  PShape svg = new PShapeSVG(svgXML);
+  HashMap<String, int[]> positions = loadCoordinatesFromCSV("positions.csv");
+
+  println(String.format("%-34s %-18s %14s %14s %12s", "benchmark", "states years", "mean ns/op", "min ns/op", "stddev"));
+  try {
+    for (int numStates : numStatesList) {
+      for (int numYears : numYearsList) {
+        File dir = createBenchData(numStates, numYears, realCodes, positions);
+        runBenchmarks(runner, numStates + " " + numYears, dir, svg, realCodes, positions, pg);
+      }
+    }
+  } catch (IOException e) {
+    println("cannot write benchmark data: " + e);
+    return false;
+  }
+
+  String out = stringArg("--bench-out", null);
+  if (out != null) {
+    PrintWriter writer = createWriter(out);
+    writer.println("Benchmark,States,Years,Mean ns/op,Min ns/op,Stddev");
+    for (String row : runner.results)
+      writer.println(row);
+    writer.close();
+  }
+  return true;
+}
+
+/*----------------------------------------------------------------------*/
+
+void runBenchmarks(BenchRunner runner, String params, final File dir, PShape svg, String[] realCodes,
+  HashMap<String, int[]> positions, final PGraphics pg) {
+  final String firesFile = new File(dir, "fires_data.csv").getPath();
+  final String plantFile = new File(dir, "planted_forests_data.csv").getPath();
+
+  runner.measure(params, new Bench("loadFiresDataFromCSV") {
+    public Object run(int op) {
+      return loadFiresDataFromCSV(firesFile);
+    }
+  });
+
+  // set up the sketch on the synthetic data as loadData() would
+  store = loadFiresDataFromCSV(firesFile);
+  loadPlantData(plantFile);
+  store.computeStats();
+  timeCube = new TimeCube(store);
+  createScales();
+  coordinatesMap = new HashMap<String, int[]>();
+  statePaths = new Path2D[store.numStates];
+  for (int stateId = 0; stateId < store.numStates; stateId++) {
+    String realCode = store.stateCodes.get(stateId).substring(0, 5);
+    statePaths[stateId] = statePath(svg.getChild(realCode));
+    if (positions.containsKey(realCode))
+      coordinatesMap.put(store.stateCodes.get(stateId), positions.get(realCode));
+  }
+  stateIndex = new StateIndex(statePaths);
+  stateMeshes = new StateMeshes(statePaths);
+  correlations = new Correlations(store, 3);
+  rankings = new Rankings(store, timeCube);
+  int[] my = getMonthYear(store.nextView(-1, 1));
+  thisStateEntries = getStateEntries(my[0], my[1]);
+  selectView(my[0], my[1]);
+
+  runner.measure(params, new Bench("loadPlantData") {
+    public Object run(int op) {
+      loadPlantData(plantFile);
+      return store.plantedArea;
+    }
+  });
+
+  runner.measure(params, new Bench("getStateEntries(month, year)") {
+    public Object run(int op) {
+      int[] my = getMonthYear(op % store.numViews);
+      return getStateEntries(my[0], my[1]);
+    }
+  });
+
+  runner.measure(params, new Bench("getStateEntries(state, year)") {
+    public Object run(int op) {
+      return getStateEntries(store.stateCodes.get(op % store.numStates), store.startYear + op % store.numYears);
+    }
+  });
+
+  final ViewRenderer renderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, 1);
+  runner.measure(params, new Bench("render view") {
+    public Object run(int op) {
+      return renderer.render(op % store.numViews);
+    }
+  });
+  renderer.shutdown();
+
+  final PaletteRenderer palette = new PaletteRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor);
+  runner.measure(params, new Bench("palette view") {
+    public Object run(int op) {
+      palette.render(op % store.numViews, op % store.numViews, 0);
+      return palette.pixels;
+    }
+  });
+  runner.measure(params, new Bench("palette blend") {
+    public Object run(int op) {
+      int viewIdx = op % store.numViews;
+      palette.render(viewIdx, store.nextView(viewIdx, 1), 0.5f);
+      return palette.pixels;
+    }
+  });
+
+  // a thumbnail of the grid of every month, from the pyramid of the raster
+  final ThumbnailPyramid pyramid = new ThumbnailPyramid(palette, statePaths);
+  final int thumbnailLevel = pyramid.level(graphicsWidth / 12f, graphicsHeight / 12f);
+  runner.measure(params, new Bench("grid thumbnail") {
+    public Object run(int op) {
+      return pyramid.compose(op % store.numViews, thumbnailLevel);
+    }
+  });
+
+  // what a live update of one month costs the rankings
+  runner.measure(params, new Bench("rank month") {
+    public Object run(int op) {
+      rankings.update(op % store.numViews);
+      return rankings.months[op % store.numViews].order;
+    }
+  });
+
+  // the hover path of every frame: find the state under the mouse and
+  // draw its details, at points spread over the map
+  final int[] mouse = new int[2 * 997];
+  Random random = new Random(1);
+  for (int i = 0; i < mouse.length; i += 2) {
+    mouse[i] = graphicsX + random.nextInt(graphicsWidth);
+    mouse[i+1] = graphicsY + random.nextInt(graphicsHeight);
+  }
+  runner.measure(params, new Bench("stateAt + showDetails") {
+    public Object run(int op) {
+      int i = 2 * (op % (mouse.length / 2));
+      int stateId = stateIndex.stateAt((mouse[i] - graphicsX) / scaleFactor, (mouse[i+1] - graphicsY) / scaleFactor);
+      pg.beginDraw();
+      pg.clear();
+      showDetails(pg, stateId);
+      pg.endDraw();
+      return stateId;
+    }
+  });
+}
+
+/*----------------------------------------------------------------------*/
+// write fire and planted forests files for the given number of states and
+// years; states beyond the real ones repeat them with suffixed codes
+
+File createBenchData(int numStates, int numYears, String[] realCodes, HashMap<String, int[]> positions)
+  throws IOException {
+  File dir = new File(System.getProperty("java.io.tmpdir"), "brazilian_fires-bench-" + numStates + "x" + numYears);
+  if (!dir.isDirectory() && !dir.mkdirs())
+    throw new IOException("cannot create " + dir);
+
+  Random random = new Random(numStates * 31 + numYears);
+  PrintWriter fires = createWriter(new File(dir, "fires_data.csv").getPath());
+  PrintWriter planted = createWriter(new File(dir, "planted_forests_data.csv").getPath());
+  fires.println("State code,State name,Month,Year,Number of fires");
+  planted.println("State code,State name,Year,Planted area (ha)");
+  for (int i = 0; i < numStates; i++) {
+    String realCode = realCodes[i % realCodes.length];
+    String code = i < realCodes.length ? realCode : realCode + "-" + (i / realCodes.length);
+    for (int year = 2000; year < 2000 + numYears; year++) {
+      for (int month = 1; month <= 12; month++)
+        fires.println(code + ",State " + i + "," + month + "," + year + "," + (int) (Math.exp(random.nextFloat() * 10) - 1));
+      if (positions.containsKey(realCode))
+        planted.println(code + ",State " + i + "," + year + "," + (10000 + random.nextInt(1500000)));
+    }
+  }
+  fires.close();
+  planted.close();
+  return dir;
+}
+
+
+
+// correlation of yearly fire totals with planted forests area, per state
+// and for the whole country: Pearson and Spearman coefficients for the
+// same year and for planting in year N against fires in year N-k. Results
+// are cached per state and computed again only for states whose data
+// changed. Exported headlessly from main() with
+//
+//   --correlations=<file>   write the correlations of all states as CSV
+//   --max-lag=<years>       largest lag k (3)
+
+class Correlations {
+  FactStore store;
+  int maxLag;
+  Correlation[] results; // indexed by state id, the country last; null if not computed
+
+  /*----------------------------*/
+
+  Correlations(FactStore store, int maxLag) {
+    this.store = store;
+    this.maxLag = maxLag;
+    results = new Correlation[store.numStates + 1];
+  }
+
+  public int countryId() {
+    return store.numStates;
+  }
+
+  /*----------------------------*/
+  // return correlations of a state (or the country), computing them if the
+  // data changed since they were last computed
+
+  public Correlation get(int stateId) {
+    if (results[stateId] == null)
+      results[stateId] = compute(stateId);
+    return results[stateId];
+  }
+
+  // drop the results of a state whose data changed, and of the country
+  public void invalidate(int stateId) {
+    results[stateId] = null;
+    results[countryId()] = null;
+  }
+
+  /*----------------------------*/
+  // compute all missing results in parallel, one task per state
+
+  public void computeAll() {
+    ArrayList<Callable<Correlation>> tasks = new ArrayList<Callable<Correlation>>();
+    final ArrayList<Integer> ids = new ArrayList<Integer>();
+    for (int id = 0; id < results.length; id++) {
+      if (results[id] != null)
+        continue;
+      final int stateId = id;
+      ids.add(stateId);
+      tasks.add(new Callable<Correlation>() {
+        public Correlation call() {
+          return compute(stateId);
+        }
+      });
+    }
+    try {
+      List<Future<Correlation>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+      for (int i = 0; i < futures.size(); i++)
+        results[ids.get(i)] = futures.get(i).get();
+    } catch (Exception e) {
+      throw new RuntimeException("computing correlations failed", e);
+    }
+  }
+
+  /*----------------------------*/
+
+  public Correlation compute(int stateId) {
+    double[] fires = new double[store.numYears];
+    double[] planted = new double[store.numYears];
+    boolean[] hasFires = new boolean[store.numYears];
+    boolean[] hasPlanted = new boolean[store.numYears];
+
+    // yearly totals of the state, or of all states for the country
+    int first = stateId == countryId() ? 0 : stateId;
+    int last = stateId == countryId() ? store.numStates - 1 : stateId;
+    for (int s = first; s <= last; s++) {
+      for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+        for (int viewIdx = yearIdx*12; viewIdx < yearIdx*12 + 12; viewIdx++) {
+          if (store.hasData(s, viewIdx)) {
+            fires[yearIdx] += store.fires[s][viewIdx];
+            hasFires[yearIdx] = true;
+          }
+        }
+        if (store.plantedArea[s][yearIdx] != 0) {
+          planted[yearIdx] += store.plantedArea[s][yearIdx];
+          hasPlanted[yearIdx] = true;
+        }
+      }
+    }
+
+    Correlation c = new Correlation(maxLag);
+    for (int lag = 0; lag <= maxLag; lag++) {
+      // pair planting in year N with fires in year N-lag
+      double[] x = new double[store.numYears];
+      double[] y = new double[store.numYears];
+      int n = 0;
+      for (int yearIdx = lag; yearIdx < store.numYears; yearIdx++) {
+        if (hasPlanted[yearIdx] && hasFires[yearIdx - lag]) {
+          x[n] = fires[yearIdx - lag];
+          y[n] = planted[yearIdx];
+          n++;
+        }
+      }
+      c.n[lag] = n;
+      c.pearson[lag] = pearson(x, y, n);
+      c.spearman[lag] = pearson(ranks(x, n), ranks(y, n), n);
     }
+    return c;
   }
 }
+
+//////////////////////////////////
+
+// correlations of one state, indexed by lag in years
+
+class Correlation {
+  int[] n; // number of paired years
+  float[] pearson; // NaN when there are too few years or no variation
+  float[] spearman;
+
+  Correlation(int maxLag) {
+    n = new int[maxLag + 1];
+    pearson = new float[maxLag + 1];
+    spearman = new float[maxLag + 1];
+  }
+
+  // return the lag with the strongest Pearson correlation, or -1 if none
+  public int strongestLag() {
+    int best = -1;
+    for (int lag = 0; lag < pearson.length; lag++) {
+      if (!Float.isNaN(pearson[lag]) && (best < 0 || Math.abs(pearson[lag]) > Math.abs(pearson[best])))
+        best = lag;
+    }
+    return best;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// Pearson correlation of the first n values, NaN if it is undefined
+
+public float pearson(double[] x, double[] y, int n) {
+  if (n < 3)
+    return Float.NaN;
+  double meanX = 0, meanY = 0;
+  for (int i = 0; i < n; i++) {
+    meanX += x[i];
+    meanY += y[i];
+  }
+  meanX /= n;
+  meanY /= n;
+
+  double cov = 0, varX = 0, varY = 0;
+  for (int i = 0; i < n; i++) {
+    cov += (x[i] - meanX) * (y[i] - meanY);
+    varX += (x[i] - meanX) * (x[i] - meanX);
+    varY += (y[i] - meanY) * (y[i] - meanY);
+  }
+  if (varX == 0 || varY == 0)
+    return Float.NaN;
+  return (float) (cov / Math.sqrt(varX * varY));
+}
+
+/*----------------------------------------------------------------------*/
+// ranks of the first n values, tied values get the mean of their ranks
+
+public double[] ranks(double[] values, int n) {
+  Integer[] order = new Integer[n];
+  for (int i = 0; i < n; i++)
+    order[i] = i;
+  final double[] v = values;
+  Arrays.sort(order, new Comparator<Integer>() {
+    public int compare(Integer a, Integer b) {
+      return Double.compare(v[a], v[b]);
+    }
+  });
+
+  double[] ranks = new double[n];
+  for (int i = 0; i < n; ) {
+    int j = i;
+    while (j + 1 < n && values[order[j + 1]] == values[order[i]])
+      j++;
+    for (int k = i; k <= j; k++)
+      ranks[order[k]] = (i + j) / 2.0f + 1;
+    i = j + 1;
+  }
+  return ranks;
+}
+
+/*----------------------------------------------------------------------*/
+// largest lag given by --max-lag, a negative one would leave no lags at all
+
+public int maxLagArg() {
+  int maxLag = intArg("--max-lag", 3);
+  if (maxLag < 0)
+    throw new IllegalArgumentException("--max-lag must be 0 or more, got " + maxLag);
+  return maxLag;
+}
+
+/*----------------------------------------------------------------------*/
+// format a coefficient for display
+
+public String formatCorrelation(float r) {
+  return Float.isNaN(r) ? "n/a" : nf(r, 0, 2);
+}
+
+/*----------------------------------------------------------------------*/
+// write correlations of every state and the country as CSV, run headless
+// from main()
+
+public boolean exportCorrelations() {
+  File file = new File(stringArg("--correlations", "correlations.csv"));
+  int maxLag = maxLagArg();
+  loadDataTables();
+
+  long start = System.nanoTime();
+  correlations = new Correlations(store, maxLag);
+  correlations.computeAll();
+  float millis = (System.nanoTime() - start) / 1e6f;
+
+  PrintWriter writer = createWriter(file.getPath());
+  writer.println("State code,State name,Lag,Years,Pearson,Spearman");
+  for (int id = 0; id <= store.numStates; id++) {
+    Correlation c = correlations.get(id);
+    String state = id == correlations.countryId() ? "BR,Brazil" :
+      csvField(store.stateCodes.get(id)) + "," + csvField(store.stateNames.get(id));
+    for (int lag = 0; lag <= correlations.maxLag; lag++)
+      writer.println(state + "," + lag + "," + c.n[lag] + "," +
+        (Float.isNaN(c.pearson[lag]) ? "" : c.pearson[lag]) + "," +
+        (Float.isNaN(c.spearman[lag]) ? "" : c.spearman[lag]));
+  }
+  writer.close();
+  if (writer.checkError()) {
+    println("cannot write " + file);
+    return false;
+  }
+
+  Correlation country = correlations.get(correlations.countryId());
+  println("correlations of " + store.numStates + " states written to " + file + " in " + nf(millis, 0, 1) +
+    " ms; Brazil: Pearson " + formatCorrelation(country.pearson[0]) + ", Spearman " +
+    formatCorrelation(country.spearman[0]));
+  return true;
+}
+
+
+
+
+// streaming reader of CSV files (RFC 4180) for the data loaders: rows are
+// read byte by byte into a reused buffer, numbers are parsed straight from
+// it and repeated strings like state codes are interned, so reading a row
+// allocates nothing. Quoted fields may hold commas, quotes ("") and line
+// breaks. Fields that are missing or not numbers are reported with their
+// file, row and column and the row is skipped, instead of aborting the
+// load. Files larger than CSV_PARALLEL_BYTES are split into chunks of
+// whole rows which are parsed in parallel (see readCsv()).
+
+static final int CSV_BUFFER_BYTES = 1 << 16; // bytes read from the stream at once
+static final int CSV_CHUNK_BYTES = 1 << 22; // bytes of rows parsed by one task
+static final int CSV_BATCH_ROWS = 1 << 14; // rows parsed and merged at once while streaming
+static final long CSV_PARALLEL_BYTES = 1L << 24; // larger files are parsed in parallel
+static final int CSV_REPORTED_ERRORS = 10; // errors printed per file, the rest are counted
+static final int CSV_INTERNED_STRINGS = 1 << 16; // distinct strings kept per reader
+
+class CsvReader {
+  String name; // file name, for errors
+  InputStream input; // null for a chunk in memory
+  byte[] buffer;
+  int position;
+  int limit;
+
+  byte[] row = new byte[256]; // unquoted bytes of the fields of the current row
+  int[] fieldEnds = new int[16]; // end of every field in row, each starts at the end of the one before
+  int numFields;
+  int rowNumber; // of the current row in the file, from 1 for the header
+  int rowsLeft = -1; // rows next() reads before it returns false, -1 for all
+  boolean rowFailed; // a field of the current row could not be read
+
+  String[] header; // column names, null before readHeader()
+  CsvErrors errors;
+  StringTable strings = new StringTable();
+
+  /*----------------------------*/
+  // read a whole stream
+
+  CsvReader(String name, InputStream input) {
+    this.name = name;
+    this.input = input;
+    buffer = new byte[CSV_BUFFER_BYTES];
+    errors = new CsvErrors(name);
+  }
+
+  // read the rows in bytes[from, to), the first of which is the given row
+  // of the file with the given header
+  CsvReader(String name, byte[] bytes, int from, int to, int firstRow, String[] header) {
+    this.name = name;
+    buffer = bytes;
+    position = from;
+    limit = to;
+    rowNumber = firstRow - 1;
+    this.header = header;
+    errors = new CsvErrors(name);
+  }
+
+  public void close() throws IOException {
+    if (input != null)
+      input.close();
+  }
+
+  /*----------------------------*/
+
+  public int read() throws IOException {
+    if (position == limit) {
+      if (input == null)
+        return -1;
+      limit = Math.max(0, input.read(buffer, 0, buffer.length));
+      position = 0;
+      if (limit == 0)
+        return -1;
+    }
+    return buffer[position++] & 0xff;
+  }
+
+  /*----------------------------*/
+  // read the next row that is not blank; false at the end of the input or
+  // once rowsLeft rows were read, which leaves rowsLeft at 0
+
+  public boolean next() throws IOException {
+    if (rowsLeft == 0)
+      return false;
+    do {
+      if (!readRow())
+        return false;
+    } while (numFields == 1 && fieldEnds[0] == 0);
+    if (rowsLeft > 0)
+      rowsLeft--;
+    return true;
+  }
+
+  public boolean readRow() throws IOException {
+    numFields = 0;
+    rowFailed = false;
+    int length = 0;
+    int c = read();
+    if (c < 0)
+      return false;
+    if (rowNumber++ == 0 && c == 0xef) { // UTF-8 byte order mark
+      read();
+      read();
+      c = read();
+    }
+
+    boolean quoted = false;
+    boolean fieldStart = true;
+    while (true) {
+      if (c < 0 || (!quoted && (c == ',' || c == '\n'))) {
+        if (numFields == fieldEnds.length)
+          fieldEnds = Arrays.copyOf(fieldEnds, 2 * numFields);
+        fieldEnds[numFields++] = length;
+        if (c != ',') {
+          if (quoted)
+            fail(numFields - 1, "has no closing quote");
+          return true;
+        }
+        fieldStart = true;
+        c = read();
+        continue;
+      }
+
+      if (quoted && c == '"') {
+        c = read();
+        if (c != '"') {
+          quoted = false; // closing quote, c is what follows it
+          continue;
+        }
+      } else if (!quoted && c == '"' && fieldStart) {
+        quoted = true;
+        fieldStart = false;
+        c = read();
+        continue;
+      } else if (!quoted && c == '\r') {
+        c = read(); // line ends may be CRLF
+        continue;
+      }
+
+      if (length == row.length)
+        row = Arrays.copyOf(row, 2 * length);
+      row[length++] = (byte) c;
+      fieldStart = false;
+      c = read();
+    }
+  }
+
+  /*----------------------------*/
+  // read the first row as column names
+
+  public boolean readHeader() throws IOException {
+    if (!next())
+      return false;
+    header = new String[numFields];
+    for (int col = 0; col < numFields; col++)
+      header[col] = string(col).trim();
+    return true;
+  }
+
+  // index of the column with the name (ignoring case), or the given index
+  // if there is no header or no such column
+  public int column(String columnName, int fallback) {
+    if (header != null) {
+      for (int col = 0; col < header.length; col++) {
+        if (header[col].equalsIgnoreCase(columnName))
+          return col;
+      }
+    }
+    return fallback;
+  }
+
+  public String columnName(int col) {
+    return header != null && col < header.length ? header[col] : "column " + (col + 1);
+  }
+
+  /*----------------------------*/
+  // fields of the current row
+
+  public int fieldCount() {
+    return numFields;
+  }
+
+  public int fieldStart(int col) {
+    return col == 0 ? 0 : fieldEnds[col - 1];
+  }
+
+  public boolean hasField(int col) {
+    if (col < numFields)
+      return true;
+    fail(col, "is missing");
+    return false;
+  }
+
+  // the field as a string, the same instance for equal fields
+  public String string(int col) {
+    if (!hasField(col))
+      return "";
+    return strings.get(row, fieldStart(col), fieldEnds[col]);
+  }
+
+  // the field as a whole number, 0 and the row failed if it is not one
+  public int intField(int col) {
+    if (!hasField(col))
+      return 0;
+    int i = fieldStart(col);
+    int end = fieldEnds[col];
+    while (i < end && row[i] == ' ')
+      i++;
+    while (end > i && row[end-1] == ' ')
+      end--;
+    boolean negative = i < end && row[i] == '-';
+    if (i < end && (row[i] == '-' || row[i] == '+'))
+      i++;
+    if (i == end || end - i > 10) {
+      fail(col, "is not a whole number");
+      return 0;
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      int digit = row[i] - '0';
+      if (digit < 0 || digit > 9) {
+        fail(col, "is not a whole number");
+        return 0;
+      }
+      value = value * 10 + digit;
+    }
+    value = negative ? -value : value;
+    if (value != (int) value) {
+      fail(col, "is out of range");
+      return 0;
+    }
+    return (int) value;
+  }
+
+  // the field as a decimal number with an optional exponent, 0 and the row
+  // failed if it is not one
+  public float floatField(int col) {
+    if (!hasField(col))
+      return 0;
+    int i = fieldStart(col);
+    int end = fieldEnds[col];
+    while (i < end && row[i] == ' ')
+      i++;
+    while (end > i && row[end-1] == ' ')
+      end--;
+    boolean negative = i < end && row[i] == '-';
+    if (i < end && (row[i] == '-' || row[i] == '+'))
+      i++;
+
+    long mantissa = 0;
+    int exponent = 0;
+    int digits = 0;
+    boolean point = false;
+    for (; i < end && row[i] != 'e' && row[i] != 'E'; i++) {
+      if (row[i] == '.' && !point) {
+        point = true;
+      } else if (row[i] >= '0' && row[i] <= '9') {
+        if (mantissa < Long.MAX_VALUE / 10 - 9) {
+          mantissa = mantissa * 10 + (row[i] - '0');
+          exponent -= point ? 1 : 0;
+        } else if (!point) {
+          exponent++; // digits beyond the precision of a long
+        }
+        digits++;
+      } else {
+        digits = 0;
+        break;
+      }
+    }
+    if (i < end && digits > 0) {
+      int exponentStart = ++i;
+      boolean negativeExponent = i < end && row[i] == '-';
+      if (i < end && (row[i] == '-' || row[i] == '+'))
+        i++;
+      int e = 0;
+      for (; i < end && row[i] >= '0' && row[i] <= '9' && e < 10000; i++)
+        e = e * 10 + (row[i] - '0');
+      if (i != end || i == exponentStart)
+        digits = 0;
+      exponent += negativeExponent ? -e : e;
+    }
+    if (digits == 0) {
+      fail(col, "is not a number");
+      return 0;
+    }
+    double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+    return (float) (negative ? -value : value);
+  }
+
+  /*----------------------------*/
+  // report a field that cannot be read and mark the row failed
+
+  public void fail(int col, String message) {
+    rowFailed = true;
+    String field = col < numFields ?
+      " \"" + new String(row, fieldStart(col), fieldEnds[col] - fieldStart(col), StandardCharsets.UTF_8) + "\"" : "";
+    errors.add("row " + rowNumber + ", " + columnName(col) + field + " " + message);
+  }
+
+  public boolean failed() {
+    return rowFailed;
+  }
+}
+
+//////////////////////////////////
+
+// errors found in a file, the first few of them with their messages
+
+class CsvErrors {
+  String name;
+  int count;
+  ArrayList<String> messages = new ArrayList<String>();
+
+  CsvErrors(String name) {
+    this.name = name;
+  }
+
+  public void add(String message) {
+    if (messages.size() < CSV_REPORTED_ERRORS)
+      messages.add(message);
+    count++;
+  }
+
+  public void addAll(CsvErrors errors) {
+    for (String message : errors.messages)
+      add(message);
+    count += errors.count - errors.messages.size();
+  }
+
+  // print the errors, if there are any
+  public void report() {
+    if (count == 0)
+      return;
+    for (String message : messages)
+      println(name + ": " + message);
+    if (count > messages.size())
+      println(name + ": " + (count - messages.size()) + " more errors");
+    println(name + ": skipped rows with " + count + " errors");
+  }
+}
+
+//////////////////////////////////
+
+// strings by their UTF-8 bytes, so that repeated fields are decoded once;
+// open addressing with linear probing
+
+class StringTable {
+  byte[][] keys = new byte[64][];
+  String[] values = new String[64];
+  int size;
+
+  public String get(byte[] bytes, int from, int to) {
+    int hash = 0;
+    for (int i = from; i < to; i++)
+      hash = 31 * hash + bytes[i];
+    int mask = keys.length - 1;
+    for (int slot = (hash ^ hash >>> 16) & mask; ; slot = (slot + 1) & mask) {
+      byte[] key = keys[slot];
+      if (key == null) {
+        key = Arrays.copyOfRange(bytes, from, to);
+        String value = new String(key, StandardCharsets.UTF_8);
+        if (size < CSV_INTERNED_STRINGS) { // a column of unique values is not worth keeping
+          keys[slot] = key;
+          values[slot] = value;
+          if (++size * 2 > keys.length)
+            grow();
+        }
+        return value;
+      }
+      if (equal(key, bytes, from, to))
+        return values[slot];
+    }
+  }
+
+  public boolean equal(byte[] key, byte[] bytes, int from, int to) {
+    if (key.length != to - from)
+      return false;
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] != bytes[from + i])
+        return false;
+    }
+    return true;
+  }
+
+  public void grow() {
+    byte[][] oldKeys = keys;
+    String[] oldValues = values;
+    keys = new byte[2 * oldKeys.length][];
+    values = new String[2 * oldKeys.length];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null)
+        get(oldKeys[i], 0, oldKeys[i].length);
+    }
+  }
+}
+
+//////////////////////////////////
+
+// how a loader reads a CSV file with a header: rows are parsed into a
+// result, on any thread, and results are merged in the order of the file
+// on the calling thread
+
+abstract class CsvChunks<T> {
+  abstract T parse(CsvReader rows) throws IOException;
+  abstract void merge(T parsed);
+}
+
+/*----------------------------------------------------------------------*/
+// read a CSV file with a header through the chunks of a loader and return
+// the errors found in it. Small files are streamed, and parsed and merged
+// in batches of CSV_BATCH_ROWS rows so only one batch is held at a time;
+// larger ones are split into chunks of whole rows, which tasks of the
+// common fork/join pool parse while the next chunk is read.
+
+<T> CsvErrors readCsv(String fileName, CsvChunks<T> chunks) throws IOException {
+  CsvReader rows = openCsv(fileName);
+  try {
+    if (dataFile(fileName).length() < CSV_PARALLEL_BYTES || Runtime.getRuntime().availableProcessors() == 1) {
+      rows.readHeader();
+      do {
+        rows.rowsLeft = CSV_BATCH_ROWS;
+        chunks.merge(chunks.parse(rows));
+      } while (rows.rowsLeft == 0);
+      return rows.errors;
+    }
+    return readCsvParallel(rows.name, rows.input, chunks);
+  } finally {
+    rows.close();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// a field quoted for CsvReader if it holds a comma, a quote or a line break
+
+public String csvField(String value) {
+  if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+    return value;
+  return "\"" + value.replace("\"", "\"\"") + "\"";
+}
+
+/*----------------------------------------------------------------------*/
+// open a CSV file of the data folder (or any path or URL loadStrings()
+// takes) for streaming
+
+public CsvReader openCsv(String fileName) throws IOException {
+  InputStream input = createInput(fileName);
+  if (input == null)
+    throw new FileNotFoundException(fileName);
+  return new CsvReader(new File(fileName).getName(), input);
+}
+
+<T> CsvErrors readCsvParallel(final String name, InputStream input, final CsvChunks<T> chunks) throws IOException {
+  CsvErrors errors = new CsvErrors(name);
+  ArrayDeque<ForkJoinTask<T>> inFlight = new ArrayDeque<ForkJoinTask<T>>();
+  ArrayDeque<CsvReader> readers = new ArrayDeque<CsvReader>(); // of the tasks in flight, for their errors
+  int parallelism = ForkJoinPool.commonPool().getParallelism();
+
+  byte[] bytes = new byte[CSV_CHUNK_BYTES];
+  int length = 0; // bytes read, from the start of a row
+  int rowNumber = 1; // of the first row in bytes
+  String[] header = null;
+  boolean end = false;
+  while (!end) {
+    int read = input.read(bytes, length, bytes.length - length);
+    end = read < 0;
+    length += Math.max(0, read);
+    if (length < bytes.length && !end)
+      continue;
+
+    int from = 0;
+    if (header == null) {
+      CsvReader headerRow = new CsvReader(name, bytes, 0, length, 1, null);
+      headerRow.readHeader();
+      header = headerRow.header;
+      from = headerRow.position;
+      rowNumber = headerRow.rowNumber + 1;
+    }
+
+    // the end of the last whole row, by the quoting rules of CsvReader; at
+    // the end of the file a last row without a line break is whole too
+    int rowsEnd = from;
+    int numRows = 0;
+    boolean quoted = false;
+    boolean fieldStart = true;
+    for (int i = from; i < length; i++) {
+      byte c = bytes[i];
+      if (c == '\r' && !quoted)
+        continue;
+      if (quoted) {
+        if (c == '"') {
+          if (i + 1 == length)
+            break; // the next byte decides, leave the row for the next chunk
+          if (bytes[i + 1] == '"')
+            i++;
+          else
+            quoted = false;
+        }
+      } else if (c == '"' && fieldStart) {
+        quoted = true;
+      } else if (c == '\n') {
+        rowsEnd = i + 1;
+        numRows++;
+      }
+      fieldStart = !quoted && (c == ',' || c == '\n');
+    }
+    if (end && rowsEnd < length) {
+      rowsEnd = length;
+      numRows++;
+    }
+
+    if (rowsEnd > from) {
+      final CsvReader rows = new CsvReader(name, bytes, from, rowsEnd, rowNumber, header);
+      readers.add(rows);
+      inFlight.add(ForkJoinPool.commonPool().submit(new Callable<T>() {
+        public T call() throws IOException {
+          return chunks.parse(rows);
+        }
+      }));
+      if (inFlight.size() > 2 * parallelism) {
+        chunks.merge(joinChunk(inFlight.poll()));
+        errors.addAll(readers.poll().errors);
+      }
+    }
+
+    // keep the incomplete last row for the next chunk, in a larger buffer
+    // if it is longer than a chunk
+    byte[] next = new byte[Math.max(CSV_CHUNK_BYTES, 2 * (length - rowsEnd))];
+    System.arraycopy(bytes, rowsEnd, next, 0, length - rowsEnd);
+    length -= rowsEnd;
+    bytes = next;
+    rowNumber += numRows;
+  }
+  while (!inFlight.isEmpty()) {
+    chunks.merge(joinChunk(inFlight.poll()));
+    errors.addAll(readers.poll().errors);
+  }
+  return errors;
+}
+
+// result of a parsing task, with the I/O errors of the loader thrown as
+// they were
+<T> T joinChunk(ForkJoinTask<T> task) throws IOException {
+  try {
+    return task.join();
+  } catch (RuntimeException e) {
+    if (e.getCause() instanceof IOException)
+      throw (IOException) e.getCause();
+    throw e;
+  }
+}
+
+
+
+
+
+// headless batch export of every view to PNG files, started from main():
+//
+//   --export=<directory>   output directory
+//   --size=<w>x<h>         screen size the layout is computed for (1920x1080)
+//   --title, --legend      export whole frames with the title and/or legends,
+//                          otherwise only the map is exported
+//   --frames               name files frame-00001.png, ... instead of
+//                          fires-<year>-<month>.png (fires-<year>.png in
+//                          the yearly and trend modes)
+//   --render-threads=<n>   number of workers (number of cores)
+//   --map-mode=<mode>      monthly, yearly or trend (monthly)
+//
+// Months without data are gaps and get no frame. The yearly and trend
+// maps show whole years, so they get one frame per year.
+//
+// Every worker renders, encodes and writes one frame at a time, so frames
+// are streamed to disk instead of being kept in memory.
+
+public boolean export() {
+  File dir = new File(stringArg("--export", "export"));
+  String[] size = split(stringArg("--size", "1920x1080"), 'x');
+  int frameWidth = Integer.parseInt(size[0]);
+  int frameHeight = Integer.parseInt(size[1]);
+  int threads = intArg("--render-threads", Runtime.getRuntime().availableProcessors());
+  mapMode = mapMode(stringArg("--map-mode", "monthly"));
+
+  width = frameWidth; // title and legends are laid out by the screen size
+  height = frameHeight;
+  setLayout(width, height);
+  loadDataTables();
+  loadStatePaths();
+  if (!dir.isDirectory() && !dir.mkdirs()) {
+    println("cannot create export directory " + dir);
+    return false;
+  }
+
+  viewRenderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, threads);
+
+  FrameExport frameExport = new FrameExport(dir, frameWidth, frameHeight);
+  long start = System.nanoTime();
+  for (int i = 0; i < threads; i++)
+    viewRenderer.workers.execute(frameExport);
+  viewRenderer.workers.shutdown();
+  try {
+    viewRenderer.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  } catch (InterruptedException e) {
+    println("export interrupted");
+    return false;
+  }
+  double seconds = (System.nanoTime() - start) / 1e9d;
+
+  int frames = frameExport.exported.get();
+  println("exported " + frames + " frames to " + dir + " in " + nf((float)seconds, 0, 2) + " s: " +
+    nf((float)(frames / seconds), 0, 1) + " frames/s on " + threads + " threads, " +
+    nf(frameExport.renderNanos.get() / 1e6f / max(1, frames), 0, 1) + " ms render and " +
+    nf(frameExport.encodeNanos.get() / 1e6f / max(1, frames), 0, 1) + " ms encode per frame, " +
+    nf(frameExport.bytesWritten.get() / 1048576f, 0, 1) + " MB written");
+  if (frameExport.failed.get() > 0)
+    println(frameExport.failed.get() + " frames failed");
+  return frameExport.failed.get() == 0;
+}
+
+//////////////////////////////////
+
+// run by every export worker: takes the next frame until none are left
+
+class FrameExport implements Runnable {
+  File dir;
+  int frameWidth;
+  int frameHeight;
+  boolean withTitle;
+  boolean withLegend;
+  boolean numbered;
+  boolean byYear; // one frame per year rather than per month
+  IntList views = new IntList(); // view shown in each frame
+
+  AtomicInteger nextFrame = new AtomicInteger();
+  AtomicInteger exported = new AtomicInteger();
+  AtomicInteger failed = new AtomicInteger();
+  AtomicLong renderNanos = new AtomicLong();
+  AtomicLong encodeNanos = new AtomicLong();
+  AtomicLong bytesWritten = new AtomicLong();
+
+  /*----------------------------*/
+
+  FrameExport(File dir, int frameWidth, int frameHeight) {
+    this.dir = dir;
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    withTitle = hasArg("--title");
+    withLegend = hasArg("--legend");
+    numbered = hasArg("--frames");
+
+    byYear = mapMode != MONTHLY_MAP;
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx += byYear ? 12 : 1) {
+      if (byYear ? store.hasYearData(viewIdx / 12) : store.hasData(viewIdx))
+        views.append(viewIdx);
+    }
+  }
+
+  /*----------------------------*/
+
+  public void run() {
+    // every worker composes whole frames in its own graphics and font
+    PGraphics frame = null;
+    if (withTitle || withLegend) {
+      frame = new PGraphicsJava2D();
+      frame.setParent(brazilian_fires.this);
+      frame.setPrimary(false);
+      frame.setSize(frameWidth, frameHeight);
+      frame.beginDraw();
+      frame.textFont(loadNativeFont("SEGOEUI.TTF", 34));
+      frame.endDraw();
+    }
+
+    int frameIdx;
+    while ((frameIdx = nextFrame.getAndIncrement()) < views.size()) {
+      int viewIdx = views.get(frameIdx);
+      int[] my = getMonthYear(viewIdx);
+      String fileName = numbered ? "frame-" + nf(frameIdx + 1, 5) + ".png" :
+        "fires-" + my[1] + (byYear ? "" : "-" + nf(my[0], 2)) + ".png";
+      try {
+        long start = System.nanoTime();
+        BufferedImage image = viewRenderer.render(viewIdx);
+        if (frame != null)
+          image = composeFrame(frame, image, my[0], my[1]);
+        long rendered = System.nanoTime();
+
+        File file = new File(dir, fileName);
+        ImageIO.write(image, "png", file);
+        renderNanos.addAndGet(rendered - start);
+        encodeNanos.addAndGet(System.nanoTime() - rendered);
+        bytesWritten.addAndGet(file.length());
+        exported.incrementAndGet();
+      } catch (Exception e) {
+        println("exporting " + fileName + " failed: " + e);
+        failed.incrementAndGet();
+      }
+    }
+  }
+
+  /*----------------------------*/
+  // draw map, title and legends as they are laid out on screen
+
+  public BufferedImage composeFrame(PGraphics frame, BufferedImage map, int month, int year) {
+    frame.beginDraw();
+    frame.background(255);
+    ((Graphics2D) frame.getNative()).drawImage(map, graphicsX, graphicsY, null);
+    if (withTitle)
+      displayTitle(frame, month, year);
+    if (withLegend)
+      displayLegends(frame, frameWidth-200, frameHeight/21);
+    frame.endDraw();
+    return (BufferedImage) frame.getImage();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// load a TrueType font from the data folder without a running sketch
+// (createFont() needs the sketch renderer)
+
+public PFont loadNativeFont(String fileName, float size) {
+  try {
+    InputStream input = createInput(fileName);
+    try {
+      return new PFont(java.awt.Font.createFont(java.awt.Font.TRUETYPE_FONT, input).deriveFont(size), true);
+    } finally {
+      input.close();
+    }
+  } catch (Exception e) {
+    throw new RuntimeException("cannot load font " + fileName, e);
+  }
+}
+
+
+
+
+
+
+// compiled binary form of the fire and planted forests tables, so that
+// startup maps one file instead of parsing text. Started from main() with
+//
+//   --compile-data[=<file>]   compile the CSV files of the data folder
+//                             (into data/fires_data.bin)
+//
+// and preferred by loadDataTables() while it is not older than the CSVs;
+// --data-file=<file> loads a fact file compiled to another path.
+// Layout, all values big-endian 32-bit ints:
+//
+//   magic, version, header size in bytes
+//   start year, number of years, number of states
+//   per state: code and name as UTF-8 byte length + bytes, padded to 4 bytes
+//   fires column: [stateId][viewIdx], MISSING for months without data
+//   planted forests column: [stateId][yearIdx]
+
+static final int FACT_FILE_MAGIC = 0x42524646; // "BRFF"
+static final int FACT_FILE_VERSION = 1;
+static final String FACT_FILE_NAME = "fires_data.bin";
+
+/*----------------------------------------------------------------------*/
+// write the store into a fact file
+
+public void writeFactFile(FactStore store, File file) throws IOException {
+  ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+  for (int stateId = 0; stateId < store.numStates; stateId++) {
+    writeFactString(dictionary, store.stateCodes.get(stateId));
+    writeFactString(dictionary, store.stateNames.get(stateId));
+  }
+  int headerSize = 6*4 + dictionary.size();
+
+  DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+  try {
+    output.writeInt(FACT_FILE_MAGIC);
+    output.writeInt(FACT_FILE_VERSION);
+    output.writeInt(headerSize);
+    output.writeInt(store.startYear);
+    output.writeInt(store.numYears);
+    output.writeInt(store.numStates);
+    dictionary.writeTo(output);
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++)
+        output.writeInt(store.fires[stateId][viewIdx]);
+    }
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++)
+        output.writeInt(store.plantedArea[stateId][yearIdx]);
+    }
+  } finally {
+    output.close();
+  }
+}
+
+// length-prefixed UTF-8 string, padded so that the columns stay int aligned
+public void writeFactString(ByteArrayOutputStream output, String s) {
+  byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+  int length = bytes.length;
+  output.write(length >>> 24);
+  output.write(length >>> 16);
+  output.write(length >>> 8);
+  output.write(length);
+  output.write(bytes, 0, length);
+  for (int i = length; i % 4 != 0; i++)
+    output.write(0);
+}
+
+/*----------------------------------------------------------------------*/
+// load a fact file by mapping it into memory; the columns are bulk-copied
+// out of the mapping, so nothing is parsed or allocated per value. Sizes
+// are checked against the file before anything is allocated for them, and
+// a file damaged in a way the checks miss fails with an IOException too,
+// so that callers fall back to the CSV files.
+
+public FactStore readFactFile(File file) throws IOException {
+  ByteBuffer buffer = mapFile(file);
+  try {
+    return readFactFile(file, buffer);
+  } catch (RuntimeException e) {
+    throw new IOException(file + " is truncated or corrupt", e);
+  }
+}
+
+public FactStore readFactFile(File file, ByteBuffer buffer) throws IOException {
+  if (buffer.remaining() < 6*4 || buffer.getInt() != FACT_FILE_MAGIC)
+    throw new IOException(file + " is not a fact file");
+  int version = buffer.getInt();
+  if (version != FACT_FILE_VERSION)
+    throw new IOException(file + " has version " + version + ", expected " + FACT_FILE_VERSION);
+  int headerSize = buffer.getInt();
+  int fileStartYear = buffer.getInt();
+  int fileNumYears = buffer.getInt();
+  int numStates = buffer.getInt();
+
+  long expectedSize = headerSize + 4L * numStates * (fileNumYears * 13L);
+  if (headerSize < 6*4 || fileNumYears < 0 || numStates < 0 || buffer.capacity() != expectedSize)
+    throw new IOException(file + " is truncated or corrupt");
+
+  FactStore store = new FactStore(fileStartYear, fileNumYears);
+  for (int i = 0; i < numStates; i++) {
+    String stateCode = readFactString(buffer);
+    String stateName = readFactString(buffer);
+    store.internState(stateCode, stateName);
+  }
+  if (buffer.position() != headerSize || store.numStates != numStates)
+    throw new IOException(file + " is truncated or corrupt");
+
+  IntBuffer columns = buffer.asIntBuffer();
+  for (int stateId = 0; stateId < numStates; stateId++)
+    columns.get(store.fires[stateId]);
+  for (int stateId = 0; stateId < numStates; stateId++)
+    columns.get(store.plantedArea[stateId]);
+  return store;
+}
+
+public String readFactString(ByteBuffer buffer) throws IOException {
+  int length = buffer.remaining() < 4 ? -1 : buffer.getInt();
+  if (length < 0 || length > buffer.remaining())
+    throw new IOException("string length " + length + " runs past the end of the file");
+  byte[] bytes = new byte[length];
+  buffer.get(bytes);
+  buffer.position(Math.min(buffer.limit(), (buffer.position() + 3) & ~3));
+  return new String(bytes, StandardCharsets.UTF_8);
+}
+
+/*----------------------------------------------------------------------*/
+// return the compiled fact file if it is present and up to date, else null
+
+public File currentFactFile() {
+  File file = factFile(stringArg("--data-file", ""));
+  if (!file.isFile())
+    return null;
+  for (String source : new String[] { "fires_data.csv", "planted_forests_data.csv" }) {
+    File csv = dataFile(source);
+    if (csv.isFile() && csv.lastModified() > file.lastModified()) {
+      println(file.getName() + " is older than " + source + ", loading CSV files");
+      return null;
+    }
+  }
+  return file;
+}
+
+// the fact file at a path given by an option, by default the one in the
+// data folder
+public File factFile(String fileName) {
+  return fileName.isEmpty() ? dataFile(FACT_FILE_NAME) : new File(fileName);
+}
+
+/*----------------------------------------------------------------------*/
+// compile the CSV files into a fact file, run headless from main()
+
+public boolean compileData() {
+  File file = factFile(stringArg("--compile-data", ""));
+
+  long start = System.nanoTime();
+  store = loadFiresDataFromCSV("fires_data.csv");
+  loadPlantData("planted_forests_data.csv");
+  long parsed = System.nanoTime();
+  try {
+    writeFactFile(store, file);
+    long written = System.nanoTime();
+    readFactFile(file); // verify it reads back
+    println("compiled " + store.numStates + " states, " + store.numViews + " months into " + file +
+      " (" + file.length() + " bytes): parsed in " + nf((parsed - start) / 1e6f, 0, 1) +
+      " ms, mapped back in " + nf((System.nanoTime() - written) / 1e6f, 0, 1) + " ms");
+    return true;
+  } catch (IOException e) {
+    println("cannot compile data into " + file + ": " + e);
+    return false;
+  }
+}
+
+// columnar store of all loaded data: state codes are interned to small ids
+// and monthly metrics are kept in dense int arrays indexed by
+// [stateId][viewIdx], annual metrics by [stateId][yearIdx]. The time range
+// is not fixed, it grows to cover every year that is added; months without
+// data inside it are gaps. Columns have room for more years than the range
+// covers so that it grows by doubling them, their slack is always empty.
+
+class FactStore {
+  static final int MISSING = -1; // marks a month with no data for a state
+
+  HashMap<String, Integer> stateIds; // state code -> state id
+  ArrayList<String> stateCodes; // state id -> state code
+  ArrayList<String> stateNames; // state id -> state name
+  int numStates;
+
+  int startYear; // first year covered by the store
+  int numYears; // number of years covered by the store
+  int numViews; // number of months covered by the store
+  int yearCapacity; // number of years the columns have room for
+
+  int[][] fires; // number of fires per [stateId][viewIdx]
+  int[][] plantedArea; // planted forests area per [stateId][yearIdx]
+
+  MetricStats firesStats = new MetricStats(); // set by computeStats()
+  MetricStats plantedStats = new MetricStats();
+
+  /*----------------------------*/
+  // an empty store, its time range is set by the data added to it
+
+  FactStore() {
+    this(0, 0);
+  }
+
+  FactStore(int startYear, int numYears) {
+    this.startYear = startYear;
+    this.numYears = numYears;
+    numViews = numYears * 12;
+    yearCapacity = numYears;
+
+    stateIds = new HashMap<String, Integer>();
+    stateCodes = new ArrayList<String>();
+    stateNames = new ArrayList<String>();
+    numStates = 0;
+
+    fires = new int[0][];
+    plantedArea = new int[0][];
+  }
+
+  /*----------------------------*/
+  // return id of the state, adding the state to the store if it is new
+
+  public int internState(String stateCode, String stateName) {
+    Integer id = stateIds.get(stateCode);
+    if (id != null)
+      return id;
+
+    int stateId = numStates++;
+    stateIds.put(stateCode, stateId);
+    stateCodes.add(stateCode);
+    stateNames.add(stateName);
+
+    if (stateId == fires.length) {
+      int capacity = Math.max(8, fires.length * 2);
+      fires = Arrays.copyOf(fires, capacity);
+      plantedArea = Arrays.copyOf(plantedArea, capacity);
+    }
+    fires[stateId] = new int[yearCapacity * 12];
+    plantedArea[stateId] = new int[yearCapacity];
+    Arrays.fill(fires[stateId], MISSING);
+
+    return stateId;
+  }
+
+  /*----------------------------*/
+  // return id of the state or -1 if the state is unknown
+
+  public int stateId(String stateCode) {
+    Integer id = stateIds.get(stateCode);
+    return id == null ? -1 : id;
+  }
+
+  /*----------------------------*/
+  // return view index for month and year or -1 if outside the store
+
+  public int viewIdx(int month, int year) {
+    int viewIdx = (year-startYear) * 12 + month - 1;
+    if (month < 1 || month > 12 || viewIdx < 0 || viewIdx >= numViews)
+      return -1;
+    return viewIdx;
+  }
+
+  /*----------------------------*/
+  // return view index for month and year, growing the time range of the
+  // store if the year is outside it; -1 if the month is invalid
+
+  public int addView(int month, int year) {
+    if (month < 1 || month > 12)
+      return -1;
+    addYears(year, year);
+    return viewIdx(month, year);
+  }
+
+  // grow the time range to cover the years from first to last year; adding
+  // the range of many rows at once moves the data at most once for them
+  public void addYears(int firstYear, int lastYear) {
+    if (numYears > 0) {
+      firstYear = Math.min(startYear, firstYear);
+      lastYear = Math.max(endYear(), lastYear);
+    }
+    if (firstYear != startYear || lastYear - firstYear + 1 != numYears)
+      setYears(firstYear, lastYear - firstYear + 1);
+  }
+
+  /*----------------------------*/
+  // move the time range, keeping the data of the years in both ranges; a
+  // range that only grows at the end fits in the slack of the columns
+
+  public void setYears(int newStartYear, int newNumYears) {
+    int shift = startYear - newStartYear; // years the old data moves by
+    if (shift != 0 || newNumYears > yearCapacity) {
+      int capacity = newNumYears > yearCapacity ? Math.max(newNumYears, yearCapacity * 2) : yearCapacity;
+      for (int stateId = 0; stateId < numStates; stateId++) {
+        fires[stateId] = moveYears(fires[stateId], numViews, shift*12, capacity*12, MISSING);
+        plantedArea[stateId] = moveYears(plantedArea[stateId], numYears, shift, capacity, 0);
+      }
+      yearCapacity = capacity;
+    } else if (newNumYears < numYears) {
+      for (int stateId = 0; stateId < numStates; stateId++) {
+        Arrays.fill(fires[stateId], newNumYears*12, numViews, MISSING);
+        Arrays.fill(plantedArea[stateId], newNumYears, numYears, 0);
+      }
+    }
+    startYear = newStartYear;
+    numYears = newNumYears;
+    numViews = numYears * 12;
+  }
+
+  // copy the first count values shifted into a new array of the length,
+  // filling the rest
+  public int[] moveYears(int[] values, int count, int shift, int length, int fill) {
+    int[] moved = new int[length];
+    Arrays.fill(moved, fill);
+    int from = Math.max(0, -shift);
+    int to = Math.min(count, length - shift);
+    if (to > from)
+      System.arraycopy(values, from, moved, from + shift, to - from);
+    return moved;
+  }
+
+  /*----------------------------*/
+  // return year index for year or -1 if outside the store
+
+  public int yearIdx(int year) {
+    int yearIdx = year - startYear;
+    if (yearIdx < 0 || yearIdx >= numYears)
+      return -1;
+    return yearIdx;
+  }
+
+  /*----------------------------*/
+
+  public void setFires(int stateId, int viewIdx, int numOfFires) {
+    fires[stateId][viewIdx] = numOfFires;
+  }
+
+  public boolean hasData(int stateId, int viewIdx) {
+    return fires[stateId][viewIdx] != MISSING;
+  }
+
+  // whether any state has data for the month, months without are gaps
+  public boolean hasData(int viewIdx) {
+    for (int stateId = 0; stateId < numStates; stateId++) {
+      if (fires[stateId][viewIdx] != MISSING)
+        return true;
+    }
+    return false;
+  }
+
+  public boolean hasYearData(int yearIdx) {
+    for (int viewIdx = yearIdx*12; viewIdx < yearIdx*12 + 12; viewIdx++) {
+      if (hasData(viewIdx))
+        return true;
+    }
+    return false;
+  }
+
+  /*----------------------------*/
+  // return the next month with data in the given direction (+1 or -1),
+  // wrapping around, or the given month if no other month has data
+
+  public int nextView(int viewIdx, int direction) {
+    for (int i = 1; i <= numViews; i++) {
+      int next = Math.floorMod(viewIdx + i*direction, numViews);
+      if (hasData(next))
+        return next;
+    }
+    return viewIdx;
+  }
+
+  public int endYear() {
+    return startYear + numYears - 1;
+  }
+
+  /*----------------------------*/
+  // collect statistics of every metric in one pass over its column;
+  // states without planted forests have no area rather than zero
+
+  public void computeStats() {
+    firesStats = new MetricStats();
+    plantedStats = new MetricStats();
+    for (int stateId = 0; stateId < numStates; stateId++) {
+      for (int viewIdx = 0; viewIdx < numViews; viewIdx++) {
+        if (fires[stateId][viewIdx] != MISSING)
+          firesStats.add(fires[stateId][viewIdx]);
+      }
+      for (int yearIdx = 0; yearIdx < numYears; yearIdx++) {
+        if (plantedArea[stateId][yearIdx] != 0)
+          plantedStats.add(plantedArea[stateId][yearIdx]);
+      }
+    }
+  }
+
+  // planted area is stored once per year and joined to every month of it
+  public int plantedArea(int stateId, int viewIdx) {
+    return plantedArea[stateId][viewIdx / 12];
+  }
+}
+
+
+
+
+// live ingestion of fires_data.csv: a background thread polls the file and
+// reads only the rows appended since the last poll, or the whole file when
+// it was rewritten. A file replaced by another one (a new file key, such
+// as the inode), a shorter file or changed bytes in the last
+// WATCH_WINDOW bytes read so far tell a rewrite from an append, so a poll
+// costs the appended bytes, not the size of the file. Rows are streamed
+// from the file and handed to the animation thread in batches of
+// CSV_BATCH_ROWS, which are applied to the store there, so only the views
+// whose values changed are rendered again.
+//
+//   --watch-interval=<ms>   poll interval (1000), 0 turns watching off
+
+static final int WATCH_WINDOW = 1 << 16; // bytes before the offset compared on every change
+
+class FiresWatcher implements Runnable {
+  File file;
+  int interval; // poll interval in ms
+  ConcurrentLinkedQueue<FireBatch> batches; // read batches waiting to be applied
+  Thread thread;
+
+  long offset; // bytes of the file read so far, always at a row boundary
+  long lastModified;
+  Object fileKey; // identity of the file read, null where the file system has none
+  long checksum; // CRC-32 of the WATCH_WINDOW bytes before offset, to detect rewrites
+  String[] header; // column names of the file, for appended rows
+  HashSet<Long> seen; // rows of the rewritten file being applied, on the animation thread
+
+  /*----------------------------*/
+  // take the current state of the file as already loaded
+
+  FiresWatcher(File file, int interval) {
+    this.file = file;
+    this.interval = interval;
+    batches = new ConcurrentLinkedQueue<FireBatch>();
+    offset = file.length();
+    lastModified = file.lastModified();
+    try {
+      fileKey = fileKey();
+      checksum = windowChecksum(offset);
+      CsvReader rows = new CsvReader(file.getName(), new FileInputStream(file));
+      try {
+        rows.readHeader();
+      } finally {
+        rows.close();
+      }
+      header = rows.header;
+    } catch (IOException e) {
+      offset = 0;
+    }
+  }
+
+  public void start() {
+    thread = new Thread(this, "fires-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    if (thread != null)
+      thread.interrupt();
+  }
+
+  public FireBatch poll() {
+    return batches.poll();
+  }
+
+  /*----------------------------*/
+
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(interval);
+        check();
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        println("watching " + file + " failed: " + e); // file is being replaced, retry
+      }
+    }
+  }
+
+  /*----------------------------*/
+  // read what changed since the last check
+
+  public void check() throws IOException {
+    long length = file.length();
+    long modified = file.lastModified();
+    if (length == offset && modified == lastModified)
+      return;
+
+    // the file was appended to if it is the same file, not shorter and the
+    // end of what was read is unchanged
+    Object key = fileKey();
+    boolean appended = offset > 0 && length >= offset && (key == null ? fileKey == null : key.equals(fileKey)) &&
+      windowChecksum(offset) == checksum;
+    long from = appended ? offset : 0;
+
+    // leave an incomplete last row for the next check
+    long end = rowsEnd(from, length);
+    if (end == from && appended) {
+      lastModified = modified;
+      return;
+    }
+
+    // appended rows are numbered from the first of them
+    CsvReader rows = new CsvReader(appended ? file.getName() + ", appended" : file.getName(),
+      new FileRange(file, from, end));
+    try {
+      if (appended) {
+        rows.header = header;
+      } else { // a whole file starts with the header
+        rows.readHeader();
+        header = rows.header;
+      }
+      FireBatch batch = null;
+      do {
+        rows.rowsLeft = CSV_BATCH_ROWS;
+        boolean first = batch == null;
+        batch = readFireBatch(rows, !appended);
+        batch.first = first;
+        batch.last = rows.rowsLeft != 0;
+        // an emptied file is most likely being rewritten
+        if (batch.size() > 0 || !(batch.first && batch.last))
+          batches.add(batch);
+      } while (!batch.last);
+    } finally {
+      rows.close();
+    }
+    rows.errors.report();
+
+    offset = end;
+    lastModified = modified;
+    fileKey = key;
+    checksum = windowChecksum(end);
+  }
+
+  /*----------------------------*/
+  // end of the last whole row in the file between the offsets, from if
+  // there is none
+
+  public long rowsEnd(long from, long to) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] block = new byte[1 << 16];
+      for (long end = to; end > from; end -= block.length) {
+        int n = (int) Math.min(block.length, end - from);
+        input.seek(end - n);
+        input.readFully(block, 0, n);
+        for (int i = n - 1; i >= 0; i--) {
+          if (block[i] == '\n')
+            return end - n + i + 1;
+        }
+      }
+      return from;
+    } finally {
+      input.close();
+    }
+  }
+
+  /*----------------------------*/
+
+  // CRC-32 of the WATCH_WINDOW bytes of the file before the offset, or
+  // of all of them in a shorter file
+  public long windowChecksum(long to) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] window = new byte[(int) Math.min(WATCH_WINDOW, to)];
+      input.seek(to - window.length);
+      input.readFully(window);
+      CRC32 crc = new CRC32();
+      crc.update(window);
+      return crc.getValue();
+    } finally {
+      input.close();
+    }
+  }
+
+  public Object fileKey() throws IOException {
+    return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+  }
+}
+
+//////////////////////////////////
+
+// a part of a file as a stream
+
+class FileRange extends InputStream {
+  RandomAccessFile file;
+  long left; // bytes still to read
+
+  FileRange(File file, long from, long to) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    try {
+      this.file.seek(from);
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+    left = to - from;
+  }
+
+  public int read() throws IOException {
+    if (left <= 0)
+      return -1;
+    left--;
+    return file.read();
+  }
+
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    if (left <= 0)
+      return -1;
+    int n = file.read(bytes, off, (int) Math.min(len, left));
+    if (n > 0)
+      left -= n;
+    return n;
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+}
+
+//////////////////////////////////
+
+// rows read by the watcher in a batch of a check, kept as columns
+
+class FireBatch {
+  boolean complete; // of the whole file, rows missing from it are removed after its last batch
+  boolean first; // the first and the last batch of a check
+  boolean last;
+  ArrayList<String> stateCodes = new ArrayList<String>();
+  ArrayList<String> stateNames = new ArrayList<String>();
+  IntList months = new IntList();
+  IntList years = new IntList();
+  IntList fires = new IntList();
+  int firstYear = Integer.MAX_VALUE; // years of the rows with a valid month
+  int lastYear = Integer.MIN_VALUE;
+
+  FireBatch(boolean complete) {
+    this.complete = complete;
+  }
+
+  public void add(String stateCode, String stateName, int month, int year, int numOfFires) {
+    stateCodes.add(stateCode);
+    stateNames.add(stateName);
+    months.append(month);
+    years.append(year);
+    fires.append(numOfFires);
+    if (month >= 1 && month <= 12) {
+      firstYear = Math.min(firstYear, year);
+      lastYear = Math.max(lastYear, year);
+    }
+  }
+
+  public int size() {
+    return fires.size();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// apply batches read by the watcher to the store and invalidate the views,
+// details and geometry they touch; called on the animation thread, with
+// the render workers held off while the data changes (see renderLock)
+
+public void applyFireUpdates() {
+  if (firesWatcher == null)
+    return;
+
+  FireBatch batch;
+  while ((batch = firesWatcher.poll()) != null) {
+    // render workers finish what they are drawing first and wait meanwhile
+    renderLock.writeLock().lock();
+    try {
+      applyFireBatch(batch);
+    } finally {
+      renderLock.writeLock().unlock();
+    }
+  }
+}
+
+public void applyFireBatch(FireBatch batch) {
+  if (startupCache != null)
+    startupCache.dataChanged(); // it holds the data as it was at launch
+  int numStates = store.numStates;
+  int startYear = store.startYear;
+  int numViews = store.numViews;
+  if (batch.complete && batch.first)
+    firesWatcher.seen = new HashSet<Long>(); // state id << 32 | year*12 + month
+  HashSet<Long> seen = batch.complete ? firesWatcher.seen : null;
+  BitSet changedViews = new BitSet();
+  BitSet changedStates = new BitSet();
+
+  if (batch.firstYear <= batch.lastYear)
+    store.addYears(batch.firstYear, batch.lastYear);
+  for (int i = 0; i < batch.size(); i++) {
+    int viewIdx = store.addView(batch.months.get(i), batch.years.get(i));
+    if (viewIdx < 0)
+      continue;
+    int stateId = store.internState(batch.stateCodes.get(i), batch.stateNames.get(i));
+    if (seen != null)
+      seen.add((long)stateId << 32 | (store.startYear*12 + viewIdx));
+
+    int numOfFires = batch.fires.get(i);
+    if (store.fires[stateId][viewIdx] != numOfFires) {
+      store.setFires(stateId, viewIdx, numOfFires);
+      changedViews.set(viewIdx);
+      changedStates.set(stateId);
+    }
+  }
+
+  // a rewritten file may have dropped rows
+  if (seen != null && batch.last) {
+    firesWatcher.seen = null;
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+        if (store.hasData(stateId, viewIdx) && !seen.contains((long)stateId << 32 | (store.startYear*12 + viewIdx))) {
+          store.setFires(stateId, viewIdx, FactStore.MISSING);
+          changedViews.set(viewIdx);
+          changedStates.set(stateId);
+        }
+      }
+    }
+  }
+
+  if (store.numStates != numStates || store.startYear != startYear || store.numViews != numViews) {
+    // new states need geometry, hit-testing and entries, a new time range
+    // moves the view indexes and timelines; rebuild them all, with scales
+    // for the new data as every view is rendered again anyway
+    println("live update extended the data to " + store.numStates + " states, " +
+      store.startYear + "-" + store.endYear());
+    store.computeStats();
+    timeCube = new TimeCube(store);
+    createScales();
+    correlations = new Correlations(store, correlations.maxLag);
+    rankings = new Rankings(store, timeCube);
+    loadStatePaths();
+    stateIndex = new StateIndex(statePaths);
+    stateMeshes = new StateMeshes(statePaths);
+    thisStateEntries = getStateEntries(thisMonth, thisYear);
+    selectView(thisMonth, thisYear);
+    createLayout();
+    createViews();
+    return;
+  }
+
+  if (changedViews.isEmpty())
+    return; // the states changed with the views
+
+  for (int stateId = changedStates.nextSetBit(0); stateId >= 0; stateId = changedStates.nextSetBit(stateId+1)) {
+    timeCube.update(stateId);
+    correlations.invalidate(stateId);
+  }
+  for (int viewIdx = changedViews.nextSetBit(0); viewIdx >= 0; viewIdx = changedViews.nextSetBit(viewIdx+1)) {
+    rankings.update(viewIdx);
+    if (viewCache != null)
+      viewCache.invalidate(viewIdx);
+  }
+  if (paletteRenderer != null)
+    paletteRenderer.invalidate();
+  tileCache.invalidate();
+  if (thumbnails != null)
+    thumbnails.invalidate();
+  detailsLayer.invalidate(); // yearly totals and trends depend on every month
+  sidebarLayer.invalidate();
+  gridLayer.invalidate();
+  println("live update changed " + changedViews.cardinality() + " months");
+}
+
+/*----------------------------------------------------------------------*/
+// read rows of fires_data.csv into a batch, skipping rows that cannot be
+// read; daily counts (from --hotspots --daily) are refused rather than
+// read as months
+
+public FireBatch readFireBatch(CsvReader rows, boolean complete) throws IOException {
+  if (rows.column("Date", -1) >= 0)
+    throw new IOException(rows.name + " holds daily counts, aggregate the hotspots without --daily");
+  int codeCol = rows.column("State code", 0);
+  int nameCol = rows.column("State name", 1);
+  int monthCol = rows.column("Month", 2);
+  int yearCol = rows.column("Year", 3);
+  int firesCol = rows.column("Number of fires", 4);
+
+  FireBatch batch = new FireBatch(complete);
+  while (rows.next()) {
+    String stateCode = rows.string(codeCol);
+    String stateName = rows.string(nameCol);
+    int month = rows.intField(monthCol);
+    int year = rows.intField(yearCol);
+    int numOfFires = Math.round(rows.floatField(firesCol));
+    if (!rows.failed())
+      batch.add(stateCode, stateName, month, year, numOfFires);
+  }
+  return batch;
+}
+
+// small multiples of the map: the months of the shown year, the shown month
+// of every year or every month at once, side by side in a grid of
+// thumbnails. Key g switches from the single map to each grid in turn and
+// back, --grid=<layout> starts with one (off, year, month or all).
+//
+// Thumbnails are recoloured as the palette renderer recolours views, from
+// a pyramid of its state raster halved at every level, whose pixels keep
+// the share of every state they cover so state edges stay smooth at any
+// size. A cell uses the smallest level at least its size, so a thumbnail
+// costs a lookup per pixel of the cell, not of the map; thumbnails are
+// kept until the data or the map mode changes, and missing ones are
+// composed within a time budget per frame. The state under the mouse is
+// highlighted in every cell and clicking a cell shows its month on the map.
+
+static final int GRID_OFF = 0;
+static final int GRID_YEAR = 1; // the months of the shown year
+static final int GRID_MONTH = 2; // the shown month of every year
+static final int GRID_ALL = 3; // every month, a row per year
+String[] gridNames = new String[] {"off", "year", "month", "all"};
+
+static final int GRID_LABEL_HEIGHT = 18; // pixels above every thumbnail
+static final int GRID_GAP = 8; // pixels between the cells
+static final int GRID_MIN_LEVEL_SIZE = 16; // smallest thumbnail level, pixels
+static final long GRID_COMPOSE_NS = 4000000; // time for composing thumbnails per frame
+
+public int gridLayout(String name) {
+  for (int layout = 0; layout < gridNames.length; layout++) {
+    if (gridNames[layout].equals(name))
+      return layout;
+  }
+  throw new IllegalArgumentException("unknown grid " + name + ", expected off, year, month or all");
+}
+
+//////////////////////////////////
+
+// the state raster of a palette renderer at halving sizes, with the
+// thumbnails composed from it
+
+class ThumbnailPyramid {
+  PaletteRenderer base; // level 0, the raster of the full view
+  int[] widths; // size of every level
+  int[] heights;
+  int[][] offsets; // start of the states of every pixel, per level from 1, one more ending the last
+  int[][] ids; // state id plus one of the states in the pixels
+  float[][] weights; // share of the pixel the state covers
+  byte[][] outlines; // coverage of one pixel wide state outlines at every level
+  int[] palette;
+  HashMap<Integer, PImage> thumbnails = new HashMap<Integer, PImage>(); // by view key, all of one level
+  int thumbnailLevel = -1;
+
+  /*----------------------------*/
+
+  ThumbnailPyramid(PaletteRenderer base, Path2D[] statePaths) {
+    this.base = base;
+    palette = new int[base.palette.length];
+
+    int numLevels = 1;
+    for (int w = base.viewWidth, h = base.viewHeight; (w+1)/2 >= GRID_MIN_LEVEL_SIZE && (h+1)/2 >= GRID_MIN_LEVEL_SIZE;
+      w = (w+1)/2, h = (h+1)/2)
+      numLevels++;
+    widths = new int[numLevels];
+    heights = new int[numLevels];
+    offsets = new int[numLevels][];
+    ids = new int[numLevels][];
+    weights = new float[numLevels][];
+    outlines = new byte[numLevels][];
+
+    widths[0] = base.viewWidth;
+    heights[0] = base.viewHeight;
+    outlines[0] = base.outlines;
+    for (int level = 1; level < numLevels; level++) {
+      widths[level] = (widths[level-1] + 1) / 2;
+      heights[level] = (heights[level-1] + 1) / 2;
+      downsample(level);
+      // outlines drawn at the size of the level rather than downsampled,
+      // which would fade them out
+      float scale = levelScale(level);
+      outlines[level] = rasteriseOutlines(statePaths, widths[level], heights[level], scale, 1 / scale);
+    }
+  }
+
+  /*----------------------------*/
+  // box filter the level above into the level: every pixel gets the states
+  // of the (up to) four pixels it covers, with their shares summed
+
+  public void downsample(int level) {
+    int pw = widths[level-1];
+    int ph = heights[level-1];
+    int w = widths[level];
+    int h = heights[level];
+    int[] off = new int[w*h + 1];
+    int[] levelIds = new int[w*h + w*h/4];
+    float[] levelWeights = new float[levelIds.length];
+    int[] pixelIds = new int[palette.length]; // states of the pixel being filtered
+    float[] pixelWeights = new float[palette.length];
+
+    int n = 0;
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        int numIds = 0;
+        int lastX = min(2*x + 1, pw - 1);
+        int lastY = min(2*y + 1, ph - 1);
+        float share = 1f / ((lastX - 2*x + 1) * (lastY - 2*y + 1));
+        for (int py = 2*y; py <= lastY; py++) {
+          for (int px = 2*x; px <= lastX; px++) {
+            int p = py*pw + px;
+            int from = level == 1 ? p : offsets[level-1][p];
+            int to = level == 1 ? p + 1 : offsets[level-1][p+1];
+            for (int j = from; j < to; j++) {
+              int id = level == 1 ? base.stateIds[j] & 0xffffff : ids[level-1][j];
+              float weight = level == 1 ? share : weights[level-1][j] * share;
+              int k = 0;
+              while (k < numIds && pixelIds[k] != id)
+                k++;
+              if (k == numIds) {
+                pixelIds[numIds] = id;
+                pixelWeights[numIds++] = 0;
+              }
+              pixelWeights[k] += weight;
+            }
+          }
+        }
+
+        if (n + numIds > levelIds.length) {
+          levelIds = Arrays.copyOf(levelIds, levelIds.length * 3/2 + numIds);
+          levelWeights = Arrays.copyOf(levelWeights, levelIds.length);
+        }
+        System.arraycopy(pixelIds, 0, levelIds, n, numIds);
+        System.arraycopy(pixelWeights, 0, levelWeights, n, numIds);
+        n += numIds;
+        off[y*w + x + 1] = n;
+      }
+    }
+    offsets[level] = off;
+    ids[level] = Arrays.copyOf(levelIds, n);
+    weights[level] = Arrays.copyOf(levelWeights, n);
+  }
+
+  // pixels per map unit at the level
+  public float levelScale(int level) {
+    return base.viewScale * widths[level] / base.viewWidth;
+  }
+
+  /*----------------------------*/
+  // smallest level at least the size, level 0 if none is
+
+  public int level(float w, float h) {
+    int level = widths.length - 1;
+    while (level > 0 && (widths[level] < w || heights[level] < h))
+      level--;
+    return level;
+  }
+
+  /*----------------------------*/
+  // return the thumbnail of the month at the level, composed if it is
+  // missing and compose is true, otherwise null
+
+  public PImage get(int viewIdx, int level, boolean compose) {
+    if (level != thumbnailLevel) {
+      thumbnails.clear();
+      thumbnailLevel = level;
+    }
+    PImage thumbnail = thumbnails.get(viewKey(viewIdx));
+    if (thumbnail == null && compose) {
+      thumbnail = compose(viewIdx, level);
+      thumbnails.put(viewKey(viewIdx), thumbnail);
+    }
+    return thumbnail;
+  }
+
+  // compose the thumbnails again on their next request, after the data or
+  // the map mode changed
+  public void invalidate() {
+    thumbnails.clear();
+  }
+
+  /*----------------------------*/
+  // a lookup per pixel of the level, mixing the colours of the states the
+  // pixel covers by their shares, whitened by the outlines
+
+  public PImage compose(int viewIdx, int level) {
+    int w = widths[level];
+    int h = heights[level];
+    BufferedImage frame = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+    base.fillPalette(palette, viewIdx, viewIdx, 0);
+
+    int[] levelIds = ids[level];
+    float[] levelWeights = weights[level];
+    byte[] coverage = outlines[level];
+    for (int p = 0; p < pixels.length; p++) {
+      int c;
+      if (level == 0) {
+        c = palette[base.stateIds[p] & 0xffffff];
+      } else if (offsets[level][p+1] - offsets[level][p] == 1) {
+        c = palette[levelIds[offsets[level][p]]];
+      } else {
+        float r = 0.5f, g = 0.5f, b = 0.5f;
+        for (int j = offsets[level][p]; j < offsets[level][p+1]; j++) {
+          int stateClr = palette[levelIds[j]];
+          r += ((stateClr >> 16) & 0xff) * levelWeights[j];
+          g += ((stateClr >> 8) & 0xff) * levelWeights[j];
+          b += (stateClr & 0xff) * levelWeights[j];
+        }
+        c = 0xff000000 | min(255, (int) r) << 16 | min(255, (int) g) << 8 | min(255, (int) b);
+      }
+      int cover = coverage[p] & 0xff;
+      pixels[p] = cover == 0 ? c : mixColor(c, 0xffffffff, cover + (cover >> 7));
+    }
+    base.drawPlantedCircles(frame, levelScale(level), viewIdx, viewIdx, 0);
+
+    PImage thumbnail = createImage(w, h, ARGB);
+    thumbnail.loadPixels();
+    System.arraycopy(pixels, 0, thumbnail.pixels, 0, pixels.length);
+    thumbnail.updatePixels();
+    return thumbnail;
+  }
+}
+
+//////////////////////////////////
+
+// the cells of the grid laid out in an area of the screen, each the
+// thumbnail of a month under its label
+
+class Grid {
+  int layout = GRID_OFF;
+  int[] views = new int[0]; // view index of every cell
+  int cols;
+  int rows;
+  float x; // top left corner of the first cell
+  float y;
+  float cellWidth; // thumbnail, label and gap
+  float cellHeight;
+  float thumbWidth;
+  float thumbHeight;
+  float laidOutWidth; // what the cells were laid out for
+  float laidOutHeight;
+  int laidOutLayout = -1;
+  int laidOutView = -1;
+
+  /*----------------------------*/
+  // lay the cells out again if the layout, the area or the shown month
+  // changed which cells there are; returns whether it did
+
+  public boolean update(float areaX, float areaY, float areaWidth, float areaHeight) {
+    int shownView = layout == GRID_YEAR ? thisViewIdx / 12 : layout == GRID_MONTH ? thisViewIdx % 12 : 0;
+    if (layout == laidOutLayout && shownView == laidOutView && areaWidth == laidOutWidth && areaHeight == laidOutHeight &&
+      views.length == cellCount())
+      return false;
+    laidOutLayout = layout;
+    laidOutView = shownView;
+    laidOutWidth = areaWidth;
+    laidOutHeight = areaHeight;
+
+    views = new int[cellCount()];
+    for (int i = 0; i < views.length; i++) {
+      if (layout == GRID_YEAR)
+        views[i] = thisViewIdx / 12 * 12 + i;
+      else if (layout == GRID_MONTH)
+        views[i] = i * 12 + thisViewIdx % 12;
+      else
+        views[i] = i;
+    }
+    if (views.length == 0)
+      return true;
+
+    // the number of columns giving the largest thumbnails, a year per row
+    // when showing every month
+    float best = 0;
+    for (int c = 1; c <= views.length; c++) {
+      if (layout == GRID_ALL && c != 12)
+        continue;
+      int r = (views.length + c - 1) / c;
+      float s = min((areaWidth / c - GRID_GAP) / graphicsWidth, (areaHeight / r - GRID_LABEL_HEIGHT - GRID_GAP) / graphicsHeight);
+      if (s > best) {
+        best = s;
+        cols = c;
+        rows = r;
+      }
+    }
+    thumbWidth = graphicsWidth * best;
+    thumbHeight = graphicsHeight * best;
+    cellWidth = thumbWidth + GRID_GAP;
+    cellHeight = thumbHeight + GRID_LABEL_HEIGHT + GRID_GAP;
+    x = areaX + (areaWidth - cols * cellWidth) / 2;
+    y = areaY + (areaHeight - rows * cellHeight) / 2;
+    return true;
+  }
+
+  public int cellCount() {
+    if (layout == GRID_YEAR)
+      return 12;
+    if (layout == GRID_MONTH)
+      return store.numYears;
+    return layout == GRID_ALL ? store.numViews : 0;
+  }
+
+  /*----------------------------*/
+
+  public float thumbX(int cell) {
+    return x + (cell % cols) * cellWidth + GRID_GAP/2f;
+  }
+
+  public float thumbY(int cell) {
+    return y + (cell / cols) * cellHeight + GRID_LABEL_HEIGHT + GRID_GAP/2f;
+  }
+
+  // the month above the cell, or the year in the grid of a month; in the
+  // grid of every month only the first row is labelled, the rows by year
+  public String label(int cell) {
+    int[] my = getMonthYear(views[cell]);
+    if (layout == GRID_MONTH)
+      return String.valueOf(my[1]);
+    return layout == GRID_YEAR || cell < 12 ? nameOfMonths[my[0]-1].substring(0, 3) : null;
+  }
+
+  /*----------------------------*/
+  // the cell whose thumbnail is at the screen point, -1 if none is
+
+  public int cellAt(float screenX, float screenY) {
+    if (views.length == 0 || screenX < x || screenY < y)
+      return -1;
+    int cell = PApplet.parseInt((screenY - y) / cellHeight) * cols + PApplet.parseInt((screenX - x) / cellWidth);
+    if ((screenX - x) / cellWidth >= cols || cell >= views.length)
+      return -1;
+    float tx = screenX - thumbX(cell);
+    float ty = screenY - thumbY(cell);
+    return tx >= 0 && tx < thumbWidth && ty >= 0 && ty < thumbHeight ? cell : -1;
+  }
+
+  // id of the state at the screen point in the thumbnail of the cell, -1 if
+  // there is none
+  public int stateAt(int cell, float screenX, float screenY) {
+    float scale = thumbWidth / graphicsWidth * scaleFactor; // screen pixels per map unit
+    return stateIndex.stateAt((screenX - thumbX(cell)) / scale, (screenY - thumbY(cell)) / scale);
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// the thumbnail pyramid, built on first use from the palette renderer's
+// raster, or a raster of its own when views are rendered and cached
+
+public ThumbnailPyramid thumbnails() {
+  if (thumbnails == null) {
+    Stage stage = stageTimes.start("thumbnail pyramid");
+    PaletteRenderer base = paletteRenderer != null ? paletteRenderer :
+      new PaletteRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor);
+    thumbnails = new ThumbnailPyramid(base, statePaths);
+    stage.stop();
+  }
+  return thumbnails;
+}
+
+/*----------------------------------------------------------------------*/
+// show the grid in the layout, or the single map for GRID_OFF
+
+public void setGridLayout(int layout) {
+  grid.layout = layout;
+  panning = false;
+  gridLayer.invalidate();
+  detailsLayer.invalidate();
+  sidebarLayer.invalidate();
+}
+
+/*----------------------------------------------------------------------*/
+// draw the thumbnails of the cells, composing the missing ones until the
+// time for this frame is used up, and outline the state under the mouse in
+// every cell that has a value for it
+
+public void drawGrid(int hoveredState) {
+  ThumbnailPyramid pyramid = thumbnails();
+  int level = pyramid.level(grid.thumbWidth, grid.thumbHeight);
+  long deadline = System.nanoTime() + GRID_COMPOSE_NS;
+  for (int cell = 0; cell < grid.views.length; cell++) {
+    float x = grid.thumbX(cell);
+    float y = grid.thumbY(cell);
+    PImage thumbnail = pyramid.get(grid.views[cell], level, System.nanoTime() < deadline);
+    if (thumbnail != null) {
+      image(thumbnail, x, y, grid.thumbWidth, grid.thumbHeight);
+    } else {
+      noStroke();
+      fill(245);
+      rect(x, y, grid.thumbWidth, grid.thumbHeight);
+    }
+    if (grid.views[cell] == thisViewIdx) {
+      noFill();
+      stroke(darkGray);
+      strokeWeight(1);
+      rect(x - 2, y - 2, grid.thumbWidth + 4, grid.thumbHeight + 4);
+    }
+  }
+
+  if (hoveredState < 0)
+    return;
+  for (int cell = 0; cell < grid.views.length; cell++) {
+    if (!stateHasData(hoveredState, grid.views[cell]))
+      continue;
+    push();
+    translate(grid.thumbX(cell), grid.thumbY(cell));
+    scale(grid.thumbWidth / graphicsWidth * scaleFactor);
+    stateMeshes.draw(g, hoveredState, stateColor(hoveredState, grid.views[cell]), 0, 0);
+    pop();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// labels of the cells, and the fires of the state under the mouse in the
+// month of the cell it is in
+
+public void displayGridLabels(PGraphics pg, int hoveredCell, int hoveredState) {
+  pg.textSize(13);
+  for (int cell = 0; cell < grid.views.length; cell++) {
+    pg.fill(grid.views[cell] == thisViewIdx || cell == hoveredCell ? color(0) : darkGray);
+    String label = grid.label(cell);
+    if (label != null) {
+      pg.textAlign(LEFT);
+      pg.text(label, grid.thumbX(cell), grid.thumbY(cell) - 5);
+    }
+    if (grid.layout == GRID_ALL && cell % 12 == 0) {
+      pg.textAlign(RIGHT);
+      pg.text(getMonthYear(grid.views[cell])[1], grid.thumbX(cell) - 8, grid.thumbY(cell) + grid.thumbHeight/2 + 5);
+    }
+  }
+
+  if (hoveredCell < 0 || hoveredState < 0)
+    return;
+  int viewIdx = grid.views[hoveredCell];
+  int[] my = getMonthYear(viewIdx);
+  String text = store.stateNames.get(hoveredState) + ", " + (mapMode == MONTHLY_MAP ? nameOfMonths[my[0]-1] + " " : "") + my[1];
+  Ranking ranking = rankings.fires(viewIdx);
+  if (ranking.rank(hoveredState) >= 0)
+    text += ": " + ranking.value(hoveredState) + " fires (rank " + (ranking.rank(hoveredState) + 1) + " of " + ranking.count + ")";
+  else
+    text += ": no data";
+  pg.textSize(14);
+  pg.textAlign(CENTER);
+  pg.fill(darkGray);
+  pg.text(text, gridLayer.x + gridLayer.pg.width/2, gridLayer.y + gridLayer.pg.height - 8);
+}
+
+
+
+
+
+// aggregation of raw satellite hotspots into the per state counts the
+// visualisation shows, started from main() with
+//
+//   --hotspots=<file>   CSV with a header naming latitude, longitude and
+//                       date columns (latitude/lat, longitude/lon/lng,
+//                       acq_date/date/timestamp/datetime)
+//   --out=<file>        output CSV in the format of fires_data.csv
+//                       (fires_data.csv)
+//   --daily             count per day instead of per month, with a Date
+//                       column in place of Month and Year, which the
+//                       visualisation does not load (fires_daily.csv)
+//   --threads=<n>       number of fork/join workers (number of cores)
+//
+// Points are projected into the coordinates of brazilLow.svg with the
+// Mercator bounds the map declares, and binned into states with the
+// hit-testing grid. The file is read in chunks of rows which fork/join
+// tasks parse and count in parallel while the next chunk is read.
+
+static final int HOTSPOT_CHUNK_ROWS = 1 << 16; // rows read and handed to the pool at once
+static final int HOTSPOT_TASK_ROWS = 4096; // rows a task counts without splitting
+
+/*----------------------------------------------------------------------*/
+// aggregate the hotspots file into the output file, run headless from main()
+
+public boolean ingestHotspots() {
+  File input = new File(stringArg("--hotspots", ""));
+  boolean daily = hasArg("--daily");
+  File output = new File(stringArg("--out", daily ? "fires_daily.csv" : "fires_data.csv"));
+  ForkJoinPool pool = new ForkJoinPool(intArg("--threads", Runtime.getRuntime().availableProcessors()));
+
+  XML svg = loadXML("brazilLow.svg");
+  ArrayList<String> codes = new ArrayList<String>();
+  ArrayList<String> names = new ArrayList<String>();
+  for (XML path : svg.getChild("g").getChildren("path")) {
+    codes.add(path.getString("id"));
+    names.add(path.getString("title"));
+  }
+  PShape shapes = new PShapeSVG(svg);
+  Path2D[] paths = new Path2D[codes.size()];
+  for (int stateId = 0; stateId < paths.length; stateId++)
+    paths[stateId] = statePath(shapes.getChild(codes.get(stateId)));
+  StateIndex index = new StateIndex(paths);
+  MapProjection projection = new MapProjection(svg, paths);
+
+  long start = System.nanoTime();
+  HotspotCounts total = new HotspotCounts(paths.length);
+  try {
+    BufferedReader reader = createReader(input.getPath());
+    try {
+      int[] columns = hotspotColumns(reader.readLine());
+      if (columns == null) {
+        println(input + " needs latitude, longitude and date columns");
+        return false;
+      }
+
+      // count chunks on the pool while the next ones are read, keeping
+      // only a few in flight so memory stays bounded for huge files
+      ArrayDeque<ForkJoinTask<HotspotCounts>> inFlight = new ArrayDeque<ForkJoinTask<HotspotCounts>>();
+      String[] rows = new String[HOTSPOT_CHUNK_ROWS];
+      int numRows = 0;
+      String row;
+      while (true) {
+        row = reader.readLine();
+        if (row != null)
+          rows[numRows++] = row;
+        if (numRows == rows.length || (row == null && numRows > 0)) {
+          inFlight.add(pool.submit(new HotspotTask(rows, 0, numRows, columns, projection, index, daily)));
+          rows = new String[HOTSPOT_CHUNK_ROWS];
+          numRows = 0;
+          if (inFlight.size() > 2 * pool.getParallelism())
+            total.add(inFlight.poll().join());
+        }
+        if (row == null)
+          break;
+      }
+      while (!inFlight.isEmpty())
+        total.add(inFlight.poll().join());
+    } finally {
+      reader.close();
+    }
+    writeHotspotCounts(total, codes, names, output, daily);
+  } catch (Exception e) {
+    println("cannot aggregate hotspots from " + input + ": " + e);
+    return false;
+  } finally {
+    pool.shutdown();
+  }
+
+  double seconds = (System.nanoTime() - start) / 1e9d;
+  println("aggregated " + total.points + " hotspots into " + output + " in " + nf((float)seconds, 0, 2) +
+    " s (" + nf((float)(total.points / seconds / 1e6), 0, 2) + " M rows/s on " + pool.getParallelism() +
+    " threads): " + total.outside + " outside the states, " + total.invalid + " invalid rows");
+  return true;
+}
+
+/*----------------------------------------------------------------------*/
+// return indexes of the latitude, longitude and date columns named in the
+// header, or null if one is missing
+
+public int[] hotspotColumns(String header) {
+  if (header == null)
+    return null;
+  int[] columns = { -1, -1, -1 };
+  String[][] names = {
+    { "latitude", "lat" },
+    { "longitude", "lon", "lng" },
+    { "acq_date", "date", "timestamp", "datetime", "time" } };
+  String[] cols = header.split(",");
+  for (int c = 0; c < columns.length; c++) {
+    for (int i = 0; i < cols.length && columns[c] < 0; i++) {
+      String col = cols[i].trim().replace("\"", "").toLowerCase();
+      for (String name : names[c]) {
+        if (col.equals(name)) {
+          columns[c] = i;
+          break;
+        }
+      }
+    }
+    if (columns[c] < 0)
+      return null;
+  }
+  return columns;
+}
+
+/*----------------------------------------------------------------------*/
+// write counts of every state for every month (or day, as yyyy-mm-dd)
+// between the first and last hotspot, months without hotspots as zero
+
+void writeHotspotCounts(HotspotCounts counts, ArrayList<String> codes, ArrayList<String> names,
+  File file, boolean daily) throws IOException {
+  PrintWriter writer = createWriter(file.getPath());
+  try {
+    writer.println(daily ? "State code,State name,Date,Number of fires" :
+      "State code,State name,Month,Year,Number of fires");
+    if (counts.buckets.isEmpty())
+      return;
+    int first = Collections.min(counts.buckets.keySet());
+    int last = Collections.max(counts.buckets.keySet());
+    for (int bucket = first; bucket <= last; bucket++) {
+      int[] bucketCounts = counts.buckets.get(bucket);
+      String date;
+      if (daily) {
+        date = java.time.LocalDate.ofEpochDay(bucket).toString();
+      } else {
+        date = (bucket % 12 + 1) + "," + (bucket / 12);
+      }
+      for (int stateId = 0; stateId < codes.size(); stateId++)
+        writer.println(csvField(codes.get(stateId)) + "," + csvField(names.get(stateId)) + "," + date + "," +
+          (bucketCounts == null ? 0 : bucketCounts[stateId]));
+    }
+  } finally {
+    writer.close();
+  }
+}
+
+//////////////////////////////////
+
+// Mercator projection of longitude and latitude into map coordinates, set
+// up from the bounds an amcharts SVG map declares
+
+class MapProjection {
+  float left; // longitude of the left edge of the map
+  float right;
+  double top; // Mercator y of the top edge
+  double bottom;
+  float mapWidth; // size of the map in its own coordinates
+  float mapHeight;
+
+  /*----------------------------*/
+
+  MapProjection(XML svg, Path2D[] statePaths) {
+    XML bounds = svg.getChild("defs").getChild("amcharts:ammap");
+    if (bounds == null || !"mercator".equals(bounds.getString("projection")))
+      throw new RuntimeException("map does not declare its Mercator bounds");
+    left = bounds.getFloat("leftLongitude");
+    right = bounds.getFloat("rightLongitude");
+    top = mercatorY(bounds.getFloat("topLatitude"));
+    bottom = mercatorY(bounds.getFloat("bottomLatitude"));
+
+    // the declared bounds are the bounds of all paths, which start at 0,0
+    Rectangle2D all = new Rectangle2D.Float();
+    for (Path2D state : statePaths) {
+      if (state != null)
+        all.add(state.getBounds2D());
+    }
+    mapWidth = (float) all.getMaxX();
+    mapHeight = (float) all.getMaxY();
+  }
+
+  /*----------------------------*/
+
+  public float x(float longitude) {
+    return (longitude - left) / (right - left) * mapWidth;
+  }
+
+  public float y(float latitude) {
+    return (float) ((top - mercatorY(latitude)) / (top - bottom) * mapHeight);
+  }
+
+  public double mercatorY(float latitude) {
+    return Math.log(Math.tan(Math.PI/4 + Math.toRadians(latitude)/2));
+  }
+}
+
+//////////////////////////////////
+
+// hotspot counts per state and month (or day), kept sparse by time bucket
+
+class HotspotCounts {
+  int numStates;
+  HashMap<Integer, int[]> buckets = new HashMap<Integer, int[]>(); // year*12 + month-1 or epoch day -> counts by state id
+  long points; // rows counted into a state
+  long outside; // rows outside every state
+  long invalid; // rows that could not be parsed
+
+  HotspotCounts(int numStates) {
+    this.numStates = numStates;
+  }
+
+  public void count(int bucket, int stateId) {
+    int[] counts = buckets.get(bucket);
+    if (counts == null) {
+      counts = new int[numStates];
+      buckets.put(bucket, counts);
+    }
+    counts[stateId]++;
+    points++;
+  }
+
+  public void add(HotspotCounts other) {
+    for (Map.Entry<Integer, int[]> entry : other.buckets.entrySet()) {
+      int[] counts = buckets.get(entry.getKey());
+      if (counts == null) {
+        buckets.put(entry.getKey(), entry.getValue());
+      } else {
+        for (int stateId = 0; stateId < numStates; stateId++)
+          counts[stateId] += entry.getValue()[stateId];
+      }
+    }
+    points += other.points;
+    outside += other.outside;
+    invalid += other.invalid;
+  }
+}
+
+//////////////////////////////////
+
+// counts a range of rows, splitting it between workers while it is large
+
+class HotspotTask extends RecursiveTask<HotspotCounts> {
+  private static final long serialVersionUID = 1L; // fork/join tasks are serializable, never serialized here
+  String[] rows;
+  int from;
+  int to;
+  int[] columns; // latitude, longitude and date column
+  MapProjection projection;
+  StateIndex index;
+  boolean daily;
+
+  /*----------------------------*/
+
+  HotspotTask(String[] rows, int from, int to, int[] columns, MapProjection projection,
+    StateIndex index, boolean daily) {
+    this.rows = rows;
+    this.from = from;
+    this.to = to;
+    this.columns = columns;
+    this.projection = projection;
+    this.index = index;
+    this.daily = daily;
+  }
+
+  /*----------------------------*/
+
+  protected HotspotCounts compute() {
+    if (to - from > HOTSPOT_TASK_ROWS) {
+      int mid = (from + to) >>> 1;
+      HotspotTask second = new HotspotTask(rows, mid, to, columns, projection, index, daily);
+      second.fork();
+      HotspotCounts counts = new HotspotTask(rows, from, mid, columns, projection, index, daily).compute();
+      counts.add(second.join());
+      return counts;
+    }
+
+    HotspotCounts counts = new HotspotCounts(index.statePaths.length);
+    String[] fields = new String[3];
+    for (int i = from; i < to; i++) {
+      try {
+        if (!hotspotFields(rows[i], columns, fields)) {
+          counts.invalid++;
+          continue;
+        }
+        float x = projection.x(Float.parseFloat(fields[1]));
+        float y = projection.y(Float.parseFloat(fields[0]));
+        int stateId = index.stateAt(x, y);
+        if (stateId < 0) {
+          counts.outside++;
+          continue;
+        }
+
+        // dates start with yyyy-mm-dd (or yyyy/mm/dd)
+        String date = fields[2];
+        int year = Integer.parseInt(date.substring(0, 4));
+        int month = Integer.parseInt(date.substring(5, 7));
+        int day = Integer.parseInt(date.substring(8, 10));
+        int bucket = daily ? (int) java.time.LocalDate.of(year, month, day).toEpochDay() : year*12 + month-1;
+        counts.count(bucket, stateId);
+      } catch (RuntimeException e) {
+        counts.invalid++; // unparsable number or date
+      }
+    }
+    return counts;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// cut the latitude, longitude and date fields out of a row without
+// splitting all of it; false if the row has too few fields
+
+public boolean hotspotFields(String row, int[] columns, String[] fields) {
+  int col = 0;
+  int start = 0;
+  int found = 0;
+  while (found < fields.length) {
+    int end = row.indexOf(',', start);
+    if (end < 0)
+      end = row.length();
+    for (int c = 0; c < columns.length; c++) {
+      if (columns[c] == col) {
+        fields[c] = row.substring(start, end).trim();
+        found++;
+      }
+    }
+    if (end == row.length())
+      break;
+    start = end + 1;
+    col++;
+  }
+  return found == fields.length;
+}
+
+// cached off-screen part of the screen: it is redrawn only after it was
+// invalidated and otherwise just drawn as an image
+
+class Layer {
+  PGraphics pg;
+  int x; // position of the layer on screen
+  int y;
+  boolean opaque; // opaque layers are cleared to the white background
+  boolean dirty;
+
+  /*----------------------------*/
+
+  Layer(int x, int y, int w, int h, boolean opaque) {
+    this.x = x;
+    this.y = y;
+    this.opaque = opaque;
+    pg = createGraphics(max(1, w), max(1, h), P2D);
+    pg.smooth(8);
+    dirty = true;
+  }
+
+  /*----------------------------*/
+  // start redrawing the layer in screen coordinates if it was invalidated;
+  // return false if it is up to date
+
+  public boolean begin() {
+    if (!dirty)
+      return false;
+
+    pg.beginDraw();
+    if (opaque)
+      pg.background(255);
+    else
+      pg.clear();
+    pg.textFont(font);
+    pg.translate(-x, -y);
+    return true;
+  }
+
+  public void end() {
+    pg.endDraw();
+    dirty = false;
+  }
+
+  /*----------------------------*/
+
+  public void invalidate() {
+    dirty = true;
+  }
+
+  public void display() {
+    image(pg, x, y);
+  }
+}
+
+
+
+// recolours views from a raster of state ids instead of drawing the state
+// shapes of every view: the map is rasterised once (or read from the
+// startup cache) into the state at every pixel and the coverage of the state outlines, and a view is then a
+// palette lookup per pixel with the planted forests circles drawn on top.
+// Any month, and any blend of two months for smooth playback, costs the
+// same and no rendered views are kept. --renderer=cached renders and caches
+// whole views instead (see ViewCache).
+
+class PaletteRenderer {
+  int viewWidth;
+  int viewHeight;
+  float viewScale;
+  int[] stateIds; // state id plus one at every pixel, 0 outside the states
+  byte[] outlines; // coverage of the state outlines at every pixel
+  int[] palette; // colour of every state id plus one
+  BufferedImage frame; // view composed on the CPU
+  int[] pixels; // pixels of the frame
+  PImage image; // the frame uploaded for display
+
+  int version; // bumped when the data changes
+  int drawnVersion = -1; // what the image shows
+  int drawnFrom;
+  int drawnTo;
+  float drawnAmount;
+
+  /*----------------------------*/
+
+  PaletteRenderer(Path2D[] statePaths, int viewWidth, int viewHeight, float viewScale) {
+    this.viewWidth = viewWidth;
+    this.viewHeight = viewHeight;
+    this.viewScale = viewScale;
+
+    if (startupCache == null || !startupCache.readRasters(this, statePaths.length)) {
+      rasterise(statePaths);
+      if (startupCache != null)
+        startupCache.writeRasters(this, statePaths.length);
+    }
+
+    palette = new int[statePaths.length + 1];
+    frame = new BufferedImage(viewWidth, viewHeight, BufferedImage.TYPE_INT_ARGB);
+    pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+    image = createImage(viewWidth, viewHeight, ARGB);
+  }
+
+  /*----------------------------*/
+  // draw the states into the id raster and the outline coverage
+
+  public void rasterise(Path2D[] statePaths) {
+    // state ids as colours, without antialiasing so no pixel mixes two ids
+    BufferedImage ids = new BufferedImage(viewWidth, viewHeight, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = ids.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+    g.scale(viewScale, viewScale);
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] == null)
+        continue;
+      g.setColor(new Color(stateId + 1));
+      g.fill(statePaths[stateId]);
+    }
+    g.dispose();
+    stateIds = ((DataBufferInt) ids.getRaster().getDataBuffer()).getData();
+
+    // antialiased outlines, which also smooth the edges of the states
+    outlines = rasteriseOutlines(statePaths, viewWidth, viewHeight, viewScale, 1);
+  }
+
+  /*----------------------------*/
+  // return the view blended from one month towards another by the amount
+  // (0..1), composed again only if it changed since the last call
+
+  public PImage get(int fromView, int toView, float amount) {
+    if (amount == 0)
+      toView = fromView;
+    if (drawnVersion != version || fromView != drawnFrom || toView != drawnTo || amount != drawnAmount) {
+      render(fromView, toView, amount);
+      image.loadPixels();
+      System.arraycopy(pixels, 0, image.pixels, 0, pixels.length);
+      image.updatePixels();
+      drawnVersion = version;
+      drawnFrom = fromView;
+      drawnTo = toView;
+      drawnAmount = amount;
+    }
+    return image;
+  }
+
+  // draw the views again on their next request, after the data changed
+  public void invalidate() {
+    version++;
+  }
+
+  /*----------------------------*/
+  // compose the view into the frame pixels; does not touch the sketch
+  // renderer, so it is safe to call from any thread
+
+  public void render(int fromView, int toView, float amount) {
+    int blend = PApplet.parseInt(amount * 256);
+    fillPalette(palette, fromView, toView, blend);
+
+    // a lookup per pixel, whitened by the outline coverage
+    for (int i = 0; i < pixels.length; i++) {
+      int c = palette[stateIds[i] & 0xffffff];
+      int coverage = outlines[i] & 0xff;
+      pixels[i] = coverage == 0 ? c : mixColor(c, 0xffffffff, coverage + (coverage >> 7));
+    }
+
+    drawPlantedCircles(frame, viewScale, fromView, toView, blend);
+  }
+
+  /*----------------------------*/
+  // colour of every state id plus one, blended from one view towards
+  // another by the amount (0..256)
+
+  public void fillPalette(int[] palette, int fromView, int toView, int blend) {
+    palette[0] = 0xffffffff;
+    for (int stateId = 0; stateId < palette.length - 1; stateId++) {
+      int from = viewColor(stateId, fromView);
+      palette[stateId + 1] = blend == 0 ? from : mixColor(from, viewColor(stateId, toView), blend);
+    }
+  }
+
+  // circles for planted forests on an image of the map drawn at the scale,
+  // growing and shrinking between the views
+  public void drawPlantedCircles(BufferedImage image, float scale, int fromView, int toView, int blend) {
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.scale(scale, scale);
+    g.setColor(new Color(green));
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      float size = lerp(plantedCircle(stateId, fromView), plantedCircle(stateId, toView), blend / 256f);
+      int[] xy = coordinatesMap.get(store.stateCodes.get(stateId));
+      if (size > 0 && xy != null) {
+        float xx = (xy[0]-graphicsX/scaleFactor);
+        float yy = (xy[1]-graphicsY/scaleFactor);
+        g.fill(new Ellipse2D.Float(xx - size/2, yy - size/2, size, size));
+      }
+    }
+    g.dispose();
+  }
+
+  /*----------------------------*/
+
+  public int viewColor(int stateId, int viewIdx) {
+    return stateHasData(stateId, viewIdx) ? stateColor(stateId, viewIdx) : 0xffffffff;
+  }
+
+  // diameter of the planted forests circle of a state, 0 if it has none
+  public float plantedCircle(int stateId, int viewIdx) {
+    int plantedArea = store.plantedArea(stateId, viewIdx);
+    return stateHasData(stateId, viewIdx) && plantedArea != 0 ? plantedSize(plantedArea) : 0;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// coverage of the state outlines, of the width in map units, of the map
+// drawn at the scale into a raster of the size
+
+public byte[] rasteriseOutlines(Path2D[] statePaths, int w, int h, float scale, float strokeWidth) {
+  BufferedImage edges = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+  Graphics2D g = edges.createGraphics();
+  g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+  g.scale(scale, scale);
+  g.setColor(Color.WHITE);
+  g.setStroke(new BasicStroke(strokeWidth));
+  for (Path2D path : statePaths) {
+    if (path != null)
+      g.draw(path);
+  }
+  g.dispose();
+  return ((DataBufferByte) edges.getRaster().getDataBuffer()).getData();
+}
+
+/*----------------------------------------------------------------------*/
+// mix two opaque colours, amount from 0 (the first) to 256 (the second)
+
+public int mixColor(int from, int to, int amount) {
+  int r = (from >> 16) & 0xff;
+  int g = (from >> 8) & 0xff;
+  int b = from & 0xff;
+  r += (((to >> 16) & 0xff) - r) * amount >> 8;
+  g += (((to >> 8) & 0xff) - g) * amount >> 8;
+  b += ((to & 0xff) - b) * amount >> 8;
+  return 0xff000000 | r << 16 | g << 8 | b;
+}
+
+// playback of the months on the wall clock rather than the frame count, so
+// that it keeps its pace however fast frames are drawn
+//
+//   --months-per-second=<n>   playback speed (1.7), from 0.1 to 60
+//   --catch-up                after a hitch show every missed month, one
+//                             per frame, instead of skipping to the month
+//                             that is due
+//
+// While playing, key r reverses the direction and keys + and - change the
+// speed.
+
+class Playback {
+  boolean playing;
+  float monthsPerSecond;
+  int direction = 1; // +1 forwards, -1 backwards
+  boolean catchUp; // show missed months rather than skipping them
+  long shownSince; // System.nanoTime() when the shown month was due
+
+  Playback(float monthsPerSecond, boolean catchUp) {
+    this.monthsPerSecond = constrain(monthsPerSecond, 0.1f, 60); // as keys + and - allow
+    this.catchUp = catchUp;
+  }
+
+  /*----------------------------*/
+
+  public void play() {
+    if (playing)
+      return;
+    playing = true;
+    shownSince = System.nanoTime();
+  }
+
+  public void pause() {
+    playing = false;
+  }
+
+  public long period() {
+    return (long) (1e9 / monthsPerSecond);
+  }
+
+  /*----------------------------*/
+  // advance to the month due at this frame, skipping months without data
+
+  public void update() {
+    if (!playing)
+      return;
+    long period = period();
+    long due = (System.nanoTime() - shownSince) / period;
+    if (due == 0)
+      return;
+
+    int steps = catchUp ? 1 : (int) Math.min(due, store.numViews);
+    shownSince += (catchUp ? 1 : due) * period;
+    int viewIdx = thisViewIdx;
+    for (int i = 0; i < steps; i++)
+      viewIdx = store.nextView(viewIdx, direction);
+    int[] my = getMonthYear(viewIdx);
+    selectView(my[0], my[1]);
+  }
+
+  /*----------------------------*/
+  // month shown next, and the fraction of the time until it is shown
+
+  public int nextView() {
+    return store.nextView(thisViewIdx, direction);
+  }
+
+  public float progress() {
+    if (!playing)
+      return 0;
+    return constrain((System.nanoTime() - shownSince) / (float) period(), 0, 1);
+  }
+
+  /*----------------------------*/
+  // change the speed or direction, keeping the progress towards the next
+  // month so the view does not jump
+
+  public void setSpeed(float monthsPerSecond) {
+    float progress = progress();
+    this.monthsPerSecond = constrain(monthsPerSecond, 0.1f, 60);
+    shownSince = System.nanoTime() - (long) (progress * period());
+  }
+
+  public void reverse() {
+    if (playing) {
+      // blending from A to B at p is blending from B to A at 1-p
+      float progress = progress();
+      int[] my = getMonthYear(nextView());
+      selectView(my[0], my[1]);
+      shownSince = System.nanoTime() - (long) ((1 - progress) * period());
+    }
+    direction = -direction;
+  }
+}
+
+// states ranked by fires in every month and year and by planted forests
+// area in every year, kept sorted so that the top states, the rank of a
+// state and its percentile are lookups. A month whose fires change is
+// sorted again on its own. Drives the ranked sidebar, which key s shows
+// and hides, and --top=<k> sets the length of (10).
+
+class Rankings {
+  FactStore store;
+  TimeCube timeCube;
+  Ranking[] months; // fires of the month, by view index
+  Ranking[] years; // fires of the whole year, by year index
+  Ranking[] planted; // planted forests area, by year index
+
+  /*----------------------------*/
+
+  Rankings(FactStore store, TimeCube timeCube) {
+    this.store = store;
+    this.timeCube = timeCube;
+    months = new Ranking[store.numViews];
+    years = new Ranking[store.numYears];
+    planted = new Ranking[store.numYears];
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++)
+      months[viewIdx] = new Ranking(store.numStates);
+    for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+      years[yearIdx] = new Ranking(store.numStates);
+      planted[yearIdx] = new Ranking(store.numStates);
+    }
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++)
+      sortMonth(viewIdx);
+    for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+      sortYear(yearIdx);
+      sortPlanted(yearIdx);
+    }
+  }
+
+  /*----------------------------*/
+  // sort a month and its year again after its fires changed; the time cube
+  // must be updated first
+
+  public void update(int viewIdx) {
+    sortMonth(viewIdx);
+    sortYear(viewIdx / 12);
+  }
+
+  public void sortMonth(int viewIdx) {
+    long[] keys = months[viewIdx].keys;
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      keys[stateId] = store.hasData(stateId, viewIdx) ? store.fires[stateId][viewIdx] : -1;
+    months[viewIdx].sort();
+  }
+
+  public void sortYear(int yearIdx) {
+    long[] keys = years[yearIdx].keys;
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      keys[stateId] = timeCube.hasYear(stateId, yearIdx) ? timeCube.yearTotal(stateId, yearIdx) : -1;
+    years[yearIdx].sort();
+  }
+
+  public void sortPlanted(int yearIdx) {
+    long[] keys = planted[yearIdx].keys;
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      keys[stateId] = store.plantedArea[stateId][yearIdx] != 0 ? store.plantedArea[stateId][yearIdx] : -1;
+    planted[yearIdx].sort();
+  }
+
+  /*----------------------------*/
+  // ranking of the fires shown in a month in the current map mode
+
+  public Ranking fires(int viewIdx) {
+    return mapMode == MONTHLY_MAP ? months[viewIdx] : years[viewIdx / 12];
+  }
+}
+
+//////////////////////////////////
+
+// states ordered by a value, largest first; states without a value (-1)
+// are left out
+
+class Ranking {
+  long[] keys; // value of every state, -1 if it has none
+  int[] order; // state ids, largest value first
+  int[] ranks; // rank of every state from 0, -1 if it has no value
+  int count; // states with a value
+  long[] sorted; // scratch space of the sort
+
+  Ranking(int numStates) {
+    keys = new long[numStates];
+    order = new int[numStates];
+    ranks = new int[numStates];
+    sorted = new long[numStates];
+  }
+
+  /*----------------------------*/
+  // sort the states by their keys, equal values by state id
+
+  public void sort() {
+    // the value in the high bits and the inverted state id in the low
+    // ones, so one sort of primitives orders both
+    for (int stateId = 0; stateId < keys.length; stateId++)
+      sorted[stateId] = (keys[stateId] + 1) << 24 | (0xffffff - stateId);
+    Arrays.sort(sorted);
+
+    count = 0;
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      int stateId = 0xffffff - (int) (sorted[i] & 0xffffff);
+      if (keys[stateId] < 0) {
+        ranks[stateId] = -1;
+        continue;
+      }
+      order[count] = stateId;
+      ranks[stateId] = count++;
+    }
+  }
+
+  /*----------------------------*/
+  // the k states with the largest values, fewer if fewer have one
+
+  public int[] top(int k) {
+    return Arrays.copyOf(order, Math.min(k, count));
+  }
+
+  // rank of a state from 0 for the largest value, -1 if it has no value
+  public int rank(int stateId) {
+    return ranks[stateId];
+  }
+
+  // share of the other states with a value that the state is above, -1 if
+  // it has no value
+  public float percentile(int stateId) {
+    if (ranks[stateId] < 0)
+      return -1;
+    return count == 1 ? 1 : (count - 1 - ranks[stateId]) / (float) (count - 1);
+  }
+
+  public long value(int stateId) {
+    return keys[stateId];
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// draw the states with the most fires in the shown month (or year), with
+// bars in their colour on the map, the state under the mouse emphasized
+
+public void displaySidebar(PGraphics pg, int x, int y, int hoveredId) {
+  Ranking ranking = rankings.fires(thisViewIdx);
+  int[] top = ranking.top(sidebarTop);
+
+  pg.textSize(14);
+  pg.textAlign(LEFT);
+  pg.fill(darkGray);
+  pg.text(mapMode == MONTHLY_MAP ? "Most fires in " + nameOfMonths[thisMonth-1] + ":" :
+    "Most fires in " + thisYear + ":", x, y);
+
+  long most = top.length == 0 ? 0 : ranking.value(top[0]);
+  int barWidth = 90;
+  for (int i = 0; i < top.length; i++) {
+    int stateId = top[i];
+    int rowY = y + 26 + i*22;
+    pg.noStroke();
+    pg.fill(stateColor(stateId, thisViewIdx));
+    pg.rect(x + 240, rowY - 11, most == 0 ? 0 : barWidth * ranking.value(stateId) / (float) most, 12);
+
+    pg.fill(stateId == hoveredId ? color(0) : darkGray);
+    pg.textAlign(LEFT);
+    pg.text((i + 1) + ". " + store.stateNames.get(stateId), x, rowY);
+    pg.textAlign(RIGHT);
+    pg.text(String.valueOf(ranking.value(stateId)), x + 230, rowY);
+  }
+}
+
+
+
+
+// checks of cases the data files of the repository do not reach, started
+// from main() with
+//
+//   --self-test    run every check, exiting with 1 if any fails
+//
+// Every check prints its name and whether it passed.
+
+public boolean selfTest() {
+  boolean passed = true;
+  try {
+    passed &= reportCheck("parallel CSV ending without a line break", checkCsvLastRow(false));
+    passed &= reportCheck("parallel CSV ending with a line break", checkCsvLastRow(true));
+    passed &= reportCheck("quoted CSV fields read back", checkCsvQuoting());
+    passed &= reportCheck("fact store grows to the years added, with gaps", checkFactStoreGrowth());
+    passed &= reportCheck("fact file read back, damaged ones refused", checkFactFile());
+    passed &= reportCheck("watcher tells appends from rewrites", checkWatcher());
+    passed &= reportCheck("If-None-Match lists, weak tags and *", checkEtagMatches());
+    passed &= reportCheck("rankings order by value, ties by state", checkRanking());
+    passed &= reportCheck("time cube sums of years and changes", checkTimeCube());
+    passed &= reportCheck("quantiles and scales of metric statistics", checkScales());
+  } catch (Exception e) { // a check that throws has failed, whatever it threw
+    println("self test failed: " + e);
+    return false;
+  }
+  return passed;
+}
+
+public boolean reportCheck(String name, boolean passed) {
+  println((passed ? "passed  " : "FAILED  ") + name);
+  return passed;
+}
+
+/*----------------------------------------------------------------------*/
+// a file of more than a chunk parsed in parallel reads every row, the last
+// one too whether a line break follows it or not
+
+public boolean checkCsvLastRow(boolean finalBreak) throws IOException {
+  StringBuilder csv = new StringBuilder("id,value\n");
+  int numRows = 0;
+  while (csv.length() < CSV_CHUNK_BYTES * 3/2) {
+    csv.append(numRows).append(',').append(2 * numRows).append('\n');
+    numRows++;
+  }
+  if (!finalBreak)
+    csv.setLength(csv.length() - 1);
+
+  final long[] read = new long[2]; // rows and the sum of their values
+  CsvErrors errors = readCsvParallel("self-test.csv", new ByteArrayInputStream(csv.toString().getBytes("UTF-8")),
+    new CsvChunks<long[]>() {
+    public long[] parse(CsvReader rows) throws IOException {
+      long[] chunk = new long[2];
+      int value = rows.column("value", 1);
+      while (rows.next()) {
+        chunk[0]++;
+        chunk[1] += rows.intField(value);
+      }
+      return chunk;
+    }
+
+    public void merge(long[] chunk) {
+      read[0] += chunk[0];
+      read[1] += chunk[1];
+    }
+  });
+  errors.report();
+  return errors.count == 0 && read[0] == numRows && read[1] == (long) numRows * (numRows - 1);
+}
+
+/*----------------------------------------------------------------------*/
+// fields written by csvField() are read back unchanged
+
+public boolean checkCsvQuoting() throws IOException {
+  String[] values = { "Acre", "Rio de Janeiro, RJ", "a \"quoted\" name", "two\nlines", "" };
+  StringBuilder csv = new StringBuilder();
+  for (int i = 0; i < values.length; i++)
+    csv.append(i == 0 ? "" : ",").append(csvField(values[i]));
+  CsvReader rows = new CsvReader("self-test.csv", new ByteArrayInputStream(csv.append('\n').toString().getBytes("UTF-8")));
+  if (!rows.next() || rows.fieldCount() != values.length)
+    return false;
+  for (int i = 0; i < values.length; i++) {
+    if (!rows.string(i).equals(values[i]))
+      return false;
+  }
+  return !rows.next();
+}
+
+/*----------------------------------------------------------------------*/
+// years added before, after and far after the range keep the values added
+// so far, and the months in between are gaps
+
+public boolean checkFactStoreGrowth() {
+  FactStore store = new FactStore();
+  int acre = store.internState("BR-AC", "Acre");
+  store.setFires(acre, store.addView(3, 2010), 30);
+  store.setFires(acre, store.addView(5, 2008), 50);
+  int para = store.internState("BR-PA", "Par\u00e1");
+  store.setFires(para, store.addView(12, 2040), 120);
+  if (store.addView(13, 2010) >= 0 || store.startYear != 2008 || store.endYear() != 2040 ||
+    store.yearCapacity < store.numYears)
+    return false;
+  store.computeStats();
+  return store.fires[acre][store.viewIdx(3, 2010)] == 30 && store.fires[acre][store.viewIdx(5, 2008)] == 50 &&
+    store.fires[para][store.viewIdx(12, 2040)] == 120 && !store.hasData(acre, store.viewIdx(4, 2010)) &&
+    !store.hasData(para, store.viewIdx(3, 2010)) && !store.hasData(store.viewIdx(1, 2020)) &&
+    store.firesStats.count == 3;
+}
+
+/*----------------------------------------------------------------------*/
+// a store written to a fact file reads back the same, and every truncation
+// of the file fails with an IOException, which loading falls back on
+
+public boolean checkFactFile() throws IOException {
+  FactStore store = new FactStore();
+  int acre = store.internState("BR-AC", "Acre");
+  int para = store.internState("BR-PA", "Par\u00e1");
+  store.setFires(acre, store.addView(1, 2010), 7);
+  store.setFires(para, store.addView(6, 2011), 9);
+  store.plantedArea[para][1] = 1500;
+
+  File file = File.createTempFile("self-test", ".bin");
+  try {
+    writeFactFile(store, file);
+    FactStore read = readFactFile(file);
+    if (read.numStates != 2 || read.startYear != 2010 || read.numYears != 2 ||
+      !read.stateNames.get(para).equals("Par\u00e1") || read.fires[acre][0] != 7 ||
+      read.fires[para][17] != 9 || read.plantedArea[para][1] != 1500 || read.hasData(acre, 1))
+      return false;
+
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    for (int length = 0; length < bytes.length; length++) {
+      Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+      try {
+        readFactFile(file);
+        return false;
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    return true;
+  } finally {
+    file.delete();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// rows appended to the watched file are read alone, while a file edited
+// in place, replaced or shortened is read whole
+
+public boolean checkWatcher() throws IOException {
+  String header = "State code,State name,Month,Year,Number of fires\n";
+  File file = File.createTempFile("self-test", ".csv");
+  File replacement = new File(file.getPath() + ".new");
+  try {
+    Files.write(file.toPath(), (header + "BR-AC,Acre,1,2010,10\nBR-AC,Acre,2,2010,20\n").getBytes("UTF-8"));
+    FiresWatcher watcher = new FiresWatcher(file, 0);
+
+    Files.write(file.toPath(), "BR-AC,Acre,3,2010,30\n".getBytes("UTF-8"), StandardOpenOption.APPEND);
+    FireBatch appended = checkWatcher(watcher, file);
+
+    RandomAccessFile edit = new RandomAccessFile(file, "rw");
+    try {
+      edit.seek(header.length() + "BR-AC,Acre,1,2010,".length());
+      edit.write('9'); // 10 becomes 90, the length stays
+    } finally {
+      edit.close();
+    }
+    FireBatch edited = checkWatcher(watcher, file);
+
+    Files.write(replacement.toPath(), (header + "BR-AC,Acre,1,2010,90\nBR-AC,Acre,2,2010,20\nBR-AC,Acre,3,2010,30\n" +
+      "BR-AC,Acre,4,2010,40\n").getBytes("UTF-8"));
+    Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    FireBatch replaced = checkWatcher(watcher, file);
+
+    Files.write(file.toPath(), (header + "BR-AC,Acre,1,2010,90\n").getBytes("UTF-8"));
+    FireBatch shortened = checkWatcher(watcher, file);
+
+    return appended != null && !appended.complete && appended.size() == 1 && appended.fires.get(0) == 30 &&
+      edited != null && edited.complete && edited.size() == 3 && edited.fires.get(0) == 90 &&
+      replaced != null && replaced.complete && replaced.size() == 4 &&
+      shortened != null && shortened.complete && shortened.size() == 1;
+  } finally {
+    file.delete();
+    replacement.delete();
+  }
+}
+
+// check the file as changed now, later than before, and return the one
+// batch read or null if there was not exactly one
+public FireBatch checkWatcher(FiresWatcher watcher, File file) throws IOException {
+  file.setLastModified(watcher.lastModified + 2000);
+  watcher.check();
+  FireBatch batch = watcher.poll();
+  return watcher.poll() == null ? batch : null;
+}
+
+/*----------------------------------------------------------------------*/
+
+public boolean checkEtagMatches() {
+  String etag = "\"1a2b-10\"";
+  return etagMatches(Arrays.asList(etag), etag) && etagMatches(Arrays.asList("W/" + etag), etag) &&
+    etagMatches(Arrays.asList("\"x\", " + etag), etag) && etagMatches(Arrays.asList("\"a,b\" ,W/" + etag), etag) &&
+    etagMatches(Arrays.asList("\"x\"", etag), etag) && etagMatches(Arrays.asList("*"), etag) &&
+    !etagMatches(Arrays.asList("\"x\", W/\"1a2b-11\""), etag) && !etagMatches(null, etag) &&
+    !etagMatches(Arrays.asList("\"" + etag + ",\""), etag);
+}
+
+/*----------------------------------------------------------------------*/
+
+public boolean checkRanking() {
+  Ranking ranking = new Ranking(5);
+  long[] values = { 5, -1, 5, 9, 0 };
+  System.arraycopy(values, 0, ranking.keys, 0, values.length);
+  ranking.sort();
+  return Arrays.equals(ranking.top(10), new int[] { 3, 0, 2, 4 }) && Arrays.equals(ranking.top(2), new int[] { 3, 0 }) &&
+    ranking.count == 4 && ranking.rank(1) == -1 && ranking.rank(2) == 2 && ranking.percentile(3) == 1 &&
+    ranking.percentile(4) == 0 && ranking.percentile(1) == -1;
+}
+
+/*----------------------------------------------------------------------*/
+// yearly totals, changes and months with data, for states and the country,
+// also after a month changed
+
+public boolean checkTimeCube() {
+  FactStore store = new FactStore();
+  int acre = store.internState("BR-AC", "Acre");
+  int para = store.internState("BR-PA", "Par\u00e1");
+  store.setFires(acre, store.addView(1, 2010), 10);
+  store.setFires(acre, store.addView(12, 2010), 20);
+  store.setFires(acre, store.addView(6, 2011), 45);
+  store.setFires(para, store.addView(7, 2011), 5);
+  TimeCube cube = new TimeCube(store);
+  if (cube.yearTotal(acre, 0) != 30 || cube.yearTotal(acre, 1) != 45 || cube.yearDelta(acre, 1) != 15 ||
+    !cube.hasTrend(acre, 1) || cube.hasTrend(para, 1) || cube.hasYear(para, 0) || cube.months(acre, 0, 24) != 3 ||
+    cube.yearTotal(cube.countryId(), 1) != 50 || cube.mean(acre, 0, 12) != 15)
+    return false;
+
+  store.setFires(para, store.viewIdx(3, 2010), 8);
+  cube.update(para);
+  return cube.hasTrend(para, 1) && cube.yearDelta(para, 1) == -3 && cube.yearTotal(cube.countryId(), 0) == 38;
+}
+
+/*----------------------------------------------------------------------*/
+// quantiles within the accuracy of the sketch, and scales that map the
+// range of the values to 0..1 and back
+
+public boolean checkScales() {
+  MetricStats stats = new MetricStats();
+  for (int value = 0; value <= 1000; value++)
+    stats.add(value);
+  if (stats.count != 1001 || stats.min != 0 || stats.max != 1000 || Math.abs(stats.mean() - 500) > 1e-3 ||
+    Math.abs(stats.quantile(0.5f) - 500) > 500 * 2 * MetricStats.ACCURACY ||
+    Math.abs(stats.quantile(0.9f) - 900) > 900 * 2 * MetricStats.ACCURACY || Math.abs(stats.rank(500) - 0.5f) > 0.02f)
+    return false;
+
+  Scale linear = new Scale("linear", stats);
+  Scale log = new Scale("log", stats);
+  Scale quantile = new Scale("quantile", stats);
+  if (linear.norm(0) != 0 || linear.norm(1000) != 1 || linear.norm(2000) != 1 || linear.value(0.25f) != 250 ||
+    Math.abs(log.value(log.norm(100)) - 100) > 0.01f || log.norm(10) <= linear.norm(10) ||
+    Math.abs(quantile.norm(500) - 0.5f) > 0.02f)
+    return false;
+  try {
+    new Scale("cubic", stats);
+    return false;
+  } catch (IllegalArgumentException e) {
+    return true;
+  }
+}
+
+
+
+
+
+
+
+
+
+
+// local HTTP server for dashboards, started from main() with
+//
+//   --serve[=<port>]         port to listen on (8080)
+//   --bind=<address>         address to listen on (127.0.0.1)
+//   --size=<w>x<h>           screen size the map is laid out for (1920x1080)
+//   --map-mode=<mode>        monthly, yearly or trend (monthly)
+//   --threads=<n>            request threads where virtual threads are not
+//                            available (4 per core)
+//
+// and answering
+//
+//   GET /frame?month=&year=   PNG of the map of the month, rendered as the
+//                             views of the visualisation are
+//   GET /states?month=&year=  JSON of the fires and planted forests area of
+//                             every state in the month
+//   GET /state?code=&year=    JSON of the fires of a state in every month of
+//                             the year and its planted forests area
+//
+// Every response carries an ETag computed from its content, and requests
+// whose If-None-Match lists it (weak or not) or is * get 304 without a body. Frames are encoded
+// once and kept, and requests are handled concurrently on virtual threads
+// on Java 21 and later, otherwise on a pool of threads.
+
+public boolean serve() {
+  String port = stringArg("--serve", "8080");
+  String[] size = split(stringArg("--size", "1920x1080"), 'x');
+  mapMode = mapMode(stringArg("--map-mode", "monthly"));
+
+  width = Integer.parseInt(size[0]); // the map is laid out by the screen size
+  height = Integer.parseInt(size[1]);
+  setLayout(width, height);
+  loadDataTables();
+  loadStatePaths();
+  viewRenderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, 1);
+
+  HttpServer server;
+  try {
+    server = HttpServer.create(new InetSocketAddress(stringArg("--bind", "127.0.0.1"),
+      Integer.parseInt(port.isEmpty() ? "8080" : port)), 256);
+  } catch (IOException e) {
+    println("cannot listen on port " + port + ": " + e);
+    return false;
+  }
+
+  final FrameCache frames = new FrameCache();
+  server.createContext("/frame", new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, frames, "frame");
+    }
+  });
+  server.createContext("/states", new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, frames, "states");
+    }
+  });
+  server.createContext("/state", new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      respond(exchange, frames, "state");
+    }
+  });
+  server.setExecutor(requestExecutor());
+  server.start();
+  println("serving " + store.numViews + " months of " + store.numStates + " states on http://" +
+    server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+  return true;
+}
+
+/*----------------------------------------------------------------------*/
+// run requests on virtual threads where the runtime has them (Java 21),
+// found through reflection as the sketch is built for Java 8
+
+public ExecutorService requestExecutor() {
+  try {
+    ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    println("handling requests on virtual threads");
+    return executor;
+  } catch (Exception e) {
+    int threads = intArg("--threads", 4 * Runtime.getRuntime().availableProcessors());
+    println("handling requests on " + threads + " threads");
+    return Executors.newFixedThreadPool(threads);
+  }
+}
+
+//////////////////////////////////
+
+// a response body with its content type and entity tag
+
+class Response {
+  int status;
+  String contentType;
+  byte[] body;
+  String etag;
+
+  Response(int status, String contentType, byte[] body) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = body;
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    etag = "\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"";
+  }
+}
+
+//////////////////////////////////
+
+// PNG encoded frames by view, each encoded once by the first request for
+// it while concurrent requests for the same frame wait for that encoding;
+// a failed encoding is tried again by the next request
+
+class FrameCache {
+  ConcurrentHashMap<Integer, FutureTask<Response>> frames = new ConcurrentHashMap<Integer, FutureTask<Response>>();
+
+  public Response get(final int viewIdx) throws Exception {
+    FutureTask<Response> task = frames.get(viewKey(viewIdx));
+    if (task == null) {
+      FutureTask<Response> created = new FutureTask<Response>(new Callable<Response>() {
+        public Response call() throws IOException {
+          ByteArrayOutputStream png = new ByteArrayOutputStream();
+          ImageIO.write(viewRenderer.render(viewIdx), "png", png);
+          return new Response(200, "image/png", png.toByteArray());
+        }
+      });
+      task = frames.putIfAbsent(viewKey(viewIdx), created);
+      if (task == null) {
+        task = created;
+        task.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      frames.remove(viewKey(viewIdx), task);
+      throw e;
+    }
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// answer a request to one of the endpoints
+
+public void respond(HttpExchange exchange, FrameCache frames, String endpoint) throws IOException {
+  try {
+    Response response;
+    if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+      response = textResponse(405, "only GET is supported");
+    } else {
+      HashMap<String, String> query = queryParams(exchange.getRequestURI().getRawQuery());
+      if (endpoint.equals("state"))
+        response = stateResponse(query.get("code"), intParam(query, "year"));
+      else
+        response = monthResponse(endpoint, frames, intParam(query, "month"), intParam(query, "year"));
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", response.contentType);
+    exchange.getResponseHeaders().set("ETag", response.etag);
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    if (response.status == 200 && etagMatches(exchange.getRequestHeaders().get("If-None-Match"), response.etag)) {
+      exchange.sendResponseHeaders(304, -1);
+    } else if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(response.status, -1);
+    } else {
+      exchange.sendResponseHeaders(response.status, response.body.length);
+      exchange.getResponseBody().write(response.body);
+    }
+  } catch (Exception e) {
+    println("answering " + exchange.getRequestURI() + " failed: " + e);
+    if (exchange.getResponseCode() < 0)
+      exchange.sendResponseHeaders(500, -1);
+    // otherwise the body was cut short, closing tells the client so
+  } finally {
+    exchange.close();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// whether If-None-Match headers hold * or the entity tag; every header is
+// a comma separated list of tags, compared weakly as the header requires
+
+public boolean etagMatches(List<String> headers, String etag) {
+  if (headers == null)
+    return false;
+  for (String header : headers) {
+    int start = 0;
+    boolean quoted = false;
+    for (int i = 0; i <= header.length(); i++) {
+      if (i < header.length() && header.charAt(i) == '"')
+        quoted = !quoted;
+      if (i < header.length() && (quoted || header.charAt(i) != ','))
+        continue;
+      String tag = header.substring(start, i).trim();
+      if (tag.startsWith("W/"))
+        tag = tag.substring(2);
+      if (tag.equals("*") || tag.equals(etag))
+        return true;
+      start = i + 1;
+    }
+  }
+  return false;
+}
+
+/*----------------------------------------------------------------------*/
+// frame or state values of a month
+
+public Response monthResponse(String endpoint, FrameCache frames, int month, int year) throws Exception {
+  if (month < 1 || month > 12 || year < 0)
+    return textResponse(400, "month and year are required");
+  int viewIdx = getViewIdx(month, year);
+  if (viewIdx < 0 || !store.hasData(viewIdx))
+    return textResponse(404, "no data for " + month + "/" + year);
+  if (endpoint.equals("frame"))
+    return frames.get(viewIdx);
+
+  StringBuilder json = new StringBuilder();
+  json.append("{\"month\":").append(month).append(",\"year\":").append(year).append(",\"states\":[");
+  StateEntry[] entries = getStateEntries(month, year);
+  for (int i = 0; i < entries.length; i++) {
+    StateEntry se = entries[i];
+    json.append(i == 0 ? "" : ",").append("{\"code\":").append(jsonString(se.stateCode()))
+      .append(",\"name\":").append(jsonString(se.stateName()))
+      .append(",\"fires\":").append(se.hasData() ? String.valueOf(se.numOfFires()) : "null")
+      .append(",\"yearFires\":").append(timeCube.hasYear(se.stateId, viewIdx / 12) ?
+        String.valueOf(timeCube.yearTotal(se.stateId, viewIdx / 12)) : "null")
+      .append(",\"plantedArea\":").append(se.plantedArea() != 0 ? String.valueOf(se.plantedArea()) : "null")
+      .append("}");
+  }
+  json.append("]}");
+  return new Response(200, "application/json", json.toString().getBytes("UTF-8"));
+}
+
+/*----------------------------------------------------------------------*/
+// fires of a state in every month of a year
+
+public Response stateResponse(String code, int year) throws Exception {
+  if (code == null || year < 0)
+    return textResponse(400, "code and year are required");
+  StateEntry[] entries = getStateEntries(code, year);
+  if (entries.length == 0)
+    return textResponse(404, "no data for " + code + " in " + year);
+
+  StateEntry first = entries[0];
+  StringBuilder json = new StringBuilder();
+  json.append("{\"code\":").append(jsonString(first.stateCode()))
+    .append(",\"name\":").append(jsonString(first.stateName()))
+    .append(",\"year\":").append(year)
+    .append(",\"plantedArea\":").append(first.plantedArea() != 0 ? String.valueOf(first.plantedArea()) : "null")
+    .append(",\"months\":[");
+  for (int i = 0; i < entries.length; i++)
+    json.append(i == 0 ? "" : ",").append(entries[i].hasData() ? String.valueOf(entries[i].numOfFires()) : "null");
+  json.append("]}");
+  return new Response(200, "application/json", json.toString().getBytes("UTF-8"));
+}
+
+/*----------------------------------------------------------------------*/
+
+public Response textResponse(int status, String message) throws IOException {
+  return new Response(status, "text/plain; charset=utf-8", (message + "\n").getBytes("UTF-8"));
+}
+
+public HashMap<String, String> queryParams(String query) throws IOException {
+  HashMap<String, String> params = new HashMap<String, String>();
+  if (query == null)
+    return params;
+  for (String param : query.split("&")) {
+    int eq = param.indexOf('=');
+    if (eq > 0)
+      params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+  }
+  return params;
+}
+
+// integer parameter, -1 if it is missing or not a number
+public int intParam(HashMap<String, String> params, String name) {
+  try {
+    return Integer.parseInt(params.get(name));
+  } catch (NumberFormatException e) {
+    return -1;
+  }
+}
+
+public String jsonString(String value) {
+  StringBuilder json = new StringBuilder("\"");
+  for (char c : value.toCharArray()) {
+    if (c == '"' || c == '\\')
+      json.append('\\').append(c);
+    else if (c < ' ')
+      json.append(String.format("\\u%04x", (int) c));
+    else
+      json.append(c);
+  }
+  return json.append('"').toString();
+}
+
+
+
+
+
+// times of the stages of loading, drawing and rendering, kept as
+// histograms for their median and 99th percentile
+//
+//   --hud                  show the stage times and the view cache counters
+//                          over the visualisation, key h toggles them
+//   --stage-times=<file>   write the stage times as CSV on exit
+//
+// While a flight recording runs (java -XX:StartFlightRecording ...), every
+// stage is also committed as a "brazilian_fires.Stage" JFR event. Custom
+// events are created through reflection, as the sketch is built for
+// Java 8, and are skipped on runtimes before Java 12.
+
+class StageTimes {
+  LinkedHashMap<String, MetricStats> stages = new LinkedHashMap<String, MetricStats>(); // microseconds, in order of first use
+  StageEvents events; // null if JFR events are unavailable
+  long gcMillis; // collection time of all collectors at the last frame
+  long lastFrame; // start of the last frame, 0 before the first
+
+  StageTimes() {
+    events = createStageEvents();
+  }
+
+  /*----------------------------*/
+  // start timing a stage, from any thread
+
+  public Stage start(String name) {
+    return new Stage(this, name);
+  }
+
+  synchronized void record(String name, long nanos) {
+    MetricStats stats = stages.get(name);
+    if (stats == null) {
+      stats = new MetricStats();
+      stages.put(name, stats);
+    }
+    stats.add(nanos / 1000f);
+  }
+
+  /*----------------------------*/
+  // record the time between frames and the garbage collection time since
+  // the last frame, at the start of every frame
+
+  public void frame() {
+    long now = System.nanoTime();
+    if (lastFrame != 0)
+      record("frame interval", now - lastFrame);
+    lastFrame = now;
+
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      millis += Math.max(0, gc.getCollectionTime());
+    if (gcMillis != 0 || millis != 0)
+      record("gc", (millis - gcMillis) * 1000000L);
+    gcMillis = millis;
+  }
+
+  /*----------------------------*/
+  // return rows of stage name, count, mean, p50, p99 and max in ms
+
+  synchronized String[][] summary() {
+    String[][] rows = new String[stages.size()][];
+    int i = 0;
+    for (Map.Entry<String, MetricStats> entry : stages.entrySet()) {
+      MetricStats stats = entry.getValue();
+      rows[i++] = new String[] { entry.getKey(), String.valueOf(stats.count), nf(stats.mean() / 1000, 0, 3),
+        nf(stats.quantile(0.5f) / 1000, 0, 3), nf(stats.quantile(0.99f) / 1000, 0, 3),
+        nf(stats.max / 1000, 0, 3) };
+    }
+    return rows;
+  }
+}
+
+//////////////////////////////////
+
+// a stage being timed
+
+class Stage {
+  StageTimes times;
+  String name;
+  long start;
+  Object event; // JFR event, null if none is recorded
+
+  Stage(StageTimes times, String name) {
+    this.times = times;
+    this.name = name;
+    event = times.events == null ? null : times.events.begin();
+    start = System.nanoTime();
+  }
+
+  public void stop() {
+    times.record(name, System.nanoTime() - start);
+    if (event != null)
+      times.events.commit(event, name);
+  }
+}
+
+//////////////////////////////////
+
+// the "brazilian_fires.Stage" JFR event type, with the stage name as its
+// only field besides the duration
+
+class StageEvents {
+  Object factory;
+  Method newEvent;
+  Method isEnabled;
+  Method begin;
+  Method end;
+  Method set;
+  Method commit;
+
+  /*----------------------------*/
+
+  StageEvents() throws Exception {
+    Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+    Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+    Class<?> eventClass = Class.forName("jdk.jfr.Event");
+    Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+
+    List<Object> annotations = new ArrayList<Object>();
+    annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName("jdk.jfr.Name"), "brazilian_fires.Stage"));
+    annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName("jdk.jfr.Label"), "Stage"));
+    annotations.add(annotationElement.getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Brazilian Fires" }));
+    List<Object> fields = new ArrayList<Object>();
+    fields.add(valueDescriptor.getConstructor(Class.class, String.class).newInstance(String.class, "stage"));
+
+    factory = create.invoke(null, annotations, fields);
+    newEvent = factory.getClass().getMethod("newEvent");
+    isEnabled = eventClass.getMethod("isEnabled");
+    begin = eventClass.getMethod("begin");
+    end = eventClass.getMethod("end");
+    set = eventClass.getMethod("set", int.class, Object.class);
+    commit = eventClass.getMethod("commit");
+  }
+
+  /*----------------------------*/
+  // return a started event, or null while no recording enables it
+
+  public Object begin() {
+    try {
+      Object event = newEvent.invoke(factory);
+      if (!(Boolean) isEnabled.invoke(event))
+        return null;
+      begin.invoke(event);
+      return event;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  public void commit(Object event, String stage) {
+    try {
+      end.invoke(event);
+      set.invoke(event, 0, stage);
+      commit.invoke(event);
+    } catch (Exception e) {
+      // a failed event only loses the event
+    }
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// return the JFR event type, or null if the runtime cannot create it
+
+public StageEvents createStageEvents() {
+  try {
+    return new StageEvents();
+  } catch (Exception e) {
+    return null;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// draw the stage times in the top left corner of the screen
+
+public void displayStageTimes() {
+  String[][] rows = stageTimes.summary();
+  String[] header = { "stage", "count", "mean", "p50", "p99", "max ms" };
+  int[] columns = { 0, 150, 220, 290, 360, 430 };
+  int lineHeight = 18;
+  int lines = rows.length + 1 + (viewCache != null ? 1 : 0);
+
+  pushStyle();
+  noStroke();
+  fill(0, 170);
+  rect(10, 10, 510, lines * lineHeight + 12);
+  textSize(14);
+  fill(255);
+  for (int row = -1; row < rows.length; row++) {
+    String[] cells = row < 0 ? header : rows[row];
+    for (int col = 0; col < columns.length; col++) {
+      textAlign(col == 0 ? LEFT : RIGHT, TOP);
+      text(cells[col], 20 + columns[col] + (col == 0 ? 0 : 60), 16 + (row + 1) * lineHeight);
+    }
+  }
+  if (viewCache != null) {
+    textAlign(LEFT, TOP);
+    text(viewCache.stats(), 20, 16 + (rows.length + 1) * lineHeight);
+  }
+  popStyle();
+}
+
+/*----------------------------------------------------------------------*/
+// write the stage times as CSV, on exit when --stage-times= is given
+
+public void writeStageTimes(String fileName) {
+  PrintWriter writer = createWriter(fileName);
+  writer.println("Stage,Count,Mean ms,p50 ms,p99 ms,Max ms");
+  for (String[] row : stageTimes.summary())
+    writer.println(join(row, ","));
+  writer.close();
+  println("stage times written to " + fileName);
+}
+
+
+
+
+
+
+
+
+// warm-start cache of what every launch otherwise computes again from the
+// same files: the fire and planted forests tables, the state geometry
+// parsed from the SVG map, the glyphs of the font, the state id raster of
+// the palette renderer and the views rendered by the cached renderer.
+//
+//   --startup-cache=<dir>   directory of the cache (data/cache), off turns
+//                           it off
+//
+// The cache is a folder named by a hash of the contents of the data files,
+// the map, the font and the screen size, so any change to them starts a new
+// one and the old folders are deleted. Files are written once, when their
+// content is first computed, and mapped into memory when they are read;
+// rasters and views are stored deflated and views are only read when they
+// are first shown. A live update of the fire data leaves the cache behind
+// for the rest of the run.
+
+static final int STARTUP_CACHE_VERSION = 2; // part of the key, bump when a cached format changes
+// characters drawn beyond the standard set, which the font atlas needs as
+// well: the rho of the correlations in the hover details
+static final String STARTUP_CACHE_GLYPHS = "\u03C1";
+static final String[] STARTUP_CACHE_INPUTS = {
+  "fires_data.csv", "planted_forests_data.csv", "positions.csv", "brazilLow.svg", "SEGOEUI.TTF"
+};
+
+class StartupCache {
+  File dir;
+  volatile boolean stale; // the data changed since the cache was keyed
+
+  StartupCache(File dir) {
+    this.dir = dir;
+  }
+
+  /*----------------------------*/
+  // stop reading and writing the cache, after the fire data changed
+
+  public void dataChanged() {
+    stale = true;
+  }
+
+  public File file(String name) {
+    return stale ? null : new File(dir, name);
+  }
+
+  /*----------------------------*/
+  // fire and planted forests tables, as a fact file
+
+  public FactStore readFacts() {
+    File file = file("facts.bin");
+    if (file == null || !file.isFile())
+      return null;
+    try {
+      return readFactFile(file);
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return null;
+  }
+
+  public void writeFacts(final FactStore store) {
+    write("facts.bin", new CacheWriter() {
+      public void write(File file) throws IOException {
+        writeFactFile(store, file);
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // state geometry by state code, null unless every state is cached
+
+  public Path2D[] readStatePaths(ArrayList<String> stateCodes) {
+    File file = file("geometry.bin");
+    if (file == null || !file.isFile())
+      return null;
+    try {
+      ByteBuffer buffer = mapFile(file);
+      HashMap<String, Path2D> paths = new HashMap<String, Path2D>();
+      int numStates = buffer.getInt();
+      for (int i = 0; i < numStates; i++) {
+        String stateCode = readFactString(buffer);
+        int numSegments = buffer.getInt();
+        if (numSegments < 0) {
+          paths.put(stateCode, null); // not on the map
+          continue;
+        }
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+        for (int j = 0; j < numSegments; j++) {
+          int type = buffer.getInt();
+          if (type == PathIterator.SEG_MOVETO)
+            path.moveTo(buffer.getFloat(), buffer.getFloat());
+          else if (type == PathIterator.SEG_LINETO)
+            path.lineTo(buffer.getFloat(), buffer.getFloat());
+          else if (type == PathIterator.SEG_QUADTO)
+            path.quadTo(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+          else if (type == PathIterator.SEG_CUBICTO)
+            path.curveTo(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+          else
+            path.closePath();
+        }
+        paths.put(stateCode, path);
+      }
+
+      Path2D[] statePaths = new Path2D[stateCodes.size()];
+      for (int stateId = 0; stateId < statePaths.length; stateId++) {
+        if (!paths.containsKey(stateCodes.get(stateId)))
+          return null;
+        statePaths[stateId] = paths.get(stateCodes.get(stateId));
+      }
+      return statePaths;
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return null;
+  }
+
+  public void writeStatePaths(ArrayList<String> stateCodes, Path2D[] statePaths) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream output = new DataOutputStream(bytes); // unbuffered, so it interleaves with writeFactString
+      output.writeInt(statePaths.length);
+      float[] coords = new float[6];
+      for (int stateId = 0; stateId < statePaths.length; stateId++) {
+        writeFactString(bytes, stateCodes.get(stateId));
+        if (statePaths[stateId] == null) {
+          output.writeInt(-1);
+          continue;
+        }
+        ByteArrayOutputStream segments = new ByteArrayOutputStream();
+        DataOutputStream segmentOutput = new DataOutputStream(segments);
+        int numSegments = 0;
+        for (PathIterator it = statePaths[stateId].getPathIterator(null); !it.isDone(); it.next()) {
+          int type = it.currentSegment(coords);
+          segmentOutput.writeInt(type);
+          int numCoords = type == PathIterator.SEG_CUBICTO ? 6 : type == PathIterator.SEG_QUADTO ? 4 :
+            type == PathIterator.SEG_CLOSE ? 0 : 2;
+          for (int i = 0; i < numCoords; i++)
+            segmentOutput.writeFloat(coords[i]);
+          numSegments++;
+        }
+        output.writeInt(numSegments);
+        segments.writeTo(output);
+      }
+    } catch (IOException e) {
+      return; // not thrown by byte arrays
+    }
+    write("geometry.bin", new CacheWriter() {
+      public void write(File file) throws IOException {
+        Files.write(file.toPath(), bytes.toByteArray());
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // glyphs of the font at the size it is drawn at, as a .vlw atlas; the
+  // atlas holds the standard character set and STARTUP_CACHE_GLYPHS, which
+  // together cover every text of the visualisation, while fonts created
+  // from the TTF add glyphs lazily
+
+  public PFont font(String name, int size) {
+    File file = file("font-" + size + ".vlw");
+    if (file != null && file.isFile()) {
+      try {
+        return new PFont(new ByteArrayInputStream(toBytes(mapFile(file))));
+      } catch (IOException e) {
+        discard(file, e);
+      } catch (RuntimeException e) {
+        discard(file, e);
+      }
+    }
+
+    char[] charset = Arrays.copyOf(PFont.CHARSET, PFont.CHARSET.length + STARTUP_CACHE_GLYPHS.length());
+    STARTUP_CACHE_GLYPHS.getChars(0, STARTUP_CACHE_GLYPHS.length(), charset, PFont.CHARSET.length);
+    final PFont font = createFont(name, size, true, charset);
+    write("font-" + size + ".vlw", new CacheWriter() {
+      public void write(File file) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+          font.save(output);
+        } finally {
+          output.close();
+        }
+      }
+    });
+    return font;
+  }
+
+  /*----------------------------*/
+  // state id raster and outline coverage of a palette renderer, false if
+  // they are not cached for its size
+
+  public boolean readRasters(PaletteRenderer renderer, int numStates) {
+    File file = file("rasters-" + renderer.viewWidth + "x" + renderer.viewHeight + ".bin");
+    if (file == null || !file.isFile())
+      return false;
+    try {
+      ByteBuffer buffer = mapFile(file);
+      if (buffer.getInt() != numStates)
+        return false;
+      int numPixels = renderer.viewWidth * renderer.viewHeight;
+      ByteBuffer pixels = ByteBuffer.wrap(inflate(buffer, 5 * numPixels));
+      int[] stateIds = new int[numPixels];
+      byte[] outlines = new byte[numPixels];
+      pixels.asIntBuffer().get(stateIds);
+      pixels.position(4 * numPixels);
+      pixels.get(outlines);
+      renderer.stateIds = stateIds;
+      renderer.outlines = outlines;
+      return true;
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return false;
+  }
+
+  public void writeRasters(PaletteRenderer renderer, int numStates) {
+    int numPixels = renderer.viewWidth * renderer.viewHeight;
+    ByteBuffer pixels = ByteBuffer.allocate(5 * numPixels);
+    pixels.asIntBuffer().put(renderer.stateIds);
+    pixels.position(4 * numPixels);
+    pixels.put(renderer.outlines);
+    final byte[] compressed = deflate(pixels.array());
+    final int states = numStates;
+    write("rasters-" + renderer.viewWidth + "x" + renderer.viewHeight + ".bin", new CacheWriter() {
+      public void write(File file) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+          output.writeInt(states);
+          output.write(compressed);
+        } finally {
+          output.close();
+        }
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // pixels of a view rendered by the cached renderer in a map mode, null
+  // if it is not cached; called on the render workers. The name holds all
+  // that changes the pixels beyond the keyed files: the size, the mode and
+  // the scales of the fires and the planted forests
+
+  public String viewName(int viewIdx, int mode, int viewWidth, int viewHeight) {
+    return "view-" + viewWidth + "x" + viewHeight + "-" + mode + "-" + firesScale.type + "-" + plantedScale.type + "-" +
+      viewIdx + ".bin";
+  }
+
+  public int[] readView(int viewIdx, int mode, int viewWidth, int viewHeight) {
+    File file = file(viewName(viewIdx, mode, viewWidth, viewHeight));
+    if (file == null || !file.isFile())
+      return null;
+    try {
+      int[] pixels = new int[viewWidth * viewHeight];
+      ByteBuffer.wrap(inflate(mapFile(file), 4 * pixels.length)).asIntBuffer().get(pixels);
+      return pixels;
+    } catch (IOException e) {
+      discard(file, e);
+    } catch (RuntimeException e) {
+      discard(file, e);
+    }
+    return null;
+  }
+
+  public void writeView(int viewIdx, int mode, int viewWidth, int viewHeight, int[] pixels) {
+    ByteBuffer bytes = ByteBuffer.allocate(4 * pixels.length);
+    bytes.asIntBuffer().put(pixels);
+    final byte[] compressed = deflate(bytes.array());
+    write(viewName(viewIdx, mode, viewWidth, viewHeight), new CacheWriter() {
+      public void write(File file) throws IOException {
+        Files.write(file.toPath(), compressed);
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // delete a cache file that cannot be read, a truncated or corrupt one
+  // would otherwise fail every following launch; it is written again
+
+  public void discard(File file, Exception e) {
+    println("cannot read " + file + ", deleting it: " + e);
+    file.delete();
+  }
+
+  /*----------------------------*/
+  // write a cache file under a temporary name and rename it into place, so
+  // that a file of the cache is always complete; failures only cost the
+  // next launch its warm start
+
+  public void write(String name, CacheWriter writer) {
+    File file = file(name);
+    if (file == null)
+      return;
+    File temp = new File(dir, name + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      writer.write(temp);
+      if (!temp.renameTo(file))
+        throw new IOException("cannot rename " + temp);
+    } catch (IOException e) {
+      println("cannot write " + file + ": " + e.getMessage());
+      temp.delete();
+    }
+  }
+}
+
+//////////////////////////////////
+
+abstract class CacheWriter {
+  abstract void write(File file) throws IOException;
+}
+
+/*----------------------------------------------------------------------*/
+// open the startup cache for the data files and the screen size, deleting
+// the caches of other inputs; null if it is turned off or cannot be created
+
+public StartupCache openStartupCache(int screenWidth, int screenHeight) {
+  String dirName = stringArg("--startup-cache", dataPath("cache"));
+  if (dirName.equals("off"))
+    return null;
+
+  // two checksums, fast to compute on a cold JVM unlike cryptographic
+  // digests, together make a 64-bit key
+  CRC32 crc = new CRC32();
+  Adler32 adler = new Adler32();
+  try {
+    byte[] header = (STARTUP_CACHE_VERSION + " " + screenWidth + "x" + screenHeight).getBytes("UTF-8");
+    crc.update(header);
+    adler.update(header);
+    for (String input : STARTUP_CACHE_INPUTS) {
+      File file = dataFile(input);
+      if (file.isFile()) {
+        ByteBuffer content = mapFile(file);
+        crc.update(content.duplicate());
+        adler.update(content);
+      }
+      crc.update(0); // separates the files
+      adler.update(0);
+    }
+  } catch (IOException e) {
+    println("cannot hash the data files, starting without cache: " + e);
+    return null;
+  }
+  String key = String.format("%08x%08x", crc.getValue(), adler.getValue());
+
+  File root = new File(dirName);
+  File dir = new File(root, key);
+  if (!dir.isDirectory()) {
+    File[] others = root.listFiles();
+    if (others != null) {
+      for (File other : others) {
+        if (other.isDirectory() && other.getName().matches("[0-9a-f]{16}"))
+          deleteCache(other);
+      }
+    }
+    if (!dir.mkdirs()) {
+      println("cannot create " + dir + ", starting without cache");
+      return null;
+    }
+    println("startup cache " + dir + " is empty, filling it");
+  }
+  return new StartupCache(dir);
+}
+
+public void deleteCache(File dir) {
+  File[] files = dir.listFiles();
+  if (files != null) {
+    for (File file : files)
+      file.delete();
+  }
+  dir.delete();
+}
+
+/*----------------------------------------------------------------------*/
+// map a whole file into memory, read only
+
+public ByteBuffer mapFile(File file) throws IOException {
+  FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+  try {
+    if (channel.size() > Integer.MAX_VALUE)
+      throw new IOException(file + " is larger than 2 GB, which cannot be mapped at once");
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.BIG_ENDIAN);
+  } finally {
+    channel.close(); // the mapping stays valid
+  }
+}
+
+// the remaining bytes of a buffer
+public byte[] toBytes(ByteBuffer buffer) {
+  byte[] bytes = new byte[buffer.remaining()];
+  buffer.get(bytes);
+  return bytes;
+}
+
+/*----------------------------------------------------------------------*/
+// compression of rasters and views, tuned for speed as their flat colours
+// compress well anyway
+
+public byte[] deflate(byte[] data) {
+  Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  deflater.setInput(data);
+  deflater.finish();
+  ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 8);
+  byte[] chunk = new byte[1 << 16];
+  while (!deflater.finished())
+    output.write(chunk, 0, deflater.deflate(chunk));
+  deflater.end();
+  return output.toByteArray();
+}
+
+// inflate the rest of a buffer into the given number of bytes
+public byte[] inflate(ByteBuffer buffer, int size) throws IOException {
+  Inflater inflater = new Inflater();
+  inflater.setInput(toBytes(buffer));
+  byte[] data = new byte[size];
+  try {
+    int length = 0;
+    while (length < size && !inflater.finished()) {
+      int inflated = inflater.inflate(data, length, size - length);
+      if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+        break; // truncated
+      length += inflated;
+    }
+    if (length != size)
+      throw new IOException("inflated " + length + " of " + size + " bytes");
+    return data;
+  } catch (DataFormatException e) {
+    throw new IOException(e.getMessage());
+  } finally {
+    inflater.end();
+  }
+}
+
+
+
+// uniform grid over the state polygons for hit-testing: every cell lists
+// the states whose bounds overlap it and candidates are refined with an
+// exact point-in-polygon test, so a query touches only a few polygons no
+// matter how many regions the map has
+
+class StateIndex {
+  Path2D[] statePaths; // indexed by state id
+  Rectangle2D[] bounds; // bounds of every state, indexed by state id
+  float minX;
+  float minY;
+  float cellSize;
+  int cols;
+  int rows;
+  int[][] cells; // state ids overlapping each cell, row by row
+
+  /*----------------------------*/
+
+  StateIndex(Path2D[] statePaths) {
+    this.statePaths = statePaths;
+    bounds = new Rectangle2D[statePaths.length];
+
+    // bounds of the whole map
+    Rectangle2D all = null;
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] == null)
+        continue;
+      bounds[stateId] = statePaths[stateId].getBounds2D();
+      if (all == null)
+        all = (Rectangle2D) bounds[stateId].clone();
+      else
+        all.add(bounds[stateId]);
+    }
+    if (all == null)
+      all = new Rectangle2D.Float();
+
+    // about four cells per state, square cells
+    minX = (float) all.getMinX();
+    minY = (float) all.getMinY();
+    float area = (float) Math.max(1, all.getWidth() * all.getHeight());
+    cellSize = max(1, sqrt(area / (4 * max(1, statePaths.length))));
+    cols = max(1, ceil((float) all.getWidth() / cellSize));
+    rows = max(1, ceil((float) all.getHeight() / cellSize));
+
+    // put every state into the cells its bounds overlap
+    int[] counts = new int[cols * rows];
+    for (int pass = 0; pass < 2; pass++) {
+      if (pass == 1) {
+        cells = new int[cols * rows][];
+        for (int i = 0; i < cells.length; i++)
+          cells[i] = new int[counts[i]];
+        Arrays.fill(counts, 0);
+      }
+      for (int stateId = 0; stateId < statePaths.length; stateId++) {
+        if (bounds[stateId] == null)
+          continue;
+        int col0 = col(bounds[stateId].getMinX());
+        int col1 = col(bounds[stateId].getMaxX());
+        int row0 = row(bounds[stateId].getMinY());
+        int row1 = row(bounds[stateId].getMaxY());
+        for (int row = row0; row <= row1; row++) {
+          for (int col = col0; col <= col1; col++) {
+            int cell = row * cols + col;
+            if (pass == 1)
+              cells[cell][counts[cell]] = stateId;
+            counts[cell]++;
+          }
+        }
+      }
+    }
+  }
+
+  /*----------------------------*/
+  // return id of the state at a point in map coordinates or -1 if none
+
+  public int stateAt(float x, float y) {
+    if (x < minX || y < minY || x >= minX + cols*cellSize || y >= minY + rows*cellSize)
+      return -1;
+
+    for (int stateId : cells[row(y) * cols + col(x)]) {
+      if (bounds[stateId].contains(x, y) && statePaths[stateId].contains(x, y))
+        return stateId;
+    }
+    return -1;
+  }
+
+  /*----------------------------*/
+
+  public int col(double x) {
+    return constrain((int) ((x - minX) / cellSize), 0, cols - 1);
+  }
+
+  public int row(double y) {
+    return constrain((int) ((y - minY) / cellSize), 0, rows - 1);
+  }
+}
+
+
+
+// retained GPU geometry of the states: every state is tessellated once into
+// a white fill mesh and a dark outline mesh, and the fill colour of a draw is
+// passed to the fill shader as a uniform, so restyling a state never
+// re-tessellates it or re-uploads its vertex buffers
+
+class StateMeshes {
+  PShape[] fills; // indexed by state id
+  PShape[] outlines; // indexed by state id
+  PShader fillShader;
+
+  /*----------------------------*/
+
+  StateMeshes(Path2D[] statePaths) {
+    fillShader = loadShader("statefill.frag", "statefill.vert");
+    fills = new PShape[statePaths.length];
+    outlines = new PShape[statePaths.length];
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] == null)
+        continue;
+      fills[stateId] = createMesh(statePaths[stateId], true);
+      outlines[stateId] = createMesh(statePaths[stateId], false);
+    }
+  }
+
+  /*----------------------------*/
+  // draw state filled with a colour and outlined at given position
+
+  public void draw(PGraphics pg, int stateId, int fillClr, float x, float y) {
+    if (fills[stateId] == null)
+      return;
+
+    // renderers without shaders, like the one of the benchmarks, restyle
+    // the mesh itself
+    if (fillShader == null) {
+      fills[stateId].setFill(fillClr);
+      pg.shape(fills[stateId], x, y);
+      pg.shape(outlines[stateId], x, y);
+      return;
+    }
+
+    fillShader.set("fillColor", red(fillClr)/255f, green(fillClr)/255f, blue(fillClr)/255f, alpha(fillClr)/255f);
+    pg.shader(fillShader);
+    pg.shape(fills[stateId], x, y);
+    pg.resetShader();
+    pg.shape(outlines[stateId], x, y);
+  }
+
+  /*----------------------------*/
+  // create a polygon with a contour for every subpath of the path
+
+  public PShape createMesh(Path2D path, boolean filled) {
+    PShape mesh = createShape();
+    mesh.beginShape();
+    if (filled) {
+      mesh.fill(255);
+      mesh.noStroke();
+    } else {
+      mesh.noFill();
+      mesh.stroke(darkGray);
+      mesh.strokeWeight(1);
+    }
+
+    float[] coords = new float[6];
+    boolean firstContour = true;
+    boolean inContour = false;
+    for (PathIterator it = path.getPathIterator(null, 0.25f); !it.isDone(); it.next()) {
+      int segment = it.currentSegment(coords);
+      if (segment == PathIterator.SEG_MOVETO) {
+        if (inContour)
+          mesh.endContour();
+        inContour = !firstContour;
+        if (inContour)
+          mesh.beginContour();
+        firstContour = false;
+      }
+      if (segment != PathIterator.SEG_CLOSE)
+        mesh.vertex(coords[0], coords[1]);
+    }
+    if (inContour)
+      mesh.endContour();
+    mesh.endShape(CLOSE);
+    return mesh;
+  }
+}
+
+// statistics of the loaded metrics and the scales derived from them, which
+// map values to colours and circle sizes in the views and legends alike
+
+//////////////////////////////////
+
+// count, range and a streaming quantile sketch of one metric, collected in
+// a single pass. The sketch keeps counts in logarithmic buckets, so every
+// quantile is within 1% of the true value however many values are added.
+
+class MetricStats {
+  static final float ACCURACY = 0.01f; // relative error of quantiles
+  static final int MAX_BUCKETS = 1200; // buckets for values up to about 2^31
+
+  long count;
+  long zeros; // values below 1 are counted apart from the buckets
+  double sum;
+  float min = Float.POSITIVE_INFINITY;
+  float max = Float.NEGATIVE_INFINITY;
+  long[] buckets = new long[MAX_BUCKETS]; // bucket i holds values in (gamma^(i-1), gamma^i]
+  double logGamma = Math.log((1 + ACCURACY) / (1 - ACCURACY));
+
+  /*----------------------------*/
+
+  public void add(float value) {
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    if (value < 1)
+      zeros++;
+    else
+      buckets[bucket(value)]++;
+  }
+
+  public int bucket(float value) {
+    return Math.min(MAX_BUCKETS - 1, (int) Math.ceil(Math.log(value) / logGamma));
+  }
+
+  public float mean() {
+    return count == 0 ? 0 : (float) (sum / count);
+  }
+
+  /*----------------------------*/
+  // return fraction of values below the value, counting equal values half
+
+  public float rank(float value) {
+    if (count == 0)
+      return 0;
+    if (value < 1)
+      return value < 0 ? 0 : zeros * 0.5f / count;
+
+    long below = zeros;
+    int valueBucket = bucket(value);
+    for (int i = 0; i < valueBucket; i++)
+      below += buckets[i];
+    return (below + buckets[valueBucket] * 0.5f) / count;
+  }
+
+  /*----------------------------*/
+  // return the value at the given fraction of the sorted values
+
+  public float quantile(float fraction) {
+    if (count == 0)
+      return 0;
+    double target = fraction * count;
+    double seen = zeros;
+    if (target <= seen)
+      return Math.max(0, min);
+    for (int i = 0; i < MAX_BUCKETS; i++) {
+      seen += buckets[i];
+      if (target <= seen) {
+        // middle of the bucket, which is within the accuracy of every value in it
+        float value = (float) (2 * Math.exp(i * logGamma) / (Math.exp(logGamma) + 1));
+        return constrain(value, min, max);
+      }
+    }
+    return max;
+  }
+
+  /*----------------------------*/
+
+  public String toString() {
+    return "n=" + count + " min=" + min + " median=" + quantile(0.5f) + " p99=" + quantile(0.99f) +
+      " max=" + max;
+  }
+}
+
+//////////////////////////////////
+
+// maps values of a metric to 0..1: linearly or logarithmically between its
+// minimum and maximum, or by their quantile so that colours are spread
+// evenly over the data
+
+class Scale {
+  String type; // "linear", "log" or "quantile"
+  MetricStats stats;
+  float low; // scale position of the minimum
+  float high; // scale position of the maximum
+
+  /*----------------------------*/
+
+  Scale(String type, MetricStats stats) {
+    if (!type.equals("linear") && !type.equals("log") && !type.equals("quantile"))
+      throw new IllegalArgumentException("unknown scale " + type + ", expected linear, log or quantile");
+    this.type = type;
+    this.stats = stats;
+    low = position(stats.count == 0 ? 0 : stats.min);
+    high = position(stats.count == 0 ? 1 : stats.max);
+  }
+
+  public float position(float value) {
+    if (type.equals("log"))
+      return (float) Math.log1p(Math.max(0, value));
+    if (type.equals("quantile"))
+      return stats.rank(value);
+    return value;
+  }
+
+  /*----------------------------*/
+  // return the value's position on the scale, from 0 at the minimum to 1
+  // at the maximum
+
+  public float norm(float value) {
+    if (high <= low)
+      return value > low ? 1 : 0;
+    return constrain((position(value) - low) / (high - low), 0, 1);
+  }
+
+  public float map(float value, float start, float stop) {
+    return start + norm(value) * (stop - start);
+  }
+
+  /*----------------------------*/
+  // return the value at a position of the scale, for legends
+
+  public float value(float norm) {
+    float position = low + norm * (high - low);
+    if (type.equals("log"))
+      return (float) Math.expm1(position);
+    if (type.equals("quantile"))
+      return stats.quantile(position);
+    return position;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// create the scales of the metrics from the statistics of the store and
+// the time cube; --fires-scale= and --planted-scale= pick linear, log or
+// quantile, the yearly totals and changes follow the fires
+
+public void createScales() {
+  firesScale = new Scale(stringArg("--fires-scale", "linear"), store.firesStats);
+  plantedScale = new Scale(stringArg("--planted-scale", "linear"), store.plantedStats);
+  yearlyScale = new Scale(firesScale.type, timeCube.yearStats());
+  MetricStats deltaStats = timeCube.deltaStats();
+  deltaStats.min = 0; // changes are shown from no change up
+  trendScale = new Scale(firesScale.type, deltaStats);
+  println("fires " + store.firesStats + ", " + firesScale.type + " scale");
+  println("planted forests " + store.plantedStats + ", " + plantedScale.type + " scale");
+}
+
+/*----------------------------------------------------------------------*/
+// transparency of a state for its number of fires
+
+public int firesTransparency(int numOfFires) {
+  return PApplet.parseInt(firesScale.map(numOfFires, 10, 255));
+}
+
+/*----------------------------------------------------------------------*/
+// diameter of the circle for a planted forests area
+
+public int plantedSize(int plantedArea) {
+  return PApplet.parseInt(plantedScale.map(plantedArea, 10, 70));
+}
+
+/*----------------------------------------------------------------------*/
+// round a value to two significant digits for legends
+
+public int roundLegend(float value) {
+  if (value < 10)
+    return round(value);
+  double unit = Math.pow(10, Math.floor(Math.log10(value)) - 1);
+  return (int) (Math.round(value / unit) * unit);
+}
+
+// cumulative sums of fires over the month axis of every state (and of the
+// country), so the total, mean or change over any range of months is two
+// lookups instead of a scan. Drives the yearly total and trend map modes.
+
+class TimeCube {
+  FactStore store;
+  long[][] sums; // fires before each month, [stateId][viewIdx+1], country last
+  int[][] months; // months with data before each month, same layout
+
+  /*----------------------------*/
+
+  TimeCube(FactStore store) {
+    this.store = store;
+    sums = new long[store.numStates + 1][];
+    months = new int[store.numStates + 1][];
+    for (int stateId = 0; stateId < store.numStates; stateId++)
+      build(stateId);
+    buildCountry();
+  }
+
+  public int countryId() {
+    return store.numStates;
+  }
+
+  /*----------------------------*/
+  // rebuild the sums of a state whose data changed
+
+  public void update(int stateId) {
+    build(stateId);
+    buildCountry();
+  }
+
+  public void build(int stateId) {
+    long[] stateSums = new long[store.numViews + 1];
+    int[] stateMonths = new int[store.numViews + 1];
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+      boolean hasData = store.hasData(stateId, viewIdx);
+      stateSums[viewIdx+1] = stateSums[viewIdx] + (hasData ? store.fires[stateId][viewIdx] : 0);
+      stateMonths[viewIdx+1] = stateMonths[viewIdx] + (hasData ? 1 : 0);
+    }
+    // replaced whole, so render workers see either the old or the new sums
+    sums[stateId] = stateSums;
+    months[stateId] = stateMonths;
+  }
+
+  // the country has data in a month if any state has
+  public void buildCountry() {
+    long[] countrySums = new long[store.numViews + 1];
+    int[] countryMonths = new int[store.numViews + 1];
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+      long total = 0;
+      for (int stateId = 0; stateId < store.numStates; stateId++)
+        total += sums[stateId][viewIdx+1] - sums[stateId][viewIdx];
+      countrySums[viewIdx+1] = countrySums[viewIdx] + total;
+      countryMonths[viewIdx+1] = countryMonths[viewIdx] + (store.hasData(viewIdx) ? 1 : 0);
+    }
+    sums[countryId()] = countrySums;
+    months[countryId()] = countryMonths;
+  }
+
+  /*----------------------------*/
+  // fires of a state in the months [fromView, toView)
+
+  public long sum(int stateId, int fromView, int toView) {
+    return sums[stateId][toView] - sums[stateId][fromView];
+  }
+
+  public int months(int stateId, int fromView, int toView) {
+    return months[stateId][toView] - months[stateId][fromView];
+  }
+
+  // mean of the months with data, 0 if there are none
+  public float mean(int stateId, int fromView, int toView) {
+    int n = months(stateId, fromView, toView);
+    return n == 0 ? 0 : sum(stateId, fromView, toView) / (float) n;
+  }
+
+  /*----------------------------*/
+
+  public long yearTotal(int stateId, int yearIdx) {
+    return sum(stateId, yearIdx*12, yearIdx*12 + 12);
+  }
+
+  public boolean hasYear(int stateId, int yearIdx) {
+    return yearIdx >= 0 && yearIdx < store.numYears && months(stateId, yearIdx*12, yearIdx*12 + 12) > 0;
+  }
+
+  // whether the year and the year before it both have data
+  public boolean hasTrend(int stateId, int yearIdx) {
+    return hasYear(stateId, yearIdx) && hasYear(stateId, yearIdx - 1);
+  }
+
+  // change of the yearly total from the year before
+  public long yearDelta(int stateId, int yearIdx) {
+    return yearTotal(stateId, yearIdx) - yearTotal(stateId, yearIdx - 1);
+  }
+
+  /*----------------------------*/
+  // statistics of the yearly totals and of the size of yearly changes of
+  // all states, for the scales of the map modes
+
+  public MetricStats yearStats() {
+    MetricStats stats = new MetricStats();
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int yearIdx = 0; yearIdx < store.numYears; yearIdx++) {
+        if (hasYear(stateId, yearIdx))
+          stats.add(yearTotal(stateId, yearIdx));
+      }
+    }
+    return stats;
+  }
+
+  public MetricStats deltaStats() {
+    MetricStats stats = new MetricStats();
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      for (int yearIdx = 1; yearIdx < store.numYears; yearIdx++) {
+        if (hasTrend(stateId, yearIdx))
+          stats.add(Math.abs(yearDelta(stateId, yearIdx)));
+      }
+    }
+    return stats;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// map modes: fires of the month, fires of the whole year, or the change of
+// the yearly total from the year before. Keys 1, 2 and 3 switch between
+// them, --map-mode=monthly|yearly|trend sets the first one.
+
+static final int MONTHLY_MAP = 0;
+static final int YEARLY_MAP = 1;
+static final int TREND_MAP = 2;
+String[] mapModeNames = new String[] {"monthly", "yearly", "trend"};
+
+public int mapMode(String name) {
+  for (int mode = 0; mode < mapModeNames.length; mode++) {
+    if (mapModeNames[mode].equals(name))
+      return mode;
+  }
+  throw new IllegalArgumentException("unknown map mode " + name + ", expected monthly, yearly or trend");
+}
+
+/*----------------------------------------------------------------------*/
+// whether the state has a value to show in the month in the current mode
+
+public boolean stateHasData(int stateId, int viewIdx) {
+  if (mapMode == YEARLY_MAP)
+    return timeCube.hasYear(stateId, viewIdx / 12);
+  if (mapMode == TREND_MAP)
+    return timeCube.hasTrend(stateId, viewIdx / 12);
+  return store.hasData(stateId, viewIdx);
+}
+
+/*----------------------------------------------------------------------*/
+// colour of the state in the month in the current mode: red by number of
+// fires, or red for more and blue for fewer fires than the year before.
+// Called by render workers, so the colour is packed here rather than with
+// color(), which goes through the sketch renderer.
+
+public int stateColor(int stateId, int viewIdx) {
+  if (mapMode == TREND_MAP) {
+    long delta = timeCube.yearDelta(stateId, viewIdx / 12);
+    int alpha = PApplet.parseInt(trendScale.map(Math.abs(delta), 0, 255));
+    return delta >= 0 ? rgb(255, 255 - alpha, 255 - alpha) : rgb(255 - alpha, 255 - alpha, 255);
+  }
+  int alpha = mapMode == YEARLY_MAP ?
+    PApplet.parseInt(yearlyScale.map(timeCube.yearTotal(stateId, viewIdx / 12), 10, 255)) :
+    firesTransparency(store.fires[stateId][viewIdx]);
+  return rgb(255, 255 - alpha, 255 - alpha);
+}
+
+public int rgb(int r, int g, int b) {
+  return 0xff000000 | r << 16 | g << 8 | b;
+}
+
+/*----------------------------------------------------------------------*/
+// colour and value at a position from 0 at the top to 1 at the bottom of
+// the fires legend in the current mode, the same as in the views
+
+public int legendColor(float position) {
+  if (mapMode == TREND_MAP) {
+    int alpha = PApplet.parseInt(Math.abs(2*position - 1) * 255);
+    return position >= 0.5f ? rgb(255, 255 - alpha, 255 - alpha) : rgb(255 - alpha, 255 - alpha, 255);
+  }
+  int alpha = PApplet.parseInt(10 + position*245);
+  return rgb(255, 255 - alpha, 255 - alpha);
+}
+
+public float legendValue(float position) {
+  if (mapMode == TREND_MAP) {
+    float change = 2*position - 1;
+    return Math.signum(change) * trendScale.value(Math.abs(change));
+  }
+  return (mapMode == YEARLY_MAP ? yearlyScale : firesScale).value(position);
+}
+
+/*----------------------------------------------------------------------*/
+// format a change like "+120 (+15%)"
+
+public String formatChange(long delta, long before) {
+  String sign = delta >= 0 ? "+" : "";
+  String text = sign + delta;
+  if (before != 0)
+    text += " (" + sign + Math.round(100.0f * delta / before) + "%)";
+  return text;
+}
+
+/*----------------------------------------------------------------------*/
+// switch the map mode, rendering the views again
+
+public void setMapMode(int mode) {
+  if (mode == mapMode)
+    return;
+  renderLock.writeLock().lock(); // views being rendered finish in the old mode
+  try {
+    mapMode = mode;
+  } finally {
+    renderLock.writeLock().unlock();
+  }
+  if (paletteRenderer != null) {
+    paletteRenderer.invalidate(); // recoloured, the raster stays
+    tileCache.invalidate();
+  } else {
+    createViews();
+  }
+  if (thumbnails != null)
+    thumbnails.invalidate();
+  titleLayer.invalidate();
+  legendLayer.invalidate();
+  detailsLayer.invalidate();
+  sidebarLayer.invalidate();
+  gridLayer.invalidate();
+}
+
+// bounded cache of rendered views: a view is rendered on its first request,
+// the least recently used views are evicted once the memory budget is used
+// up, and the next few months in the playback direction are prefetched.
+// Views are rendered by the workers of a ViewRenderer and uploaded here on
+// the animation thread as they arrive.
+
+class ViewCache {
+  ViewRenderer renderer;
+  LinkedHashMap<Integer, PImage> views; // uploaded views in access order
+  HashSet<Integer> pending; // views being rendered by the workers
+  int[] versions; // bumped when a view is invalidated, indexed by view index
+  int capacity; // number of views that fit into the memory budget
+  int prefetchCount; // number of months to prefetch ahead
+  int maxUploads = 4; // views uploaded per frame at most
+
+  int hits;
+  int misses;
+  int evictions;
+
+  /*----------------------------*/
+
+  ViewCache(ViewRenderer renderer, long budgetBytes, int prefetchCount) {
+    this.renderer = renderer;
+    long viewBytes = 4L * renderer.viewWidth * renderer.viewHeight;
+    capacity = (int)Math.max(1, Math.min(store.numViews, budgetBytes / viewBytes));
+    this.prefetchCount = prefetchCount;
+    views = new LinkedHashMap<Integer, PImage>(16, 0.75f, true);
+    pending = new HashSet<Integer>();
+    versions = new int[store.numViews];
+    println("view cache holds " + capacity + " of " + store.numViews + " views");
+  }
+
+  /*----------------------------*/
+  // return rendered view or null if it is not rendered yet, in which case
+  // it is requested from the workers
+
+  public PImage get(int viewIdx) {
+    viewIdx = key(viewIdx);
+    PImage view = views.get(viewIdx);
+    if (view != null) {
+      hits++;
+      return view;
+    }
+    misses++;
+    request(viewIdx);
+    return null;
+  }
+
+  /*----------------------------*/
+  // request the next few views in the given direction (+1 or -1)
+
+  public void prefetch(int viewIdx, int direction) {
+    for (int i = 1; i <= Math.min(prefetchCount, capacity - 1); i++)
+      request(Math.floorMod(viewIdx + i*direction, store.numViews));
+  }
+
+  /*----------------------------*/
+  // request as many views as fit into the cache, starting with the given one
+
+  public void warm(int viewIdx) {
+    for (int i = 0; i < capacity; i++)
+      request(Math.floorMod(viewIdx + i, store.numViews));
+  }
+
+  public void request(int viewIdx) {
+    viewIdx = key(viewIdx);
+    if (!views.containsKey(viewIdx) && pending.add(viewIdx))
+      renderer.submit(viewIdx, versions[viewIdx]);
+  }
+
+  /*----------------------------*/
+  // drop a view so that it is rendered again on its next request; a render
+  // already under way is discarded when it arrives
+
+  public void invalidate(int viewIdx) {
+    viewIdx = key(viewIdx);
+    views.remove(viewIdx);
+    pending.remove(viewIdx);
+    versions[viewIdx]++;
+
+    // the trend of the next year is a change from this one
+    if (mapMode == TREND_MAP && viewIdx + 12 < store.numViews)
+      invalidate(viewIdx + 12);
+  }
+
+  /*----------------------------*/
+  // return the view index a month is cached under
+
+  public int key(int viewIdx) {
+    return viewKey(viewIdx);
+  }
+
+  /*----------------------------*/
+  // copy views finished by the workers into images, reusing the image of the
+  // least recently used view when the cache is full
+
+  public void upload() {
+    for (int i = 0; i < maxUploads; i++) {
+      RenderedView rendered = renderer.poll();
+      if (rendered == null)
+        return;
+      if (rendered.version != versions[rendered.viewIdx])
+        continue; // rendered from data changed since
+      pending.remove(rendered.viewIdx);
+
+      PImage view;
+      if (views.size() >= capacity) {
+        Iterator<Map.Entry<Integer, PImage>> eldest = views.entrySet().iterator();
+        view = eldest.next().getValue();
+        eldest.remove();
+        evictions++;
+      } else {
+        view = createImage(renderer.viewWidth, renderer.viewHeight, ARGB);
+      }
+
+      view.loadPixels();
+      System.arraycopy(rendered.pixels, 0, view.pixels, 0, rendered.pixels.length);
+      view.updatePixels();
+      views.put(rendered.viewIdx, view);
+    }
+  }
+
+  /*----------------------------*/
+
+  public String stats() {
+    return "views: " + views.size() + "/" + capacity + ", hits: " + hits +
+      ", misses: " + misses + ", evictions: " + evictions;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// return the view a month is shown with: all months of a year show the
+// same view in the yearly modes
+
+public int viewKey(int viewIdx) {
+  return mapMode == MONTHLY_MAP ? viewIdx : viewIdx - viewIdx % 12;
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+// renders views with Java2D into CPU rasters on a pool of worker threads;
+// workers only read the store, the scales and the immutable state paths, so
+// they never touch the PShapes used on the animation thread
+
+// guards what rendering reads: the store, the time cube, the scales, the
+// map mode and the planted forests positions. Views are rendered under the
+// read lock and the animation thread changes the data under the write
+// lock, so no view is drawn from half updated data.
+ReentrantReadWriteLock renderLock = new ReentrantReadWriteLock();
+
+class ViewRenderer {
+  ExecutorService workers;
+  ConcurrentLinkedQueue<RenderedView> finished; // rendered views waiting for upload
+  Path2D[] statePaths; // state geometry shared by all workers, indexed by state id
+  Rectangle2D[] stateBounds; // bounds of the state paths, to skip states outside a tile
+  int viewWidth;
+  int viewHeight;
+  float viewScale;
+
+  /*----------------------------*/
+
+  ViewRenderer(Path2D[] statePaths, int viewWidth, int viewHeight, float viewScale, int numWorkers) {
+    this.statePaths = statePaths;
+    this.viewWidth = viewWidth;
+    this.viewHeight = viewHeight;
+    this.viewScale = viewScale;
+    stateBounds = new Rectangle2D[statePaths.length];
+    for (int stateId = 0; stateId < statePaths.length; stateId++) {
+      if (statePaths[stateId] != null)
+        stateBounds[stateId] = statePaths[stateId].getBounds2D();
+    }
+
+    finished = new ConcurrentLinkedQueue<RenderedView>();
+    workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+      int count = 0;
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "view-renderer-" + count++);
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // render view on a worker, or read it from the startup cache; the result
+  // is picked up with poll()
+
+  public void submit(final int viewIdx, final int version) {
+    final int mode = mapMode;
+    workers.execute(new Runnable() {
+      public void run() {
+        try {
+          int[] pixels = startupCache != null ? startupCache.readView(viewIdx, mode, viewWidth, viewHeight) : null;
+          if (pixels == null) {
+            BufferedImage image;
+            renderLock.readLock().lock();
+            try {
+              if (mapMode != mode)
+                return; // switched since, the view is no longer wanted
+              Stage stage = stageTimes.start("render view");
+              image = render(viewIdx);
+              stage.stop();
+            } finally {
+              renderLock.readLock().unlock();
+            }
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            if (startupCache != null)
+              startupCache.writeView(viewIdx, mode, viewWidth, viewHeight, pixels);
+          }
+          finished.add(new RenderedView(viewIdx, version, pixels));
+        } catch (RuntimeException e) {
+          println("rendering view " + viewIdx + " failed: " + e);
+        }
+      }
+    });
+  }
+
+  public RenderedView poll() {
+    return finished.poll();
+  }
+
+  /*----------------------------*/
+  // draw states coloured by number of fires (or their yearly total or
+  // change in the other map modes) and circles for planted forests; safe to
+  // call from any thread
+
+  public BufferedImage render(int viewIdx) {
+    return render(viewIdx, viewScale, 0, 0, viewWidth, viewHeight);
+  }
+
+  /*----------------------------*/
+  // draw the part of a view drawn at a larger scale whose top left corner is
+  // at x, y pixels, for tiles of the zoomed map; outlines keep their width
+
+  public BufferedImage render(int viewIdx, float scale, int x, int y, int w, int h) {
+    renderLock.readLock().lock();
+    try {
+      return renderLocked(viewIdx, scale, x, y, w, h);
+    } finally {
+      renderLock.readLock().unlock();
+    }
+  }
+
+  public BufferedImage renderLocked(int viewIdx, float scale, int x, int y, int w, int h) {
+    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, w, h);
+    g.translate(-x, -y);
+    g.scale(scale, scale);
+    g.setStroke(new BasicStroke(viewScale / scale));
+    Rectangle2D area = new Rectangle2D.Float(x / scale, y / scale, w / scale, h / scale);
+
+    // draw state shapes
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      if (stateId >= statePaths.length || statePaths[stateId] == null || !stateHasData(stateId, viewIdx))
+        continue;
+      if (!stateBounds[stateId].intersects(area))
+        continue;
+
+      g.setColor(new Color(stateColor(stateId, viewIdx)));
+      g.fill(statePaths[stateId]);
+      g.setColor(Color.WHITE);
+      g.draw(statePaths[stateId]);
+    }
+
+    // draw circles for planted forests
+    g.setColor(new Color(green));
+    for (int stateId = 0; stateId < store.numStates; stateId++) {
+      int plantedArea = store.plantedArea(stateId, viewIdx);
+      if (stateHasData(stateId, viewIdx) && plantedArea != 0) {
+        int[] xy = coordinatesMap.get(store.stateCodes.get(stateId));
+        float size = plantedSize(plantedArea);
+        float xx = (xy[0]-graphicsX/scaleFactor);
+        float yy = (xy[1]-graphicsY/scaleFactor);
+        g.fill(new Ellipse2D.Float(xx - size/2, yy - size/2, size, size));
+      }
+    }
+    g.dispose();
+    return image;
+  }
+
+  /*----------------------------*/
+
+  public void shutdown() {
+    workers.shutdownNow();
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// convert a shape loaded from SVG (and its children) into a Java2D path
+
+public Path2D statePath(PShape shape) {
+  if (shape == null)
+    return null;
+
+  Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+  for (int i = 0; i < shape.getChildCount(); i++) {
+    Path2D child = statePath(shape.getChild(i));
+    if (child != null)
+      path.append(child, false);
+  }
+
+  int vertexIdx = 0;
+  boolean newContour = true;
+  int numCodes = shape.getVertexCodeCount();
+  if (numCodes == 0)
+    numCodes = shape.getVertexCount(); // plain vertices only
+
+  for (int i = 0; i < numCodes; i++) {
+    int code = shape.getVertexCodeCount() == 0 ? PShape.VERTEX : shape.getVertexCode(i);
+    if (code == PShape.BREAK) {
+      if (!newContour)
+        path.closePath();
+      newContour = true;
+    } else if (code == PShape.BEZIER_VERTEX) {
+      PVector c1 = shape.getVertex(vertexIdx++);
+      PVector c2 = shape.getVertex(vertexIdx++);
+      PVector v = shape.getVertex(vertexIdx++);
+      path.curveTo(c1.x, c1.y, c2.x, c2.y, v.x, v.y);
+    } else if (code == PShape.QUADRATIC_VERTEX) {
+      PVector c = shape.getVertex(vertexIdx++);
+      PVector v = shape.getVertex(vertexIdx++);
+      path.quadTo(c.x, c.y, v.x, v.y);
+    } else {
+      PVector v = shape.getVertex(vertexIdx++);
+      if (newContour)
+        path.moveTo(v.x, v.y);
+      else
+        path.lineTo(v.x, v.y);
+      newContour = false;
+    }
+  }
+  if (!newContour)
+    path.closePath();
+  return path;
+}
+
+//////////////////////////////////
+
+class RenderedView {
+  int viewIdx;
+  int version; // version of the view in the cache when it was requested
+  int[] pixels; // ARGB, as in PImage
+
+  RenderedView(int viewIdx, int version, int[] pixels) {
+    this.viewIdx = viewIdx;
+    this.version = version;
+    this.pixels = pixels;
+  }
+}
+
+// zoom and pan over the map: the mouse wheel zooms around the pointer,
+// dragging the map pans it and key 0 shows the whole map again
+//
+//   --max-zoom=<levels>     deepest zoom level, each doubling the scale (5)
+//   --tile-cache-mb=<mb>    memory budget for rendered tiles (128)
+//
+// At zoom level L the map is drawn 2^L times larger than the view and cut
+// into square tiles, which are rendered from the state geometry on demand
+// for the shown month, kept within the memory budget and prefetched around
+// the shown part of the map. Until a tile arrives the shown part of the
+// view, scaled up, stands in for it. Only the tiles on screen are ever rendered, so
+// deep zooms on large screens never need a full frame at their scale.
+
+static final int TILE_SIZE = 256; // pixels
+
+//////////////////////////////////
+
+// the part of the map shown in the map area of the screen
+
+class Viewport {
+  int level; // 0 shows the whole map, every level doubles the scale
+  int maxLevel;
+  float centerX; // map point at the centre of the map area
+  float centerY;
+
+  Viewport(int maxLevel) {
+    this.maxLevel = maxLevel;
+    reset();
+  }
+
+  public void reset() {
+    level = 0;
+    centerX = graphicsWidth / scaleFactor / 2;
+    centerY = graphicsHeight / scaleFactor / 2;
+  }
+
+  /*----------------------------*/
+  // screen pixels per map unit
+
+  public float scale() {
+    return scaleFactor * (1 << level);
+  }
+
+  public float mapX(float screenX) {
+    return centerX + (screenX - graphicsX - graphicsWidth/2f) / scale();
+  }
+
+  public float mapY(float screenY) {
+    return centerY + (screenY - graphicsY - graphicsHeight/2f) / scale();
+  }
+
+  public float screenX(float mapX) {
+    return graphicsX + graphicsWidth/2f + (mapX - centerX) * scale();
+  }
+
+  public float screenY(float mapY) {
+    return graphicsY + graphicsHeight/2f + (mapY - centerY) * scale();
+  }
+
+  /*----------------------------*/
+  // zoom in (positive levels) or out, keeping the map point under the
+  // screen point where it is
+
+  public void zoom(int levels, float screenX, float screenY) {
+    float x = mapX(screenX);
+    float y = mapY(screenY);
+    level = constrain(level + levels, 0, maxLevel);
+    if (level == 0) {
+      reset();
+      return;
+    }
+    centerX = x - (screenX - graphicsX - graphicsWidth/2f) / scale();
+    centerY = y - (screenY - graphicsY - graphicsHeight/2f) / scale();
+    keepOnMap();
+  }
+
+  // move the map by screen pixels
+  public void pan(float dx, float dy) {
+    if (level == 0)
+      return;
+    centerX -= dx / scale();
+    centerY -= dy / scale();
+    keepOnMap();
+  }
+
+  public void keepOnMap() {
+    centerX = constrain(centerX, 0, graphicsWidth / scaleFactor);
+    centerY = constrain(centerY, 0, graphicsHeight / scaleFactor);
+  }
+}
+
+//////////////////////////////////
+
+// rendered tiles of the zoomed map in access order, rendered by the workers
+// of a ViewRenderer and uploaded on the animation thread as they arrive
+
+class TileCache {
+  ViewRenderer renderer;
+  LinkedHashMap<Long, PImage> tiles; // uploaded tiles in access order
+  HashSet<Long> pending; // tiles being rendered by the workers
+  ConcurrentLinkedQueue<RenderedTile> finished; // rendered tiles waiting for upload
+  int version; // bumped when all tiles are invalidated
+  int capacity; // number of tiles that fit into the memory budget
+  int maxUploads = 8; // tiles uploaded per frame at most
+
+  /*----------------------------*/
+
+  TileCache(ViewRenderer renderer, long budgetBytes) {
+    this.renderer = renderer;
+    capacity = (int) Math.max(16, budgetBytes / (4L * TILE_SIZE * TILE_SIZE));
+    tiles = new LinkedHashMap<Long, PImage>(16, 0.75f, true);
+    pending = new HashSet<Long>();
+    finished = new ConcurrentLinkedQueue<RenderedTile>();
+  }
+
+  public long key(int level, int viewIdx, int tileX, int tileY) {
+    return (long) level << 56 | (long) viewKey(viewIdx) << 40 | (long) tileX << 20 | tileY;
+  }
+
+  /*----------------------------*/
+  // return the tile or null if it is not rendered yet, in which case it is
+  // requested from the workers
+
+  public PImage get(int level, int viewIdx, int tileX, int tileY) {
+    PImage tile = tiles.get(key(level, viewIdx, tileX, tileY));
+    if (tile == null)
+      request(level, viewIdx, tileX, tileY);
+    return tile;
+  }
+
+  public void request(final int level, final int viewIdx, final int tileX, final int tileY) {
+    final long key = key(level, viewIdx, tileX, tileY);
+    if (tiles.containsKey(key) || !pending.add(key))
+      return;
+    final int requested = version;
+    renderer.workers.execute(new Runnable() {
+      public void run() {
+        try {
+          BufferedImage image = renderer.render(viewIdx, renderer.viewScale * (1 << level),
+            tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+          int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+          finished.add(new RenderedTile(key, requested, pixels));
+        } catch (RuntimeException e) {
+          println("rendering tile " + tileX + "," + tileY + " of view " + viewIdx + " failed: " + e);
+        }
+      }
+    });
+  }
+
+  /*----------------------------*/
+  // drop all tiles, after the data or the map mode changed; renders under
+  // way are discarded when they arrive
+
+  public void invalidate() {
+    tiles.clear();
+    pending.clear();
+    version++;
+  }
+
+  /*----------------------------*/
+  // copy tiles finished by the workers into images, reusing the image of
+  // the least recently used tile when the cache is full
+
+  public void upload() {
+    for (int i = 0; i < maxUploads; i++) {
+      RenderedTile rendered = finished.poll();
+      if (rendered == null)
+        return;
+      if (rendered.version != version)
+        continue;
+      pending.remove(rendered.key);
+
+      PImage tile;
+      if (tiles.size() >= capacity) {
+        Iterator<Map.Entry<Long, PImage>> eldest = tiles.entrySet().iterator();
+        tile = eldest.next().getValue();
+        eldest.remove();
+      } else {
+        tile = createImage(TILE_SIZE, TILE_SIZE, ARGB);
+      }
+
+      tile.loadPixels();
+      System.arraycopy(rendered.pixels, 0, tile.pixels, 0, rendered.pixels.length);
+      tile.updatePixels();
+      tiles.put(rendered.key, tile);
+    }
+  }
+}
+
+//////////////////////////////////
+
+class RenderedTile {
+  long key;
+  int version; // version of the cache when the tile was requested
+  int[] pixels; // ARGB, as in PImage
+
+  RenderedTile(long key, int version, int[] pixels) {
+    this.key = key;
+    this.version = version;
+    this.pixels = pixels;
+  }
+}
+
+/*----------------------------------------------------------------------*/
+// draw the shown part of the zoomed map from its tiles, and request the
+// tiles around it and, while playing, of the next month
+
+public void drawZoomedMap() {
+  int level = viewport.level;
+  int mapWidth = graphicsWidth << level; // size of the whole map at this level
+  int mapHeight = graphicsHeight << level;
+  int left = round(viewport.centerX * viewport.scale() - graphicsWidth/2f); // shown part, in map pixels
+  int top = round(viewport.centerY * viewport.scale() - graphicsHeight/2f);
+
+  int firstX = max(0, floor(left / (float) TILE_SIZE));
+  int lastX = min((mapWidth - 1) / TILE_SIZE, (left + graphicsWidth - 1) / TILE_SIZE);
+  int firstY = max(0, floor(top / (float) TILE_SIZE));
+  int lastY = min((mapHeight - 1) / TILE_SIZE, (top + graphicsHeight - 1) / TILE_SIZE);
+
+  clip(graphicsX, graphicsY, graphicsWidth, graphicsHeight);
+  if (shownView != null) {
+    // only the view pixels under the map area, whole ones
+    int u1 = max(0, floor(left / (float) (1 << level)));
+    int v1 = max(0, floor(top / (float) (1 << level)));
+    int u2 = min(shownView.width, ceil((left + graphicsWidth) / (float) (1 << level)));
+    int v2 = min(shownView.height, ceil((top + graphicsHeight) / (float) (1 << level)));
+    if (u2 > u1 && v2 > v1)
+      image(shownView, graphicsX + (u1 << level) - left, graphicsY + (v1 << level) - top,
+        (u2 - u1) << level, (v2 - v1) << level, u1, v1, u2, v2);
+  }
+  for (int tileY = firstY; tileY <= lastY; tileY++) {
+    for (int tileX = firstX; tileX <= lastX; tileX++) {
+      PImage tile = tileCache.get(level, thisViewIdx, tileX, tileY);
+      if (tile != null)
+        image(tile, graphicsX + tileX*TILE_SIZE - left, graphicsY + tileY*TILE_SIZE - top);
+    }
+  }
+  noClip();
+
+  // a ring of tiles around the shown ones, for panning
+  for (int tileY = firstY - 1; tileY <= lastY + 1; tileY++) {
+    for (int tileX = firstX - 1; tileX <= lastX + 1; tileX++) {
+      boolean shown = tileX >= firstX && tileX <= lastX && tileY >= firstY && tileY <= lastY;
+      if (!shown && tileX >= 0 && tileY >= 0 && tileX*TILE_SIZE < mapWidth && tileY*TILE_SIZE < mapHeight)
+        tileCache.request(level, thisViewIdx, tileX, tileY);
+    }
+  }
+  if (playback.playing) {
+    for (int tileY = firstY; tileY <= lastY; tileY++) {
+      for (int tileX = firstX; tileX <= lastX; tileX++)
+        tileCache.request(level, playback.nextView(), tileX, tileY);
+    }
+  }
+}
+  public void settings() {  fullScreen(P2D);  smooth(8); }
+}
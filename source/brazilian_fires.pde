@@ -1,23 +1,45 @@
 import java.util.*;
 
-HashMap<String, PShape> shapeStatesMap; // states as PShapes
-HashMap<String, ArrayList<StateEntry>> dataEntriesMap; // my data structure
-HashMap<String, Integer> statesColoursMap; // states colours for id
+FactStore store; // my data structure
+Path2D[] statePaths; // states geometry in map coordinates, indexed by state id
+StateMeshes stateMeshes; // states tessellated for highlighting on the GPU
+StateIndex stateIndex; // finds the state under the mouse
 HashMap<String, int[]> coordinatesMap; // states coordinates
-PShape psBrazil; // map of Brazil (http://www.amcharts.com/svg-maps/)
-PGraphics idView; // a hidden view that enables state identification
-PGraphics[] Views; // other visualisation views
-
-int startMonth = 1; // start month from data
-int startYear = 2006; // start year from data
-int endYear = 2016; // end year from data
-int midYear = startYear + (endYear-startYear) / 2; // calculated mid year
-int numYears = endYear - startYear + 1; // number of years
-
-int thisMonth = 1; // month to display
-int thisYear = 2006; // year to display
+Scale firesScale; // maps number of fires to transparency
+Scale plantedScale; // maps planted forests area to circle size
+Scale yearlyScale; // maps yearly number of fires to transparency
+Scale trendScale; // maps change of the yearly number of fires to colour
+TimeCube timeCube; // sums of fires over any range of months
+int mapMode = MONTHLY_MAP; // what the map shows (--map-mode=)
+Correlations correlations; // fires vs planted forests, per state
+Rankings rankings; // states ranked by fires and planted forests area
+int sidebarTop = 10; // states in the ranked sidebar (--top=)
+boolean showSidebar = true; // draw the ranked sidebar, key s toggles it
+ViewRenderer viewRenderer; // renders views on worker threads
+ViewCache viewCache; // other visualisation views, rendered on demand
+PaletteRenderer paletteRenderer; // recolours views from a raster of state ids instead
+boolean paletteRendering = true; // recolour views rather than cache rendered ones (--renderer=)
+PImage shownView; // last displayed view, kept until the next one is rendered
+int renderThreads; // number of view rendering workers (--render-threads=)
+int viewCacheMB = 256; // memory budget for rendered views (--view-cache-mb=)
+int prefetchMonths = 3; // months rendered ahead during playback
+Playback playback; // advances the months while playing
+Viewport viewport; // zoomed and panned part of the map
+TileCache tileCache; // tiles of the zoomed map, rendered on demand
+int maxZoom = 5; // deepest zoom level (--max-zoom=)
+int tileCacheMB = 128; // memory budget for rendered tiles (--tile-cache-mb=)
+boolean panning; // the map is being dragged
+Grid grid = new Grid(); // months side by side instead of the map (--grid=), key g switches
+ThumbnailPyramid thumbnails; // thumbnails of the grid, built on first use
+FiresWatcher firesWatcher; // picks up changes of the fire data while running
+StageTimes stageTimes = new StageTimes(); // time spent in each stage of loading and drawing
+boolean showStageTimes; // draw the stage times over the visualisation (--hud)
+StartupCache startupCache; // data, geometry, glyphs and views of the last launch (--startup-cache=)
+
+int thisMonth; // month to display, the first month with data at start
+int thisYear; // year to display
 int thisViewIdx; // view index to display
-ArrayList<StateEntry> thisStateEntries; // state entries to display
+StateEntry[] thisStateEntries; // state entries to display, one per state
 
 String[] nameOfMonths = new String[] {"January", "February", "March", "April", "May", "June", 
   "July", "August", "September", "October", "November", "December"};
@@ -32,218 +54,444 @@ float scaleFactor;
 color darkGray = color(127);
 color green = color(182, 239, 148);
 color lightPink = color(255, 205, 205);
-color lowestAlphaRed = color(255, 245, 245);
-color highestAlphaRed = color(255, 0, 0);
 
 PFont font;
 Timeline tlMonths;
 Timeline tlYears;
 Button btn;
 
+// cached layers of the screen, redrawn only when their content changes
+Layer titleLayer;
+Layer legendLayer;
+Layer controlsLayer;
+Layer detailsLayer;
+Layer sidebarLayer;
+Layer gridLayer;
+int layoutWidth; // screen size the layout was created for
+int layoutHeight;
+int drawnViewIdx = -1; // view index the layers were drawn for
+int drawnStateId = -1; // highlighted state the details layer was drawn for
+int drawnCell = -1; // grid cell and state under the mouse the grid layer was drawn for
+int drawnCellState = -1;
+
 /*----------------------------------------------------------------------*/
 
 void setup() {
+  Stage stage = stageTimes.start("setup");
   background(255);
   fullScreen(P2D);
   smooth(8);
 
-  // set graphics position constants
-  graphicsWidth = width/3;
-  graphicsHeight = height*3/5;
-  graphicsX = width/3;
-  graphicsY = height/7-15;
-  scaleFactor = (float)graphicsHeight/(float)svgMapHeight;
+  viewCacheMB = intArg("--view-cache-mb", viewCacheMB);
+  renderThreads = intArg("--render-threads", Runtime.getRuntime().availableProcessors());
+  mapMode = mapMode(stringArg("--map-mode", "monthly"));
+  showStageTimes = hasArg("--hud");
+  String renderer = stringArg("--renderer", "palette");
+  if (!renderer.equals("palette") && !renderer.equals("cached"))
+    throw new IllegalArgumentException("unknown renderer " + renderer + ", expected palette or cached");
+  paletteRendering = renderer.equals("palette");
+  sidebarTop = intArg("--top", sidebarTop);
+  maxZoom = intArg("--max-zoom", maxZoom);
+  tileCacheMB = intArg("--tile-cache-mb", tileCacheMB);
+  grid.layout = gridLayout(stringArg("--grid", "off"));
+  playback = new Playback(float(stringArg("--months-per-second", "1.7")), hasArg("--catch-up"));
+
+  Stage cacheStage = stageTimes.start("startup cache");
+  startupCache = openStartupCache(width, height);
+  cacheStage.stop();
 
   // load and set font
-  font = createFont("SEGOEUI.TTF", 34);
+  font = startupCache != null ? startupCache.font("SEGOEUI.TTF", 34) : createFont("SEGOEUI.TTF", 34);
   textFont(font);
 
-  // create GUI elements
-  btn = new Button(width/2, height-140);
-  tlMonths = new Timeline(width/2+28, height-102, 'm');
-  tlYears = new Timeline(width/2, height-50, 'y');
+  // watch the fire data from the state it is loaded in
+  int watchInterval = intArg("--watch-interval", 1000);
+  if (watchInterval > 0)
+    firesWatcher = new FiresWatcher(dataFile("fires_data.csv"), watchInterval);
 
   loadData();
+  if (firesWatcher != null)
+    firesWatcher.start();
 
-  // create views
-  createIdView();
+  // create GUI elements, layers and views
+  createLayout();
   createViews();
+  stage.stop();
 }
 
 /*----------------------------------------------------------------------*/
 
 void draw() {
-  background(255);
+  stageTimes.frame();
+  Stage frame = stageTimes.start("draw");
+  if (width != layoutWidth || height != layoutHeight) {
+    createLayout();
+    createViews();
+  }
+  Stage stage = stageTimes.start("fire updates");
+  applyFireUpdates();
+  stage.stop();
 
-  btn.rollover(mouseX, mouseY);
+  boolean rolledOver = btn.rollover(mouseX, mouseY);
+  rolledOver |= tlMonths.rollover(mouseX, mouseY);
+  rolledOver |= tlYears.rollover(mouseX, mouseY);
   btn.applyButton();
-  tlMonths.rollover(mouseX, mouseY);
-  tlYears.rollover(mouseX, mouseY);
-
-  image(Views[thisViewIdx], graphicsX, graphicsY);
+  playback.update();
+
+  // invalidate layers whose content changed in this frame
+  int stateId = stateUnderMouse();
+  int cell = grid.layout != GRID_OFF ? grid.cellAt(mouseX, mouseY) : -1;
+  int cellState = cell >= 0 ? grid.stateAt(cell, mouseX, mouseY) : -1;
+  if (thisViewIdx != drawnViewIdx) {
+    titleLayer.invalidate();
+    sidebarLayer.invalidate();
+    controlsLayer.invalidate();
+    detailsLayer.invalidate();
+    gridLayer.invalidate();
+    drawnViewIdx = thisViewIdx;
+  }
+  if (grid.layout != GRID_OFF && grid.update(gridLayer.x + 20, gridLayer.y, gridLayer.pg.width - 40, gridLayer.pg.height - 24))
+    gridLayer.invalidate();
+  if (cell != drawnCell || cellState != drawnCellState) {
+    gridLayer.invalidate();
+    drawnCell = cell;
+    drawnCellState = cellState;
+  }
+  if (stateId != drawnStateId) {
+    detailsLayer.invalidate();
+    sidebarLayer.invalidate();
+    drawnStateId = stateId;
+  }
+  if (rolledOver)
+    controlsLayer.invalidate();
+
+  // redraw invalidated layers
+  if (titleLayer.begin()) {
+    stage = stageTimes.start("title");
+    displayTitle(titleLayer.pg, thisMonth, thisYear);
+    titleLayer.end();
+    stage.stop();
+  }
+  if (legendLayer.begin()) {
+    stage = stageTimes.start("legends");
+    displayLegends(legendLayer.pg, width-200, height/21);
+    legendLayer.end();
+    stage.stop();
+  }
+  if (controlsLayer.begin()) {
+    stage = stageTimes.start("controls");
+    btn.display(controlsLayer.pg);
+    tlMonths.display(controlsLayer.pg);
+    tlYears.display(controlsLayer.pg);
+    controlsLayer.end();
+    stage.stop();
+  }
+  if (grid.layout == GRID_OFF && detailsLayer.begin()) {
+    stage = stageTimes.start("details");
+    showDetails(detailsLayer.pg, stateId);
+    detailsLayer.end();
+    stage.stop();
+  }
+  if (grid.layout == GRID_OFF && showSidebar && sidebarLayer.begin()) {
+    stage = stageTimes.start("sidebar");
+    displaySidebar(sidebarLayer.pg, 40, height/21, stateId);
+    sidebarLayer.end();
+    stage.stop();
+  }
+  if (grid.layout != GRID_OFF && gridLayer.begin()) {
+    stage = stageTimes.start("grid labels");
+    displayGridLabels(gridLayer.pg, cell, cellState);
+    gridLayer.end();
+    stage.stop();
+  }
 
-  displayTitle();
-  displayLegends(width-200, height/21);
-  btn.display();
-  tlMonths.display();
-  tlYears.display();
+  // compose the frame
+  stage = stageTimes.start("view upload");
+  background(255);
+  if (grid.layout != GRID_OFF) {
+    // the grid takes the place of the map, which is not composed meanwhile
+  } else if (paletteRenderer != null) {
+    // while playing, blend towards the next month
+    shownView = paletteRenderer.get(thisViewIdx, playback.nextView(), playback.progress());
+  } else {
+    viewCache.upload();
+    PImage view = viewCache.get(thisViewIdx);
+    if (view != null)
+      shownView = view;
+  }
+  tileCache.upload();
+  stage.stop();
+  stage = stageTimes.start("compose");
+  if (grid.layout != GRID_OFF)
+    drawGrid(cellState);
+  else if (viewport.level > 0)
+    drawZoomedMap();
+  else if (shownView != null)
+    image(shownView, graphicsX, graphicsY);
+  if (playback.playing && viewCache != null)
+    viewCache.prefetch(thisViewIdx, playback.direction);
+
+  titleLayer.display();
+  legendLayer.display();
+  controlsLayer.display();
+  if (grid.layout != GRID_OFF) {
+    gridLayer.display();
+  } else {
+    detailsLayer.display();
+    if (showSidebar)
+      sidebarLayer.display();
+  }
+  stage.stop();
+  frame.stop();
 
-  showDetails();
+  if (showStageTimes)
+    displayStageTimes();
 }
 
 void mousePressed() {
+  panning = overMap();
+  // clicking a month in the grid shows it on the map
+  int cell = grid.layout != GRID_OFF ? grid.cellAt(mouseX, mouseY) : -1;
+  if (cell >= 0 && store.hasData(grid.views[cell])) {
+    int[] my = getMonthYear(grid.views[cell]);
+    playback.pause();
+    selectView(my[0], my[1]);
+    setGridLayout(GRID_OFF);
+  }
   btn.press(mouseX, mouseY);
   tlMonths.press(mouseX, mouseY);
   tlYears.press(mouseX, mouseY);
+  controlsLayer.invalidate();
 }
 
 void mouseReleased() {
+  panning = false;
   btn.noPress();
   tlMonths.noPress();
   tlYears.noPress();
+  controlsLayer.invalidate();
 }
 
-/*----------------------------------------------------------------------*/
-// load all data
-
-void loadData() {
-  dataEntriesMap = loadFiresDataFromCSV("fires_data.csv");
-  loadPlantData("planted_forests_data.csv");
-  coordinatesMap = loadCoordinatesFromCSV("positions.csv");
+void mouseDragged() {
+  if (panning) {
+    viewport.pan(mouseX - pmouseX, mouseY - pmouseY);
+    detailsLayer.invalidate();
+  }
+}
 
-  // load map data and save states separately
-  psBrazil = loadShape("brazilLow.svg");
-  shapeStatesMap = new HashMap<String, PShape>(); 
-  statesColoursMap = new HashMap<String, Integer>();
-  int blue = 255;
-  for (String stateCode : dataEntriesMap.keySet()) {
-    PShape child = psBrazil.getChild(stateCode);
-    shapeStatesMap.put(stateCode, child);
-    statesColoursMap.put(stateCode, color(0, 0, blue));
-    blue--;
+// the wheel zooms the map around the mouse
+void mouseWheel(MouseEvent event) {
+  if (overMap()) {
+    viewport.zoom(-event.getCount(), mouseX, mouseY);
+    detailsLayer.invalidate();
   }
+}
 
-  // set initial view index
-  thisViewIdx = getViewIdx(thisMonth, thisYear);
+// keys 1, 2 and 3 show monthly fires, yearly totals or the trend, key h
+// shows the stage times, key s the ranked sidebar, keys r, + and - reverse
+// and change playback, key 0 shows the whole map and key g the grids
+void keyPressed() {
+  if (key >= '1' && key < '1' + mapModeNames.length)
+    setMapMode(key - '1');
+  if (key == 'h')
+    showStageTimes = !showStageTimes;
+  if (key == 's')
+    showSidebar = !showSidebar;
+  if (key == 'g')
+    setGridLayout((grid.layout + 1) % gridNames.length);
+  if (key == 'r')
+    playback.reverse();
+  if (key == '+' || key == '=')
+    playback.setSpeed(playback.monthsPerSecond * 1.5);
+  if (key == '-')
+    playback.setSpeed(playback.monthsPerSecond / 1.5);
+  if (key == '0') {
+    viewport.reset();
+    detailsLayer.invalidate();
+  }
+}
 
-  // set initial state entries to display
-  thisStateEntries = getStateEntries(thisMonth, thisYear);
+// write the stage times before leaving when --stage-times= is given, and
+// report how well the view cache did
+void exit() {
+  if (viewCache != null)
+    println(viewCache.stats());
+  String fileName = stringArg("--stage-times", null);
+  if (fileName != null)
+    writeStageTimes(fileName);
+  super.exit();
 }
 
 /*----------------------------------------------------------------------*/
-// create view that enables state identification on mouse hover
-
-void createIdView() {
-  idView = createGraphics(graphicsWidth, graphicsHeight);
-  idView.beginDraw();
-  idView.noStroke();
-  idView.background(255);
-  idView.push();
-  idView.scale(scaleFactor);
-  for (HashMap.Entry<String, Integer> entry : statesColoursMap.entrySet()) {
-    String stateCode = entry.getKey();
-    color clr = entry.getValue();
+// create GUI elements and screen layers for the current screen size
 
-    PShape shapeState = shapeStatesMap.get(stateCode);
-    shapeState.setFill(clr);
+void createLayout() {
+  setLayout(width, height);
+  viewport = new Viewport(maxZoom);
+  layoutWidth = width;
+  layoutHeight = height;
 
-    idView.shape(shapeState);
-  }
-  idView.pop();
-  idView.endDraw();
+  btn = new Button(width/2, height-140);
+  tlMonths = new Timeline(width/2+28, height-102, 'm', width/2);
+  tlYears = new Timeline(width/2, height-50, 'y', width/2);
+
+  // the map and the details drawn over it are the only overlapping layers
+  titleLayer = new Layer(0, 0, width, height/11+15, true);
+  legendLayer = new Layer(width-240, 0, 240, height/21+440, true);
+  controlsLayer = new Layer(0, height-165, width, 165, true);
+  sidebarLayer = new Layer(20, height/21 - 20, 360, 40 + sidebarTop*22, true);
+  int detailsBottom = height*5/7 + int(125*scaleFactor);
+  detailsLayer = new Layer(graphicsX-40, graphicsY, graphicsWidth+80, detailsBottom-graphicsY, false);
+  gridLayer = new Layer(0, height/11+15, width-240, height-165 - (height/11+15), false);
+  drawnViewIdx = -1;
 }
 
 /*----------------------------------------------------------------------*/
-// create visualisation views for each month and year
+// set graphics position constants for a screen of given size
 
-void createViews() {
-  // create PGraphics for each view (each month in period 2006-2016)
-  Views = new PGraphics[12*11];
+void setLayout(int screenWidth, int screenHeight) {
+  graphicsWidth = screenWidth/3;
+  graphicsHeight = screenHeight*3/5;
+  graphicsX = screenWidth/3;
+  graphicsY = screenHeight/7-15;
+  scaleFactor = (float)graphicsHeight/(float)svgMapHeight;
+}
 
-  for (int i = 0; i < Views.length; i++) {
-    Views[i] = createGraphics(graphicsWidth, graphicsHeight);
-  }
+/*----------------------------------------------------------------------*/
+// load all data
 
-  // prepare PGraphics for each view
-  int viewIdx = 0;
-  for (int year = startYear; year <= endYear; year++) {
-    for (int month = 1; month <= 12; month++) {
-      Views[viewIdx].beginDraw();
-      Views[viewIdx].push();
-      Views[viewIdx].scale(scaleFactor);
-      Views[viewIdx].noStroke();
-      Views[viewIdx].background(255);  
+void loadData() {
+  Stage stage = stageTimes.start("load data");
+  loadDataTables();
 
-      ArrayList<StateEntry> stateEntries = getStateEntries(month, year);
+  // load map data and save states separately
+  loadStatePaths();
+  stateIndex = new StateIndex(statePaths);
+  stateMeshes = new StateMeshes(statePaths);
+
+  correlations = new Correlations(store, maxLagArg());
+  correlations.computeAll();
+  rankings = new Rankings(store, timeCube);
+
+  // set initial view index and state entries to display
+  int[] my = getMonthYear(store.nextView(-1, 1));
+  thisStateEntries = getStateEntries(my[0], my[1]);
+  selectView(my[0], my[1]);
+  stage.stop();
+}
 
-      // draw state shapes
-      for (StateEntry se : stateEntries) {
-        PShape shapeState = shapeStatesMap.get(se.stateCode);
-        color clr = color(255, (255 - se.transparency), (255 - se.transparency));
+/*----------------------------------------------------------------------*/
+// load fires, planted forests and coordinates data (no graphics needed)
+
+void loadDataTables() {
+  File factFile = currentFactFile();
+  if (factFile != null) {
+    try {
+      store = readFactFile(factFile);
+    } catch (IOException e) {
+      println("cannot read " + factFile + ", loading CSV files: " + e.getMessage());
+      factFile = null;
+    }
+  }
+  FactStore cached = factFile == null && startupCache != null ? startupCache.readFacts() : null;
+  if (cached != null) {
+    store = cached;
+  } else if (factFile == null) {
+    store = loadFiresDataFromCSV("fires_data.csv");
+    loadPlantData("planted_forests_data.csv");
+    if (startupCache != null)
+      startupCache.writeFacts(store);
+  }
+  if (store.numViews == 0)
+    throw new RuntimeException("no fire data in fires_data.csv");
+  println("loaded " + store.numStates + " states, " + store.startYear + "-" + store.endYear());
+  store.computeStats();
+  timeCube = new TimeCube(store);
+  createScales();
+  coordinatesMap = loadCoordinatesFromCSV("positions.csv");
+}
 
-        shapeState.setFill(clr);
-        shapeState.setStroke(true);
-        shapeState.setStroke(color(255));
-        shapeState.setStrokeWeight(1);
+/*----------------------------------------------------------------------*/
+// load states geometry from the map of Brazil
+// (http://www.amcharts.com/svg-maps/) as immutable Java2D paths, which can
+// be shared by worker threads, the hit-testing index and the GPU meshes
+
+void loadStatePaths() {
+  statePaths = startupCache != null ? startupCache.readStatePaths(store.stateCodes) : null;
+  if (statePaths != null)
+    return;
+
+  PShape svg = new PShapeSVG(loadXML("brazilLow.svg"));
+  statePaths = new Path2D[store.numStates];
+  for (int stateId = 0; stateId < store.numStates; stateId++)
+    statePaths[stateId] = statePath(svg.getChild(store.stateCodes.get(stateId)));
+  if (startupCache != null)
+    startupCache.writeStatePaths(store.stateCodes, statePaths);
+}
 
-        Views[viewIdx].shape(shapeState);
-      }
+/*----------------------------------------------------------------------*/
+// create cache of visualisation views for each month and year; views are
+// rendered in parallel on worker threads and shown as they arrive
 
-      Views[viewIdx].noStroke();
-      // draw circles for planted forests
-      for (StateEntry se : stateEntries) {
-        if (se.plantedArea != 0) {
-          int[] xy = coordinatesMap.get(se.stateCode);
-          int size = int(map(se.plantedArea, 13901, 1536310, 10, 70));
-          Views[viewIdx].fill(green);
-          float xx = (xy[0]-graphicsX/scaleFactor);
-          float yy = (xy[1]-graphicsY/scaleFactor);
-          Views[viewIdx].ellipse(xx, yy, size, size);
-          if (year == startYear && month == startMonth)
-            println("drawing " + se.stateCode + " ellipse at: " + xx + " " + yy);
-        }
-      }
-      Views[viewIdx].pop();
-      Views[viewIdx].endDraw();
-      viewIdx++;
-    }
+void createViews() {
+  Stage stage = stageTimes.start("create views");
+  if (viewRenderer != null)
+    viewRenderer.shutdown();
+  if (tileCache != null)
+    tileCache.renderer.shutdown();
+  shownView = null;
+  thumbnails = null;
+  tileCache = new TileCache(new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, renderThreads),
+    tileCacheMB * 1024L * 1024L);
+  if (paletteRendering) {
+    viewRenderer = null;
+    viewCache = null;
+    paletteRenderer = new PaletteRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor);
+  } else {
+    paletteRenderer = null;
+    viewRenderer = new ViewRenderer(statePaths, graphicsWidth, graphicsHeight, scaleFactor, renderThreads);
+    viewCache = new ViewCache(viewRenderer, viewCacheMB * 1024L * 1024L, prefetchMonths);
+    viewCache.warm(thisViewIdx);
   }
+  stage.stop();
 }
 
 /*----------------------------------------------------------------------*/
-// return state entries for corresponding month and year
-
-ArrayList<StateEntry> getStateEntries(int month, int year) {
-  ArrayList<StateEntry> stateEntries = new ArrayList<StateEntry>();
-
-  // iterate through states 
-  for (ArrayList<StateEntry> dataEntries : dataEntriesMap.values()) {
-    // iterate through state entries
-    for (StateEntry dataEntry : dataEntries) {
-      if ((dataEntry.month == month) && (dataEntry.year == year)) {
-        stateEntries.add(dataEntry);
-        break;
-      }
-    }
-  }
+// display view for corresponding month and year: only re-points the
+// existing state entries, so it is cheap enough for every timeline click
+// and playback tick
+
+void selectView(int month, int year) {
+  thisMonth = month;
+  thisYear = year;
+  thisViewIdx = getViewIdx(month, year);
+  for (StateEntry se : thisStateEntries)
+    se.viewIdx = thisViewIdx;
+}
+
+/*----------------------------------------------------------------------*/
+// return state entries for corresponding month and year (one per state)
+
+StateEntry[] getStateEntries(int month, int year) {
+  int viewIdx = store.viewIdx(month, year);
+  StateEntry[] stateEntries = new StateEntry[store.numStates];
+  for (int stateId = 0; stateId < store.numStates; stateId++)
+    stateEntries[stateId] = new StateEntry(store, stateId, viewIdx);
   return stateEntries;
 }
 
 /*----------------------------------------------------------------------*/
-// return state entries for corresponding state and year
+// return state entries for corresponding state and year (one per month)
 
-ArrayList<StateEntry> getStateEntries(String stateCode, int year) {
-  ArrayList<StateEntry> stateEntries = new ArrayList<StateEntry>();
+StateEntry[] getStateEntries(String stateCode, int year) {
+  int stateId = store.stateId(stateCode);
+  int viewIdx = store.viewIdx(1, year);
+  if (stateId < 0 || viewIdx < 0)
+    return new StateEntry[0];
 
-  // iterate through states 
-  for (ArrayList<StateEntry> dataEntries : dataEntriesMap.values()) {
-    // iterate through state entries
-    for (StateEntry dataEntry : dataEntries) {
-      if ((dataEntry.stateCode.equals(stateCode)) && (dataEntry.year == year)) {
-        stateEntries.add(dataEntry);
-      }
-    }
-  }
+  StateEntry[] stateEntries = new StateEntry[12];
+  for (int month = 0; month < 12; month++)
+    stateEntries[month] = new StateEntry(store, stateId, viewIdx + month);
   return stateEntries;
 }
 
@@ -251,7 +499,7 @@ ArrayList<StateEntry> getStateEntries(String stateCode, int year) {
 // get view index for corresponding month and year
 
 int getViewIdx(int month, int year) {
-  return (year-startYear) * 12 + month - 1;
+  return store.viewIdx(month, year);
 }
 
 /*----------------------------------------------------------------------*/
@@ -262,7 +510,7 @@ int[] getMonthYear(int viewIdx) {
 
   int[] my = new int[2];
   my[0] = viewIdx - yearIdx*12 + 1; // month
-  my[1] = yearIdx + startYear; // year
+  my[1] = yearIdx + store.startYear; // year
 
   return my;
 }
@@ -271,220 +519,343 @@ int[] getMonthYear(int viewIdx) {
 // print my data structure
 
 void printDataEntriesMap() {
-  for (Map.Entry<String, ArrayList<StateEntry>> entry : dataEntriesMap.entrySet()) {
-    println(entry.getKey());
-    for (StateEntry se : entry.getValue()) {
-      println(se.stateCode + " " + se.month + " " + se.year + " " + se.plantedArea);
+  for (int stateId = 0; stateId < store.numStates; stateId++) {
+    String stateCode = store.stateCodes.get(stateId);
+    println(stateCode);
+    for (int viewIdx = 0; viewIdx < store.numViews; viewIdx++) {
+      if (store.hasData(stateId, viewIdx)) {
+        int[] my = getMonthYear(viewIdx);
+        println(stateCode + " " + my[0] + " " + my[1] + " " + store.plantedArea(stateId, viewIdx));
+      }
     }
   }
 }
 
 /*----------------------------------------------------------------------*/
-// highlight selected state by drawing stroke and data details
+// return value of a "--name=value" command line argument or the default
 
-void showDetails() {
-  color mouseClr = idView.get(mouseX-graphicsX, mouseY-graphicsY);
-
-  push();
-  scale(scaleFactor);
-
-  for (StateEntry se : thisStateEntries) {
-    PShape shapeState = shapeStatesMap.get(se.stateCode);
-    color shapeClr = statesColoursMap.get(se.stateCode);
-
-    // compare colour values: if same, the mouse is over current state
-    if (mouseClr == shapeClr) {
-      // select and draw current
-      color stateClr = color(255, (255 - se.transparency), (255 - se.transparency));
-      shapeState.setFill(stateClr);
-      shapeState.setStroke(true);
-      shapeState.setStroke(darkGray);
-      shapeState.setStrokeWeight(1);
-
-      shape(shapeState, graphicsX / scaleFactor, graphicsY / scaleFactor);
-
-      noStroke();
-      if (se.plantedArea != 0) {
-        int[] xy = coordinatesMap.get(se.stateCode);
-        int size = int(map(se.plantedArea, 13901, 1536310, 10, 70));
-        fill(green);
-        ellipse(xy[0], xy[1], size, size);
-      }
+String stringArg(String name, String defaultValue) {
+  if (args != null) {
+    for (String arg : args) {
+      if (arg.startsWith(name + "="))
+        return arg.substring(name.length() + 1);
+    }
+  }
+  return defaultValue;
+}
 
-      fill(darkGray);
-      textAlign(CENTER);
-      textSize(18);
-      text(se.stateName, width/2/scaleFactor, height*5/7/scaleFactor+50);
-      textSize(14);
-      text("Number of fires: " + se.numOfFires, width/2/scaleFactor, height*5/7/scaleFactor+70);
+int intArg(String name, int defaultValue) {
+  String value = stringArg(name, null);
+  return value == null ? defaultValue : Integer.parseInt(value);
+}
 
-      if (se.plantedArea != 0)
-        text("Planted forests area: " + se.plantedArea + " ha", width/2/scaleFactor, height*5/7/scaleFactor+90);
+// return whether a "--name" flag was given on the command line
+boolean hasArg(String name) {
+  if (args != null) {
+    for (String arg : args) {
+      if (arg.equals(name))
+        return true;
     }
   }
+  return false;
+}
+
+/*----------------------------------------------------------------------*/
+// return id of the state under the mouse or -1 if the mouse is not over one
+
+int stateUnderMouse() {
+  if (!overMap())
+    return -1;
+  return stateIndex.stateAt(viewport.mapX(mouseX), viewport.mapY(mouseY));
+}
+
+boolean overMap() {
+  return grid.layout == GRID_OFF && mouseX >= graphicsX && mouseX < graphicsX+graphicsWidth &&
+    mouseY >= graphicsY && mouseY < graphicsY+graphicsHeight;
+}
+
+/*----------------------------------------------------------------------*/
+// highlight selected state by drawing stroke and data details
+
+void showDetails(PGraphics pg, int stateId) {
+  if (stateId < 0 || !stateHasData(stateId, thisViewIdx))
+    return;
+
+  StateEntry se = thisStateEntries[stateId];
+
+  // select and draw current where the zoomed map shows it, cut at the map
+  // area like the zoomed map (clip() takes pixels of pg, not its transform)
+  if (viewport.level > 0)
+    pg.clip(pg.screenX(graphicsX, graphicsY), pg.screenY(graphicsX, graphicsY), graphicsWidth, graphicsHeight);
+  pg.push();
+  pg.translate(viewport.screenX(0), viewport.screenY(0));
+  pg.scale(viewport.scale());
+  color stateClr = stateColor(stateId, thisViewIdx);
+  stateMeshes.draw(pg, stateId, stateClr, 0, 0);
+
+  pg.noStroke();
+  if (se.plantedArea() != 0) {
+    int[] xy = coordinatesMap.get(se.stateCode());
+    int size = plantedSize(se.plantedArea());
+    pg.fill(green);
+    pg.ellipse(xy[0] - graphicsX/scaleFactor, xy[1] - graphicsY/scaleFactor, size, size);
+  }
+  pg.pop();
+  pg.noClip();
+
+  pg.push();
+  pg.scale(scaleFactor);
+
+  pg.fill(darkGray);
+  pg.textAlign(CENTER);
+  pg.textSize(18);
+  pg.text(se.stateName(), width/2/scaleFactor, height*5/7/scaleFactor+50);
+  pg.textSize(14);
+  int yearIdx = thisViewIdx / 12;
+  String fires = "Number of fires: " + se.numOfFires();
+  if (mapMode == YEARLY_MAP)
+    fires = "Number of fires in " + thisYear + ": " + timeCube.yearTotal(stateId, yearIdx);
+  else if (mapMode == TREND_MAP)
+    fires = "Number of fires in " + thisYear + ": " + timeCube.yearTotal(stateId, yearIdx) + ", " +
+      formatChange(timeCube.yearDelta(stateId, yearIdx), timeCube.yearTotal(stateId, yearIdx - 1)) +
+      " from " + (thisYear - 1);
+  Ranking ranking = rankings.fires(thisViewIdx);
+  fires += " (rank " + (ranking.rank(stateId) + 1) + " of " + ranking.count + ")";
+  pg.text(fires, width/2/scaleFactor, height*5/7/scaleFactor+70);
+
+  if (se.plantedArea() != 0) {
+    ranking = rankings.planted[yearIdx];
+    pg.text("Planted forests area: " + se.plantedArea() + " ha (rank " + (ranking.rank(stateId) + 1) + " of " +
+      ranking.count + ")", width/2/scaleFactor, height*5/7/scaleFactor+90);
+  }
+
+  // correlation of yearly fires with planted forests over all years
+  Correlation c = correlations.get(stateId);
+  if (!Float.isNaN(c.pearson[0])) {
+    String text = "Fires vs planted forests: r = " + formatCorrelation(c.pearson[0]) +
+      ", \u03C1 = " + formatCorrelation(c.spearman[0]) + " (" + c.n[0] + " years)";
+    int lag = c.strongestLag();
+    if (lag > 0)
+      text += ", strongest " + lag + (lag == 1 ? " year" : " years") + " later: r = " + formatCorrelation(c.pearson[lag]);
+    pg.text(text, width/2/scaleFactor, height*5/7/scaleFactor+110);
+  }
 
-  pop();
+  pg.pop();
 }
 
 /*----------------------------------------------------------------------*/
 // display title of the visualisation at top centre
 
-void displayTitle() {
-  fill(darkGray);
-  textSize(25);
-  textAlign(CENTER);
-  text("Fires vs planted forests in Brazil", width/2, height/18);
-  textSize(20);
-  text(nameOfMonths[thisMonth-1] + " " + thisYear, width/2, height/11);
+void displayTitle(PGraphics pg, int month, int year) {
+  pg.fill(darkGray);
+  pg.textSize(25);
+  pg.textAlign(CENTER);
+  pg.text("Fires vs planted forests in Brazil", width/2, height/18);
+  pg.textSize(20);
+  if (mapMode == YEARLY_MAP)
+    pg.text("All of " + year, width/2, height/11);
+  else if (mapMode == TREND_MAP)
+    pg.text(year + " compared with " + (year - 1), width/2, height/11);
+  else
+    pg.text(nameOfMonths[month-1] + " " + year, width/2, height/11);
 }
 
 /*----------------------------------------------------------------------*/
 // display legends for number of fires and planted forests area 
 
-void displayLegends(int x, int y) {
+void displayLegends(PGraphics pg, int x, int y) {
   // number of fires legend
-  textSize(14);
-  textAlign(LEFT);
-  fill(darkGray);
-  text("Number of fires:", x, y);
+  pg.textSize(14);
+  pg.textAlign(LEFT);
+  pg.fill(darkGray);
+  pg.text(mapMode == TREND_MAP ? "Change from year before:" :
+    mapMode == YEARLY_MAP ? "Number of fires in year:" : "Number of fires:", x, y);
 
   int h = 150;
   int w = 20;
-  noFill();
+  pg.noFill();
   // draw top to bottom gradient
   for (int i = y+20; i <= y+20+h; i++) {
     float inter = map(i, y, y+20+h, 0, 1);
-    color c = lerpColor(lowestAlphaRed, highestAlphaRed, inter);
-    stroke(c);
-    line(x, i, x+w, i);
+    pg.stroke(legendColor(inter));
+    pg.line(x, i, x+w, i);
   }
 
-  // draw numbers
-  fill(darkGray);
-  int step = 6500;
-  for (int i = 0, j = 1; i <= 26000; i = i+step, j++) {
-    text(i, x+30, y-10+h*j/4);
+  // draw numbers at their place on the scale of the views
+  pg.fill(darkGray);
+  for (int j = 0; j <= 4; j++) {
+    float value = legendValue(j/4.0);
+    String sign = mapMode == TREND_MAP && value > 0 ? "+" : (value < 0 ? "-" : "");
+    pg.text(sign + roundLegend(Math.abs(value)), x+30, y-10+h*(j+1)/4);
   }
 
   // planted forests area legend
-  noStroke();
-  text("Planted forests area [ha]:", x, y+h+100);
-
-  int[] sizes = new int[] {15000, 150000, 1500000};
-  int[] ys = new int[] {y+270, y+300, y+350};
-
-  // draw circles
-  for (int i = 0; i < sizes.length; i++) {
-    int size = sizes[i];
-    int cs = int(map(size, 13901, 1536310, 10, 60));
-    fill(green);
-    ellipse(x+8, ys[i], cs, cs);
+  pg.noStroke();
+  pg.text("Planted forests area [ha]:", x, y+h+100);
+
+  // draw circles for a small, middle and largest area, sized as in the views
+  // where the map is scaled by scaleFactor
+  float[] positions = new float[] {0.1, 0.5, 1};
+  float cy = y+h+110;
+  for (int i = 0; i < positions.length; i++) {
+    int size = roundLegend(plantedScale.value(positions[i]));
+    float cs = plantedSize(size) * scaleFactor;
+    cy += cs/2 + 8;
+    pg.fill(green);
+    pg.ellipse(x+8, cy, cs, cs);
 
     // draw numbers
-    fill(darkGray);
-    text(sizes[i], x+45, ys[i]+5);
+    pg.fill(darkGray);
+    pg.text(size, Math.max(x+45, x+8 + cs/2 + 10), cy+5);
+    cy += cs/2;
   }
 }
 
 /*----------------------------------------------------------------------*/
-// create and return hashmap containing fire data
-
-HashMap<String, ArrayList<StateEntry>> loadFiresDataFromCSV(String fileName) {
-  dataEntriesMap = new HashMap<String, ArrayList<StateEntry>>();
-  thisStateEntries = new ArrayList<StateEntry>();
-
-  String[] rows = loadStrings(fileName);
-  // skip header
-  boolean firstRow = true;
-  for (String row : rows) {
-    String[] cols = row.split(",");
-    if (firstRow) {
-      firstRow = false;
-      continue;
-    }
+// create and return store containing fire data
+
+FactStore loadFiresDataFromCSV(String fileName) {
+  store = new FactStore(); // time range follows the data
+  try {
+    readCsv(fileName, new CsvChunks<FireBatch>() {
+      FireBatch parse(CsvReader rows) throws IOException {
+        return readFireBatch(rows, true);
+      }
 
-    if (cols.length >= 5) {    
-      StateEntry dataEntry = new StateEntry();
-      dataEntry.stateCode = cols[0];
-      dataEntry.stateName = cols[1];
-      dataEntry.month = Integer.parseInt(cols[2]);
-      dataEntry.year = Integer.parseInt(cols[3]);
-      dataEntry.numOfFires = Math.round(Float.parseFloat(cols[4]));
-      dataEntry.transparency = int(map(dataEntry.numOfFires, 0, 25963, 10, 255));
-
-      if (dataEntriesMap.containsKey(dataEntry.stateCode)) {
-        dataEntriesMap.get(dataEntry.stateCode).add(dataEntry);
-      } else {
-        dataEntriesMap.put(dataEntry.stateCode, new ArrayList<StateEntry>());
-        dataEntriesMap.get(dataEntry.stateCode).add(dataEntry);
+      void merge(FireBatch batch) {
+        if (batch.firstYear <= batch.lastYear)
+          store.addYears(batch.firstYear, batch.lastYear);
+        for (int i = 0; i < batch.size(); i++) {
+          int viewIdx = store.addView(batch.months.get(i), batch.years.get(i));
+          if (viewIdx < 0) {
+            println("skipping " + batch.stateCodes.get(i) + " " + batch.months.get(i) + "/" +
+              batch.years.get(i) + ": invalid month");
+            continue;
+          }
+          int stateId = store.internState(batch.stateCodes.get(i), batch.stateNames.get(i));
+          store.setFires(stateId, viewIdx, batch.fires.get(i));
+        }
       }
-    }
+    }).report();
+  } catch (IOException e) {
+    println("cannot read " + fileName + ": " + e);
   }
-  return dataEntriesMap;
+  return store;
 }
 
 /*----------------------------------------------------------------------*/
-// load planted forests area data
+// load planted forests area data into the annual table of the store,
+// joined to fire data by state id and year
 
 void loadPlantData(String fileName) {
-  String[] rows = loadStrings(fileName);
-  // skip header
-  boolean firstRow = true;
-  for (String row : rows) {
-    String[] cols = row.split(",");
-    if (firstRow) {
-      firstRow = false;
-      continue;
-    }
-
-    if (cols.length >= 4) {
-      String stateCode = cols[0];
-      int year = Integer.parseInt(cols[2]);
-      int plantedArea = Integer.parseInt(cols[3]);
-
-      // add planted area to all corresponding records
-      ArrayList<StateEntry> stateEntries = getStateEntries(stateCode, year);
-      for (StateEntry se : stateEntries) {
-        se.plantedArea = plantedArea;
+  int unmatched = 0;
+  try {
+    CsvReader rows = openCsv(fileName);
+    try {
+      rows.readHeader();
+      int codeCol = rows.column("State code", 0);
+      int yearCol = rows.column("Year", 2);
+      int areaCol = rows.column("Planted area (ha)", 3);
+      while (rows.next()) {
+        String stateCode = rows.string(codeCol);
+        int year = rows.intField(yearCol);
+        int plantedArea = rows.intField(areaCol);
+        if (rows.failed())
+          continue;
+
+        int stateId = store.stateId(stateCode);
+        int yearIdx = store.yearIdx(year);
+        if (stateId < 0 || yearIdx < 0) {
+          println("no fire data for planted area of " + stateCode + " in " + year);
+          unmatched++;
+          continue;
+        }
+        store.plantedArea[stateId][yearIdx] = plantedArea;
       }
+    } finally {
+      rows.close();
     }
+    rows.errors.report();
+  } catch (IOException e) {
+    println("cannot read " + fileName + ": " + e);
   }
+  if (unmatched > 0)
+    println(unmatched + " planted area rows without matching fire data");
 }
 
 /*----------------------------------------------------------------------*/
-// create and return hashmap containing states coordinates
+// create and return hashmap containing states coordinates (the file has
+// no header)
 
 HashMap<String, int[]> loadCoordinatesFromCSV(String fileName) {
   coordinatesMap = new HashMap<String, int[]>();
-
-  String[] rows = loadStrings(fileName);
-  for (String row : rows) {
-    String[] cols = row.split(",");
-
-    if (cols.length >= 4) {
-      String stateCode = cols[0];
-
-      int xy[] = new int[2];
-      xy[0] = Integer.parseInt(cols[2]);
-      xy[1] = Integer.parseInt(cols[3]);
-
-      if (!coordinatesMap.containsKey(stateCode)) {
-        coordinatesMap.put(stateCode, xy);
+  try {
+    CsvReader rows = openCsv(fileName);
+    try {
+      while (rows.next()) {
+        String stateCode = rows.string(0);
+        int xy[] = new int[2];
+        xy[0] = rows.intField(2);
+        xy[1] = rows.intField(3);
+
+        if (!rows.failed() && !coordinatesMap.containsKey(stateCode)) {
+          coordinatesMap.put(stateCode, xy);
+        }
       }
+    } finally {
+      rows.close();
     }
+    rows.errors.report();
+  } catch (IOException e) {
+    println("cannot read " + fileName + ": " + e);
   }
   return coordinatesMap;
 }
 
+/*----------------------------------------------------------------------*/
+// run the visualisation, or export its views to image files without a
+// display when started with --export=<directory>
+
+static public void main(String[] passedArgs) {
+  if (passedArgs != null) {
+    for (String arg : passedArgs) {
+      boolean export = arg.startsWith("--export=");
+      boolean compileData = arg.equals("--compile-data") || arg.startsWith("--compile-data=");
+      boolean hotspots = arg.startsWith("--hotspots=");
+      boolean correlations = arg.startsWith("--correlations=");
+      boolean benchmark = arg.equals("--benchmark") || arg.startsWith("--benchmark=");
+      boolean serve = arg.equals("--serve") || arg.startsWith("--serve=");
+      boolean selfTest = arg.equals("--self-test");
+      if (export || compileData || hotspots || correlations || benchmark || serve || selfTest) {
+        System.setProperty("java.awt.headless", "true");
+        brazilian_fires sketch = new brazilian_fires();
+        sketch.args = passedArgs;
+        sketch.sketchPath(); // resolves data folder without running the sketch
+        boolean done = export ? sketch.export() : compileData ? sketch.compileData() :
+          hotspots ? sketch.ingestHotspots() : correlations ? sketch.exportCorrelations() : benchmark ? sketch.benchmark() :
+          selfTest ? sketch.selfTest() : sketch.serve();
+        if (!done)
+          System.exit(1);
+        return;
+      }
+    }
+  }
+
+  String[] appletArgs = new String[] { "--present", "--window-color=#666666", "--stop-color=#cccccc", "brazilian_fires" };
+  if (passedArgs != null) {
+    PApplet.main(concat(appletArgs, passedArgs));
+  } else {
+    PApplet.main(appletArgs);
+  }
+}
+
 //////////////////////////////////
 
 class Button {
-  boolean pause, play, stop;
   PVector[] pos;
   int d; // diameter of a button
   boolean[] pressed;
   boolean[] mouseOver;
-  int counter;
 
   /*----------------------------*/
 
@@ -501,22 +872,19 @@ class Button {
       pressed[i] = false;
       mouseOver[i] = false;
     }
-    counter = 0;
   }
 
   /*----------------------------*/
 
   void applyButton() {
     if (pressed[0]) // pause
-      play = false;
+      playback.pause();
     if (pressed[1]) // play
-      play = true;
+      playback.play();
     if (pressed[2]) { // stop
-      play = false;  
-      thisYear = startYear;
-      thisMonth = 1;
-      thisViewIdx = getViewIdx(thisMonth, thisYear);
-      thisStateEntries = getStateEntries(thisMonth, thisYear);
+      playback.pause();
+      int[] my = getMonthYear(store.nextView(-1, 1));
+      selectView(my[0], my[1]);
     }
   }
 
@@ -540,70 +908,59 @@ class Button {
   }
 
   /*----------------------------*/
-  // if mouse is over any button, make mouseover true, else false
+  // if mouse is over any button, make mouseover true, else false;
+  // return whether any of them changed
 
-  void rollover(float mx, float my) {
+  boolean rollover(float mx, float my) {
+    boolean changed = false;
     for (int i = 0; i < pos.length; i++) {
-      if (dist(mx, my, pos[i].x, pos[i].y) < d/2)
-        mouseOver[i] = true;
-      else
-        mouseOver[i] = false;
+      boolean over = dist(mx, my, pos[i].x, pos[i].y) < d/2;
+      changed |= mouseOver[i] != over;
+      mouseOver[i] = over;
     }
+    return changed;
   }
 
   /*----------------------------*/
 
-  void display() {
-    if (play && (counter % 35 == 0)) {
-      if (thisViewIdx < Views.length - 1) {
-        thisViewIdx++;
-      } else {
-        thisViewIdx = 0;
-      }
-      int[] my = getMonthYear(thisViewIdx);
-      thisMonth = my[0];
-      thisYear = my[1];
-      thisStateEntries = getStateEntries(thisMonth, thisYear);
-    }
-    counter++;
-
-    noStroke();
+  void display(PGraphics pg) {
+    pg.noStroke();
     // draw button icons according to their status
     for (int i = 0; i < pos.length; i++) {
       if (pressed[i])
-        fill(lightPink);
+        pg.fill(lightPink);
       else if (mouseOver[i])
-        fill(lightPink);
+        pg.fill(lightPink);
       else
-        fill(darkGray);
-      ellipse(pos[i].x, pos[i].y, d, d);
+        pg.fill(darkGray);
+      pg.ellipse(pos[i].x, pos[i].y, d, d);
     }
 
-    fill(255);
-    displayPause(pos[0].x, pos[0].y);
-    displayPlay(pos[1].x, pos[1].y);
-    displayStop(pos[2].x, pos[2].y);
+    pg.fill(255);
+    displayPause(pg, pos[0].x, pos[0].y);
+    displayPlay(pg, pos[1].x, pos[1].y);
+    displayStop(pg, pos[2].x, pos[2].y);
   }
 
   /*----------------------------*/
   // BUTTON ICONS
 
   // pause: two vertical lines
-  void displayPause(float x, float y) {
-    rectMode(CENTER);
-    rect(x-3, y, 4, 9);
-    rect(x+3, y, 4, 9);
+  void displayPause(PGraphics pg, float x, float y) {
+    pg.rectMode(CENTER);
+    pg.rect(x-3, y, 4, 9);
+    pg.rect(x+3, y, 4, 9);
   }
 
   // play: a triangle
-  void displayPlay(float x, float y) {   
-    triangle(x-3, y-5, x-3, y+5, x+5, y);
+  void displayPlay(PGraphics pg, float x, float y) {   
+    pg.triangle(x-3, y-5, x-3, y+5, x+5, y);
   }
 
   // stop: a sqaure
-  void displayStop(float x, float y) {
-    rectMode(CENTER);
-    rect(x, y, 9, 9);
+  void displayStop(PGraphics pg, float x, float y) {
+    pg.rectMode(CENTER);
+    pg.rect(x, y, 9, 9);
   }
 }
 
@@ -611,36 +968,44 @@ class Button {
 
 class Timeline {
   PVector p0;  // centre of the timeline
-  PVector[] pos;  // array of circle positions
+  PVector[] pos;  // array of circle positions, one per visible element
 
   char option; // option to display (years or months)
-  int numElements; // number of elements to display
-  int midIdx;  // middle element index
+  int numElements; // number of elements in the timeline
+  int numVisible; // number of elements that fit into the timeline's width
+  int first; // index of the first visible element
+  int followedIdx = -1; // element the window was last moved to show
+  int midIdx;  // middle visible element index
   int r;  // circle radius
   int d;  // distance between circles
 
   Boolean[] mouseOver;
   Boolean[] pressed;  
+  boolean overPrevious; // mouse is over the arrow scrolling back
+  boolean overNext; // mouse is over the arrow scrolling forward
 
   /*----------------------------*/
+  // elements that do not fit into maxWidth are scrolled into view, so only
+  // a window of them is laid out and drawn however long the data is
 
-  public Timeline(int x, int y, char option) {
+  public Timeline(int x, int y, char option, int maxWidth) {
     this.option = option;
     if (option == 'm')
       numElements = 12;
     else if (option == 'y')
-      numElements = numYears;
+      numElements = store.numYears;
 
-    midIdx = numElements/2;
     r = 6;
     d = 2*r + 40;
+    numVisible = constrain(maxWidth/d + 1, 1, numElements);
+    midIdx = numVisible/2;
 
     p0 = new PVector(x, y);
     pos = setPosition();
 
-    mouseOver = new Boolean[numElements];
-    pressed = new Boolean[numElements];
-    for (int i = 0; i < numElements; i++) {
+    mouseOver = new Boolean[numVisible];
+    pressed = new Boolean[numVisible];
+    for (int i = 0; i < numVisible; i++) {
       mouseOver[i] = false;    
       pressed[i] = false;
     }
@@ -650,110 +1015,203 @@ class Timeline {
   // set position of each circle
 
   PVector[] setPosition() {
-    PVector[] p = new PVector[numElements];
+    PVector[] p = new PVector[numVisible];
 
     for (int i = midIdx; i >= 0; i--)
       p[i] = new PVector(p0.x - (midIdx - i)*d, p0.y);    
 
-    for (int i = midIdx + 1; i < numElements; i++)  
+    for (int i = midIdx + 1; i < numVisible; i++)  
       p[i] = new PVector(p0.x + (i - midIdx)*d, p0.y);
 
     return p;
   }
 
   /*----------------------------*/
-  // if mouse is over any button, make mouseover true or false
+  // index of the element shown in the current view
 
-  void rollover(float mx, float my) {
-    for (int i = 0; i < numElements; i++) {
-      if (dist(mx, my, pos[i].x, pos[i].y) < r)
-        mouseOver[i] = true;
-      else
-        mouseOver[i] = false;
+  int selectedIdx() {
+    return option == 'm' ? thisMonth - 1 : thisYear - store.startYear;
+  }
+
+  // whether the element has data in any state, elements without are gaps
+  boolean hasData(int elementIdx) {
+    if (option == 'y')
+      return store.hasYearData(elementIdx);
+    int viewIdx = store.viewIdx(elementIdx + 1, thisYear);
+    return viewIdx >= 0 && store.hasData(viewIdx);
+  }
+
+  boolean canScroll(int direction) {
+    return direction < 0 ? first > 0 : first + numVisible < numElements;
+  }
+
+  void scroll(int steps) {
+    first = constrain(first + steps, 0, numElements - numVisible);
+  }
+
+  /*----------------------------*/
+  // if mouse is over any button, make mouseover true or false;
+  // return whether any of them changed
+
+  boolean rollover(float mx, float my) {
+    boolean changed = false;
+    for (int i = 0; i < numVisible; i++) {
+      boolean over = dist(mx, my, pos[i].x, pos[i].y) < r;
+      changed |= mouseOver[i] != over;
+      mouseOver[i] = over;
     }
+
+    boolean previous = canScroll(-1) && dist(mx, my, pos[0].x - d/2, pos[0].y) < r;
+    boolean next = canScroll(1) && dist(mx, my, pos[numVisible-1].x + d/2, pos[0].y) < r;
+    changed |= previous != overPrevious || next != overNext;
+    overPrevious = previous;
+    overNext = next;
+    return changed;
   }
 
   /*----------------------------*/
-  // if any button is pressed, make pressed true and update view variables
+  // if any button is pressed, make pressed true and update view variables;
+  // the arrows scroll by a window
 
   void press(float mx, float my) {
-    for (int i = 0; i < numElements; i++)
+    for (int i = 0; i < numVisible; i++)
       if (dist(mx, my, pos[i].x, pos[i].y) < r) {
         pressed[i] = true;
         if (option == 'y')
-          thisYear = startYear + i;
+          selectView(thisMonth, store.startYear + first + i);
         else if (option == 'm')
-          thisMonth = startMonth + i;
-        thisViewIdx = getViewIdx(thisMonth, thisYear);
-        thisStateEntries = getStateEntries(thisMonth, thisYear);
+          selectView(first + i + 1, thisYear);
       }
+
+    if (overPrevious)
+      scroll(-(numVisible - 1));
+    if (overNext)
+      scroll(numVisible - 1);
   }
 
   /*----------------------------*/
   // make pressed false for each button (used with mouseReleased event)
 
   void noPress() {
-    for (int i = 0; i < numElements; i++)
+    for (int i = 0; i < numVisible; i++)
       pressed[i] = false;
   }
 
   /*----------------------------*/
 
-  void display() {        
-    int thisElementIdx = thisYear - startYear;
-
-    if (option == 'm') {
-      thisElementIdx = thisMonth - 1;
+  void display(PGraphics pg) {        
+    // keep a newly selected element in the window
+    int thisElementIdx = selectedIdx();
+    if (thisElementIdx != followedIdx) {
+      if (thisElementIdx < first || thisElementIdx >= first + numVisible)
+        scroll(thisElementIdx - midIdx - first);
+      followedIdx = thisElementIdx;
     }
 
     // draw line
-    strokeWeight(2);
-    stroke(darkGray);
-    line(pos[0].x, pos[0].y, pos[numElements-1].x, pos[numElements-1].y); 
-
-    // draw circles
-    strokeWeight(4);
-    for (int i = 0; i < numElements; i++) {
-      if (thisElementIdx == i) {
-        stroke(darkGray);    
-        fill(lightPink);
+    pg.strokeWeight(2);
+    pg.stroke(darkGray);
+    pg.line(pos[0].x, pos[0].y, pos[numVisible-1].x, pos[numVisible-1].y); 
+
+    // draw arrows to the elements out of the window
+    pg.noStroke();
+    if (canScroll(-1)) {
+      pg.fill(overPrevious ? lightPink : darkGray);
+      float x = pos[0].x - d/2;
+      pg.triangle(x - r, pos[0].y, x + r, pos[0].y - r, x + r, pos[0].y + r);
+    }
+    if (canScroll(1)) {
+      pg.fill(overNext ? lightPink : darkGray);
+      float x = pos[numVisible-1].x + d/2;
+      pg.triangle(x + r, pos[0].y, x - r, pos[0].y - r, x - r, pos[0].y + r);
+    }
+
+    // draw circles, gaps in the data lighter
+    pg.strokeWeight(4);
+    for (int i = 0; i < numVisible; i++) {
+      int elementIdx = first + i;
+      if (thisElementIdx == elementIdx) {
+        pg.stroke(darkGray);    
+        pg.fill(lightPink);
       } else if (mouseOver[i]) {   
-        stroke(lightPink);    
-        fill(255);
+        pg.stroke(lightPink);    
+        pg.fill(255);
+      } else if (!hasData(elementIdx)) {
+        pg.stroke(lightPink);
+        pg.fill(255);
       } else {   
-        stroke(darkGray);    
-        fill(255);
+        pg.stroke(darkGray);    
+        pg.fill(255);
       }
-      ellipse(pos[i].x, pos[i].y, 2*r, 2*r);
+      pg.ellipse(pos[i].x, pos[i].y, 2*r, 2*r);
     } 
 
-    textAlign(CENTER);
-    textSize(14);
-    fill(darkGray);
+    pg.textAlign(CENTER);
+    pg.textSize(14);
+    pg.fill(darkGray);
     // draw text (years)
     if (option == 'y') {
-      for (int i = 0; i < numElements; i++)    
+      for (int i = 0; i < numVisible; i++)    
         if (mouseOver[i])
-          text(2006+i, pos[i].x, pos[i].y - 2*r);  
-
-      text(startYear, pos[0].x, pos[0].y + 3*r); 
-      text(midYear, pos[midIdx].x, pos[midIdx].y + 3*r);  
-      text(endYear, pos[numElements-1].x, pos[numElements-1].y + 3*r);
+          pg.text(store.startYear + first + i, pos[i].x, pos[i].y - 2*r);  
+
+      int last = numVisible - 1;
+      pg.text(store.startYear + first, pos[0].x, pos[0].y + 3*r); 
+      if (midIdx != 0 && midIdx != last)
+        pg.text(store.startYear + first + midIdx, pos[midIdx].x, pos[midIdx].y + 3*r);  
+      if (last != 0)
+        pg.text(store.startYear + first + last, pos[last].x, pos[last].y + 3*r);
     } else if (option == 'm') {
-      for (int i = 0; i < numElements; i++)    
-        text(nameOfMonths[i].substring(0, 3), pos[i].x, pos[i].y + 3*r);
+      for (int i = 0; i < numVisible; i++)    
+        pg.text(nameOfMonths[first + i].substring(0, 3), pos[i].x, pos[i].y + 3*r);
     }
   }
 }
 
 //////////////////////////////////
 
+// a thin view of one state and one month in the store
+
 class StateEntry {
-  String stateCode;
-  String stateName;
-  int month;
-  int year;
-  int numOfFires;
-  int transparency;
-  int plantedArea;
+  FactStore store;
+  int stateId;
+  int viewIdx;
+
+  StateEntry(FactStore store, int stateId, int viewIdx) {
+    this.store = store;
+    this.stateId = stateId;
+    this.viewIdx = viewIdx;
+  }
+
+  String stateCode() {
+    return store.stateCodes.get(stateId);
+  }
+
+  String stateName() {
+    return store.stateNames.get(stateId);
+  }
+
+  int month() {
+    return viewIdx % 12 + 1;
+  }
+
+  int year() {
+    return store.startYear + viewIdx / 12;
+  }
+
+  boolean hasData() {
+    return store.hasData(stateId, viewIdx);
+  }
+
+  int numOfFires() {
+    return store.fires[stateId][viewIdx];
+  }
+
+  int transparency() {
+    return firesTransparency(numOfFires());
+  }
+
+  int plantedArea() {
+    return store.plantedArea(stateId, viewIdx);
+  }
 }